@@ -0,0 +1,401 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.core;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.stathissideris.ascii2image.graphics.Diagram;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+import yskkin.ascii2image.util.Loggers;
+
+/**
+ * Converts many text files in one JVM, several at a time. The options
+ * are parsed once and shared by all conversions, and so are the font,
+ * pattern and component caches that warm up along the way.
+ * 
+ * <p>Inputs are found by {@link #findInputs(String[])}. In incremental
+ * mode (see {@link ProcessingOptions#isIncremental()}) inputs whose
+ * images are up to date are skipped without being parsed; call
+ * {@link #saveManifests()} at the end of the run.</p>
+ * 
+ * @author Efstathios Sideris
+ */
+public class BatchConverter {
+
+	private static final Logger LOG = Loggers.getLogger(BatchConverter.class);
+
+	/** The extension of the files picked up from directories. */
+	public static final String INPUT_EXTENSION = "txt";
+
+	private final ConversionOptions options;
+	private final File targetDirectory;
+	private final int threads;
+	private final IncrementalManifest.Group manifests = new IncrementalManifest.Group();
+	/** The image of each input converted so far, which later conversions of the input replace. */
+	private final Map<File, String> targets = new ConcurrentHashMap<File, String>();
+
+	/**
+	 * @param options the options of every conversion
+	 * @param targetDirectory where the images go, or null to write each
+	 *   image next to its input
+	 * @param threads how many files are converted at the same time
+	 */
+	public BatchConverter(ConversionOptions options, File targetDirectory, int threads){
+		if(threads < 1) throw new IllegalArgumentException("At least one thread is needed, got "+threads);
+		this.options = options;
+		this.targetDirectory = targetDirectory;
+		this.threads = threads;
+	}
+
+	/**
+	 * An input file, along with the path its image gets under the target
+	 * directory.
+	 */
+	public static class Input {
+		private final File file;
+		private final String relativePath;
+
+		public Input(File file, String relativePath){
+			this.file = file;
+			this.relativePath = relativePath;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public String getRelativePath() {
+			return relativePath;
+		}
+
+		public String toString() {
+			return file.getPath();
+		}
+	}
+
+	/**
+	 * The outcome of converting one input.
+	 */
+	public static class Result {
+		private final Input input;
+		private final File output;
+		private final long millis;
+		private final String error;
+		private final boolean upToDate;
+
+		Result(Input input, File output, long millis, String error){
+			this(input, output, millis, error, false);
+		}
+
+		Result(Input input, File output, long millis, String error, boolean upToDate){
+			this.input = input;
+			this.output = output;
+			this.millis = millis;
+			this.error = error;
+			this.upToDate = upToDate;
+		}
+
+		public Input getInput() {
+			return input;
+		}
+
+		/** The image written, null if the conversion failed. */
+		public File getOutput() {
+			return output;
+		}
+
+		/** How long the conversion took, in milliseconds. */
+		public long getMillis() {
+			return millis;
+		}
+
+		/** Why the conversion failed, null if it did not. */
+		public String getError() {
+			return error;
+		}
+
+		public boolean isSuccessful() {
+			return error == null;
+		}
+
+		/** Whether the image was up to date, so nothing was converted. */
+		public boolean isUpToDate() {
+			return upToDate;
+		}
+	}
+
+	/**
+	 * Expands the inputs given on the command line. Each one can be
+	 * <ul>
+	 * <li>a file, used as is</li>
+	 * <li>a directory, searched recursively for <tt>.txt</tt> files</li>
+	 * <li>a glob pattern such as <tt>docs/**&#47;*.txt</tt>, where <tt>*</tt>
+	 *   and <tt>?</tt> do not match across directories and <tt>**</tt> does</li>
+	 * <li><tt>@FILE</tt>, naming a file that lists inputs of any of these
+	 *   kinds, one per line. Blank lines and lines starting with # are
+	 *   ignored.</li>
+	 * </ul>
+	 * Files found more than once are only returned once.
+	 * 
+	 * @param specs
+	 * @return the inputs, in the order given and sorted by name within
+	 *   directories and patterns
+	 * @throws IOException if a list file cannot be read
+	 */
+	public static List<Input> findInputs(String[] specs) throws IOException {
+		Map<String, Input> found = new LinkedHashMap<String, Input>();
+		for(String spec : specs){
+			findInputs(spec, found);
+		}
+		return new ArrayList<Input>(found.values());
+	}
+
+	private static void findInputs(String spec, Map<String, Input> found) throws IOException {
+		if(spec.startsWith("@")){
+			BufferedReader reader = new BufferedReader(
+					new InputStreamReader(new FileInputStream(spec.substring(1)), "UTF-8"));
+			try {
+				String line;
+				while((line = reader.readLine()) != null){
+					line = line.trim();
+					if(line.length() == 0 || line.startsWith("#")) continue;
+					findInputs(line, found);
+				}
+			} finally {
+				reader.close();
+			}
+			return;
+		}
+
+		File file = new File(spec);
+		if(file.isDirectory()){
+			Pattern anyText = Pattern.compile("(?i).*\\."+INPUT_EXTENSION);
+			collect(file, "", anyText, found);
+		} else if(isGlob(spec)){
+			String path = spec.replace(File.separatorChar, '/');
+			//the directories before the first wildcard are where the search starts
+			int firstWildcard = indexOfWildcard(path);
+			int baseEnd = path.lastIndexOf('/', firstWildcard);
+			File base = baseEnd == -1 ? new File(".") : new File(baseEnd == 0 ? "/" : path.substring(0, baseEnd));
+			Pattern pattern = globToPattern(path.substring(baseEnd + 1));
+			if(base.isDirectory()) collect(base, "", pattern, found);
+		} else {
+			//missing files are kept, so they are reported as failures
+			add(file, file.getName(), found);
+		}
+	}
+
+	private static void collect(File directory, String prefix, Pattern pattern, Map<String, Input> found) throws IOException {
+		File[] children = directory.listFiles();
+		if(children == null) return;
+		Arrays.sort(children);
+		for(File child : children){
+			String relativePath = prefix + child.getName();
+			if(child.isDirectory()){
+				collect(child, relativePath + "/", pattern, found);
+			} else if(pattern.matcher(relativePath).matches()){
+				add(child, relativePath, found);
+			}
+		}
+	}
+
+	private static void add(File file, String relativePath, Map<String, Input> found) throws IOException {
+		String key = file.getCanonicalPath();
+		if(!found.containsKey(key)) found.put(key, new Input(file, relativePath));
+	}
+
+	private static boolean isGlob(String spec){
+		return indexOfWildcard(spec) != -1;
+	}
+
+	private static int indexOfWildcard(String spec){
+		for(int i = 0; i < spec.length(); i++){
+			char c = spec.charAt(i);
+			if(c == '*' || c == '?' || c == '[') return i;
+		}
+		return -1;
+	}
+
+	static Pattern globToPattern(String glob){
+		StringBuilder regex = new StringBuilder();
+		for(int i = 0; i < glob.length(); i++){
+			char c = glob.charAt(i);
+			if(c == '*'){
+				if(i + 1 < glob.length() && glob.charAt(i + 1) == '*'){
+					i++;
+					if(i + 1 < glob.length() && glob.charAt(i + 1) == '/'){
+						i++;
+						regex.append("(.*/)?"); //**/ also matches no directory at all
+					} else {
+						regex.append(".*");
+					}
+				} else {
+					regex.append("[^/]*");
+				}
+			} else if(c == '?'){
+				regex.append("[^/]");
+			} else if(c == '['){
+				int close = glob.indexOf(']', i + 1);
+				if(close == -1){
+					regex.append("\\[");
+				} else {
+					String set = glob.substring(i + 1, close);
+					if(set.startsWith("!")) set = "^" + set.substring(1);
+					regex.append('[').append(set.replace("\\", "\\\\")).append(']');
+					i = close;
+				}
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return Pattern.compile(regex.toString());
+	}
+
+	/**
+	 * Converts every input. Failures do not stop the other conversions.
+	 * 
+	 * @param inputs
+	 * @return a result per input, in the order of <code>inputs</code>
+	 * @throws InterruptedException if interrupted while waiting for the
+	 *   conversions, which are then cancelled
+	 */
+	public List<Result> convert(List<Input> inputs) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, inputs.size())));
+		try {
+			List<Future<Result>> futures = new ArrayList<Future<Result>>();
+			for(final Input input : inputs){
+				futures.add(executor.submit(new Callable<Result>() {
+					public Result call() {
+						return convert(input);
+					}
+				}));
+			}
+			List<Result> results = new ArrayList<Result>();
+			for(int i = 0; i < futures.size(); i++){
+				try {
+					results.add(futures.get(i).get());
+				} catch (ExecutionException e) {
+					//convert(Input) reports its own failures, this is an Error
+					results.add(new Result(inputs.get(i), null, 0, String.valueOf(e.getCause())));
+				}
+			}
+			if(options.processingOptions.getComponentCache() != null){
+				LOG.fine("Component cache: "+options.processingOptions.getComponentCache());
+			}
+			return results;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Converts a single input.
+	 * 
+	 * @param input
+	 * @return the outcome, never throws
+	 */
+	public Result convert(Input input){
+		long start = System.currentTimeMillis();
+		File file = input.getFile();
+		try {
+			if(!file.isFile()) throw new IOException("File does not exist");
+
+			File output = new File(getTargetPathname(input));
+			byte[] text = null;
+			String key = null;
+			if(options.processingOptions.isIncremental()){
+				text = IncrementalManifest.readFile(file);
+				key = IncrementalManifest.keyFor(text, options, options.renderingOptions, OutputSpec.DEFAULT_FORMAT);
+				if(manifests.forImage(output).isUpToDate(output, key)){
+					return new Result(input, output, System.currentTimeMillis() - start, null, true);
+				}
+			}
+
+			TextGrid grid = new TextGrid();
+			if(options.processingOptions.getCustomShapes() != null){
+				grid.addToMarkupTags(options.processingOptions.getCustomShapes().keySet());
+			}
+			boolean loaded = text != null
+				? grid.loadFrom(new ByteArrayInputStream(text), file.getPath(), options.processingOptions)
+				: grid.loadFrom(file.getPath(), options.processingOptions);
+			if(!loaded){
+				throw new IOException("Cannot read file");
+			}
+			Diagram diagram = new Diagram(grid, options);
+
+			File parent = output.getAbsoluteFile().getParentFile();
+			if(parent != null && !parent.isDirectory() && !parent.mkdirs()){
+				throw new IOException("Cannot create directory "+parent);
+			}
+			new MultiOutputRenderer(1).render(diagram, options.renderingOptions,
+					Collections.singletonList(new OutputSpec(output.getPath())));
+			if(key != null) manifests.forImage(output).record(output, key);
+			return new Result(input, output, System.currentTimeMillis() - start, null);
+		} catch (IOException e) {
+			return new Result(input, null, System.currentTimeMillis() - start, e.getMessage());
+		} catch (RuntimeException e) {
+			return new Result(input, null, System.currentTimeMillis() - start, e.toString());
+		}
+	}
+
+	/**
+	 * Writes the manifests of an incremental run.
+	 * 
+	 * @throws IOException
+	 */
+	public void saveManifests() throws IOException {
+		manifests.saveAll();
+	}
+
+	private String getTargetPathname(Input input) throws IOException {
+		String previous = targets.get(input.getFile());
+		if(previous != null) return previous;
+		boolean overwrite = options.processingOptions.overwriteFiles();
+		String source = targetDirectory == null
+			? input.getFile().getPath()
+			: new File(targetDirectory, input.getRelativePath()).getPath();
+		String target = options.processingOptions.isIncremental()
+			? manifests.makeTargetPathname(source, "png", overwrite)
+			: FileUtils.makeTargetPathname(source, "png", overwrite);
+		if(target == null) throw new IOException("Cannot find a free name for the image of "+source);
+		targets.put(input.getFile(), target);
+		return target;
+	}
+}
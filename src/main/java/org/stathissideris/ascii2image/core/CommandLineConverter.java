@@ -19,18 +19,24 @@
  */
 package org.stathissideris.ascii2image.core;
 
-import java.awt.image.RenderedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
-
-import javax.imageio.ImageIO;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.cli.CommandLine;
-import org.stathissideris.ascii2image.graphics.BitmapRenderer;
 import org.stathissideris.ascii2image.graphics.Diagram;
 import org.stathissideris.ascii2image.text.TextGrid;
 
@@ -42,25 +48,130 @@ import yskkin.ascii2image.util.DitaaCommandLineParser;
  */
 public class CommandLineConverter {
 	
+	/** How often --watch looks at the files. */
+	private static final long WATCH_POLL_MILLIS = 50;
+	/** How long --watch waits for a burst of saves to end. */
+	private static final long WATCH_DEBOUNCE_MILLIS = 100;
+	/** How often --watch searches directories and patterns for new files. */
+	private static final long WATCH_RESCAN_MILLIS = 1000;
+
+	private final InputStream in;
+	private final PrintStream out;
+	private final PrintStream err;
+
+	/**
+	 * @param in what the input file "-" reads
+	 * @param out the standard output, for messages and the output file "-"
+	 * @param err the standard error
+	 */
+	public CommandLineConverter(InputStream in, PrintStream out, PrintStream err){
+		this.in = in;
+		this.out = out;
+		this.err = err;
+	}
+
 	public static void main(String[] args){
+		try {
+			new CommandLineConverter(System.in, System.out, System.err).convert(args, true);
+		} catch (Exit e) {
+			System.exit(e.status);
+		}
+	}
+
+	/**
+	 * Runs a conversion as {@link #main(String[])} does, but with the
+	 * streams of this converter, and returns the exit status instead of
+	 * exiting. <tt>--daemon</tt> and <tt>--client</tt> are not supported.
+	 * 
+	 * @param args the command line arguments
+	 * @return the exit status
+	 */
+	public int run(String[] args){
+		try {
+			convert(args, false);
+			return 0;
+		} catch (Exit e) {
+			return e.status;
+		}
+	}
+
+	/**
+	 * @param standalone true when this is the whole program rather than
+	 * a conversion served by a daemon
+	 */
+	private void convert(String[] args, boolean standalone){
 		
 		long startTime = System.currentTimeMillis();
 		
+		if(standalone && ConverterClient.isRequested(args)){
+			Integer status = new ConverterClient(in, out, err).forward(args);
+			if(status != null){
+				if(status.intValue() != 0) exit(status.intValue());
+				return;
+			}
+			//no daemon around, convert here
+		}
+
 		CommandLine cmdLine = null;
 		
 		///// parse command line options
 		// parse the command line arguments
-		DitaaCommandLineParser parser = new DitaaCommandLineParser();
+		DitaaCommandLineParser parser = new DitaaCommandLineParser(out, err);
+		parser.setConfigureLogging(standalone);
 		cmdLine = parser.parse(args);
 
 		if (parser.shouldExitImmediately()) {
-			System.exit(parser.getExitStatus());
+			exit(parser.getExitStatus());
 		}
 		
 		ConversionOptions options = parser.getConversionOptions();
 		
+		if(cmdLine.hasOption("daemon")){
+			if(!standalone){
+				err.println("Error: --daemon cannot be passed to a daemon");
+				exit(2);
+			}
+			runDaemon(cmdLine);
+			return;
+		}
+
+		if(cmdLine.hasOption("stream")){
+			if(!standalone){
+				err.println("Error: --stream cannot be passed to a daemon");
+				exit(2);
+			}
+			if(cmdLine.getArgs().length > 0 || cmdLine.hasOption("batch") || cmdLine.hasOption("html")
+					|| cmdLine.hasOption("watch")){
+				err.println("Error: --stream reads its diagrams from the standard input and cannot be used with input files, --batch, --html or --watch");
+				exit(2);
+			}
+			runStream(args, options);
+			return;
+		}
+
 		args = cmdLine.getArgs();
+
+		boolean watch = cmdLine.hasOption("watch");
+		if(watch){
+			if(!standalone){
+				err.println("Error: --watch cannot be passed to a daemon");
+				exit(2);
+			}
+			if(cmdLine.hasOption("html")){
+				err.println("Error: --watch cannot be used with --html");
+				exit(2);
+			}
+			if(!cmdLine.hasOption("batch") && "-".equals(args[0])){
+				err.println("Error: --watch cannot watch the standard input");
+				exit(2);
+			}
+		}
 		
+		if(cmdLine.hasOption("batch")){
+			runBatch(args, options, watch);
+			return;
+		}
+
 		if(cmdLine.hasOption("html")){
 			String filename = args[0];
 			
@@ -74,88 +185,417 @@ public class CommandLineConverter {
 				toFilename = args[1];
 			}
 			File target = new File(toFilename);
+			if(options.processingOptions.isIncremental()
+					&& IncrementalManifest.load(target.getAbsoluteFile().getParentFile()).isOwned(target)){
+				overwrite = true; //written by an earlier incremental run
+			}
 			if(!overwrite && target.exists()) {
-				System.out.println("Error: File "+toFilename+" exists. If you would like to overwrite it, please use the --overwrite option.");
-				System.exit(0);
+				out.println("Error: File "+toFilename+" exists. If you would like to overwrite it, please use the --overwrite option.");
+				exit(0);
 			}
 			
-			new HTMLConverter().convertHTMLFile(filename, toFilename, "ditaa_diagram", "images", options);
-			System.exit(0);
+			out.println("Converting HTML file ("+filename+" -> "+toFilename+")... ");
+			HTMLConverter.Result result = new HTMLConverter(options.threads)
+				.convertHTMLFile(filename, toFilename, "ditaa_diagram", "images", options);
+			printHTMLResult(result);
+			exit(result.isSuccessful() ? 0 : 1);
 			
 		} else { //simple mode
-			
-			TextGrid grid = new TextGrid();
-			if(options.processingOptions.getCustomShapes() != null){
-				grid.addToMarkupTags(options.processingOptions.getCustomShapes().keySet());
+			if(watch){
+				args = pinOutput(args, options);
+				try {
+					convertFile(args, options, startTime);
+				} catch (Exit e) {
+					if(e.status != 1) throw e; //a failed conversion is reported, and may work after the next save
+				}
+				watchFile(args, options);
+			} else {
+				convertFile(args, options, startTime);
+			}
+		}
+	}
+
+	private void convertFile(String[] args, ConversionOptions options, long startTime){
+		
+		// "-" means stdin / stdout
+		String fromFilename = args[0];
+		boolean stdIn = "-".equals(fromFilename);
+
+		boolean overwrite = false;
+		if(options.processingOptions.overwriteFiles()) overwrite = true;
+
+		boolean incremental = options.processingOptions.isIncremental() && !stdIn;
+		IncrementalManifest.Group manifests = new IncrementalManifest.Group();
+		
+		List<OutputSpec> outputs = new ArrayList<OutputSpec>();
+		if(args.length > 1){
+			outputs.add(new OutputSpec(args[1]));
+		} else if(options.outputs.isEmpty()){
+			if (stdIn) { // if using stdin and no output specified, use stdout
+				outputs.add(new OutputSpec("-"));
+			} else {
+				outputs.add(new OutputSpec(incremental
+						? manifests.makeTargetPathname(fromFilename, "png", overwrite)
+						: FileUtils.makeTargetPathname(fromFilename, "png", overwrite)));
 			}
+		}
+		outputs.addAll(options.outputs);
 
-			// "-" means stdin / stdout
-			String fromFilename = args[0];
-			boolean stdIn = "-".equals(fromFilename);
+		boolean stdOut = false;
+		for(OutputSpec output : outputs){
+			if(output.isStandardOutput()){
+				stdOut = true;
+				output.setStream(out);
+			}
+		}
 
-			String toFilename;
-			boolean stdOut;
+		if (!stdOut) {
+			out.println("Reading "+ (stdIn ? "standard input" : "file: " + fromFilename));
+		}
 
-			boolean overwrite = false;
-			if(options.processingOptions.overwriteFiles()) overwrite = true;
-			
-			if(args.length == 1){
-				if (stdIn) { // if using stdin and no output specified, use stdout
-					stdOut = true;
-					toFilename = "-";
-				} else {
-					toFilename = FileUtils.makeTargetPathname(fromFilename, "png", overwrite);
-					stdOut = false;
+		TextGrid grid = new TextGrid();
+		if(options.processingOptions.getCustomShapes() != null){
+			grid.addToMarkupTags(options.processingOptions.getCustomShapes().keySet());
+		}
+
+		Map<OutputSpec, String> keys = new HashMap<OutputSpec, String>();
+		try {
+			boolean loaded;
+			if(incremental){
+				byte[] input = IncrementalManifest.readFile(new File(fromFilename));
+				outputs = outdatedOutputs(input, outputs, options, manifests, keys, stdOut);
+				if(outputs.isEmpty()) return;
+				loaded = grid.loadFrom(new ByteArrayInputStream(input), fromFilename, options.processingOptions);
+			} else {
+				loaded = stdIn
+					? grid.loadFrom(in, fromFilename, options.processingOptions)
+					: grid.loadFrom(fromFilename, options.processingOptions);
+			}
+			if(!loaded){
+				err.println("Cannot open file "+fromFilename+" for reading");
+			}
+		} catch (UnsupportedEncodingException e1){
+			err.println("Error: "+e1.getMessage());
+			exit(1);
+		} catch (FileNotFoundException e1) {
+			err.println("Error: File "+fromFilename+" does not exist");
+			exit(1);
+		} catch (IOException e1) {
+			err.println("Error: Cannot open file "+fromFilename+" for reading");
+			exit(1);
+		}
+		
+		if(options.processingOptions.printDebugOutput()){
+			if (!stdOut) out.println("Using grid:");
+			grid.printDebug();
+		}
+		
+		Diagram diagram = new Diagram(grid, options);
+		if (!stdOut) {
+			for(OutputSpec output : outputs){
+				out.println("Rendering to file: "+output);
+			}
+		}
+		
+		try {
+			new MultiOutputRenderer().render(diagram, options.renderingOptions, outputs);
+		} catch (IOException e) {
+			err.println("Error: "+e.getMessage());
+			exit(1);
+		}
+
+		if(incremental){
+			try {
+				for(Map.Entry<OutputSpec, String> entry : keys.entrySet()){
+					File image = new File(entry.getKey().getDestination());
+					manifests.forImage(image).record(image, entry.getValue());
 				}
+				manifests.saveAll();
+			} catch (IOException e) {
+				err.println("Warning: Cannot update the incremental build manifest: "+e.getMessage());
+			}
+		}
+		
+		long endTime = System.currentTimeMillis();
+		long totalTime  = (endTime - startTime) / 1000;
+		if (!stdOut) out.println("Done in "+totalTime+"sec");
+	}
+
+	/**
+	 * Drops the outputs that are up to date according to their manifests.
+	 * The keys of the remaining files are put in <code>keys</code>, for
+	 * recording once they are written.
+	 */
+	private List<OutputSpec> outdatedOutputs(byte[] input, List<OutputSpec> outputs, ConversionOptions options,
+			IncrementalManifest.Group manifests, Map<OutputSpec, String> keys, boolean quiet){
+		List<OutputSpec> result = new ArrayList<OutputSpec>();
+		for(OutputSpec output : outputs){
+			if("-".equals(output.getDestination())){
+				result.add(output); //nothing to compare with
+				continue;
+			}
+			String key = IncrementalManifest.keyFor(input, options, output.applyTo(options.renderingOptions), output.getFormat());
+			File image = new File(output.getDestination());
+			if(manifests.forImage(image).isUpToDate(image, key)){
+				if(!quiet) out.println("Up to date: "+output);
+				continue;
+			}
+			keys.put(output, key);
+			result.add(output);
+		}
+		return result;
+	}
+
+	private void runBatch(String[] args, ConversionOptions options, boolean watch){
+		if(!options.outputs.isEmpty()){
+			err.println("Error: --output cannot be used with --batch");
+			exit(2);
+		}
+		List<BatchConverter.Input> inputs = null;
+		try {
+			inputs = BatchConverter.findInputs(args);
+		} catch (IOException e) {
+			err.println("Error: Cannot read the list of inputs: "+e.getMessage());
+			exit(1);
+		}
+		if(inputs.isEmpty() && !watch){
+			err.println("Error: No input files found");
+			exit(2);
+		}
+
+		int threads = Math.max(1, Math.min(options.threads, inputs.size()));
+		out.println("Converting "+inputs.size()+" files with "+threads+(threads == 1 ? " thread" : " threads"));
+		BatchConverter converter = new BatchConverter(options, options.targetDirectory, options.threads);
+		int failed = convertBatch(converter, inputs, 0);
+		if(watch){
+			watchBatch(args, converter);
+		} else if(failed > 0){
+			err.println("Error: "+failed+" of "+inputs.size()+" files could not be converted");
+			exit(1);
+		}
+	}
+
+	/**
+	 * Converts <code>inputs</code> and prints a line per input and a summary.
+	 * 
+	 * @param detectedAt when the change that caused this conversion was
+	 *   seen, 0 if it was not caused by a change
+	 * @return how many inputs failed
+	 */
+	private int convertBatch(BatchConverter converter, List<BatchConverter.Input> inputs, long detectedAt){
+		long startTime = System.currentTimeMillis();
+		List<BatchConverter.Result> results = null;
+		try {
+			results = converter.convert(inputs);
+			converter.saveManifests();
+		} catch (InterruptedException e) {
+			err.println("Error: Interrupted");
+			exit(1);
+		} catch (IOException e) {
+			err.println("Warning: Cannot update the incremental build manifest: "+e.getMessage());
+		}
+
+		int failed = 0;
+		int upToDate = 0;
+		for(BatchConverter.Result result : results){
+			if(result.isUpToDate()){
+				upToDate++;
+				out.println(String.format("  up to date %s -> %s", result.getInput(), result.getOutput()));
+			} else if(result.isSuccessful()){
+				out.println(String.format("%8d ms  %s -> %s", result.getMillis(), result.getInput(), result.getOutput()));
 			} else {
-				toFilename = args[1];
-				stdOut = "-".equals(toFilename);
+				failed++;
+				out.println(String.format("  FAILED     %s: %s", result.getInput(), result.getError()));
 			}
+		}
+		long endTime = System.currentTimeMillis();
+		out.println("Converted "+(results.size() - failed - upToDate)+" of "+results.size()+" files in "
+				+String.format("%.1f", (endTime - startTime) / 1000.0)+"sec"
+				+(upToDate > 0 ? ", "+upToDate+" up to date" : "")
+				+(failed > 0 ? ", "+failed+" failed" : "")
+				+(detectedAt > 0 ? ", "+(endTime - detectedAt)+" ms after the change" : ""));
+		return failed;
+	}
 
-			if (!stdOut) {
-				System.out.println("Reading "+ (stdIn ? "standard input" : "file: " + fromFilename));
+	/**
+	 * Prints a line per image of an HTML conversion and a summary.
+	 */
+	private void printHTMLResult(HTMLConverter.Result result){
+		if(result.getError() != null){
+			err.println("Error: "+result.getError());
+		}
+		if(!result.hasDiagrams()){
+			if(result.getError() == null){
+				out.println("HTML document does not contain any " +
+					"<pre> tags with their class attribute set to \"textdiagram\". Nothing to do.");
+			}
+			return;
+		}
+		int rendered = 0;
+		for(HTMLConverter.ImageResult image : result.getImages()){
+			switch(image.getStatus()){
+			case HTMLConverter.ImageResult.RENDERED:
+				rendered++;
+				out.println(String.format("%8d ms  %s", image.getMillis(), image.getFile()));
+				break;
+			case HTMLConverter.ImageResult.REUSED:
+				out.println(String.format("  unchanged  %s", image.getFile()));
+				break;
+			case HTMLConverter.ImageResult.UP_TO_DATE:
+				out.println(String.format("  up to date %s", image.getFile()));
+				break;
+			case HTMLConverter.ImageResult.NOT_OVERWRITTEN:
+				out.println(String.format("  skipped    %s: %s", image.getFile(), image.getError()));
+				break;
+			default:
+				out.println(String.format("  FAILED     %s: %s", image.getFile(), image.getError()));
 			}
+		}
+		out.println("Rendered "+rendered+" of "+result.getImages().size()+" diagrams in "
+				+String.format("%.1f", result.getTotalMillis() / 1000.0)+"sec");
+	}
+
+	/**
+	 * Gives the single conversion an explicit output, so that converting
+	 * it again writes the same image instead of choosing a new name
+	 * because the image now exists.
+	 */
+	private String[] pinOutput(String[] args, ConversionOptions options){
+		if(args.length > 1 || !options.outputs.isEmpty()) return args;
+		boolean overwrite = options.processingOptions.overwriteFiles();
+		String target = options.processingOptions.isIncremental()
+			? new IncrementalManifest.Group().makeTargetPathname(args[0], "png", overwrite)
+			: FileUtils.makeTargetPathname(args[0], "png", overwrite);
+		return new String[] { args[0], target };
+	}
 
+	private void watchFile(String[] args, ConversionOptions options){
+		final File input = new File(args[0]);
+		FileWatcher watcher = newWatcher(new FileWatcher.FileLister() {
+			public List<File> listFiles() {
+				return Collections.singletonList(input);
+			}
+		});
+		out.println("Watching "+input+" for changes, press Ctrl-C to stop");
+		while(awaitChanges(watcher) != null){
+			long startTime = System.currentTimeMillis();
 			try {
-				if(!grid.loadFrom(fromFilename, options.processingOptions)){
-					System.err.println("Cannot open file "+fromFilename+" for reading");
+				convertFile(args, options, startTime);
+			} catch (Exit e) {
+				//reported already, wait for the next save
+			}
+			long endTime = System.currentTimeMillis();
+			out.println("Converted "+input+" in "+(endTime - startTime)+" ms, "
+					+(endTime - watcher.getDetectedAt())+" ms after the change");
+		}
+	}
+
+	private void watchBatch(final String[] args, BatchConverter converter){
+		final Map<File, BatchConverter.Input> inputs = new HashMap<File, BatchConverter.Input>();
+		FileWatcher watcher = newWatcher(new FileWatcher.FileLister() {
+			public List<File> listFiles() throws IOException {
+				//directories and patterns are searched again, to find new files
+				inputs.clear();
+				for(BatchConverter.Input input : BatchConverter.findInputs(args)){
+					inputs.put(input.getFile(), input);
 				}
-			} catch (UnsupportedEncodingException e1){
-				System.err.println("Error: "+e1.getMessage());
-				System.exit(1);
-			} catch (FileNotFoundException e1) {
-				System.err.println("Error: File "+fromFilename+" does not exist");
-				System.exit(1);
-			} catch (IOException e1) {
-				System.err.println("Error: Cannot open file "+fromFilename+" for reading");
-				System.exit(1);
+				return new ArrayList<File>(inputs.keySet());
 			}
-			
-			if(options.processingOptions.printDebugOutput()){
-				if (!stdOut) System.out.println("Using grid:");
-				grid.printDebug();
+		});
+		out.println("Watching "+watcher.getFileCount()+" files for changes, press Ctrl-C to stop");
+		List<File> changed;
+		while((changed = awaitChanges(watcher)) != null){
+			List<BatchConverter.Input> changedInputs = new ArrayList<BatchConverter.Input>();
+			for(File file : changed){
+				if(inputs.containsKey(file)) changedInputs.add(inputs.get(file));
 			}
-			
-			Diagram diagram = new Diagram(grid, options);
-			if (!stdOut) System.out.println("Rendering to file: "+toFilename);
-			
-			
-			RenderedImage image = new BitmapRenderer().renderToImage(diagram, options.renderingOptions);
-			
+			convertBatch(converter, changedInputs, watcher.getDetectedAt());
+		}
+	}
+
+	private FileWatcher newWatcher(FileWatcher.FileLister lister){
+		try {
+			return new FileWatcher(lister, WATCH_POLL_MILLIS, WATCH_DEBOUNCE_MILLIS, WATCH_RESCAN_MILLIS);
+		} catch (IOException e) {
+			err.println("Error: Cannot list the files to watch: "+e.getMessage());
+			exit(1);
+			return null;
+		}
+	}
+
+	/**
+	 * @return the changed files, or null if interrupted
+	 */
+	private List<File> awaitChanges(FileWatcher watcher){
+		while(true){
 			try {
-				OutputStream os = stdOut ? System.out : new FileOutputStream(toFilename);
-				ImageIO.write(image, "png", os);
+				return watcher.awaitChanges();
+			} catch (InterruptedException e) {
+				return null;
 			} catch (IOException e) {
-				//e.printStackTrace();
-				System.err.println("Error: Cannot write to file "+toFilename);
-				System.exit(1);
+				err.println("Warning: Cannot list the files to watch: "+e.getMessage());
 			}
-			
-			//BitmapRenderer.renderToPNG(diagram, toFilename, options.renderingOptions);
-			
-			long endTime = System.currentTimeMillis();
-			long totalTime  = (endTime - startTime) / 1000;
-			if (!stdOut) System.out.println("Done in "+totalTime+"sec");
+		}
+	}
+
+	private void runDaemon(CommandLine cmdLine){
+		ConverterDaemon daemon;
+		try {
+			daemon = new ConverterDaemon(ConverterDaemon.getPort(cmdLine),
+					Runtime.getRuntime().availableProcessors());
+			daemon.bind();
+		} catch (IllegalArgumentException e) {
+			err.println("Error: "+e.getMessage());
+			exit(2);
+			return;
+		} catch (IOException e) {
+			err.println("Error: Cannot listen on port "+ConverterDaemon.getPort(cmdLine)+": "+e.getMessage());
+			exit(1);
+			return;
+		}
+		out.println("ditaa daemon listening on port "+daemon.getLocalPort());
+		try {
+			daemon.serve();
+		} catch (IOException e) {
+			err.println("Error: "+e.getMessage());
+			exit(1);
+		}
+	}
+
+	private void runStream(String[] args, ConversionOptions options){
+		OutputStream frames = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out));
+		//anything printed by the conversions must not end up in the frames
+		System.setOut(err);
+		StreamConverter.Result result;
+		try {
+			//every argument is a valid default for the documents, --stream included
+			result = new StreamConverter(args, options.threads).convert(in, frames);
+		} catch (IOException e) {
+			err.println("Error: Cannot write to the standard output: "+e.getMessage());
+			exit(1);
+			return;
+		}
+		if(result.getError() != null){
+			err.println("Error: "+result.getError());
+		}
+		if(!result.isSuccessful()) exit(1);
+	}
+
+	private static void exit(int status){
+		throw new Exit(status);
+	}
+
+	/**
+	 * Unwinds a conversion that would have ended the program, carrying
+	 * its exit status.
+	 */
+	private static class Exit extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		private final int status;
+
+		Exit(int status){
+			this.status = status;
 		}
 	}
 }
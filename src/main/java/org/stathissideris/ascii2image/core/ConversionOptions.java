@@ -28,7 +28,9 @@ import java.awt.*;
 import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * 
@@ -40,6 +42,13 @@ public class ConversionOptions {
 		new ProcessingOptions();
 	public RenderingOptions renderingOptions =
 		new RenderingOptions();
+	/** Additional outputs requested with --output, empty if none. */
+	public List<OutputSpec> outputs =
+		new ArrayList<OutputSpec>();
+	/** Where --batch writes the images, null for next to the inputs. */
+	public File targetDirectory = null;
+	/** How many files --batch converts at the same time. */
+	public int threads = Runtime.getRuntime().availableProcessors();
 		
 	public void setDebug(boolean value){
 		processingOptions.setPrintDebugOutput(value);
@@ -71,14 +80,26 @@ public class ConversionOptions {
 		renderingOptions.setDropShadows(!cmdLine.hasOption("no-shadows"));
 		this.setDebug(cmdLine.hasOption("debug"));
 		processingOptions.setOverwriteFiles(cmdLine.hasOption("overwrite"));
+		processingOptions.setIncremental(cmdLine.hasOption("incremental"));
 		
 		if(cmdLine.hasOption("scale")){
 			Float scale = Float.parseFloat(cmdLine.getOptionValue("scale"));
 			renderingOptions.setScale(scale.floatValue());
 		}
 		
+		if(cmdLine.hasOption("band-height")){
+			renderingOptions.setBandHeight(Integer.parseInt(cmdLine.getOptionValue("band-height")));
+		}
+		
+		if(cmdLine.hasOption("off-heap")){
+			renderingOptions.setOffHeapThreshold(Long.parseLong(cmdLine.getOptionValue("off-heap")) * 1024 * 1024);
+		}
+		
 		processingOptions.setAllCornersAreRound(cmdLine.hasOption("round-corners"));
 		processingOptions.setPerformSeparationOfCommonEdges(!cmdLine.hasOption("no-separation"));
+		if(cmdLine.hasOption("line-graph")){
+			processingOptions.setShapeFinding(ProcessingOptions.FIND_SHAPES_WITH_LINE_GRAPH);
+		}
 		renderingOptions.setAntialias(!cmdLine.hasOption("no-antialias"));
 		renderingOptions.setFixedSlope(cmdLine.hasOption("fixed-slope"));
 
@@ -92,6 +113,21 @@ public class ConversionOptions {
 			renderingOptions.setBackgroundColor(new Color(0,0,0,0));
 		}
 
+		if(cmdLine.hasOption("output")){
+			for(String spec : cmdLine.getOptionValues("output")){
+				outputs.add(OutputSpec.parse(spec));
+			}
+		}
+
+		if(cmdLine.hasOption("target-dir")){
+			targetDirectory = new File(cmdLine.getOptionValue("target-dir"));
+		}
+
+		if(cmdLine.hasOption("threads")){
+			threads = Integer.parseInt(cmdLine.getOptionValue("threads"));
+			if(threads < 1) throw new IllegalArgumentException("--threads needs to be at least 1");
+		}
+
 		if(cmdLine.hasOption("tabs")){
 			Integer tabSize = Integer.parseInt(cmdLine.getOptionValue("tabs"));
 			int tabSizeValue = tabSize.intValue();
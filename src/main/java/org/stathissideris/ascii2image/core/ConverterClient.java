@@ -0,0 +1,204 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import yskkin.ascii2image.util.DitaaCommandLineParser;
+
+/**
+ * The <tt>--client</tt> side of {@link ConverterDaemon}: passes a
+ * conversion to a running daemon and relays its output.
+ * 
+ * @author Efstathios Sideris
+ */
+public class ConverterClient {
+
+	/** How long to wait for the daemon to accept, in milliseconds. */
+	private static final int CONNECT_TIMEOUT = 500;
+
+	private final InputStream in;
+	private final PrintStream out;
+	private final PrintStream err;
+	private final File secretDirectory;
+
+	public ConverterClient(InputStream in, PrintStream out, PrintStream err){
+		this(in, out, err, ConverterDaemon.getDefaultSecretDirectory());
+	}
+
+	/**
+	 * @param secretDirectory where the daemon wrote its secret
+	 */
+	public ConverterClient(InputStream in, PrintStream out, PrintStream err, File secretDirectory){
+		this.in = in;
+		this.out = out;
+		this.err = err;
+		this.secretDirectory = secretDirectory;
+	}
+
+	public static boolean isRequested(String[] args){
+		for(String arg : args){
+			if("--client".equals(arg)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Runs the conversion on the daemon.
+	 * 
+	 * <p>Returns null, without having read or printed anything, when
+	 * the conversion should run in this process instead: when no daemon
+	 * is listening or its secret cannot be read, when the arguments
+	 * cannot be parsed (the local run reports the error properly) and
+	 * for <tt>--help</tt>, <tt>--stream</tt> and <tt>--watch</tt>, which
+	 * the daemon does not serve.</p>
+	 * 
+	 * @param args the command line arguments
+	 * @return the exit status of the conversion, or null
+	 */
+	public Integer forward(String[] args){
+		CommandLine cmdLine;
+		int port;
+		try {
+			cmdLine = new PosixParser().parse(DitaaCommandLineParser.DITAA_CLI_SPEC, args);
+			port = ConverterDaemon.getPort(cmdLine);
+		} catch (ParseException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		if(cmdLine.hasOption("daemon") || cmdLine.hasOption("help") || cmdLine.hasOption("stream")
+				|| cmdLine.hasOption("watch") || cmdLine.getArgs().length == 0) {
+			return null;
+		}
+
+		byte[] secret = ConverterDaemon.readSecret(secretDirectory, port);
+		if(secret == null) return null;
+
+		Socket socket = new Socket();
+		try {
+			try {
+				socket.connect(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), CONNECT_TIMEOUT);
+			} catch (IOException e) {
+				return null;
+			}
+			return exchange(socket, secret, cmdLine);
+		} catch (IOException e) {
+			err.println("Error: lost the connection to the daemon: "+e.getMessage());
+			return 1;
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				//done with it either way
+			}
+		}
+	}
+
+	private int exchange(Socket socket, byte[] secret, CommandLine cmdLine) throws IOException {
+		String[] args = cmdLine.getArgs();
+		byte[] input = "-".equals(args[0]) ? readFully(in) : new byte[0];
+
+		DataOutputStream request = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		RenderWorker.writeBytes(request, secret);
+		List<String> forwarded = forwardedArguments(cmdLine);
+		request.writeInt(forwarded.size());
+		for(String argument : forwarded){
+			RenderWorker.writeBytes(request, argument.getBytes("UTF-8"));
+		}
+		RenderWorker.writeBytes(request, input);
+		request.flush();
+
+		DataInputStream response = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		int status = response.readInt();
+		out.write(RenderWorker.readBytes(response));
+		out.flush();
+		err.write(RenderWorker.readBytes(response));
+		err.flush();
+		return status;
+	}
+
+	/**
+	 * The arguments as the daemon should see them. File names are made
+	 * absolute, since the daemon runs in a different directory.
+	 */
+	static List<String> forwardedArguments(CommandLine cmdLine){
+		List<String> result = new ArrayList<String>();
+		for(Option option : cmdLine.getOptions()){
+			String name = option.getLongOpt();
+			if("client".equals(name) || "port".equals(name)) continue;
+			if(option.hasArg()){
+				for(String value : option.getValues()){
+					result.add("--"+name);
+					if("output".equals(name)) value = absoluteOutput(value);
+					else if("target-dir".equals(name)) value = absolute(value);
+					result.add(value);
+				}
+			} else {
+				result.add("--"+name);
+			}
+		}
+		result.add("--");
+		for(String arg : cmdLine.getArgs()){
+			result.add(absolute(arg));
+		}
+		return result;
+	}
+
+	private static String absoluteOutput(String spec){
+		int comma = spec.indexOf(',');
+		if(comma == -1) return absolute(spec);
+		return absolute(spec.substring(0, comma)) + spec.substring(comma);
+	}
+
+	private static String absolute(String filename){
+		if("-".equals(filename) || filename.length() == 0) return filename;
+		if(filename.startsWith("@")) return "@" + absolute(filename.substring(1)); //a --batch list file
+		return new File(filename).getAbsolutePath();
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while((read = in.read(buffer)) != -1){
+			result.write(buffer, 0, read);
+		}
+		return result.toByteArray();
+	}
+}
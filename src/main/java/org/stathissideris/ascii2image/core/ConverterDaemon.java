@@ -0,0 +1,321 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.CommandLine;
+
+import yskkin.ascii2image.util.Loggers;
+
+/**
+ * A conversion server for the command line. It listens on the loopback
+ * interface and runs the conversions that {@link ConverterClient} sends
+ * to it in its own, already warm, JVM. Each connection carries one
+ * conversion and connections are served in parallel.
+ * 
+ * <p>The request is a secret, the command line arguments and the standard
+ * input of the client, and the response is the exit status followed by
+ * everything the conversion printed:</p>
+ * <pre>
+ *   bytes   the secret of the daemon
+ *   int     number of arguments
+ *   string  argument (repeated), with file names made absolute
+ *   bytes   standard input, empty unless the input file is "-"
+ * </pre>
+ * <pre>
+ *   int     exit status
+ *   bytes   standard output
+ *   bytes   standard error
+ * </pre>
+ * <p>using the encoding of {@link RenderWorker}.</p>
+ * 
+ * <p>Only the loopback interface is listened on, and files are read and
+ * written with the permissions of the daemon, so only clients that know
+ * its secret are served. The daemon makes up a new secret every time it
+ * starts and writes it to a file in <tt>~/.ditaa</tt> that only the user
+ * can read, for the clients of the same user to send. Connections
+ * without the secret are refused before anything else is read.</p>
+ * 
+ * @author Efstathios Sideris
+ */
+public class ConverterDaemon {
+
+	public static final int DEFAULT_PORT = 7979;
+
+	private static final int SECRET_LENGTH = 32;
+
+	private static final Logger logger = Loggers.getLogger(ConverterDaemon.class);
+
+	private final int port;
+	private final ExecutorService executor;
+	private final File secretDirectory;
+	private ServerSocket serverSocket;
+	private byte[] secret;
+	private File secretFile;
+
+	/**
+	 * @param port the port to listen on, 0 for any free port
+	 * @param threads how many conversions run at the same time
+	 */
+	public ConverterDaemon(int port, int threads){
+		this(port, threads, getDefaultSecretDirectory());
+	}
+
+	/**
+	 * @param secretDirectory where the file with the secret is written
+	 */
+	public ConverterDaemon(int port, int threads, File secretDirectory){
+		this.port = port;
+		this.executor = Executors.newFixedThreadPool(threads);
+		this.secretDirectory = secretDirectory;
+	}
+
+	/**
+	 * @return <tt>.ditaa</tt> in the home directory of the user
+	 */
+	public static File getDefaultSecretDirectory(){
+		return new File(System.getProperty("user.home"), ".ditaa");
+	}
+
+	static File getSecretFile(File secretDirectory, int port){
+		return new File(secretDirectory, "daemon-"+port+".secret");
+	}
+
+	/**
+	 * @return the secret of the daemon listening on <code>port</code>, or
+	 *   null if there is none or it cannot be read
+	 */
+	public static byte[] readSecret(File secretDirectory, int port){
+		File file = getSecretFile(secretDirectory, port);
+		if(!file.isFile() || file.length() != SECRET_LENGTH) return null;
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				byte[] secret = new byte[SECRET_LENGTH];
+				in.readFully(secret);
+				return secret;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a new secret to a file only the owner can read.
+	 */
+	private void writeSecret(int localPort) throws IOException {
+		byte[] secret = new byte[SECRET_LENGTH];
+		new SecureRandom().nextBytes(secret);
+		if(!secretDirectory.isDirectory() && !secretDirectory.mkdirs()){
+			throw new IOException("Cannot make "+secretDirectory);
+		}
+		makePrivate(secretDirectory, true);
+		File file = getSecretFile(secretDirectory, localPort);
+		if(file.exists() && !file.delete()) throw new IOException("Cannot replace "+file);
+		if(!file.createNewFile()) throw new IOException("Cannot make "+file);
+		//restricted before the secret is in it
+		makePrivate(file, false);
+		file.deleteOnExit(); //the daemon is usually stopped with Ctrl-C
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(secret);
+		} finally {
+			out.close();
+		}
+		this.secret = secret;
+		this.secretFile = file;
+	}
+
+	private static void makePrivate(File file, boolean directory){
+		boolean done = file.setReadable(false, false) && file.setReadable(true, true)
+			&& file.setWritable(false, false) && file.setWritable(true, true)
+			&& file.setExecutable(false, false) && (!directory || file.setExecutable(true, true));
+		if(!done) logger.warning("Cannot make "+file+" readable by its owner only");
+	}
+
+	/**
+	 * Returns the port given with <tt>--port</tt>, or {@link #DEFAULT_PORT}.
+	 * 
+	 * @throws IllegalArgumentException if the port is not a valid port number
+	 */
+	public static int getPort(CommandLine cmdLine){
+		String value = cmdLine.getOptionValue("port");
+		if(value == null) return DEFAULT_PORT;
+		int port;
+		try {
+			port = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid port "+value);
+		}
+		if(port < 0 || port > 0xFFFF) throw new IllegalArgumentException("Invalid port "+value);
+		return port;
+	}
+
+	/**
+	 * Binds the server socket. After this, clients can connect, though they
+	 * are not served until {@link #serve()} is called.
+	 * 
+	 * @throws IOException if the port is taken
+	 */
+	public synchronized void bind() throws IOException {
+		if(serverSocket == null){
+			serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+			try {
+				writeSecret(serverSocket.getLocalPort());
+			} catch (IOException e) {
+				serverSocket.close();
+				serverSocket = null;
+				throw new IOException("Cannot write the secret of the daemon: "+e.getMessage());
+			}
+		}
+	}
+
+	public synchronized int getLocalPort(){
+		return serverSocket == null ? -1 : serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Accepts connections until {@link #close()} is called.
+	 * 
+	 * @throws IOException
+	 */
+	public void serve() throws IOException {
+		bind();
+		try {
+			while(true){
+				final Socket socket;
+				try {
+					socket = serverSocket.accept();
+				} catch (IOException e) {
+					if(serverSocket.isClosed()) break;
+					throw e;
+				}
+				executor.execute(new Runnable(){
+					public void run() {
+						handle(socket);
+					}
+				});
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Stops accepting connections. Conversions that are running are
+	 * finished and answered.
+	 */
+	public synchronized void close() throws IOException {
+		if(serverSocket != null) serverSocket.close();
+		if(secretFile != null) secretFile.delete();
+		secretFile = null;
+	}
+
+	private synchronized byte[] getSecret(){
+		return secret;
+	}
+
+	/**
+	 * @return whether the secret the client sent is ours. Reads no more
+	 *   than the length of a secret.
+	 */
+	private boolean isAuthorised(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length != SECRET_LENGTH) return false;
+		byte[] given = new byte[SECRET_LENGTH];
+		in.readFully(given);
+		return MessageDigest.isEqual(given, getSecret());
+	}
+
+	private void handle(Socket socket){
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			String[] args;
+			try {
+				if(!isAuthorised(in)){
+					logger.warning("Refused a connection without the secret of the daemon");
+					DataOutputStream response = new DataOutputStream(socket.getOutputStream());
+					response.writeInt(1);
+					RenderWorker.writeBytes(response, new byte[0]);
+					RenderWorker.writeBytes(response, "Error: The daemon refused the connection: wrong secret\n".getBytes("UTF-8"));
+					response.flush();
+					return;
+				}
+				args = RenderWorker.readOptions(in);
+			} catch (EOFException e) {
+				return; //a client probing whether we are up
+			}
+			byte[] input = RenderWorker.readBytes(in);
+
+			ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+			ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+			PrintStream out = new PrintStream(stdout, true);
+			PrintStream err = new PrintStream(stderr, true);
+			int status;
+			try {
+				status = new CommandLineConverter(new ByteArrayInputStream(input), out, err).run(args);
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "Conversion failed", e);
+				err.println("Error: "+e);
+				status = 1;
+			}
+			out.flush();
+			err.flush();
+
+			DataOutputStream response = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			response.writeInt(status);
+			RenderWorker.writeBytes(response, stdout.toByteArray());
+			RenderWorker.writeBytes(response, stderr.toByteArray());
+			response.flush();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Lost connection to client", e);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				//nothing more to say to this client
+			}
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.core;
+
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import javax.imageio.ImageIO;
+
+import org.stathissideris.ascii2image.graphics.BitmapRenderer;
+import org.stathissideris.ascii2image.graphics.Diagram;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+/**
+ * Converts diagrams with a fixed set of options.
+ * 
+ * <p>An engine is made once and can then be shared by any number of
+ * threads. It keeps its own copy of the options it is given, and each
+ * call works on a grid, a diagram and options of its own. Servers that
+ * convert several diagrams at the same time should use this class
+ * rather than putting the pieces together themselves.</p>
+ * 
+ * @author Efstathios Sideris
+ */
+public class DitaaEngine {
+
+	private final ProcessingOptions processingOptions;
+	private final RenderingOptions renderingOptions;
+
+	/**
+	 * Creates an engine with the default options.
+	 */
+	public DitaaEngine(){
+		this(new ConversionOptions());
+	}
+
+	/**
+	 * @param options the options of every conversion, custom shapes
+	 *   included. Changing them afterwards does not affect the engine.
+	 */
+	public DitaaEngine(ConversionOptions options){
+		processingOptions = new ProcessingOptions(options.processingOptions);
+		renderingOptions = new RenderingOptions(options.renderingOptions);
+	}
+
+	/**
+	 * Finds the shapes and text of a diagram.
+	 * 
+	 * @param text the diagram
+	 * @return
+	 */
+	public Diagram layout(String text){
+		return layout(text, null);
+	}
+
+	/**
+	 * Finds the shapes and text of an edited diagram, reusing the work done
+	 * for the parts of <code>previous</code> that did not change.
+	 *
+	 * @param text the edited diagram
+	 * @param previous the diagram laid out before the edit, or null
+	 * @return
+	 * @see Diagram#Diagram(TextGrid, ConversionOptions, Diagram)
+	 */
+	public Diagram layout(String text, Diagram previous){
+		ConversionOptions options = newConversionOptions();
+		TextGrid grid = new TextGrid();
+		if(options.processingOptions.getCustomShapes() != null){
+			grid.addToMarkupTags(options.processingOptions.getCustomShapes().keySet());
+		}
+		try {
+			grid.initialiseWithText(text, options.processingOptions);
+		} catch (UnsupportedEncodingException e) {
+			//the text is decoded already
+			throw new IllegalStateException(e);
+		}
+		return new Diagram(grid, options, previous);
+	}
+
+	/**
+	 * Renders a diagram.
+	 * 
+	 * @param text the diagram
+	 * @return
+	 */
+	public RenderedImage render(String text){
+		return new BitmapRenderer().renderToImage(layout(text), new RenderingOptions(renderingOptions));
+	}
+
+	/**
+	 * Renders a diagram and encodes it.
+	 * 
+	 * @param text the diagram
+	 * @param format an image format known to ImageIO, e.g. "png"
+	 * @return the encoded image
+	 * @throws IOException if the image cannot be encoded in <code>format</code>
+	 */
+	public byte[] renderToBytes(String text, String format) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		if(!ImageIO.write(render(text), format, bytes))
+			throw new IOException("Cannot write image in format "+format);
+		return bytes.toByteArray();
+	}
+
+	private ConversionOptions newConversionOptions(){
+		ConversionOptions options = new ConversionOptions();
+		options.processingOptions = new ProcessingOptions(processingOptions);
+		options.renderingOptions = new RenderingOptions(renderingOptions);
+		return options;
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Waits for files to change. A file has changed when its modification
+ * time or its length differs from the last time it was looked at.
+ * Changes are reported in bursts: a burst ends when no file has changed
+ * for the debounce interval, so an editor that writes a file in several
+ * steps, or a checkout that touches many, causes a single report.
+ * 
+ * <p>The list of files is asked for again every rescan interval, so that
+ * new files in watched directories are picked up. New files count as
+ * changed.</p>
+ * 
+ * <p>Files are polled rather than watched through the file system,
+ * since ditaa runs on Java versions without a watch service. Checking
+ * the modification time of a few thousand files costs far less than the
+ * polling interval.</p>
+ * 
+ * @author Efstathios Sideris
+ */
+public class FileWatcher {
+
+	/**
+	 * Lists the files to watch.
+	 */
+	public interface FileLister {
+		List<File> listFiles() throws IOException;
+	}
+
+	private final FileLister lister;
+	private final long pollMillis;
+	private final long debounceMillis;
+	private final long rescanMillis;
+
+	/** Modification time and length of each watched file, as last seen. */
+	private final Map<File, long[]> stamps = new HashMap<File, long[]>();
+	private long lastRescan;
+	private long detectedAt;
+
+	/**
+	 * Lists the files and takes their current state as the starting point.
+	 * 
+	 * @param lister
+	 * @param pollMillis how often the files are checked
+	 * @param debounceMillis how long the files have to stay unchanged
+	 *   before a burst of changes is reported
+	 * @param rescanMillis how often the list of files is renewed
+	 * @throws IOException if the files cannot be listed
+	 */
+	public FileWatcher(FileLister lister, long pollMillis, long debounceMillis, long rescanMillis) throws IOException {
+		this.lister = lister;
+		this.pollMillis = pollMillis;
+		this.debounceMillis = debounceMillis;
+		this.rescanMillis = rescanMillis;
+		for(File file : lister.listFiles()){
+			stamps.put(file, stampOf(file));
+		}
+		lastRescan = System.currentTimeMillis();
+	}
+
+	public int getFileCount(){
+		return stamps.size();
+	}
+
+	/**
+	 * Blocks until a burst of changes is over.
+	 * 
+	 * @return the files that changed, in the order their changes were seen
+	 * @throws InterruptedException
+	 * @throws IOException if the files cannot be listed
+	 */
+	public List<File> awaitChanges() throws InterruptedException, IOException {
+		Set<File> changed = new LinkedHashSet<File>();
+		long lastChange = 0;
+		while(true){
+			long now = System.currentTimeMillis();
+			if(now - lastRescan >= rescanMillis){
+				rescan(changed);
+				lastRescan = now;
+			}
+			for(Map.Entry<File, long[]> entry : stamps.entrySet()){
+				long[] stamp = stampOf(entry.getKey());
+				if(stamp[0] != entry.getValue()[0] || stamp[1] != entry.getValue()[1]){
+					entry.setValue(stamp);
+					changed.add(entry.getKey());
+					if(lastChange == 0) detectedAt = now;
+					lastChange = now;
+				}
+			}
+			if(!changed.isEmpty() && lastChange == 0){
+				//only new files so far
+				detectedAt = now;
+				lastChange = now;
+			}
+			if(!changed.isEmpty() && now - lastChange >= debounceMillis){
+				//files that disappeared in the meantime have nothing to convert
+				List<File> result = new ArrayList<File>();
+				for(File file : changed){
+					if(file.isFile()) result.add(file);
+				}
+				if(!result.isEmpty()) return result;
+				changed.clear();
+				lastChange = 0;
+			}
+			Thread.sleep(pollMillis);
+		}
+	}
+
+	/**
+	 * When the first change of the burst last returned by
+	 * {@link #awaitChanges()} was seen, as by {@link System#currentTimeMillis()}.
+	 */
+	public long getDetectedAt(){
+		return detectedAt;
+	}
+
+	private void rescan(Set<File> changed) throws IOException {
+		List<File> files = lister.listFiles();
+		stamps.keySet().retainAll(files);
+		for(File file : files){
+			if(!stamps.containsKey(file)){
+				stamps.put(file, stampOf(file));
+				changed.add(file);
+			}
+		}
+	}
+
+	private static long[] stampOf(File file){
+		return new long[] { file.lastModified(), file.length() };
+	}
+}
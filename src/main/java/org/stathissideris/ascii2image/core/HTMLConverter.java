@@ -19,17 +19,27 @@
  */
 package org.stathissideris.ascii2image.core;
 
-import java.awt.image.RenderedImage;
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
-import java.util.HashMap;
-
-import javax.imageio.ImageIO;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.htmlparser.jericho.Attribute;
 import net.htmlparser.jericho.Element;
@@ -37,13 +47,21 @@ import net.htmlparser.jericho.OutputDocument;
 import net.htmlparser.jericho.Source;
 import net.htmlparser.jericho.StartTag;
 
-import org.stathissideris.ascii2image.graphics.BitmapRenderer;
 import org.stathissideris.ascii2image.graphics.Diagram;
 import org.stathissideris.ascii2image.text.TextGrid;
 
 /**
+ * Replaces the <code>&lt;pre class="textdiagram"&gt;</code> elements of an
+ * HTML document with images of the diagrams they contain.
+ * 
+ * <p>An image is named after the <code>id</code> of its element if it has
+ * one, otherwise after a hash of the diagram and the options. Hash-named
+ * images that already exist are reused, since they can only hold the same
+ * picture, and their URLs stay valid in browser caches for as long as the
+ * diagram does not change. The diagrams are rendered in parallel.</p>
  * 
- * TODO: incomplete class
+ * <p>Nothing is printed: the outcome, with the time each diagram took, is
+ * returned as a {@link Result}.</p>
  * 
  * @author Efstathios Sideris
  */
@@ -51,8 +69,24 @@ public class HTMLConverter {
 
 	private static final String TAG_CLASS = "textdiagram";
 	private static final String testDir = "tests/html-converter/";
-	
-	
+
+	/** The number of hex digits of the content hash used in image names. */
+	private static final int HASH_LENGTH = 16;
+
+	private final int threads;
+
+	public HTMLConverter(){
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param threads how many diagrams are rendered at the same time
+	 */
+	public HTMLConverter(int threads){
+		if(threads < 1) throw new IllegalArgumentException("At least one thread is needed, got "+threads);
+		this.threads = threads;
+	}
+
 	public static void main(String[] args){		
 		new HTMLConverter().convertHTMLFile(
 			testDir + "index.html", 
@@ -62,55 +96,162 @@ public class HTMLConverter {
 			null);
 	}
 
+	/**
+	 * What happened to one diagram of the document.
+	 */
+	public static class ImageResult {
+
+		/** The diagram was rendered. */
+		public static final int RENDERED = 0;
+		/** The image is named after the content and already existed. */
+		public static final int REUSED = 1;
+		/** The image was up to date according to its {@link IncrementalManifest}. */
+		public static final int UP_TO_DATE = 2;
+		/** A different file of the same name exists and may not be overwritten. */
+		public static final int NOT_OVERWRITTEN = 3;
+		/** The diagram could not be rendered or written, see {@link #getError()}. */
+		public static final int FAILED = 4;
+
+		private final String url;
+		private final File file;
+		private final int status;
+		private final long millis;
+		private final String error;
+
+		ImageResult(String url, File file, int status, long millis, String error){
+			this.url = url;
+			this.file = file;
+			this.status = status;
+			this.millis = millis;
+			this.error = error;
+		}
+
+		/** The image URL, as it appears in the document. */
+		public String getUrl() {
+			return url;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		/** The time spent on this image, in milliseconds. */
+		public long getMillis() {
+			return millis;
+		}
+
+		public String getError() {
+			return error;
+		}
+	}
+
+	/**
+	 * The outcome of converting a document.
+	 */
+	public static class Result {
+		private final List<ImageResult> images = new ArrayList<ImageResult>();
+		private String error;
+		private long documentMillis;
+		private long totalMillis;
+
+		/** One entry per distinct image, in document order. */
+		public List<ImageResult> getImages() {
+			return Collections.unmodifiableList(images);
+		}
+
+		/** Why the document could not be converted, null if it was. */
+		public String getError() {
+			return error;
+		}
+
+		/** Whether the document had any diagrams in it. */
+		public boolean hasDiagrams() {
+			return !images.isEmpty();
+		}
+
+		/** Whether the document and all its images were written. */
+		public boolean isSuccessful() {
+			if(error != null) return false;
+			for(ImageResult image : images){
+				if(image.getStatus() == ImageResult.FAILED) return false;
+			}
+			return true;
+		}
+
+		/** The time spent reading and writing the document, in milliseconds. */
+		public long getDocumentMillis() {
+			return documentMillis;
+		}
+
+		/** The time the whole conversion took, in milliseconds. */
+		public long getTotalMillis() {
+			return totalMillis;
+		}
+	}
+
+	/**
+	 * A diagram of the document, before it is rendered.
+	 */
+	private static class Job {
+		final String url;
+		final File file;
+		final String text;
+		final boolean namedByContent;
+
+		Job(String url, File file, String text, boolean namedByContent){
+			this.url = url;
+			this.file = file;
+			this.text = text;
+			this.namedByContent = namedByContent;
+		}
+	}
+
 	/**
 	 * 
 	 * @param filename
 	 * @param targetFilename
-	 * @param imageBaseFilename
+	 * @param imageBaseFilename the start of the names of the images named by content
 	 * @param imageDirName relative to the location of the target HTML document
 	 * @param options
-	 * @return
+	 * @return the outcome
 	 */
-	public boolean convertHTMLFile(
+	public Result convertHTMLFile(
 			String filename,
 			String targetFilename,
 			String imageBaseFilename,
 			String imageDirName,
 			ConversionOptions options){
 		
+		long startTime = System.currentTimeMillis();
+		Result result = new Result();
 		if(options == null){
 			options = new ConversionOptions();
 		}
-				
-		BufferedReader in = null;
-		try {
-			in = new BufferedReader(new FileReader(filename));
-		} catch (FileNotFoundException e) {
-			//e.printStackTrace();
-			System.err.println("Error: cannot read file " + filename);
-			return false;
-		}
-		
-		StringBuilder htmlText = new StringBuilder();
-		
+
+		String encoding = options.processingOptions.getCharacterEncoding();
+		Source source;
 		try {
-			while(in.ready()){
-				htmlText.append(in.readLine()).append("\n");
+			InputStream in = new BufferedInputStream(new FileInputStream(filename));
+			try {
+				//without an explicit encoding, the document's own declaration is used
+				source = encoding == null ? new Source(in) : new Source(new InputStreamReader(in, encoding));
+			} finally {
+				in.close();
 			}
-			in.close();
-		} catch (IOException e1) {
-			//e1.printStackTrace();
-			System.err.println("Error while reading file " + filename);
-			return false;
+		} catch (IOException e) {
+			result.error = "Cannot read file " + filename + ": " + e.getMessage();
+			return finish(result, startTime);
 		}
 		
-		System.out.print("Convering HTML file ("+filename+" -> "+targetFilename+")... ");
-		
-		Source source = new Source(htmlText);
+		File targetFile = new File(targetFilename).getAbsoluteFile();
+		File imageDir = new File(targetFile.getParentFile(), imageDirName);
 		OutputDocument outputDocument = new OutputDocument(source);
 		
-		int index = 1;
-		HashMap<String, String> diagramList = new HashMap<String, String>();
+		Map<String, Job> jobs = new LinkedHashMap<String, Job>();
 		for(Element element : source.getAllElements("pre")) {
 			StartTag tag = element.getStartTag();
 			Attribute classAttr = tag.getAttributes().get("class");
@@ -118,92 +259,159 @@ public class HTMLConverter {
 					&& classAttr.hasValue()
 					&& classAttr.getValue().equals(TAG_CLASS)) {
 				
-				String baseFilename = imageBaseFilename;
-				
-				String URL;
+				String text = element.getContent().toString();
+				String baseFilename;
+				boolean namedByContent;
 				Attribute nameAttr = tag.getAttributes().get("id");
 				if(nameAttr != null
 						&& nameAttr.hasValue()) {
 					baseFilename = makeFilenameFromTagName(nameAttr.getValue());
-					URL = imageDirName + "/" + baseFilename + ".png";
+					namedByContent = false;
 				} else {
-					URL = imageDirName + "/" + baseFilename + "_" + index + ".png";
-					index++;
+					baseFilename = imageBaseFilename + "_" + keyFor(text, options).substring(0, HASH_LENGTH);
+					namedByContent = true;
 				}
+				String URL = imageDirName + "/" + baseFilename + ".png";
 
 				outputDocument.replace(element, "<img src=\""+URL+"\" />");
-				diagramList.put(URL, element.getContent().toString());
+				if(!jobs.containsKey(URL)){
+					jobs.put(URL, new Job(URL, new File(imageDir, baseFilename + ".png"), text, namedByContent));
+				}
 			}
 		}
 		
-		if(diagramList.isEmpty()){
-			System.out.println("\nHTML document does not contain any " +				"<pre> tags with their class attribute set to \""+TAG_CLASS+"\". Nothing to do.");
-			
-			//TODO: should return the method with appropriate exit code instead
-			System.exit(0);
+		if(jobs.isEmpty()){
+			result.documentMillis = System.currentTimeMillis() - startTime;
+			return finish(result, startTime);
 		}
 		
-		FileWriter out;
 		try {
-			out = new FileWriter(targetFilename);
-			outputDocument.writeTo(out);
-			//out.flush();
-			//out.close();
-		} catch (IOException e2) {
-			System.err.println("Error while writing to file " + targetFilename);
-			return false;
-		} 
-
-		
-		System.out.println("done");
-		
-		
-		System.out.println("Generating diagrams... ");
-		
-		File imageDir = new File(new File(targetFilename).getParent() + File.separator + imageDirName);
-		if(!imageDir.exists()){
-			if(!imageDir.mkdir()){
-				System.err.println("Could not create directory " + imageDirName);
-				return false;
+			String outputEncoding = encoding != null ? encoding : source.getEncoding();
+			Writer out = new BufferedWriter(outputEncoding != null
+					? new OutputStreamWriter(new FileOutputStream(targetFile), outputEncoding)
+					: new OutputStreamWriter(new FileOutputStream(targetFile)));
+			try {
+				outputDocument.writeTo(out);
+			} finally {
+				out.close();
 			}
+			if(options.processingOptions.isIncremental()){
+				//the document belongs to the build from now on, see isOwned()
+				IncrementalManifest documents = IncrementalManifest.load(targetFile.getParentFile());
+				documents.record(targetFile, IncrementalManifest.keyFor(source.toString().getBytes("UTF-8"),
+						options, options.renderingOptions, "html"));
+				documents.save();
+			}
+		} catch (IOException e) {
+			result.error = "Cannot write to file " + targetFilename + ": " + e.getMessage();
+			return finish(result, startTime);
 		}
+		result.documentMillis = System.currentTimeMillis() - startTime;
 		
-		for(String URL : diagramList.keySet()) {
-			String text = (String) diagramList.get(URL);
-			String imageFilename = new File(targetFilename).getParent() + File.separator + URL;
-			if(new File(imageFilename).exists() && !options.processingOptions.overwriteFiles()){
-				System.out.println("Error: Cannot overwrite file "+URL+", file already exists." +					" Use the --overwrite option if you would like to allow file overwrite.");
-				continue;
-			}
-	
-			TextGrid grid = new TextGrid();
-			grid.addToMarkupTags(options.processingOptions.getCustomShapes().keySet());
+		if(!imageDir.isDirectory() && !imageDir.mkdirs()){
+			result.error = "Could not create directory " + imageDir;
+			return finish(result, startTime);
+		}
 
+		IncrementalManifest manifest = IncrementalManifest.load(imageDir);
+		result.images.addAll(renderAll(new ArrayList<Job>(jobs.values()), options, manifest));
+		if(options.processingOptions.isIncremental()){
 			try {
-				grid.initialiseWithText(text, options.processingOptions);
-			} catch (UnsupportedEncodingException e1) {
-				System.err.println("Error: "+e1.getMessage());
-				System.exit(1);
+				manifest.save();
+			} catch (IOException e) {
+				result.error = "Cannot update the incremental build manifest: "+e.getMessage();
 			}
+		}
+		return finish(result, startTime);
+	}
 
-			Diagram diagram = new Diagram(grid, options);
-			RenderedImage image = new BitmapRenderer().renderToImage(diagram, options.renderingOptions);
+	private static Result finish(Result result, long startTime){
+		result.totalMillis = System.currentTimeMillis() - startTime;
+		return result;
+	}
 
-			try {
-				File file = new File(imageFilename);
-				ImageIO.write(image, "png", file);
-			} catch (IOException e) {
-				//e.printStackTrace();
-				System.err.println("Error: Cannot write to file "+filename+" -- skipping");
-				continue;
+	private List<ImageResult> renderAll(List<Job> jobs, final ConversionOptions options, final IncrementalManifest manifest){
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, jobs.size()));
+		try {
+			List<Future<ImageResult>> futures = new ArrayList<Future<ImageResult>>();
+			for(final Job job : jobs){
+				futures.add(executor.submit(new Callable<ImageResult>() {
+					public ImageResult call() {
+						return render(job, options, manifest);
+					}
+				}));
+			}
+			List<ImageResult> results = new ArrayList<ImageResult>();
+			for(int i = 0; i < jobs.size(); i++){
+				Job job = jobs.get(i);
+				try {
+					results.add(futures.get(i).get());
+				} catch (ExecutionException e) {
+					results.add(new ImageResult(job.url, job.file, ImageResult.FAILED, 0, String.valueOf(e.getCause())));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					results.add(new ImageResult(job.url, job.file, ImageResult.FAILED, 0, "Interrupted"));
+				}
 			}
-			
-			System.out.println("\t"+imageFilename);
+			return results;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private ImageResult render(Job job, ConversionOptions options, IncrementalManifest manifest){
+		long start = System.currentTimeMillis();
+		boolean incremental = options.processingOptions.isIncremental();
+		String key = keyFor(job.text, options);
+
+		if(job.namedByContent && job.file.isFile()){
+			if(incremental && !manifest.isUpToDate(job.file, key)) {
+				//the name says it is up to date, make sure the manifest agrees
+				recordQuietly(manifest, job.file, key);
+			}
+			return new ImageResult(job.url, job.file, ImageResult.REUSED, System.currentTimeMillis() - start, null);
+		}
+		if(incremental && manifest.isUpToDate(job.file, key)){
+			return new ImageResult(job.url, job.file, ImageResult.UP_TO_DATE, System.currentTimeMillis() - start, null);
+		}
+		if(job.file.exists() && !options.processingOptions.overwriteFiles()
+				&& !(incremental && manifest.isOwned(job.file))){
+			return new ImageResult(job.url, job.file, ImageResult.NOT_OVERWRITTEN, System.currentTimeMillis() - start,
+					"Cannot overwrite file "+job.url+", file already exists. Use the --overwrite option if you would like to allow file overwrite.");
+		}
+
+		try {
+			TextGrid grid = new TextGrid();
+			if(options.processingOptions.getCustomShapes() != null){
+				grid.addToMarkupTags(options.processingOptions.getCustomShapes().keySet());
+			}
+			grid.initialiseWithText(job.text, options.processingOptions);
+			Diagram diagram = new Diagram(grid, options);
+			new MultiOutputRenderer(1).render(diagram, options.renderingOptions,
+					Collections.singletonList(new OutputSpec(job.file.getPath())));
+		} catch (IOException e) {
+			return new ImageResult(job.url, job.file, ImageResult.FAILED, System.currentTimeMillis() - start, e.getMessage());
+		} catch (RuntimeException e) {
+			return new ImageResult(job.url, job.file, ImageResult.FAILED, System.currentTimeMillis() - start, e.toString());
+		}
+		if(incremental) recordQuietly(manifest, job.file, key);
+		return new ImageResult(job.url, job.file, ImageResult.RENDERED, System.currentTimeMillis() - start, null);
+	}
+
+	private static void recordQuietly(IncrementalManifest manifest, File image, String key){
+		try {
+			manifest.record(image, key);
+		} catch (IOException e) {
+			//it is only rendered again next time
+		}
+	}
+
+	private static String keyFor(String text, ConversionOptions options){
+		try {
+			return IncrementalManifest.keyFor(text.getBytes("UTF-8"), options, options.renderingOptions, OutputSpec.DEFAULT_FORMAT);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
 		}
-		
-		System.out.println("\n...done");
-		
-		return true;
 	}
 	
 	/*
@@ -0,0 +1,380 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.stathissideris.ascii2image.graphics.CustomShapeDefinition;
+
+/**
+ * Remembers which images of a directory are up to date, so that
+ * incremental runs only convert the diagrams that changed.
+ * 
+ * <p>For each image the manifest records the key it was rendered from
+ * and a hash of the image file. The key is a hash of the input text,
+ * the options that affect the image and the custom shapes in use (see
+ * {@link #keyFor(byte[], ConversionOptions, RenderingOptions, String)}).
+ * An image is up to date when its recorded key matches and the file is
+ * still the one that was written, so images that were deleted or edited
+ * by hand are rendered again.</p>
+ * 
+ * <p>The manifest is the file {@link #FILENAME} in the directory of the
+ * images. Each line is the image name, its key and the hash of the image,
+ * separated by tabs. The methods are safe to call from several threads.</p>
+ * 
+ * @author Efstathios Sideris
+ */
+public class IncrementalManifest {
+
+	public static final String FILENAME = ".ditaa-manifest";
+
+	/** Changes whenever the same input and options would render differently. */
+	private static final String KEY_VERSION = "ditaa-incremental-3";
+
+	private static final String HEADER = "# ditaa incremental build manifest, regenerated on every run";
+
+	private final File file;
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private boolean modified = false;
+
+	private static class Entry {
+		final String key;
+		final String imageHash;
+
+		Entry(String key, String imageHash){
+			this.key = key;
+			this.imageHash = imageHash;
+		}
+	}
+
+	/**
+	 * The manifests of all the directories a run writes images to, each
+	 * loaded once.
+	 */
+	public static class Group {
+		private final Map<File, IncrementalManifest> manifests = new HashMap<File, IncrementalManifest>();
+
+		/**
+		 * @param image
+		 * @return the manifest of the directory of <code>image</code>
+		 */
+		public synchronized IncrementalManifest forImage(File image){
+			File directory = image.getAbsoluteFile().getParentFile();
+			IncrementalManifest manifest = manifests.get(directory);
+			if(manifest == null){
+				manifest = load(directory);
+				manifests.put(directory, manifest);
+			}
+			return manifest;
+		}
+
+		/**
+		 * Like {@link FileUtils#makeTargetPathname(String, String, boolean)},
+		 * except that images this build owns (see {@link IncrementalManifest#isOwned(File)})
+		 * are not in the way: they keep their names from run to run.
+		 * 
+		 * @param sourcePathname
+		 * @param extension
+		 * @param overwrite
+		 * @return the image pathname, or null if no free name was found
+		 */
+		public String makeTargetPathname(String sourcePathname, String extension, boolean overwrite){
+			String target = FileUtils.makeTargetPathname(sourcePathname, extension, true);
+			if(overwrite) return target;
+			String base = target.substring(0, target.length() - extension.length() - 1);
+			for(int i = 1; i <= 100; i++){
+				String candidate = i == 1 ? target : base + "_" + i + "." + extension;
+				File image = new File(candidate);
+				if(!image.exists() || forImage(image).isOwned(image)) return candidate;
+			}
+			return null;
+		}
+
+		/**
+		 * Saves every manifest that changed.
+		 * 
+		 * @throws IOException if any manifest could not be saved. The
+		 *   others are still saved.
+		 */
+		public synchronized void saveAll() throws IOException {
+			IOException failure = null;
+			for(IncrementalManifest manifest : manifests.values()){
+				try {
+					manifest.save();
+				} catch (IOException e) {
+					if(failure == null) failure = e;
+				}
+			}
+			if(failure != null) throw failure;
+		}
+	}
+
+	private IncrementalManifest(File directory){
+		this.file = new File(directory, FILENAME);
+	}
+
+	/**
+	 * Loads the manifest of <code>directory</code>. A missing or unreadable
+	 * manifest is treated as empty, which only costs a full rebuild.
+	 * 
+	 * @param directory the directory of the images
+	 * @return
+	 */
+	public static IncrementalManifest load(File directory){
+		IncrementalManifest result = new IncrementalManifest(directory);
+		if(!result.file.isFile()) return result;
+		try {
+			BufferedReader reader = new BufferedReader(
+					new InputStreamReader(new FileInputStream(result.file), "UTF-8"));
+			try {
+				String line;
+				while((line = reader.readLine()) != null){
+					if(line.startsWith("#")) continue;
+					String[] fields = line.split("\t");
+					if(fields.length != 3) continue;
+					result.entries.put(fields[0], new Entry(fields[1], fields[2]));
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			result.entries.clear();
+		}
+		return result;
+	}
+
+	/**
+	 * Whether <code>image</code> was rendered from <code>key</code> and
+	 * has not changed since.
+	 * 
+	 * @param image an image in the directory of this manifest
+	 * @param key
+	 * @return
+	 */
+	public boolean isUpToDate(File image, String key){
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(image.getName());
+		}
+		return entry != null && entry.key.equals(key) && isUnchanged(image, entry);
+	}
+
+	/**
+	 * Whether <code>image</code> is an image this manifest recorded and
+	 * that has not been modified since, whatever it was rendered from.
+	 * Such images belong to the build and can be replaced without
+	 * <tt>--overwrite</tt>.
+	 * 
+	 * @param image
+	 * @return
+	 */
+	public boolean isOwned(File image){
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(image.getName());
+		}
+		return entry != null && isUnchanged(image, entry);
+	}
+
+	private static boolean isUnchanged(File image, Entry entry){
+		if(!image.isFile()) return false;
+		try {
+			return entry.imageHash.equals(hashOf(image));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Records that <code>image</code> has just been rendered from <code>key</code>.
+	 * 
+	 * @param image
+	 * @param key
+	 * @throws IOException if the image cannot be read
+	 */
+	public void record(File image, String key) throws IOException {
+		Entry entry = new Entry(key, hashOf(image));
+		synchronized (this) {
+			entries.put(image.getName(), entry);
+			modified = true;
+		}
+	}
+
+	/**
+	 * Writes the manifest if anything was recorded. Entries of images that
+	 * no longer exist are dropped.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		if(!modified) return;
+		List<String> names = new ArrayList<String>(entries.keySet());
+		Collections.sort(names);
+		File temp = new File(file.getPath() + ".tmp");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+		try {
+			writer.write(HEADER + "\n");
+			for(String name : names){
+				if(!new File(file.getParentFile(), name).isFile()) continue;
+				Entry entry = entries.get(name);
+				writer.write(name + "\t" + entry.key + "\t" + entry.imageHash + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+		if(!temp.renameTo(file)){
+			//renaming over an existing file fails on some platforms
+			file.delete();
+			if(!temp.renameTo(file)) throw new IOException("Cannot write "+file);
+		}
+		modified = false;
+	}
+
+	/**
+	 * The key of an image: a hash of the input, every option that changes
+	 * the rendered image and the custom shapes, including the contents of
+	 * their image files.
+	 * 
+	 * @param input the input text, as read from the file
+	 * @param options the conversion options
+	 * @param rendering the rendering options of this image, which may
+	 *   differ from <code>options.renderingOptions</code> (see {@link OutputSpec})
+	 * @param format the image format
+	 * @return
+	 */
+	public static String keyFor(byte[] input, ConversionOptions options, RenderingOptions rendering, String format){
+		ProcessingOptions processing = options.processingOptions;
+		StringBuilder canonical = new StringBuilder(KEY_VERSION).append('\n');
+		canonical.append("format=").append(format)
+			.append(";antialias=").append(rendering.performAntialias())
+			.append(";shadows=").append(rendering.dropShadows())
+			.append(";debug=").append(rendering.renderDebugLines())
+			.append(";fixed-slope=").append(rendering.isFixedSlope())
+			.append(";scale=").append(rendering.getScale())
+			.append(";band-height=").append(rendering.getBandHeight())
+			.append(";background=").append(Integer.toHexString(rendering.getBackgroundColor().getRGB()))
+			.append(";round-corners=").append(processing.areAllCornersRound())
+			.append(";separation=").append(processing.performSeparationOfCommonEdges())
+			.append(";tabs=").append(processing.getTabSize())
+			.append(";encoding=").append(processing.getCharacterEncoding())
+			.append(";shape-finding=").append(processing.getShapeFinding())
+			.append('\n');
+		appendCustomShapes(canonical, processing.getCustomShapes());
+
+		MessageDigest digest = newDigest();
+		try {
+			digest.update(canonical.toString().getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		digest.update(input);
+		return toHex(digest.digest());
+	}
+
+	private static void appendCustomShapes(StringBuilder canonical, Map<String, CustomShapeDefinition> shapes){
+		if(shapes == null) return;
+		List<String> tags = new ArrayList<String>(shapes.keySet());
+		Collections.sort(tags);
+		for(String tag : tags){
+			CustomShapeDefinition definition = shapes.get(tag);
+			canonical.append(definition);
+			if(definition.getFilename() != null){
+				File shapeFile = new File(definition.getFilename());
+				String hash;
+				try {
+					hash = shapeFile.isFile() ? hashOf(shapeFile) : "missing";
+				} catch (IOException e) {
+					hash = "unreadable";
+				}
+				canonical.append("\tcontent: ").append(hash).append('\n');
+			}
+		}
+	}
+
+	/**
+	 * Reads <code>file</code> completely, for hashing it as an input.
+	 */
+	public static byte[] readFile(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] result = new byte[(int) file.length()];
+			int offset = 0;
+			int read;
+			while(offset < result.length && (read = in.read(result, offset, result.length - offset)) != -1){
+				offset += read;
+			}
+			if(offset < result.length){
+				byte[] shorter = new byte[offset];
+				System.arraycopy(result, 0, shorter, 0, offset);
+				return shorter;
+			}
+			return result;
+		} finally {
+			in.close();
+		}
+	}
+
+	static String hashOf(File file) throws IOException {
+		MessageDigest digest = newDigest();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while((read = in.read(buffer)) != -1){
+				digest.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	private static MessageDigest newDigest(){
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] hash){
+		StringBuilder result = new StringBuilder(hash.length * 2);
+		for(byte b : hash){
+			result.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return result.toString();
+	}
+}
@@ -30,7 +30,15 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 import javax.imageio.ImageIO;
 
@@ -62,6 +70,12 @@ import org.stathissideris.ascii2image.graphics.BitmapRenderer;
  * <p>
  * <b>Note:</b> The overview file needs to be named "overview.html" if it lies
  * in the source path, otherwise it is sufficient that it ends with ".html". 
+ * <p>
+ * The images are rendered in the background while javadoc carries on, and
+ * the taglet waits for them before the JVM exits (see
+ * {@link #awaitImages()}). An image is only rendered again when its
+ * diagram has changed since the last run, according to the
+ * {@link IncrementalManifest} kept next to it.
  *
  * @author Mikael Brannstrom
  */
@@ -70,6 +84,33 @@ public class JavadocTaglet implements Taglet {
 	private static final String NAME = "textdiagram";
 	private static final Pattern FIGURE_NAME_PATTERN = Pattern.compile("\\w+");
 
+	private static final ExecutorService renderers = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ditaa-taglet");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	private static final List<Future<?>> pendingImages = new ArrayList<Future<?>>();
+	private static final IncrementalManifest.Group manifests = new IncrementalManifest.Group();
+	private static final AtomicBoolean failed = new AtomicBoolean();
+
+	static {
+		// javadoc calls System.exit() when it is done, which does not wait for the renderers.
+		// The exit status is javadoc's by then, so a failed image halts the JVM with status 1
+		// instead, like the taglet did when it rendered in the foreground.
+		Runtime.getRuntime().addShutdownHook(new Thread("ditaa-taglet-shutdown") {
+			public void run() {
+				if(!awaitImages()) {
+					System.err.println("Error: Some ditaa diagrams could not be generated, see above");
+					System.err.flush();
+					Runtime.getRuntime().halt(1);
+				}
+			}
+		});
+	}
+
 	private final File[] srcPath;
 	private final File dstDir;
 
@@ -153,8 +194,8 @@ public class JavadocTaglet implements Taglet {
 		return NAME;
 	}
 
-	/** Generates the diagram image and returns an img html tag that references
-	 * to the image.
+	/** Starts generating the diagram image and returns an img html tag that
+	 * references to the image.
 	 */
 	public String toString(Tag tag) {
 		String text = tag.text().trim();
@@ -188,7 +229,7 @@ public class JavadocTaglet implements Taglet {
 			return strBuf.toString();
 		} else {
 			File outputFile = getOutputFile(tag.position().file(), figureName);
-			generateImage(figureText, outputFile);
+			submitImage(figureText, outputFile);
 
 			StringBuffer strBuf = new StringBuffer();
 			strBuf.append("<img src=\"");
@@ -278,19 +319,52 @@ public class JavadocTaglet implements Taglet {
 		return null;
 	}
 
+	/** Queues the generation of the image, unless the image is up to date.
+	 * @param text the ascii art text.
+	 * @param outputFile the file name of the image that is generated.
+	 */
+	static void submitImage(final String text, final File outputFile) {
+		Future<?> future = renderers.submit(new Runnable() {
+			public void run() {
+				ConversionOptions options = new ConversionOptions();
+				IncrementalManifest manifest = manifests.forImage(outputFile);
+				String key;
+				try {
+					key = IncrementalManifest.keyFor(text.getBytes("UTF-8"), options,
+							options.renderingOptions, "png");
+				} catch (UnsupportedEncodingException e) {
+					throw new IllegalStateException(e);
+				}
+				if(manifest.isUpToDate(outputFile, key)) {
+					return;
+				}
+				if(generateImage(text, outputFile, options)) {
+					try {
+						manifest.record(outputFile, key);
+					} catch (IOException e) {
+						warning("Cannot read back file "+outputFile.getAbsolutePath());
+					}
+				}
+			}
+		});
+		synchronized (pendingImages) {
+			pendingImages.add(future);
+		}
+	}
+
 	/** Generates the image from the specified text to the output file.
 	 * @param text the ascii art text.
 	 * @param outputFile the file name of the image that is generated.
+	 * @return whether the image was written
 	 */
-	private void generateImage(String text, File outputFile) {
-		ConversionOptions options = new ConversionOptions();
+	private static boolean generateImage(String text, File outputFile, ConversionOptions options) {
 		TextGrid textGrid = new TextGrid();
 		try {
 			if(!textGrid.initialiseWithText(text, null)) {
-				error("Cannot initialize text grid");
+				return failure("Cannot initialize text grid for "+outputFile.getName());
 			}
 		} catch (UnsupportedEncodingException e1) {
-			error("Cannot initialize text grid");
+			return failure("Cannot initialize text grid for "+outputFile.getName());
 		}
 		Diagram diagram = new Diagram(textGrid, options);
 		RenderedImage image = new BitmapRenderer().renderToImage(diagram,
@@ -299,8 +373,52 @@ public class JavadocTaglet implements Taglet {
 		try {
 			ImageIO.write(image, "png", outputFile);
 		} catch (IOException e) {
-			error("Cannot write to file "+outputFile.getAbsolutePath());
+			return failure("Cannot write to file "+outputFile.getAbsolutePath());
 		}
+		return true;
+	}
+
+	/** Waits until all the images requested so far are generated, and saves
+	 * the manifests. This happens anyway when the JVM exits; call it when
+	 * running javadoc in a JVM that does not exit afterwards.
+	 * @return false if any image could not be generated since the last call.
+	 */
+	public static boolean awaitImages() {
+		while(true) {
+			List<Future<?>> futures;
+			synchronized (pendingImages) {
+				if(pendingImages.isEmpty()) break;
+				futures = new ArrayList<Future<?>>(pendingImages);
+				pendingImages.clear();
+			}
+			for(Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					failure("Cannot generate image: "+e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		try {
+			manifests.saveAll();
+		} catch (IOException e) {
+			warning("Cannot update the image manifest: "+e.getMessage());
+		}
+		return !failed.getAndSet(false);
+	}
+
+	/** Prints an error message of a background render, and marks it for
+	 * the next {@link #awaitImages()} to report. When that is the one
+	 * run as the JVM exits, the exit status becomes 1.
+	 * @return false
+	 */
+	private static boolean failure(String msg) {
+		System.err.println("Error: "+msg);
+		failed.set(true);
+		return false;
 	}
 
 	/** Prints an error message and exits. */
@@ -310,7 +428,7 @@ public class JavadocTaglet implements Taglet {
 	}
 
 	/** Prints a warning message. */
-	private void warning(String msg) {
+	private static void warning(String msg) {
 		System.err.println("Warning: "+msg);
 	}
 
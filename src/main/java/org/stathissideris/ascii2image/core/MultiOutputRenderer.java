@@ -0,0 +1,253 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.core;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import org.stathissideris.ascii2image.graphics.BitmapRenderer;
+import org.stathissideris.ascii2image.graphics.Diagram;
+
+import yskkin.ascii2image.util.OffHeapDataBuffer;
+import yskkin.ascii2image.util.PngEncoder;
+
+/**
+ * Renders one {@link Diagram} to several outputs. The diagram is built
+ * once; rasterization and encoding of the outputs run in parallel.
+ * 
+ * @author Efstathios Sideris
+ */
+public class MultiOutputRenderer {
+
+	private final int threads;
+
+	public MultiOutputRenderer(){
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param threads the maximum number of outputs rendered at the same time
+	 */
+	public MultiOutputRenderer(int threads){
+		if(threads < 1) throw new IllegalArgumentException("At least one thread is needed, got "+threads);
+		this.threads = threads;
+	}
+
+	/**
+	 * Renders <code>diagram</code> to an image per output, without writing it.
+	 * 
+	 * @param diagram
+	 * @param baseOptions the options the outputs inherit from
+	 * @param outputs
+	 * @return the images, in the order of <code>outputs</code>
+	 */
+	public List<RenderedImage> renderToImages(final Diagram diagram, RenderingOptions baseOptions, List<OutputSpec> outputs){
+		List<Callable<RenderedImage>> tasks = new ArrayList<Callable<RenderedImage>>();
+		for(OutputSpec output : outputs){
+			final RenderingOptions options = output.applyTo(baseOptions);
+			tasks.add(new Callable<RenderedImage>() {
+				public RenderedImage call() {
+					return new BitmapRenderer().renderToImage(diagram, options);
+				}
+			});
+		}
+		try {
+			return runAll(tasks);
+		} catch (IOException e) {
+			//rendering alone does not do any I/O
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Renders <code>diagram</code> to every output and writes the images.
+	 * PNG images are written a band at a time if the options of the output
+	 * have a {@link RenderingOptions#getBandHeight() band height}.
+	 * 
+	 * @param diagram
+	 * @param baseOptions the options the outputs inherit from
+	 * @param outputs
+	 * @throws IOException if any of the outputs could not be written. All
+	 *   other outputs are still written.
+	 */
+	public void render(final Diagram diagram, RenderingOptions baseOptions, List<OutputSpec> outputs) throws IOException {
+		List<Callable<OutputSpec>> tasks = new ArrayList<Callable<OutputSpec>>();
+		for(final OutputSpec output : outputs){
+			final RenderingOptions options = output.applyTo(baseOptions);
+			tasks.add(new Callable<OutputSpec>() {
+				public OutputSpec call() throws IOException {
+					if(options.getBandHeight() > 0 && "png".equals(output.getFormat())){
+						writeBanded(diagram, options, output);
+						return output;
+					}
+					RenderedImage image = new BitmapRenderer().renderToImage(diagram, options);
+					write(image, output);
+					return output;
+				}
+			});
+		}
+		runAll(tasks);
+	}
+
+	/**
+	 * Writes <code>image</code> to <code>output</code> in the format of the output.
+	 * PNG images kept off the heap are encoded from their pixels directly.
+	 * 
+	 * @param image
+	 * @param output
+	 * @throws IOException
+	 */
+	public static void write(final RenderedImage image, final OutputSpec output) throws IOException {
+		writeTo(output, new Encoder() {
+			public void encode(OutputStream os) throws IOException {
+				if(image instanceof BufferedImage && OffHeapDataBuffer.of((BufferedImage) image) != null
+						&& "png".equals(output.getFormat())){
+					writePng((BufferedImage) image, os);
+				} else if(!ImageIO.write(image, output.getFormat(), os))
+					throw new IOException("Cannot write image in format "+output.getFormat()+" to "+output);
+			}
+		});
+	}
+
+	private static void writePng(BufferedImage image, OutputStream os) throws IOException {
+		PngEncoder encoder = new PngEncoder(os, image.getWidth(), image.getHeight(), image.getColorModel().hasAlpha());
+		encoder.writeRows(image, 0, image.getHeight());
+		encoder.finish();
+	}
+
+	private static void writeBanded(final Diagram diagram, final RenderingOptions options, OutputSpec output) throws IOException {
+		writeTo(output, new Encoder() {
+			public void encode(OutputStream os) throws IOException {
+				new BitmapRenderer().renderToPng(diagram, options, os);
+			}
+		});
+	}
+
+	private interface Encoder {
+		void encode(OutputStream os) throws IOException;
+	}
+
+	/**
+	 * Files are encoded next to their destination and renamed when done,
+	 * so a failed or interrupted render never leaves a truncated image
+	 * under the final name, where it would be taken for a finished one.
+	 */
+	private static void writeTo(OutputSpec output, Encoder encoder) throws IOException {
+		if(!output.ownsStream()){
+			OutputStream os = output.openStream();
+			encoder.encode(os);
+			os.flush();
+			return;
+		}
+
+		File file = new File(output.getDestination()).getAbsoluteFile();
+		File temp;
+		OutputStream os;
+		try {
+			temp = File.createTempFile("."+file.getName()+".", ".tmp", file.getParentFile());
+			os = new FileOutputStream(temp);
+		} catch (IOException e) {
+			throw new IOException("Cannot write to file "+output, e);
+		}
+		boolean written = false;
+		try {
+			try {
+				encoder.encode(os);
+			} finally {
+				os.close();
+			}
+			if(!temp.renameTo(file)){
+				//renaming over an existing file fails on some platforms
+				file.delete();
+				if(!temp.renameTo(file)) throw new IOException("Cannot write to file "+output);
+			}
+			written = true;
+		} finally {
+			if(!written) temp.delete();
+		}
+	}
+
+	private <T> List<T> runAll(List<Callable<T>> tasks) throws IOException {
+		List<T> results = new ArrayList<T>();
+		if(tasks.size() == 1 || threads == 1){
+			IOException failure = null;
+			for(Callable<T> task : tasks){
+				try {
+					results.add(task.call());
+				} catch (IOException e) {
+					if(failure == null) failure = e;
+					results.add(null);
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			if(failure != null) throw failure;
+			return results;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+		try {
+			List<Future<T>> futures = new ArrayList<Future<T>>();
+			for(Callable<T> task : tasks){
+				futures.add(executor.submit(task));
+			}
+			IOException failure = null;
+			for(Future<T> future : futures){
+				try {
+					results.add(future.get());
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if(cause instanceof IOException){
+						if(failure == null) failure = (IOException) cause;
+						results.add(null);
+					} else if(cause instanceof RuntimeException){
+						throw (RuntimeException) cause;
+					} else if(cause instanceof Error){
+						throw (Error) cause;
+					} else {
+						throw new IllegalStateException(cause);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while rendering");
+				}
+			}
+			if(failure != null) throw failure;
+			return results;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.core;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Describes one image to be produced from a diagram: where it goes, in
+ * which format and with which rendering options. Options that are not
+ * set are inherited from the base {@link RenderingOptions} of the run,
+ * so several variants of the same diagram can be produced from a single
+ * parse.
+ * 
+ * <p>On the command line an output is given as the destination followed
+ * by comma-separated modifiers, for example
+ * <code>diagram@2x.png,scale=2,transparent,no-shadows</code>. The
+ * recognised modifiers are <code>format=FORMAT</code>,
+ * <code>scale=SCALE</code>, <code>background=BACKGROUND</code>,
+ * <code>transparent</code>, <code>shadows</code> and
+ * <code>no-shadows</code>.</p>
+ * 
+ * @author Efstathios Sideris
+ */
+public class OutputSpec {
+
+	public static final String DEFAULT_FORMAT = "png";
+
+	private String destination;
+	private OutputStream stream;
+	private String format;
+	private Float scale;
+	private Color backgroundColor;
+	private Boolean dropShadows;
+
+	/**
+	 * @param destination the filename of the image, or "-" for the standard output
+	 */
+	public OutputSpec(String destination){
+		this.destination = destination;
+	}
+
+	/**
+	 * @param stream the stream the image is written to. It is not closed after writing.
+	 */
+	public OutputSpec(OutputStream stream){
+		this.destination = "-";
+		this.stream = stream;
+	}
+
+	/**
+	 * Parses an output specification as given on the command line.
+	 * 
+	 * @param spec
+	 * @return
+	 * @throws IllegalArgumentException if the specification cannot be interpreted
+	 */
+	public static OutputSpec parse(String spec){
+		String[] parts = spec.split(",");
+		if(parts[0].length() == 0)
+			throw new IllegalArgumentException("Output \""+spec+"\" does not specify a destination.");
+		OutputSpec result = new OutputSpec(parts[0]);
+		for(int i = 1; i < parts.length; i++){
+			String modifier = parts[i].trim();
+			String value = null;
+			int eq = modifier.indexOf('=');
+			if(eq != -1){
+				value = modifier.substring(eq + 1);
+				modifier = modifier.substring(0, eq);
+			}
+			if("format".equals(modifier) && value != null){
+				result.setFormat(value);
+			} else if("scale".equals(modifier) && value != null){
+				result.setScale(Float.parseFloat(value));
+			} else if("background".equals(modifier) && value != null){
+				result.setBackgroundColor(ConversionOptions.parseColor(value));
+			} else if("transparent".equals(modifier) && value == null){
+				result.setBackgroundColor(new Color(0,0,0,0));
+			} else if("shadows".equals(modifier) && value == null){
+				result.setDropShadows(true);
+			} else if("no-shadows".equals(modifier) && value == null){
+				result.setDropShadows(false);
+			} else {
+				throw new IllegalArgumentException("Cannot interpret \""+parts[i]+"\" in output \""+spec+"\".");
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the rendering options of this output, that is
+	 * <code>base</code> with the settings of this output applied.
+	 * <code>base</code> itself is not modified.
+	 * 
+	 * @param base
+	 * @return
+	 */
+	public RenderingOptions applyTo(RenderingOptions base){
+		RenderingOptions result = new RenderingOptions(base);
+		if(scale != null) result.setScale(scale.floatValue());
+		if(backgroundColor != null) result.setBackgroundColor(backgroundColor);
+		if(dropShadows != null) result.setDropShadows(dropShadows.booleanValue());
+		return result;
+	}
+
+	/**
+	 * Opens the stream the image should be written to. Streams that do not
+	 * belong to this output (the standard output or a stream passed to the
+	 * constructor) should not be closed by the caller, see
+	 * {@link #ownsStream()}.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public OutputStream openStream() throws IOException {
+		if(stream != null) return stream;
+		if(isStandardOutput()) return System.out;
+		return new FileOutputStream(destination);
+	}
+
+	public boolean ownsStream(){
+		return stream == null && !isStandardOutput();
+	}
+
+	public boolean isStandardOutput(){
+		return stream == null && "-".equals(destination);
+	}
+
+	/**
+	 * Sends this output to <code>stream</code> instead of its destination.
+	 * Used to redirect the standard output of a conversion that does not
+	 * run on the console, see {@link CommandLineConverter#run(String[])}.
+	 * The stream is not closed after writing.
+	 * 
+	 * @param stream
+	 */
+	public void setStream(OutputStream stream) {
+		this.stream = stream;
+	}
+
+	public String getDestination() {
+		return destination;
+	}
+
+	/**
+	 * Returns the image format of this output. If it has not been set, it is
+	 * guessed from the extension of the destination, defaulting to PNG.
+	 * 
+	 * @return
+	 */
+	public String getFormat() {
+		if(format != null) return format;
+		if(isStandardOutput() || stream != null) return DEFAULT_FORMAT;
+		String extension = FileUtils.getExtension(new File(destination).getName());
+		if(extension == null) return DEFAULT_FORMAT;
+		return extension.toLowerCase();
+	}
+
+	public void setFormat(String format) {
+		this.format = format;
+	}
+
+	public Float getScale() {
+		return scale;
+	}
+
+	public void setScale(Float scale) {
+		this.scale = scale;
+	}
+
+	public Color getBackgroundColor() {
+		return backgroundColor;
+	}
+
+	public void setBackgroundColor(Color backgroundColor) {
+		this.backgroundColor = backgroundColor;
+	}
+
+	public Boolean getDropShadows() {
+		return dropShadows;
+	}
+
+	public void setDropShadows(Boolean dropShadows) {
+		this.dropShadows = dropShadows;
+	}
+
+	public String toString() {
+		return destination;
+	}
+}
@@ -19,20 +19,68 @@
  */
 package org.stathissideris.ascii2image.core;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import org.stathissideris.ascii2image.graphics.Diagram;
 import org.stathissideris.ascii2image.text.TextGrid;
 
 /**
+ * Measures how long diagrams take to process.
+ * 
+ * <p>Without arguments, times the layout of a large diagram. With
+ * <tt>--startup [RUNS] [JVM_OPTIONS...]</tt>, times how long the command
+ * line converter takes to produce its first image in a fresh JVM, for a
+ * small diagram. The JVM options are passed to the converter, so that
+ * for example a class-data sharing archive (see the
+ * <tt>cdsArchive</tt> task) can be compared to a plain start.</p>
+ * 
+ * <p>With <tt>--compare-shapes [FILES...]</tt>, times the layout of each
+ * file, or of the test diagrams, and of a large generated diagram, once
+ * finding the shapes by filling and once with a {@link
+ * org.stathissideris.ascii2image.text.LineGraph}, and reports which of
+ * them render differently.</p>
  * 
  * @author Efstathios Sideris
  */
 public class PerformanceTester {
 
+	private static final String SMALL_DIAGRAM =
+		"+-------+    +-----+\n" +
+		"| input +--->| out |\n" +
+		"+-------+    +-----+\n";
+
 	public static void main(String[] args){
 		
+		if(args.length > 0 && args[0].equals("--startup")){
+			int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+			List<String> jvmOptions = args.length > 2
+				? Arrays.asList(args).subList(2, args.length)
+				: Collections.<String>emptyList();
+			try {
+				measureStartup(runs, jvmOptions);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		
+		if(args.length > 0 && args[0].equals("--compare-shapes")){
+			try {
+				compareShapeFinding(Arrays.asList(args).subList(1, args.length));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		
 		String inputFilename = "tests/text/ditaa_bug.txt";
 		ConversionOptions options = new ConversionOptions();
 
@@ -61,4 +109,146 @@ public class PerformanceTester {
 		
 		System.out.println("Tests completed");
 	}
+
+	/**
+	 * Lays out each of <code>filenames</code>, or each diagram in
+	 * <tt>tests/text</tt> if there are none, and a generated diagram with
+	 * both ways of finding shapes, printing the time each takes and whether
+	 * they render the same.
+	 */
+	private static void compareShapeFinding(List<String> filenames) throws IOException {
+		List<File> files = new ArrayList<File>();
+		if(filenames.isEmpty()){
+			File[] tests = new File("tests/text").listFiles();
+			if(tests != null){
+				Arrays.sort(tests);
+				files.addAll(Arrays.asList(tests));
+			}
+		} else {
+			for(String filename : filenames) files.add(new File(filename));
+		}
+		List<String> names = new ArrayList<String>();
+		List<String> texts = new ArrayList<String>();
+		for(File file : files){
+			if(!file.isFile()) continue;
+			names.add(file.getName());
+			texts.add(new String(IncrementalManifest.readFile(file), "UTF-8"));
+		}
+		names.add("generated 20x20 boxes");
+		texts.add(boxesAndArrows(20, 20));
+
+		ConversionOptions filling = new ConversionOptions();
+		filling.processingOptions.setComponentCache(null);
+		ConversionOptions graph = new ConversionOptions();
+		graph.processingOptions.setComponentCache(null);
+		graph.processingOptions.setShapeFinding(ProcessingOptions.FIND_SHAPES_WITH_LINE_GRAPH);
+		DitaaEngine fillingEngine = new DitaaEngine(filling);
+		DitaaEngine graphEngine = new DitaaEngine(graph);
+
+		int iterations = 5;
+		long fillingTotal = 0;
+		long graphTotal = 0;
+		int identical = 0;
+		for(int i = 0; i < texts.size(); i++){
+			String text = texts.get(i);
+			byte[] filled;
+			byte[] traced;
+			try {
+				filled = fillingEngine.renderToBytes(text, "png");
+				traced = graphEngine.renderToBytes(text, "png");
+			} catch (RuntimeException e) {
+				System.out.println(names.get(i)+": failed, "+e);
+				continue;
+			}
+			long fillingTime = timeLayout(fillingEngine, text, iterations);
+			long graphTime = timeLayout(graphEngine, text, iterations);
+			fillingTotal += fillingTime;
+			graphTotal += graphTime;
+			boolean same = Arrays.equals(filled, traced);
+			if(same) identical++;
+			System.out.println(names.get(i)+": filling "+fillingTime+"msec, line graph "+graphTime+"msec"
+					+(same ? "" : ", renders differently"));
+		}
+		System.out.println("layout of "+texts.size()+" diagrams, "+iterations+" times each: filling "
+				+fillingTotal+"msec, line graph "+graphTotal+"msec; "
+				+identical+" of "+texts.size()+" render identically");
+	}
+
+	private static long timeLayout(DitaaEngine engine, String text, int iterations) {
+		long start = System.nanoTime();
+		for(int i = 0; i < iterations; i++){
+			engine.layout(text);
+		}
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	/**
+	 * @return a grid of <code>columns</code> by <code>rows</code> boxes,
+	 *   each joined to the next one by an arrow
+	 */
+	private static String boxesAndArrows(int columns, int rows) {
+		StringBuilder result = new StringBuilder();
+		for(int row = 0; row < rows; row++){
+			StringBuilder top = new StringBuilder();
+			StringBuilder middle = new StringBuilder();
+			for(int column = 0; column < columns; column++){
+				top.append("+----+    ");
+				middle.append(column + 1 < columns ? "|    +--->" : "|    |    ");
+			}
+			result.append(top).append('\n').append(middle).append('\n').append(top).append('\n')
+				.append('\n');
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Converts a small diagram <code>runs</code> times, each in a new JVM,
+	 * and prints the fastest and the median time to the image.
+	 */
+	private static void measureStartup(int runs, List<String> jvmOptions) throws IOException, InterruptedException {
+		File input = File.createTempFile("ditaa-startup", ".txt");
+		File output = new File(input.getPath().replaceFirst("\\.txt$", ".png"));
+		FileWriter writer = new FileWriter(input);
+		try {
+			writer.write(SMALL_DIAGRAM);
+		} finally {
+			writer.close();
+		}
+
+		List<String> command = new ArrayList<String>();
+		command.add(new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath());
+		command.addAll(jvmOptions);
+		command.add("-Djava.awt.headless=true");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(CommandLineConverter.class.getName());
+		command.add("--overwrite");
+		command.add(input.getPath());
+		command.add(output.getPath());
+
+		List<Long> times = new ArrayList<Long>();
+		try {
+			for(int i = 0; i < runs; i++){
+				long start = System.nanoTime();
+				Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+				InputStream stream = process.getInputStream();
+				byte[] buffer = new byte[8192];
+				while(stream.read(buffer) != -1);
+				int status = process.waitFor();
+				long millis = (System.nanoTime() - start) / 1000000;
+				if(status != 0 || !output.isFile()){
+					System.err.println("The conversion failed with status "+status+", command: "+command);
+					return;
+				}
+				times.add(millis);
+				System.out.println("run "+i+": "+millis+"msec");
+			}
+		} finally {
+			input.delete();
+			output.delete();
+		}
+		Collections.sort(times);
+		System.out.println("time to first image over "+runs+" runs: fastest "+times.get(0)+"msec, median "
+				+times.get(times.size() / 2)+"msec"+(jvmOptions.isEmpty() ? "" : " with "+jvmOptions));
+	}
 }
@@ -24,6 +24,7 @@ import java.util.logging.Level;
 
 import org.stathissideris.ascii2image.graphics.CustomShapeDefinition;
 
+import yskkin.ascii2image.util.ComponentCache;
 import yskkin.ascii2image.util.Loggers;
 
 /**
@@ -36,6 +37,7 @@ public class ProcessingOptions {
 	
 	private boolean printDebugOutput = false;
 	private boolean overwriteFiles = false;
+	private boolean incremental = false;
 	private boolean performSeparationOfCommonEdges = true;
 	private boolean allCornersAreRound = false;
 
@@ -54,6 +56,10 @@ public class ProcessingOptions {
 	public static final int FORMAT_GIF = 2;
 	private int exportFormat = FORMAT_PNG;
 
+	public static final int FIND_SHAPES_BY_FILLING = 0;
+	public static final int FIND_SHAPES_WITH_LINE_GRAPH = 1;
+	private int shapeFinding = FIND_SHAPES_BY_FILLING;
+
 	public static final int DEFAULT_TAB_SIZE = 8;
 	private int tabSize = DEFAULT_TAB_SIZE;
 
@@ -62,6 +68,36 @@ public class ProcessingOptions {
 	
 	private String characterEncoding = null;
 	
+	private ComponentCache componentCache = ComponentCache.getShared();
+	
+	public ProcessingOptions(){}
+
+	/**
+	 * Creates a copy of <code>other</code>, so that the copy can be
+	 * changed without affecting the original. The custom shape
+	 * definitions themselves and the component cache are shared.
+	 * 
+	 * @param other
+	 */
+	public ProcessingOptions(ProcessingOptions other){
+		customShapes = other.customShapes == null
+			? null : new HashMap<String, CustomShapeDefinition>(other.customShapes);
+		printDebugOutput = other.printDebugOutput;
+		overwriteFiles = other.overwriteFiles;
+		incremental = other.incremental;
+		performSeparationOfCommonEdges = other.performSeparationOfCommonEdges;
+		allCornersAreRound = other.allCornersAreRound;
+		tagProcessingMode = other.tagProcessingMode;
+		colorCodesProcessingMode = other.colorCodesProcessingMode;
+		exportFormat = other.exportFormat;
+		shapeFinding = other.shapeFinding;
+		tabSize = other.tabSize;
+		inputFilename = other.inputFilename;
+		outputFilename = other.outputFilename;
+		characterEncoding = other.characterEncoding;
+		componentCache = other.componentCache;
+	}
+	
 	/**
 	 * @return
 	 */
@@ -197,6 +233,21 @@ public class ProcessingOptions {
 		overwriteFiles = b;
 	}
 
+	/**
+	 * @return whether images that are up to date according to their
+	 * {@link IncrementalManifest} are skipped
+	 */
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * @param b
+	 */
+	public void setIncremental(boolean b) {
+		incremental = b;
+	}
+
 	/**
 	 * @return
 	 */
@@ -219,6 +270,36 @@ public class ProcessingOptions {
 		this.characterEncoding = characterEncoding;
 	}
 
+	/**
+	 * @return how the shapes of diagrams are found, either
+	 *   {@link #FIND_SHAPES_BY_FILLING} or
+	 *   {@link #FIND_SHAPES_WITH_LINE_GRAPH}
+	 */
+	public int getShapeFinding() {
+		return shapeFinding;
+	}
+
+	/**
+	 * @param shapeFinding {@link #FIND_SHAPES_BY_FILLING}, the default, or
+	 *   {@link #FIND_SHAPES_WITH_LINE_GRAPH}, which builds a graph of the
+	 *   lines once instead of filling every distinct shape
+	 */
+	public void setShapeFinding(int shapeFinding) {
+		this.shapeFinding = shapeFinding;
+	}
+
+	/**
+	 * @return the cache of the shapes found in earlier conversions, shared
+	 *   by all conversions by default, or null if none is used
+	 */
+	public ComponentCache getComponentCache() {
+		return componentCache;
+	}
+
+	public void setComponentCache(ComponentCache componentCache) {
+		this.componentCache = componentCache;
+	}
+
 	public HashMap<String, CustomShapeDefinition> getCustomShapes() {
 		return customShapes;
 	}
@@ -0,0 +1,180 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import yskkin.ascii2image.util.DitaaCommandLineParser;
+
+/**
+ * A long-lived rendering process. It reads render requests from its
+ * standard input and writes the resulting PNGs to its standard output,
+ * one request at a time, until its input is closed. This lets a server
+ * keep rendering out of its own process without paying the start-up cost
+ * of a new JVM for every diagram.
+ * 
+ * <p>All numbers are big-endian, as written by {@link DataOutputStream}.
+ * A request is:</p>
+ * <pre>
+ *   int     number of options
+ *   string  option (repeated), in the command line syntax, e.g. "-s", "2"
+ *   bytes   grid text, UTF-8
+ * </pre>
+ * <p>and the response is:</p>
+ * <pre>
+ *   int     status, {@link #STATUS_OK} or {@link #STATUS_ERROR}
+ *   long    heap in use after the render, in bytes
+ *   bytes   the PNG image, or the error message in UTF-8
+ * </pre>
+ * <p>where <code>string</code> and <code>bytes</code> are an int length
+ * followed by that many bytes.</p>
+ * 
+ * @author Efstathios Sideris
+ */
+public class RenderWorker {
+
+	public static final int STATUS_OK = 0;
+	public static final int STATUS_ERROR = 1;
+
+	/** Refuse frames larger than this, they can only be the result of a corrupt stream. */
+	private static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+	public static void main(String[] args) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+		//anything printed by the conversion must not end up in the responses
+		System.setOut(new PrintStream(new FileOutputStream(FileDescriptor.err), true));
+
+		if(!serve(in, out)) System.exit(1);
+	}
+
+	/**
+	 * Answers requests until <code>in</code> ends.
+	 * 
+	 * @return false if it stopped early because the heap ran out, after
+	 *   reporting it; the process should make way for a fresh worker
+	 */
+	static boolean serve(DataInputStream in, DataOutputStream out) throws IOException {
+		while(true){
+			String[] options;
+			byte[] grid;
+			try {
+				options = readOptions(in);
+			} catch (EOFException e) {
+				return true; //the server closed our input: time to go
+			}
+			grid = readBytes(in);
+
+			int status = STATUS_OK;
+			byte[] result;
+			boolean exhausted = false;
+			try {
+				result = render(options, new String(grid, "UTF-8"));
+			} catch (Exception e) {
+				status = STATUS_ERROR;
+				result = describe(e).getBytes("UTF-8");
+			} catch (OutOfMemoryError e) {
+				//the heap may be in any state now, so report and stop
+				status = STATUS_ERROR;
+				result = describe(e).getBytes("UTF-8");
+				exhausted = true;
+			}
+			Runtime runtime = Runtime.getRuntime();
+			writeResponse(out, status, runtime.totalMemory() - runtime.freeMemory(), result);
+			out.flush();
+			if(exhausted) return false;
+		}
+	}
+
+	/**
+	 * Renders <code>gridText</code> to a PNG with the given command line options.
+	 * 
+	 * @param options
+	 * @param gridText
+	 * @return
+	 * @throws ParseException if the options cannot be parsed
+	 * @throws IOException
+	 */
+	public static byte[] render(String[] options, String gridText) throws ParseException, IOException {
+		CommandLine cmdLine = new PosixParser().parse(DitaaCommandLineParser.DITAA_CLI_SPEC, options);
+		return new DitaaEngine(new ConversionOptions(cmdLine)).renderToBytes(gridText, "png");
+	}
+
+	private static String describe(Throwable t) {
+		StringWriter writer = new StringWriter();
+		t.printStackTrace(new PrintWriter(writer));
+		return writer.toString();
+	}
+
+	public static void writeRequest(DataOutputStream out, String[] options, String gridText) throws IOException {
+		out.writeInt(options.length);
+		for(String option : options){
+			writeBytes(out, option.getBytes("UTF-8"));
+		}
+		writeBytes(out, gridText.getBytes("UTF-8"));
+	}
+
+	public static void writeResponse(DataOutputStream out, int status, long heapUsed, byte[] payload) throws IOException {
+		out.writeInt(status);
+		out.writeLong(heapUsed);
+		writeBytes(out, payload);
+	}
+
+	/**
+	 * @throws EOFException if the stream ends before the first byte of the request
+	 */
+	public static String[] readOptions(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if(count < 0 || count > 1024) throw new IOException("Bad option count "+count);
+		String[] options = new String[count];
+		for(int i = 0; i < count; i++){
+			options[i] = new String(readBytes(in), "UTF-8");
+		}
+		return options;
+	}
+
+	public static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	public static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length < 0 || length > MAX_FRAME_LENGTH) throw new IOException("Bad frame length "+length);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+}
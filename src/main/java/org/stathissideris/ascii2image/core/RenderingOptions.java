@@ -21,24 +21,60 @@ package org.stathissideris.ascii2image.core;
 
 import java.awt.Color;
 
+import yskkin.ascii2image.util.ImagePool;
+
 /**
  * 
  * @author Efstathios Sideris
  */
 public class RenderingOptions {
 
+	/**
+	 * Size of a grid cell at scale 1. This is also the unit in which the
+	 * geometry of a {@link org.stathissideris.ascii2image.graphics.Diagram}
+	 * is kept, so that the same Diagram can be rendered at any scale.
+	 */
+	public static final int DEFAULT_CELL_WIDTH = 10;
+	public static final int DEFAULT_CELL_HEIGHT = 14;
+
 	private boolean dropShadows = true;
 	private boolean renderDebugLines = false;
 	private boolean antialias = true;
     private boolean fixedSlope = false;
 
-	private int cellWidth = 10;
-	private int cellHeight = 14;
+	private int cellWidth = DEFAULT_CELL_WIDTH;
+	private int cellHeight = DEFAULT_CELL_HEIGHT;
 	
 	private float scale = 1;
 	
+	private int bandHeight = 0;
+	
+	private ImagePool imagePool = null;
+	
+	private long offHeapThreshold = 0;
+	
 	private Color backgroundColor = Color.white;
 
+	public RenderingOptions(){}
+
+	/**
+	 * Creates a copy of <code>other</code>, so that the copy can be
+	 * changed without affecting the original.
+	 * 
+	 * @param other
+	 */
+	public RenderingOptions(RenderingOptions other){
+		dropShadows = other.dropShadows;
+		renderDebugLines = other.renderDebugLines;
+		antialias = other.antialias;
+		fixedSlope = other.fixedSlope;
+		setScale(other.scale);
+		bandHeight = other.bandHeight;
+		imagePool = other.imagePool;
+		offHeapThreshold = other.offHeapThreshold;
+		backgroundColor = other.backgroundColor;
+	}
+
 	public int getCellHeight() {
 		return cellHeight;
 	}
@@ -69,8 +105,58 @@ public class RenderingOptions {
 
 	public void setScale(float f) {
 		scale = f;
-		cellWidth *= scale;
-		cellHeight *= scale;
+		cellWidth = (int) (DEFAULT_CELL_WIDTH * scale);
+		cellHeight = (int) (DEFAULT_CELL_HEIGHT * scale);
+	}
+
+	/**
+	 * @return the number of rows of a PNG image that are drawn and encoded
+	 *   at a time, or 0 if the image is drawn as a whole
+	 */
+	public int getBandHeight() {
+		return bandHeight;
+	}
+
+	/**
+	 * @param bandHeight the number of rows of a PNG image that are drawn
+	 *   and encoded at a time, so that very tall images can be written
+	 *   without being in memory as a whole, or 0, the default, to draw the
+	 *   whole image first
+	 */
+	public void setBandHeight(int bandHeight) {
+		if(bandHeight < 0) throw new IllegalArgumentException("The band height cannot be negative, got "+bandHeight);
+		this.bandHeight = bandHeight;
+	}
+
+	/**
+	 * @return the pool the images that do not outlive rendering are taken
+	 *   from, or null if they are made for each rendering
+	 */
+	public ImagePool getImagePool() {
+		return imagePool;
+	}
+
+	public void setImagePool(ImagePool imagePool) {
+		this.imagePool = imagePool;
+	}
+
+	/**
+	 * @return the size in bytes from which rendered images are kept off the
+	 *   Java heap, or 0 if they never are
+	 */
+	public long getOffHeapThreshold() {
+		return offHeapThreshold;
+	}
+
+	/**
+	 * @param offHeapThreshold the size in bytes from which rendered images
+	 *   are kept in direct memory or in a temporary file instead of on the
+	 *   Java heap, so that poster-size images do not need a large heap, or
+	 *   0, the default, to keep them all on the heap
+	 */
+	public void setOffHeapThreshold(long offHeapThreshold) {
+		if(offHeapThreshold < 0) throw new IllegalArgumentException("The off-heap threshold cannot be negative, got "+offHeapThreshold);
+		this.offHeapThreshold = offHeapThreshold;
 	}
 
 	public boolean performAntialias() {
@@ -0,0 +1,269 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.core;
+
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import yskkin.ascii2image.util.DitaaCommandLineParser;
+
+/**
+ * Converts a stream of diagrams to a stream of images, so that a program
+ * with many diagrams to convert needs one ditaa process instead of one
+ * per diagram.
+ * 
+ * <p>Each document of the input is a request of {@link RenderWorker}:</p>
+ * <pre>
+ *   int     number of options
+ *   string  option (repeated), in the command line syntax, e.g. "-s", "2"
+ *   bytes   grid text, UTF-8
+ * </pre>
+ * <p>The options of a document override the base options of the stream
+ * for that document only. The first <tt>--output</tt> of a document
+ * selects the format and modifiers of its image (e.g.
+ * <tt>-,format=gif,scale=2</tt>); its destination is ignored. For each
+ * document, in the order of the input, the output gets a frame:</p>
+ * <pre>
+ *   int     status, {@link RenderWorker#STATUS_OK} or {@link RenderWorker#STATUS_ERROR}
+ *   bytes   the image, or the error message in UTF-8
+ * </pre>
+ * <p>where <code>string</code> and <code>bytes</code> are an int length
+ * followed by that many bytes, and numbers are big-endian.</p>
+ * 
+ * <p>Documents are read, rendered and written at the same time: one
+ * thread reads the input, a pool renders and encodes, and the calling
+ * thread writes the frames as they come due.</p>
+ * 
+ * @author Efstathios Sideris
+ */
+public class StreamConverter {
+
+	private final String[] baseOptions;
+	private final int threads;
+
+	/**
+	 * @param baseOptions the options every document starts from, in the
+	 *   command line syntax
+	 * @param threads the number of documents rendered at the same time
+	 */
+	public StreamConverter(String[] baseOptions, int threads){
+		if(threads < 1) throw new IllegalArgumentException("At least one thread is needed, got "+threads);
+		this.baseOptions = baseOptions.clone();
+		this.threads = threads;
+	}
+
+	/**
+	 * The outcome of a stream.
+	 */
+	public static class Result {
+		private int documents;
+		private int failed;
+		private String error;
+
+		/** How many documents were read. */
+		public int getDocuments() {
+			return documents;
+		}
+
+		/** How many documents got an error frame. */
+		public int getFailed() {
+			return failed;
+		}
+
+		/** Why the stream ended before its end, null if it did not. */
+		public String getError() {
+			return error;
+		}
+
+		public boolean isSuccessful() {
+			return failed == 0 && error == null;
+		}
+	}
+
+	/**
+	 * A rendered document.
+	 */
+	private static class Frame {
+		final int status;
+		final byte[] payload;
+
+		Frame(int status, byte[] payload){
+			this.status = status;
+			this.payload = payload;
+		}
+	}
+
+	/** Marks the end of the documents in the queue of the writer. */
+	private static final Future<Frame> END = new FutureTask<Frame>(new Callable<Frame>() {
+		public Frame call() {
+			return null;
+		}
+	});
+
+	/**
+	 * Converts documents from <code>in</code> until it ends, writing a
+	 * frame per document to <code>out</code>. Neither stream is closed.
+	 * 
+	 * @param in
+	 * @param out
+	 * @return the outcome
+	 * @throws IOException if the output cannot be written
+	 */
+	public Result convert(InputStream in, OutputStream out) throws IOException {
+		final PushbackInputStream peekable = new PushbackInputStream(in);
+		final DataInputStream input = new DataInputStream(peekable);
+		DataOutputStream output = new DataOutputStream(out);
+		final Result result = new Result();
+		final ExecutorService renderers = Executors.newFixedThreadPool(threads);
+		//bounded, so that a fast producer does not pile up rendered images in memory
+		final BlockingQueue<Future<Frame>> pending = new ArrayBlockingQueue<Future<Frame>>(threads * 2);
+
+		Thread reader = new Thread("ditaa-stream-reader") {
+			public void run() {
+				try {
+					while(true){
+						//only an end before the first byte of a document is a proper end
+						int first = peekable.read();
+						if(first == -1) break;
+						peekable.unread(first);
+						final String[] options = RenderWorker.readOptions(input);
+						final byte[] text = RenderWorker.readBytes(input);
+						result.documents++;
+						pending.put(renderers.submit(new Callable<Frame>() {
+							public Frame call() {
+								return render(options, text);
+							}
+						}));
+					}
+				} catch (IOException e) {
+					result.error = "Cannot read document "+(result.documents + 1)+": "+e.getMessage();
+				} catch (InterruptedException e) {
+					//the writer gave up
+				} finally {
+					try {
+						pending.put(END);
+					} catch (InterruptedException e) {
+						//the writer gave up, nobody is waiting for the end
+					}
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+
+		try {
+			while(true){
+				Future<Frame> next = pending.take();
+				if(next == END) break;
+				Frame frame;
+				try {
+					frame = next.get();
+				} catch (ExecutionException e) {
+					frame = error(String.valueOf(e.getCause()));
+				}
+				if(frame.status != RenderWorker.STATUS_OK) result.failed++;
+				output.writeInt(frame.status);
+				RenderWorker.writeBytes(output, frame.payload);
+				//the consumer may be waiting for this image before it sends the next document
+				if(pending.isEmpty()) output.flush();
+			}
+			output.flush();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			result.error = "Interrupted";
+		} finally {
+			reader.interrupt();
+			renderers.shutdownNow();
+		}
+		return result;
+	}
+
+	private Frame render(String[] options, byte[] text){
+		try {
+			return new Frame(RenderWorker.STATUS_OK, render(options, new String(text, "UTF-8")));
+		} catch (ParseException e) {
+			return error(e.getMessage());
+		} catch (IllegalArgumentException e) {
+			return error(e.getMessage());
+		} catch (IOException e) {
+			return error(e.getMessage());
+		} catch (RuntimeException e) {
+			return error(e.toString());
+		}
+	}
+
+	/**
+	 * Renders <code>gridText</code> with the base options overridden by
+	 * <code>options</code>.
+	 */
+	private byte[] render(String[] options, String gridText) throws ParseException, IOException {
+		//the options of the document come first, since the first value of an option wins
+		List<String> arguments = new ArrayList<String>(Arrays.asList(options));
+		arguments.addAll(Arrays.asList(baseOptions));
+		CommandLine cmdLine = new PosixParser().parse(DitaaCommandLineParser.DITAA_CLI_SPEC,
+				arguments.toArray(new String[arguments.size()]));
+		if(cmdLine.getArgs().length > 0)
+			throw new IllegalArgumentException("Unexpected argument "+cmdLine.getArgs()[0]+" in the options of a document");
+		ConversionOptions conversionOptions = new ConversionOptions(cmdLine);
+
+		OutputSpec output = new OutputSpec(new ByteArrayOutputStream());
+		if(!conversionOptions.outputs.isEmpty()){
+			output = conversionOptions.outputs.get(0);
+			//the format may come from the extension of the destination, which a stream does not have
+			output.setFormat(output.getFormat());
+			output.setStream(new ByteArrayOutputStream());
+		}
+
+		conversionOptions.renderingOptions = output.applyTo(conversionOptions.renderingOptions);
+		RenderedImage image = new DitaaEngine(conversionOptions).render(gridText);
+		ByteArrayOutputStream bytes = (ByteArrayOutputStream) output.openStream();
+		MultiOutputRenderer.write(image, output);
+		return bytes.toByteArray();
+	}
+
+	private static Frame error(String message){
+		try {
+			return new Frame(RenderWorker.STATUS_ERROR, String.valueOf(message).getBytes("UTF-8"));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
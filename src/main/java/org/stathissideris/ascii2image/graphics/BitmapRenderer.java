@@ -19,6 +19,7 @@
  */
 package org.stathissideris.ascii2image.graphics;
 
+import java.awt.AlphaComposite;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics2D;
@@ -33,6 +34,7 @@ import java.awt.image.ConvolveOp;
 import java.awt.image.Kernel;
 import java.awt.image.RenderedImage;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -42,9 +44,17 @@ import org.stathissideris.ascii2image.core.RenderingOptions;
 import org.stathissideris.ascii2image.core.Shape3DOrderingComparator;
 import org.stathissideris.ascii2image.core.ShapeAreaComparator;
 
+import yskkin.ascii2image.util.Cancellation;
+import yskkin.ascii2image.util.ImagePool;
 import yskkin.ascii2image.util.Loggers;
+import yskkin.ascii2image.util.OffHeapDataBuffer;
+import yskkin.ascii2image.util.PngEncoder;
 
 /**
+ * Renders diagrams either to an image as a whole or, with
+ * {@link #renderToPng(Diagram, RenderingOptions, OutputStream)}, a band
+ * of rows at a time straight into a PNG stream, which needs memory for a
+ * band only however tall the image is.
  * 
  * @author Efstathios Sideris
  */
@@ -54,28 +64,237 @@ public class BitmapRenderer {
 
 	private static final String IDREGEX = "^.+_vfill$";
 	
+	private static final int BLUR_RADIUS = 6;
+	
+	/** The rows drawn at a time into images kept off the heap, unless the options say otherwise */
+	private static final int OFF_HEAP_BAND_HEIGHT = 256;
+	
 	Stroke normalStroke;
 	Stroke dashStroke; 
 	
+	/**
+	 * Renders <code>diagram</code> to an image. Images of at least
+	 * {@link RenderingOptions#getOffHeapThreshold()} bytes are kept off the
+	 * heap, see {@link OffHeapDataBuffer}: they are drawn in bands, as by
+	 * {@link #renderToPng(Diagram, RenderingOptions, OutputStream)}, each
+	 * band copied into the image once drawn.
+	 * 
+	 * @param diagram
+	 * @param options
+	 * @return
+	 */
 	public RenderedImage renderToImage(Diagram diagram, RenderingOptions options){
-		BufferedImage image;
-		if(options.needsTransparency()) {
-			image = new BufferedImage(
-					diagram.getWidth(),
-					diagram.getHeight(),
-					BufferedImage.TYPE_INT_ARGB);
-		} else {
-			image = new BufferedImage(
-					diagram.getWidth(),
-					diagram.getHeight(),
-					BufferedImage.TYPE_INT_RGB);
+		diagram = diagram.scaledTo(options);
+		int width = getImageWidth(diagram, options);
+		int height = getImageHeight(diagram, options);
+		if(options.getOffHeapThreshold() > 0 && 4L * width * height >= options.getOffHeapThreshold()){
+			try {
+				return renderOffHeap(diagram, options, width, height);
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot keep an image of "+width+"x"+height+" pixels off the heap", e);
+			}
+		}
+		ImagePool pool = options.getImagePool();
+		if(pool == null || !options.dropShadows()){
+			return render(diagram, new BufferedImage(width, height, getImageType(options)), options);
 		}
 		
-		return render(diagram, image, options);
+		//the shadows are blurred into the image returned, so the one drawn first can be reused
+		BufferedImage image = pool.acquire(width, height, getImageType(options));
+		try {
+			return render(diagram, diagram.getAllDiagramShapes(), diagram.getTextObjects(options),
+					image, new BufferedImage(width, height, getImageType(options)), 0, options);
+		} finally {
+			pool.release(image);
+		}
+	}
+
+	/**
+	 * Renders <code>diagram</code> as a PNG image to <code>out</code>, in
+	 * bands of {@link RenderingOptions#getBandHeight()} rows. Each band is
+	 * drawn with the shapes and text that reach into it, and encoded before
+	 * the next one is drawn, so only a band is ever in memory. The image is
+	 * the one {@link #renderToImage(Diagram, RenderingOptions)} makes, but
+	 * for antialiased edges that may be a shade lighter or darker, since
+	 * they are rasterized at other coordinates. Shadows are blurred across
+	 * band edges by drawing a few more rows around each band.
+	 * 
+	 * <p>The band and the shadows are drawn into images from the
+	 * {@link RenderingOptions#getImagePool() pool} of <code>options</code>,
+	 * if there is one, and given back once the image is written.</p>
+	 * 
+	 * @param diagram
+	 * @param options
+	 * @param out the stream to write to, which is not closed
+	 * @throws IOException
+	 */
+	public void renderToPng(Diagram diagram, RenderingOptions options, OutputStream out) throws IOException {
+		diagram = diagram.scaledTo(options);
+		final PngEncoder encoder = new PngEncoder(out,
+				getImageWidth(diagram, options), getImageHeight(diagram, options), options.needsTransparency());
+		renderInBands(diagram, options, options.getBandHeight(), new BandWriter() {
+			public void writeRows(BufferedImage band, int y, int top, int rows) throws IOException {
+				encoder.writeRows(band, y, rows);
+			}
+		});
+		encoder.finish();
 	}
 	
+	private BufferedImage renderOffHeap(Diagram diagram, RenderingOptions options, int width, int height) throws IOException {
+		BufferedImage result = OffHeapDataBuffer.createImage(width, height, options.needsTransparency());
+		final OffHeapDataBuffer pixels = OffHeapDataBuffer.of(result);
+		final int[] row = new int[width];
+		int bandHeight = options.getBandHeight() > 0 ? options.getBandHeight() : OFF_HEAP_BAND_HEIGHT;
+		renderInBands(diagram, options, bandHeight, new BandWriter() {
+			public void writeRows(BufferedImage band, int y, int top, int rows) throws IOException {
+				for(int i = 0; i < rows; i++){
+					band.getRaster().getDataElements(0, y + i, row.length, 1, row);
+					pixels.setRow((top + i) * row.length, row, 0, row.length);
+				}
+			}
+		});
+		return result;
+	}
+	
+	/**
+	 * Takes the rows of the bands drawn by
+	 * {@link BitmapRenderer#renderInBands(Diagram, RenderingOptions, int, BandWriter)}.
+	 */
+	private interface BandWriter {
+		/**
+		 * @param band the image the band is drawn in
+		 * @param y the first row of the band in <code>band</code>
+		 * @param top the first row of the band in the whole image
+		 * @param rows how many rows the band has
+		 */
+		void writeRows(BufferedImage band, int y, int top, int rows) throws IOException;
+	}
+	
+	/**
+	 * @param bandHeight the rows drawn at a time, 0 for the whole image
+	 */
+	private void renderInBands(Diagram diagram, RenderingOptions options, int bandHeight, BandWriter writer) throws IOException {
+		int width = getImageWidth(diagram, options);
+		int height = getImageHeight(diagram, options);
+		bandHeight = bandHeight > 0 ? Math.min(bandHeight, height) : height;
+		int margin = options.dropShadows() ? BLUR_RADIUS : 0;
+		
+		int bufferHeight = Math.min(height, bandHeight + 2 * margin);
+		ImagePool pool = options.getImagePool();
+		BufferedImage buffer = null;
+		BufferedImage blurBuffer = null;
+		try {
+			buffer = newImage(pool, width, bufferHeight, getImageType(options));
+			if(options.dropShadows()) blurBuffer = newImage(pool, width, bufferHeight, getImageType(options));
+			renderInBands(diagram, options, buffer, blurBuffer, bandHeight, margin, writer);
+		} finally {
+			if(pool != null){
+				if(buffer != null) pool.release(buffer);
+				if(blurBuffer != null) pool.release(blurBuffer);
+			}
+		}
+	}
+	
+	private void renderInBands(Diagram diagram, RenderingOptions options,
+			BufferedImage buffer, BufferedImage blurBuffer, int bandHeight, int margin, BandWriter writer) throws IOException {
+		int width = buffer.getWidth();
+		int height = getImageHeight(diagram, options);
+		int bufferHeight = buffer.getHeight();
+		
+		List<DiagramShape> shapes = diagram.getAllDiagramShapes();
+		float[][] shapeRows = getDeviceRows(diagram, shapes, options);
+		List<DiagramText> texts = diagram.getTextObjects(options);
+		
+		for(int top = 0; top < height; top += bandHeight){
+			Cancellation.checkpoint();
+			int bottom = Math.min(height, top + bandHeight);
+			int bufferTop = Math.max(0, top - margin);
+			int bufferBottom = Math.min(height, bottom + margin);
+			
+			BufferedImage image = buffer;
+			BufferedImage blurred = blurBuffer;
+			if(bufferBottom - bufferTop < bufferHeight){
+				image = buffer.getSubimage(0, 0, width, bufferBottom - bufferTop);
+				if(blurred != null) blurred = blurBuffer.getSubimage(0, 0, width, bufferBottom - bufferTop);
+			}
+			
+			List<DiagramShape> bandShapes = new ArrayList<DiagramShape>();
+			for(int i = 0; i < shapes.size(); i++){
+				if(shapeRows[i] == null || (shapeRows[i][0] < bufferBottom && shapeRows[i][1] > bufferTop)){
+					bandShapes.add(shapes.get(i));
+				}
+			}
+			List<DiagramText> bandTexts = new ArrayList<DiagramText>();
+			for(DiagramText text : texts){
+				int reach = 2 * text.getFont().getSize();
+				if(text.getYPos() - reach < bufferBottom && text.getYPos() + reach > bufferTop){
+					bandTexts.add(text);
+				}
+			}
+			
+			BufferedImage rendered = render(diagram, bandShapes, bandTexts, image, blurred, bufferTop, options);
+			writer.writeRows(rendered, top - bufferTop, top, bottom - top);
+		}
+	}
+
+	private static BufferedImage newImage(ImagePool pool, int width, int height, int type){
+		return pool == null ? new BufferedImage(width, height, type) : pool.acquire(width, height, type);
+	}
+
+	private static int getImageType(RenderingOptions options){
+		return options.needsTransparency() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+	}
+
+	/**
+	 * @return the first and last row of the image each of <code>shapes</code>
+	 *   can draw on, shadow and stroke included, or null for the shapes
+	 *   that are drawn in every band
+	 */
+	private static float[][] getDeviceRows(Diagram diagram, List<DiagramShape> shapes, RenderingOptions options){
+		float shadowOffset = diagram.getMinimumOfCellDimension() / 3.333f;
+		float strokeWeight = diagram.getMinimumOfCellDimension() / 10;
+		float reach = shadowOffset + strokeWeight + 2;
+		
+		float[][] result = new float[shapes.size()][];
+		for(int i = 0; i < shapes.size(); i++){
+			DiagramShape shape = shapes.get(i);
+			//custom graphics are not always drawn within their shape
+			if(shape.isEmpty() || shape.getType() == DiagramShape.TYPE_CUSTOM) continue;
+			GeneralPath path = shape.makeIntoRenderPath(diagram, options);
+			if(path == null) continue;
+			Rectangle bounds = path.getBounds();
+			result[i] = new float[] { bounds.y - reach, bounds.y + bounds.height + reach };
+		}
+		return result;
+	}
+
+	public static int getImageWidth(Diagram diagram, RenderingOptions options){
+		return diagram.getGridWidth() * options.getCellWidth();
+	}
+
+	public static int getImageHeight(Diagram diagram, RenderingOptions options){
+		return diagram.getGridHeight() * options.getCellHeight();
+	}
+
 	public RenderedImage render(Diagram diagram, BufferedImage image,  RenderingOptions options){
-		RenderedImage renderedImage = image;
+		diagram = diagram.scaledTo(options);
+		return render(diagram, diagram.getAllDiagramShapes(), diagram.getTextObjects(options), image, null, 0, options);
+	}
+	
+	/**
+	 * Renders the rows of the image of <code>diagram</code> from
+	 * <code>top</code> down into <code>image</code>.
+	 * 
+	 * @param shapes the shapes to draw, in the order of
+	 *   {@link Diagram#getAllDiagramShapes()}
+	 * @param texts the text to draw
+	 * @param blurred the image to blur the shadows into, the size of
+	 *   <code>image</code>, or null to make one
+	 * @return <code>image</code>, or <code>blurred</code> if there are shadows
+	 */
+	private BufferedImage render(Diagram diagram, List<DiagramShape> shapes, List<DiagramText> texts,
+			BufferedImage image, BufferedImage blurred, int top, RenderingOptions options){
+		BufferedImage renderedImage = image;
 		Graphics2D g2 = image.createGraphics();
 
 		Object antialiasSetting = RenderingHints.VALUE_ANTIALIAS_OFF;
@@ -85,21 +304,24 @@ public class BitmapRenderer {
 		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialiasSetting);
 
 		g2.setColor(options.getBackgroundColor());
+		//the image may be reused, so a transparent background has to replace what is there
+		g2.setComposite(AlphaComposite.Src);
 		//TODO: find out why the next line does not work
 		g2.fillRect(0, 0, image.getWidth()+10, image.getHeight()+10);
+		g2.setComposite(AlphaComposite.SrcOver);
 		/*for(int y = 0; y < diagram.getHeight(); y ++)
 			g2.drawLine(0, y, diagram.getWidth(), y);*/
 		
 		g2.setStroke(new BasicStroke(1, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_ROUND));
-
-		List<DiagramShape> shapes = diagram.getAllDiagramShapes();
+		g2.translate(0, -top);
 
 		LOG.info("Rendering " + shapes.size() + " shapes (groups flattened)");
 
 		if(options.dropShadows()){
 			//render shadows
 			for (DiagramShape shape : shapes) {
-				if(shape.getPoints().isEmpty()) continue;
+				Cancellation.checkpoint();
+				if(shape.isEmpty()) continue;
 
 				//GeneralPath path = shape.makeIntoPath();
 				GeneralPath path;
@@ -124,7 +346,8 @@ public class BitmapRenderer {
 			//blur shadows
 		
 			if(true) {
-				int blurRadius = 6;
+				Cancellation.checkpoint();
+				int blurRadius = BLUR_RADIUS;
 				int blurRadius2 = blurRadius * blurRadius;
 				float blurRadius2F = blurRadius2;
 				float weight = 1.0f / blurRadius2F;
@@ -137,18 +360,22 @@ public class BitmapRenderer {
 				ConvolveOp simpleBlur =
 					new ConvolveOp(myKernel, ConvolveOp.EDGE_NO_OP, null);
 								
-				BufferedImage destination =
-					new BufferedImage(
-						image.getWidth(),
-						image.getHeight(),
-						image.getType());
+				BufferedImage destination = blurred;
+				if(destination == null)
+					destination =
+						new BufferedImage(
+							image.getWidth(),
+							image.getHeight(),
+							image.getType());
 
 				simpleBlur.filter(image, (BufferedImage) destination);
 
 				//destination = destination.getSubimage(blurRadius/2, blurRadius/2, image.getWidth(), image.getHeight()); 
+				g2.dispose();
 				g2 = (Graphics2D) destination.getGraphics();
 				g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialiasSetting);
-				renderedImage = (RenderedImage) destination;
+				g2.translate(0, -top);
+				renderedImage = destination;
 			}
 		}
 
@@ -201,6 +428,7 @@ public class BitmapRenderer {
 		
 		g2.setStroke(normalStroke);
 		for (DiagramShape shape : storageShapes){
+			Cancellation.checkpoint();
 			GeneralPath path;
 			path = shape.makeIntoRenderPath(diagram, options);
 			
@@ -226,6 +454,7 @@ public class BitmapRenderer {
 		//render the rest of the shapes
 		List<DiagramShape> pointMarkers = new ArrayList<DiagramShape>();
 		for (DiagramShape shape : shapes) {
+			Cancellation.checkpoint();
 			if(shape.getType() == DiagramShape.TYPE_POINT_MARKER) {
 				pointMarkers.add(shape);
 				continue;
@@ -238,7 +467,7 @@ public class BitmapRenderer {
 				continue;
 			}
 
-			if(shape.getPoints().isEmpty()) continue;
+			if(shape.isEmpty()) continue;
 
 			
 			GeneralPath path;
@@ -283,10 +512,13 @@ public class BitmapRenderer {
 		//g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 		//renderTextLayer(diagram.getTextObjects().iterator());
 		
-		for (DiagramText text : diagram.getTextObjects()) {
+		//text is laid out in pixels of the target scale
+		g2.setTransform(new AffineTransform());
+		for (DiagramText text : texts) {
+			Cancellation.checkpoint();
 			g2.setFont(text.getFont());
 			g2.setColor(text.getColor());
-			g2.drawString(text.getText(), text.getXPos(), text.getYPos());
+			g2.drawString(text.getText(), text.getXPos(), text.getYPos() - top);
 		}
 		
 		if(options.renderDebugLines()){
@@ -299,10 +531,12 @@ public class BitmapRenderer {
 			g2.setStroke(debugStroke);
 			g2.setColor(new Color(170, 170, 170));
 			g2.setXORMode(Color.white);
-			for(int x = 0; x < diagram.getWidth(); x += diagram.getCellWidth())
-				g2.drawLine(x, 0, x, diagram.getHeight());
-			for(int y = 0; y < diagram.getHeight(); y += diagram.getCellHeight())
-				g2.drawLine(0, y, diagram.getWidth(), y);
+			int width = getImageWidth(diagram, options);
+			int height = getImageHeight(diagram, options);
+			for(int x = 0; x < width; x += options.getCellWidth())
+				g2.drawLine(x, 0, x, height);
+			for(int y = 0; y < height; y += options.getCellHeight())
+				g2.drawLine(0, y, width, y);
 		}
 		
 
@@ -332,15 +566,14 @@ public class BitmapRenderer {
 		
 		//TODO: custom shape distintion relies on filename extension. Make this more intelligent
 		if(definition.getFilename().endsWith(".png")){
-			renderCustomPNGShape(shape, g2);
+			renderCustomPNGShape(shape, bounds, g2);
 		} else if(definition.getFilename().endsWith(".svg")){
-			renderCustomSVGShape(shape, g2);
+			renderCustomSVGShape(shape, bounds, g2);
 		}
 	}
 	
-	private void renderCustomSVGShape(DiagramShape shape, Graphics2D g2){
+	private void renderCustomSVGShape(DiagramShape shape, Rectangle bounds, Graphics2D g2){
 		CustomShapeDefinition definition = shape.getDefinition();
-		Rectangle bounds = shape.getBounds();
 		Image graphic;
 		try {
 			if(shape.getFillColor() == null) {
@@ -356,10 +589,10 @@ public class BitmapRenderer {
 		}
 	}
 	
-	private void renderCustomPNGShape(DiagramShape shape, Graphics2D g2){
+	private void renderCustomPNGShape(DiagramShape shape, Rectangle bounds, Graphics2D g2){
 		CustomShapeDefinition definition = shape.getDefinition();
-		Rectangle bounds = shape.getBounds();
 		Image graphic = ImageHandler.instance().loadImage(definition.getFilename());
+		if(graphic == null) return;
 		
 		int xPos, yPos, width, height;
 		
@@ -61,7 +61,7 @@ public class CompositeDiagramShape extends DiagramComponent {
 		List<DiagramShape> shapes = new ArrayList<DiagramShape>(100);
 		
 		for(TextGrid.Cell cell : boundaryCells) {
-			if(workGrid.isLinesEnd(cell)) {
+			if(workGrid.isLinesEnd(cell.x, cell.y)) {
 				CellSet nextCells = workGrid.followCell(cell);
 				shapes.addAll(growEdgesFromCell(workGrid, cellWidth, cellHeight, allRound, nextCells.getFirst(), cell, visitedCells));
 				break;
@@ -104,13 +104,13 @@ public class CompositeDiagramShape extends DiagramComponent {
 		boolean finished = false;
 		while(!finished) {
 			visitedCells.add(cell);
-			if(workGrid.isPointCell(cell)) {
+			if(workGrid.isPointCell(cell.x, cell.y)) {
 				shape.addToPoints(makePointForCell(cell, workGrid, cellWidth, cellHeight, allRound));
 			}
 			
 			if(workGrid.cellContainsDashedLineChar(cell)) shape.setStrokeDashed(true);
 
-			if(workGrid.isLinesEnd(cell)){
+			if(workGrid.isLinesEnd(cell.x, cell.y)){
 				finished = true;
 				LOG.fine("finished shape");
 			}
@@ -20,19 +20,26 @@
 package org.stathissideris.ascii2image.graphics;
 
 import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.stathissideris.ascii2image.core.ConversionOptions;
 import org.stathissideris.ascii2image.core.Pair;
+import org.stathissideris.ascii2image.core.ProcessingOptions;
+import org.stathissideris.ascii2image.core.RenderingOptions;
+import org.stathissideris.ascii2image.text.CellBitmap;
 import org.stathissideris.ascii2image.text.CellSet;
+import org.stathissideris.ascii2image.text.LineGraph;
 import org.stathissideris.ascii2image.text.TextGrid;
 import org.stathissideris.ascii2image.text.TextGrid.Cell;
 import org.stathissideris.ascii2image.text.TextGrid.CellColorPair;
@@ -40,9 +47,18 @@ import org.stathissideris.ascii2image.text.TextGrid.CellStringPair;
 import org.stathissideris.ascii2image.text.TextGrid.CellTagPair;
 
 import yskkin.ascii2image.util.BoundarySearcher;
+import yskkin.ascii2image.util.Cancellation;
+import yskkin.ascii2image.util.ComponentBoundaries;
 import yskkin.ascii2image.util.Loggers;
 
 /**
+ * The geometry of a Diagram is independent of the rendering scale: all
+ * coordinates are expressed in a raster where each grid cell measures
+ * {@link RenderingOptions#DEFAULT_CELL_WIDTH} by
+ * {@link RenderingOptions#DEFAULT_CELL_HEIGHT}. The renderer draws the
+ * copy of the diagram that {@link #scaledTo(RenderingOptions)} lays out
+ * on the cell size of the requested scale, so that a single Diagram can
+ * be rendered at several scales.
  * 
  * @author Efstathios Sideris
  */
@@ -53,10 +69,17 @@ public class Diagram {
 	private Set<DiagramShape> shapes = new HashSet<DiagramShape>();
 	private List<CompositeDiagramShape> compositeShapes = new ArrayList<CompositeDiagramShape>();
 	private List<DiagramText> textObjects = new ArrayList<DiagramText>();
+	private List<TextPlacement> textPlacements = new ArrayList<TextPlacement>();
+	private Map<Dimension, Diagram> scaledDiagrams =
+		Collections.synchronizedMap(new HashMap<Dimension, Diagram>());
 	
+	private int gridWidth, gridHeight;
 	private int width, height;
 	private int cellWidth, cellHeight;
 	
+	private final ComponentBoundaries componentBoundaries = new ComponentBoundaries();
+	private ShapeGeometry geometry;
+	
 	
 	/**
 	 * 
@@ -70,7 +93,8 @@ public class Diagram {
 	 *   <li>Split grid into distinct shapes by plotting the grid
 	 * 	     onto an AbstractionGrid and its getDistinctShapes() method.</li>
 	 *   <li>Find all the possible boundary sets of each of the
-	 *       distinct shapes. This can produce duplicate shapes (if the boundaries
+	 *       distinct shapes, unless they are already known from the component
+	 *       cache of the options. This can produce duplicate shapes (if the boundaries
 	 *       are the same when filling from the inside and the outside).</li>
 	 *   <li>Remove duplicate boundaries.</li>
 	 *   <li>Remove obsolete boundaries. Obsolete boundaries are the ones that are
@@ -94,6 +118,10 @@ public class Diagram {
 	 *   boundary sets again to open, closed or mixed.</li>
 	 * </ol>
 	 * 
+	 * <p>When the options ask for {@link ProcessingOptions#FIND_SHAPES_WITH_LINE_GRAPH},
+	 * all of the above is replaced by reading the open and closed boundaries
+	 * off a {@link LineGraph} of the work grid.</p>
+	 * 
 	 * <p>At this stage, the boundary processing is all complete and we
 	 * proceed with using those boundaries to create the shapes:</p>
 	 * 
@@ -111,17 +139,43 @@ public class Diagram {
 	 * 
 	 * <p>Finally, the text processing occurs: [pending]</p>
 	 * 
+	 * <p>The finished shapes are then packed into a {@link ShapeGeometry},
+	 * and become views over it.</p>
+	 * 
 	 * @param grid
 	 * @param cellWidth
 	 * @param cellHeight
 	 */
 	public Diagram(TextGrid grid, ConversionOptions options) {
+		this(grid, options, null);
+	}
+
+	/**
+	 * Lays out an edited version of the grid of <code>previous</code>.
+	 * 
+	 * <p>The boundaries of the distinct shapes that are unchanged, and
+	 * whose surrounding cells are unchanged, are taken from
+	 * <code>previous</code> instead of being searched again. The boundary
+	 * search is by far the slowest step, so laying out a large diagram
+	 * again after a small edit is much faster. All other steps are repeated
+	 * as they depend on the shapes as a whole, and the result is the same
+	 * as that of a diagram made from scratch. Shapes found with a
+	 * {@link LineGraph} do not need a boundary search, and
+	 * <code>previous</code> is not used for them.</p>
+	 * 
+	 * @param grid
+	 * @param options
+	 * @param previous an earlier diagram, or null to make one from scratch
+	 */
+	public Diagram(TextGrid grid, ConversionOptions options, Diagram previous) {
 		
-		this.cellWidth = options.renderingOptions.getCellWidth();
-		this.cellHeight = options.renderingOptions.getCellHeight();
+		this.cellWidth = RenderingOptions.DEFAULT_CELL_WIDTH;
+		this.cellHeight = RenderingOptions.DEFAULT_CELL_HEIGHT;
 		
-		width = grid.getWidth() * cellWidth;
-		height = grid.getHeight() * cellHeight;
+		gridWidth = grid.getWidth();
+		gridHeight = grid.getHeight();
+		width = gridWidth * cellWidth;
+		height = gridHeight * cellHeight;
 		
 		List<CellColorPair> colorPair = grid.resolveColorCode();
 		List<CellTagPair> tagPair = grid.resolveTag();
@@ -130,99 +184,15 @@ public class Diagram {
 		workGrid.replacePointMarkersOnLine();
 		workGrid.printDebug();
 
-		List<CellSet> boundarySetsStep2 = BoundarySearcher.findBoundariesFromGrid(workGrid);
-
-		//split boundaries to open, closed and mixed
-		
-		LOG.finer("******* First evaluation of openess *******");
-		
 		List<CellSet> open = new ArrayList<CellSet>();
 		List<CellSet> closed = new ArrayList<CellSet>();
-		List<CellSet> mixed = new ArrayList<CellSet>();
-		
-		for (CellSet set : boundarySetsStep2) {
-			int type = set.getType(workGrid);
-			if(type == CellSet.TYPE_CLOSED) closed.add(set);
-			else if(type == CellSet.TYPE_OPEN) open.add(set);
-			else if(type == CellSet.TYPE_MIXED) mixed.add(set);
-
-			if(type == CellSet.TYPE_CLOSED) LOG.finer("Closed boundaries:");
-			else if(type == CellSet.TYPE_OPEN) LOG.finer("Open boundaries:");
-			else if(type == CellSet.TYPE_MIXED) LOG.finer("Mixed boundaries:");
-			set.printAsGrid();
-			
-		}
-		
-		boolean hadToEliminateMixed = false;
-		
-		if(mixed.size() > 0 && closed.size() > 0) {
-							// mixed shapes can be eliminated by
-							// subtracting all the closed shapes from them 
-			LOG.finer("******* Eliminating mixed shapes (basic algorithm) *******");
-		
-			hadToEliminateMixed = true;
-			
-			//subtract from each of the mixed sets all the closed sets
-			for (CellSet set : mixed) {
-				for (CellSet closedSet : closed) {
-					set.subtractSet(closedSet);
-				}
-				// this is necessary because some mixed sets produce
-				// several distinct open sets after you subtract the
-				// closed sets from them
-				if(set.getType(workGrid) == CellSet.TYPE_OPEN) {
-					boundarySetsStep2.remove(set);
-					boundarySetsStep2.addAll(set.breakIntoDistinctBoundaries());
-				}
-			}
-
-		} else if(mixed.size() > 0 && closed.size() == 0) {
-							// no closed shape exists, will have to
-							// handle mixed shape on its own 
-			// an example of this case is the following:
-			// +-----+
-			// |  A  |C                 B
-			// +  ---+-------------------
-			// |     |
-			// +-----+
-
-			hadToEliminateMixed = true;
-
-			LOG.finer("******* Eliminating mixed shapes (advanced algorithm for truly mixed shapes) *******");
-				
-			for (CellSet set : mixed) {
-				boundarySetsStep2.remove(set);
-				boundarySetsStep2.addAll(set.breakTrulyMixedBoundaries(workGrid));
-			}
-
+		if(options.processingOptions.getShapeFinding() == ProcessingOptions.FIND_SHAPES_WITH_LINE_GRAPH){
+			LineGraph graph = new LineGraph(workGrid, grid.getPointMarkersOnLine());
+			closed.addAll(graph.getClosedBoundaries());
+			open.addAll(graph.getOpenBoundaries());
 		} else {
-			LOG.finer("No mixed shapes found. Skipped mixed shape elimination step");
-		}
-		
-		
-		if(hadToEliminateMixed){
-			LOG.finer("******* Second evaluation of openess *******");
-		
-			//split boundaries again to open, closed and mixed
-			open = new ArrayList<CellSet>();
-			closed = new ArrayList<CellSet>();
-			mixed = new ArrayList<CellSet>();
-		
-			for (CellSet set : boundarySetsStep2){
-				int type = set.getType(workGrid);
-				if(type == CellSet.TYPE_CLOSED) closed.add(set);
-				else if(type == CellSet.TYPE_OPEN) open.add(set);
-				else if(type == CellSet.TYPE_MIXED) mixed.add(set);
-
-				if(type == CellSet.TYPE_CLOSED) LOG.finer("Closed boundaries:");
-				else if(type == CellSet.TYPE_OPEN) LOG.finer("Open boundaries:");
-				else if(type == CellSet.TYPE_MIXED) LOG.finer("Mixed boundaries:");
-				set.printAsGrid();
-				
-			}
+			findBoundariesByFilling(workGrid, previous, options, open, closed);
 		}
-
-		removeObsoleteShapes(workGrid, closed);
 		
 		boolean allCornersRound = false;
 		if(options.processingOptions.areAllCornersRound()) allCornersRound = true;
@@ -234,6 +204,7 @@ public class Diagram {
 		
 		List<DiagramComponent> closedShapes = new ArrayList<DiagramComponent>();
 		for (CellSet set : closed) {
+			Cancellation.checkpoint();
 			set.printAsGrid();
 			
 			DiagramShape shape = DiagramComponent.createClosedFromBoundaryCells(workGrid, set, cellWidth, cellHeight, allCornersRound); 
@@ -248,6 +219,7 @@ public class Diagram {
 
 		//make open shapes
 		for (CellSet set : open){
+			Cancellation.checkpoint();
 			if(set.size() == 1){ //single cell "shape"
 				TextGrid.Cell cell = (TextGrid.Cell) set.getFirst();
 				if(!grid.cellContainsDashedLineChar(cell)) { 
@@ -329,48 +301,223 @@ public class Diagram {
 		TextGrid textGroupGrid = new TextGrid(workGrid);
 
 		
-		Font font = FontMeasurer.instance().getFontFor(cellHeight);
-
 		for (CellStringPair pair : textGroupGrid.findStrings()) {
+			Cancellation.checkpoint();
 			TextGrid.Cell cell = pair.cell;
 			String string = pair.string;
 			LOG.fine("Found string " + string);
 			TextGrid.Cell lastCell = new Cell(cell.x + string.length() - 1, cell.y);
 
-			int minX = getCellMinX(cell);
-			int y = getCellMaxY(cell);
-			int maxX = getCellMaxX(lastCell);
-
-			DiagramText textObject;
-			if (FontMeasurer.instance().getWidthFor(string, font) > maxX - minX) {
-				// does not fit horizontally
-				Font lessWideFont = FontMeasurer.instance().getFontFor(maxX - minX, string);
-				textObject = new DiagramText(minX, y, string, lessWideFont);
-			} else {
-				textObject = new DiagramText(minX, y, string, font);
-			}
-
-			textObject.centerVerticallyBetween(getCellMinY(cell), getCellMaxY(cell));
-			// TODO: if the strings start with bullets they should be aligned to the left
-
 			//position text correctly
 			int otherStart = textGroupGrid.otherStringsStartInTheSameColumn(cell);
 			int otherEnd = textGroupGrid.otherStringsEndInTheSameColumn(lastCell);
-			if (otherEnd > 0 && otherStart < otherEnd) {
-				textObject.alignRightEdgeTo(maxX);
-			}
+			TextPlacement placement = new TextPlacement(cell, lastCell, string,
+					otherEnd > 0 && otherStart < otherEnd);
+			DiagramText textObject = placement.layout(cellWidth, cellHeight);
 
 			DiagramShape shape = findSmallestShapeIntersecting(textObject.getBounds());
 			if (shape != null
 					&& shape.getFillColor() != null
 					&& BitmapRenderer.isColorDark(shape.getFillColor())) {
 				LOG.info("Corrected color of text according to underlying color");
+				placement.color = Color.WHITE;
 				textObject.setColor(Color.WHITE);
 			}
+			textPlacements.add(placement);
 			addToTextObjects(textObject);
 		}
 		
 		LOG.info("Positioned text");
+		
+		geometry = ShapeGeometry.pack(getAllDiagramShapes());
+	}
+
+	/**
+	 * Copies <code>diagram</code> onto cells of <code>cellWidth</code> by
+	 * <code>cellHeight</code>, see {@link #scaledTo(RenderingOptions)}.
+	 */
+	private Diagram(Diagram diagram, int cellWidth, int cellHeight) {
+		this.cellWidth = cellWidth;
+		this.cellHeight = cellHeight;
+		
+		gridWidth = diagram.gridWidth;
+		gridHeight = diagram.gridHeight;
+		width = gridWidth * cellWidth;
+		height = gridHeight * cellHeight;
+		
+		for (DiagramShape shape : diagram.shapes) {
+			shapes.add(copyScaled(shape, diagram));
+		}
+		for (CompositeDiagramShape compositeShape : diagram.compositeShapes) {
+			CompositeDiagramShape copy = new CompositeDiagramShape();
+			for (DiagramShape shape : compositeShape.getShapes()) {
+				copy.addToShapes(copyScaled(shape, diagram));
+			}
+			compositeShapes.add(copy);
+		}
+		
+		textPlacements = diagram.textPlacements;
+		for (TextPlacement placement : textPlacements) {
+			addToTextObjects(placement.layout(cellWidth, cellHeight));
+		}
+		
+		geometry = ShapeGeometry.pack(getAllDiagramShapes());
+	}
+
+	/**
+	 * @return a copy of <code>shape</code> of <code>diagram</code>, with its
+	 *   points moved to the same places on the cells of this diagram
+	 */
+	private DiagramShape copyScaled(DiagramShape shape, Diagram diagram) {
+		//edges moved apart by separateCommonEdges() are as far apart as the cells allow
+		float separation = getMinimumOfCellDimension() / diagram.getMinimumOfCellDimension();
+		
+		DiagramShape copy = new DiagramShape();
+		for (int i = 0; i < shape.getPointCount(); i++) {
+			ShapePoint point = new ShapePoint(
+					scaleCoordinate(shape.getPointX(i), diagram.cellWidth, cellWidth, separation),
+					scaleCoordinate(shape.getPointY(i), diagram.cellHeight, cellHeight, separation),
+					shape.getPointType(i));
+			point.setLocked(shape.isPointLocked(i));
+			copy.addToPoints(point);
+		}
+		copy.setType(shape.getType());
+		copy.setFillColor(shape.getFillColor());
+		copy.setStrokeColor(shape.getStrokeColor());
+		copy.setClosed(shape.isClosed());
+		copy.setStrokeDashed(shape.isStrokeDashed());
+		copy.setDefinition(shape.getDefinition());
+		return copy;
+	}
+
+	/**
+	 * Moves coordinate <code>c</code> from cells of size <code>from</code>
+	 * to cells of size <code>to</code>. Cell edges and middles go where
+	 * {@link #getCellMinX(Cell, int)} and {@link #getCellMidX(Cell, int)}
+	 * put them for the new size, which is not always where scaling would,
+	 * the last pixel of a cell, where {@link DiagramShape#createSmallLine}
+	 * ends its lines, goes to the last pixel of the new cell, and any other
+	 * offset from the middle is multiplied by <code>separation</code>.
+	 */
+	private static float scaleCoordinate(float c, int from, int to, float separation) {
+		int cell = (int) Math.floor(c / from);
+		float offset = c - cell * from;
+		if (offset == 0) return cell * to;
+		if (offset == from - 1) return cell * to + to - 1;
+		return cell * to + to / 2 + (offset - from / 2) * separation;
+	}
+
+	/**
+	 * Finds the boundaries of the shapes of <code>workGrid</code> by filling
+	 * the inside and the outside of each distinct shape, and splits them
+	 * into open and closed ones. Boundaries that are both are split into
+	 * open and closed parts, and obsolete ones are removed.
+	 */
+	private void findBoundariesByFilling(TextGrid workGrid, Diagram previous, ConversionOptions options,
+			List<CellSet> open, List<CellSet> closed) {
+		List<CellSet> boundarySetsStep2 = BoundarySearcher.findBoundariesFromGrid(workGrid,
+				previous == null ? null : previous.componentBoundaries,
+				options.processingOptions.getComponentCache(), componentBoundaries);
+
+		//split boundaries to open, closed and mixed
+		
+		LOG.finer("******* First evaluation of openess *******");
+		
+		List<CellSet> mixed = new ArrayList<CellSet>();
+		
+		for (CellSet set : boundarySetsStep2) {
+			Cancellation.checkpoint();
+			int type = set.getType(workGrid);
+			if(type == CellSet.TYPE_CLOSED) closed.add(set);
+			else if(type == CellSet.TYPE_OPEN) open.add(set);
+			else if(type == CellSet.TYPE_MIXED) mixed.add(set);
+
+			if(type == CellSet.TYPE_CLOSED) LOG.finer("Closed boundaries:");
+			else if(type == CellSet.TYPE_OPEN) LOG.finer("Open boundaries:");
+			else if(type == CellSet.TYPE_MIXED) LOG.finer("Mixed boundaries:");
+			set.printAsGrid();
+			
+		}
+		
+		boolean hadToEliminateMixed = false;
+		
+		if(mixed.size() > 0 && closed.size() > 0) {
+							// mixed shapes can be eliminated by
+							// subtracting all the closed shapes from them 
+			LOG.finer("******* Eliminating mixed shapes (basic algorithm) *******");
+		
+			hadToEliminateMixed = true;
+			
+			//subtract from each of the mixed sets all the closed sets
+			List<CellBitmap> closedBitmaps = new ArrayList<CellBitmap>(closed.size());
+			for (CellSet closedSet : closed) {
+				closedBitmaps.add(CellBitmap.of(closedSet));
+			}
+			for (CellSet set : mixed) {
+				Cancellation.checkpoint();
+				CellBitmap left = CellBitmap.of(set);
+				for (CellBitmap closedBitmap : closedBitmaps) {
+					left.andNot(closedBitmap);
+				}
+				if(left.cardinality() != set.size()) set.retainAll(left);
+				// this is necessary because some mixed sets produce
+				// several distinct open sets after you subtract the
+				// closed sets from them
+				if(set.getType(workGrid) == CellSet.TYPE_OPEN) {
+					boundarySetsStep2.remove(set);
+					boundarySetsStep2.addAll(set.breakIntoDistinctBoundaries());
+				}
+			}
+
+		} else if(mixed.size() > 0 && closed.size() == 0) {
+							// no closed shape exists, will have to
+							// handle mixed shape on its own 
+			// an example of this case is the following:
+			// +-----+
+			// |  A  |C                 B
+			// +  ---+-------------------
+			// |     |
+			// +-----+
+
+			hadToEliminateMixed = true;
+
+			LOG.finer("******* Eliminating mixed shapes (advanced algorithm for truly mixed shapes) *******");
+				
+			for (CellSet set : mixed) {
+				Cancellation.checkpoint();
+				boundarySetsStep2.remove(set);
+				boundarySetsStep2.addAll(set.breakTrulyMixedBoundaries(workGrid));
+			}
+
+		} else {
+			LOG.finer("No mixed shapes found. Skipped mixed shape elimination step");
+		}
+		
+		
+		if(hadToEliminateMixed){
+			LOG.finer("******* Second evaluation of openess *******");
+		
+			//split boundaries again to open, closed and mixed
+			open.clear();
+			closed.clear();
+			mixed.clear();
+		
+			for (CellSet set : boundarySetsStep2){
+				Cancellation.checkpoint();
+				int type = set.getType(workGrid);
+				if(type == CellSet.TYPE_CLOSED) closed.add(set);
+				else if(type == CellSet.TYPE_OPEN) open.add(set);
+				else if(type == CellSet.TYPE_MIXED) mixed.add(set);
+
+				if(type == CellSet.TYPE_CLOSED) LOG.finer("Closed boundaries:");
+				else if(type == CellSet.TYPE_OPEN) LOG.finer("Open boundaries:");
+				else if(type == CellSet.TYPE_MIXED) LOG.finer("Mixed boundaries:");
+				set.printAsGrid();
+				
+			}
+		}
+
+		removeObsoleteShapes(workGrid, closed);
 	}
 
 	private void handleCellTagPair(ConversionOptions options, CellTagPair pair,
@@ -440,62 +587,72 @@ public class Diagram {
 		}
 
 		//make filled versions of all the boundary sets
+		List<CellBitmap> filledBitmaps = new ArrayList<CellBitmap>();
 		for (CellSet set : sets) {
 			set = set.getFilledEquivalent(grid);
 			if(set == null){
 				return false;
 			} else filledSets.add(set);
+			filledBitmaps.add(CellBitmap.of(set));
 		}
 		
 		List<Integer> toBeRemovedIndices = new ArrayList<Integer>();
 
-		for (CellSet set : filledSets){
+		for (int i = 0; i < filledSets.size(); i++){
+			CellSet set = filledSets.get(i);
+			Cancellation.checkpoint();
 			LOG.finer("*** Deciding if the following should be removed:");
 			set.printAsGrid();
 			
 			//find the other sets that have common cells with set
-			List<CellSet> common = new ArrayList<CellSet>();
-			common.add(set);
-			for (CellSet set2 : filledSets) {
-				if(set != set2 && set.hasCommonCells(set2)){
-					common.add(set2);
+			List<Integer> common = new ArrayList<Integer>();
+			common.add(i);
+			for (int j = 0; j < filledSets.size(); j++) {
+				if(i != j && filledBitmaps.get(i).intersects(filledBitmaps.get(j))){
+					common.add(j);
 				}
 			}
 			//it only makes sense for more than 2 sets
 			if(common.size() == 2) continue;
 			
 			//find largest set
-			CellSet largest = set;
-			for (CellSet set2 : common) {
-				if(set2.size() > largest.size()){
-					largest = set2;
+			int largestIndex = i;
+			for (int j : common) {
+				if(filledSets.get(j).size() > filledSets.get(largestIndex).size()){
+					largestIndex = j;
 				}
 			}
+			CellSet largest = filledSets.get(largestIndex);
 			
 			LOG.finer("Largest:");
 			largest.printAsGrid();
 
 			//see if largest is sum of others
-			common.remove(largest);
+			for (int k = 0; k < common.size(); k++) {
+				if(filledBitmaps.get(common.get(k)).hasSameCellsAs(filledBitmaps.get(largestIndex))) {
+					common.remove(k);
+					break;
+				}
+			}
 
-			//make the sum set of the small sets on a grid
-			TextGrid gridOfSmalls = new TextGrid(largest.getMaxX() + 2, largest.getMaxY() + 2);
+			//make the sum set of the small sets, cut to where the
+			//largest one can be
+			CellBitmap sumOfSmalls = new CellBitmap(0, 0, largest.getMaxX() + 1, largest.getMaxY() + 1);
 
-			for (CellSet set2 : common){
+			for (int j : common){
 				LOG.finer("One of smalls:");
-				set2.printAsGrid();
+				filledSets.get(j).printAsGrid();
 
-				gridOfSmalls.fillCellsWith(set2, '*');
+				sumOfSmalls.or(filledBitmaps.get(j));
 			}
 			
-			LOG.finer("Sum of smalls:");
-			gridOfSmalls.printDebug();
-
-			TextGrid gridLargest = new TextGrid(largest.getMaxX() + 2, largest.getMaxY() + 2);
-			gridLargest.fillCellsWith(largest, '*');
+			if(LOG.isLoggable(Level.FINER)) {
+				LOG.finer("Sum of smalls:");
+				sumOfSmalls.toCellSet().printAsGrid();
+			}
 
 			int index = filledSets.indexOf(largest);
-			if(gridLargest.equals(gridOfSmalls)
+			if(sumOfSmalls.hasSameCellsAs(filledBitmaps.get(largestIndex))
 					&& !toBeRemovedIndices.contains(index)) {
 				toBeRemovedIndices.add(index);
 
@@ -625,6 +782,28 @@ public class Diagram {
 		return width;
 	}
 
+	/**
+	 * @return the width of the diagram in grid cells
+	 */
+	public int getGridWidth() {
+		return gridWidth;
+	}
+
+	/**
+	 * @return the height of the diagram in grid cells
+	 */
+	public int getGridHeight() {
+		return gridHeight;
+	}
+
+	/**
+	 * @return the boundaries of the distinct shapes of this diagram, and how
+	 *   many of them were taken from the diagram it was laid out from
+	 */
+	public ComponentBoundaries getComponentBoundaries() {
+		return componentBoundaries;
+	}
+
 	/**
 	 * @return
 	 */
@@ -639,6 +818,15 @@ public class Diagram {
 		return cellHeight;
 	}
 
+	/**
+	 * @return the shapes of this diagram, packed in the order of
+	 *   {@link #getAllDiagramShapes()}. Shapes that are changed after the
+	 *   diagram is made are no longer read from it.
+	 */
+	public ShapeGeometry getGeometry() {
+		return geometry;
+	}
+
 	/**
 	 * @return
 	 */
@@ -703,4 +891,89 @@ public class Diagram {
 		return textObjects;
 	}
 
+	/**
+	 * Returns the text of the diagram laid out for the cell size of
+	 * <code>options</code>, in the pixel coordinates of that scale.
+	 * Text is not scaled geometrically, the font is fitted again to
+	 * the target cell size.
+	 * 
+	 * @param options
+	 * @return
+	 */
+	public List<DiagramText> getTextObjects(RenderingOptions options) {
+		return scaledTo(options).getTextObjects();
+	}
+
+	/**
+	 * Returns this diagram laid out on the cell size of
+	 * <code>options</code>, in the pixel coordinates of that scale. The
+	 * points of the shapes are moved to the same places on the larger or
+	 * smaller cells, so the rounding of the curves and corners drawn
+	 * through them is that of the target scale, and the image is the one
+	 * of a diagram made at that scale in the first place. The layout of
+	 * each scale is computed once.
+	 * 
+	 * @param options
+	 * @return this diagram if its cells are already of that size
+	 */
+	public Diagram scaledTo(RenderingOptions options) {
+		if (options.getCellWidth() == cellWidth
+				&& options.getCellHeight() == cellHeight) {
+			return this;
+		}
+		Dimension cellSize = new Dimension(options.getCellWidth(), options.getCellHeight());
+		Diagram result = scaledDiagrams.get(cellSize);
+		if (result == null) {
+			result = new Diagram(this, cellSize.width, cellSize.height);
+			scaledDiagrams.put(cellSize, result);
+		}
+		return result;
+	}
+
+	/**
+	 * The scale-independent description of a string in the grid,
+	 * from which its DiagramText is laid out for a given cell size.
+	 */
+	private static class TextPlacement {
+		private final TextGrid.Cell cell;
+		private final TextGrid.Cell lastCell;
+		private final String string;
+		private final boolean alignRight;
+		private Color color = DiagramText.DEFAULT_COLOR;
+
+		private TextPlacement(TextGrid.Cell cell, TextGrid.Cell lastCell, String string, boolean alignRight) {
+			this.cell = cell;
+			this.lastCell = lastCell;
+			this.string = string;
+			this.alignRight = alignRight;
+		}
+
+		private DiagramText layout(int cellWidth, int cellHeight) {
+			FontMeasurer measurer = FontMeasurer.instance();
+			Font font = measurer.getFontFor(cellHeight);
+
+			int minX = getCellMinX(cell, cellWidth);
+			int y = getCellMaxY(cell, cellHeight);
+			int maxX = getCellMaxX(lastCell, cellWidth);
+
+			DiagramText textObject;
+			if (measurer.getWidthFor(string, font) > maxX - minX) {
+				// does not fit horizontally
+				Font lessWideFont = measurer.getFontFor(maxX - minX, string);
+				textObject = new DiagramText(minX, y, string, lessWideFont);
+			} else {
+				textObject = new DiagramText(minX, y, string, font);
+			}
+
+			textObject.centerVerticallyBetween(getCellMinY(cell, cellHeight), getCellMaxY(cell, cellHeight));
+			// TODO: if the strings start with bullets they should be aligned to the left
+
+			if (alignRight) {
+				textObject.alignRightEdgeTo(maxX);
+			}
+			textObject.setColor(color);
+			return textObject;
+		}
+	}
+
 }
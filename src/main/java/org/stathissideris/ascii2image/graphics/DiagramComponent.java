@@ -36,31 +36,31 @@ public abstract class DiagramComponent {
 	
 	protected static ShapePoint makePointForCell(TextGrid.Cell cell, TextGrid grid, int cellWidth, int cellHeight, boolean allRound){
 		LOG.info("Found point at cell "+cell);
-		if(grid.isCorner(cell) && allRound){
+		if(grid.isCorner(cell.x, cell.y) && allRound){
 			return new ShapePoint(
 							cell.x * cellWidth + cellWidth/2,
 							cell.y * cellHeight + cellHeight/2,
 							ShapePoint.TYPE_ROUND  
 						);
-		} else if(grid.isNormalCorner(cell)){
+		} else if(grid.isNormalCorner(cell.x, cell.y)){
 			return new ShapePoint(
 							cell.x * cellWidth + cellWidth/2,
 							cell.y * cellHeight + cellHeight/2,
 							ShapePoint.TYPE_NORMAL  
 						);
-		} else if(grid.isRoundCorner(cell)){
+		} else if(grid.isRoundCorner(cell.x, cell.y)){
 			return new ShapePoint(
 							cell.x * cellWidth + cellWidth/2,
 							cell.y * cellHeight + cellHeight/2,
 							ShapePoint.TYPE_ROUND  
 						);
-		} else if(grid.isLinesEnd(cell)){
+		} else if(grid.isLinesEnd(cell.x, cell.y)){
 			return new ShapePoint(
 						cell.x * cellWidth + cellWidth/2,
 						cell.y * cellHeight + cellHeight/2,
 						ShapePoint.TYPE_NORMAL  
 					);
-		} else if(grid.isIntersection(cell)){
+		} else if(grid.isIntersection(cell.x, cell.y)){
 			return new ShapePoint(
 					cell.x * cellWidth + cellWidth/2,
 					cell.y * cellHeight + cellHeight/2,
@@ -89,20 +89,20 @@ public abstract class DiagramComponent {
 		workGrid.printDebug();
 		
 		TextGrid.Cell start = (TextGrid.Cell) cells.getFirst();
-		if(workGrid.isCorner(start)) shape.addToPoints(makePointForCell(start, workGrid, cellWidth, cellHeight, allRound));
+		if(workGrid.isCorner(start.x, start.y)) shape.addToPoints(makePointForCell(start, workGrid, cellWidth, cellHeight, allRound));
 		TextGrid.Cell previous = start;
 		TextGrid.Cell cell = null;
 		CellSet nextCells = workGrid.followCell(previous);
 		if(nextCells.size() == 0) return null;
 		cell = (TextGrid.Cell) nextCells.getFirst();
-		if(workGrid.isCorner(cell)) shape.addToPoints(makePointForCell(cell, workGrid, cellWidth, cellHeight, allRound));
+		if(workGrid.isCorner(cell.x, cell.y)) shape.addToPoints(makePointForCell(cell, workGrid, cellWidth, cellHeight, allRound));
 		
 		while(!cell.equals(start)){
 			nextCells = workGrid.followCell(cell, previous);
 			if(nextCells.size() == 1) {
 				previous = cell;
 				cell = (TextGrid.Cell) nextCells.getFirst();
-				if(!cell.equals(start) && workGrid.isCorner(cell))
+				if(!cell.equals(start) && workGrid.isCorner(cell.x, cell.y))
 					shape.addToPoints(makePointForCell(cell, workGrid, cellWidth, cellHeight, allRound));
 			} else if(nextCells.size() > 1) {
 				return null;
@@ -34,6 +34,11 @@ import org.stathissideris.ascii2image.text.*;
 import yskkin.ascii2image.util.Loggers;
 
 /**
+ * 
+ * <p>Once its diagram is finished, a shape is a view over the
+ * {@link ShapeGeometry} of the diagram and keeps no points of its own.
+ * Changing the shape, or asking for its points as {@link ShapePoint}s,
+ * which can be changed, copies its points out of the geometry again.</p>
  * 
  * @author Efstathios Sideris
  */
@@ -68,6 +73,10 @@ public class DiagramShape extends DiagramComponent {
 
 	CustomShapeDefinition definition = null;
 
+	/** The geometry this shape is a view over, or null if it is not one */
+	private ShapeGeometry geometry = null;
+	private int index;
+
 	public static DiagramShape createArrowhead(TextGrid grid, TextGrid.Cell cell, int cellXSize, int cellYSize) {
 		if(!grid.isArrowhead(cell)) return null;
 		if(grid.isNorthArrowhead(cell)) return createNorthArrowhead(grid, cell, cellXSize, cellYSize);
@@ -185,24 +194,95 @@ public class DiagramShape extends DiagramComponent {
 		return null;
 	}
 
+	/**
+	 * Makes this shape read its points, type, colours and flags from shape
+	 * <code>index</code> of <code>geometry</code> instead of keeping them.
+	 */
+	void viewOf(ShapeGeometry geometry, int index){
+		this.geometry = geometry;
+		this.index = index;
+		points = null;
+		fillColor = null;
+		strokeColor = null;
+	}
+
+	/**
+	 * Copies the points and properties of this shape out of the geometry
+	 * it is a view over, if it is one, so that they can be changed.
+	 */
+	private void detach(){
+		if(geometry == null) return;
+		type = geometry.getType(index);
+		fillColor = geometry.getFillColor(index);
+		strokeColor = geometry.getStrokeColor(index);
+		isClosed = geometry.isClosed(index);
+		isStrokeDashed = geometry.isStrokeDashed(index);
+		int first = geometry.getFirstPoint(index);
+		int count = geometry.getPointCount(index);
+		points = new ArrayList<ShapePoint>(count);
+		for(int i = first; i < first + count; i++){
+			ShapePoint point = new ShapePoint(geometry.getX(i), geometry.getY(i), geometry.getPointType(i));
+			point.setLocked(geometry.isPointLocked(i));
+			points.add(point);
+		}
+		geometry = null;
+	}
+
+	public int getPointCount(){
+		if(geometry != null) return geometry.getPointCount(index);
+		return points.size();
+	}
+
+	float getPointX(int i){
+		if(geometry != null) return geometry.getX(geometry.getFirstPoint(index) + i);
+		return points.get(i).x;
+	}
+
+	float getPointY(int i){
+		if(geometry != null) return geometry.getY(geometry.getFirstPoint(index) + i);
+		return points.get(i).y;
+	}
+
+	int getPointType(int i){
+		if(geometry != null) return geometry.getPointType(geometry.getFirstPoint(index) + i);
+		return points.get(i).getType();
+	}
+
+	boolean isPointLocked(int i){
+		if(geometry != null) return geometry.isPointLocked(geometry.getFirstPoint(index) + i);
+		return points.get(i).isLocked();
+	}
+
+	/**
+	 * @return point <code>i</code>, which is a copy if this shape is a view
+	 *   over a geometry
+	 */
+	private ShapePoint pointAt(int i){
+		if(geometry == null) return points.get(i);
+		return new ShapePoint(getPointX(i), getPointY(i), getPointType(i));
+	}
+
 	public void addToPoints(ShapePoint point){
+		detach();
 		points.add(point);
 	}
 	
 	public boolean isEmpty(){
-		return points.isEmpty();
+		return getPointCount() == 0;
 	}
 	
 	public boolean isFilled(){
-		return (fillColor != null);
+		return (getFillColor() != null);
 	}
 	
 	public void setIsNotFilled(){
+		detach();
 		fillColor = null;
 	}
 	
 	public boolean isPointLinesEnd(ShapePoint point){
 		if(isClosed()) return false; //no line-ends in closed shapes!
+		detach();
 		if(point == points.get(0)) return true;
 		if(point == points.get(points.size() - 1)) return true;
 		return false;
@@ -210,18 +290,18 @@ public class DiagramShape extends DiagramComponent {
 	
 	//TODO: method in development: isRectangle()
 	public boolean isRectangle(){
-		if(points.size() != 4) return false;
-		ShapePoint p1 = (ShapePoint) points.get(0);
-		ShapePoint p2 = (ShapePoint) points.get(1);
-		ShapePoint p3 = (ShapePoint) points.get(2);
-		ShapePoint p4 = (ShapePoint) points.get(3);
-		if(p1.isInLineWith(p2) 
-			&& p2.isInLineWith(p3)
-			&& p3.isInLineWith(p4)
-			&& p4.isInLineWith(p1)) return true;
+		if(getPointCount() != 4) return false;
+		if(isInLine(0, 1) 
+			&& isInLine(1, 2)
+			&& isInLine(2, 3)
+			&& isInLine(3, 0)) return true;
 		return false;
 	}
 	
+	private boolean isInLine(int i, int j){
+		return getPointX(i) == getPointX(j) || getPointY(i) == getPointY(j);
+	}
+	
 	/**
 	 * Crude way to determine which of the two shapes is smaller,
 	 * based just on their bounding boxes. Used in markup
@@ -247,6 +327,7 @@ public class DiagramShape extends DiagramComponent {
 	 * @return
 	 */
 	public Color getFillColor() {
+		if(geometry != null) return geometry.getFillColor(index);
 		return fillColor;
 	}
 
@@ -254,6 +335,7 @@ public class DiagramShape extends DiagramComponent {
 	 * @return
 	 */
 	public Color getStrokeColor() {
+		if(geometry != null) return geometry.getStrokeColor(index);
 		return strokeColor;
 	}
 
@@ -261,6 +343,7 @@ public class DiagramShape extends DiagramComponent {
 	 * @param color
 	 */
 	public void setFillColor(Color color) {
+		detach();
 		fillColor = color;
 	}
 
@@ -268,6 +351,7 @@ public class DiagramShape extends DiagramComponent {
 	 * @param color
 	 */
 	public void setStrokeColor(Color color) {
+		detach();
 		strokeColor = color;
 	}
 
@@ -275,6 +359,7 @@ public class DiagramShape extends DiagramComponent {
 	 * @return
 	 */
 	public boolean isClosed() {
+		if(geometry != null) return geometry.isClosed(index);
 		return isClosed;
 	}
 
@@ -282,25 +367,32 @@ public class DiagramShape extends DiagramComponent {
 	 * @param b
 	 */
 	public void setClosed(boolean b) {
+		detach();
 		isClosed = b;
 	}
 
 	public void printDebug(){
-		LOG.finer("DiagramShape: " + points.size() + "points");
+		LOG.finer("DiagramShape: " + getPointCount() + "points");
 	}
 
 	/**
-	 * @return
+	 * @return the points of this shape, which can be changed. Prefer
+	 *   {@link #getPointCount()} and {@link #isEmpty()} for reading, as
+	 *   a shape that is a view over a {@link ShapeGeometry} has to copy its
+	 *   points out of it.
 	 */
 	public List<ShapePoint> getPoints() {
+		detach();
 		return points;
 	}
 
 	public ShapePoint getPoint(int i) {
+		detach();
 		return (ShapePoint) points.get(i);
 	}
 
 	public void setPoint(int i, ShapePoint point) {
+		detach();
 		points.set(i, point);
 	}
 
@@ -309,7 +401,7 @@ public class DiagramShape extends DiagramComponent {
 		DiagramShape shape = null;
 		if(!(object instanceof DiagramShape)) { return false; }
 		else shape = (DiagramShape) object;
-		if(getPoints().size() != shape.getPoints().size()) return false;
+		if(getPointCount() != shape.getPointCount()) return false;
 
 		/*
 		 * TODO
@@ -319,13 +411,13 @@ public class DiagramShape extends DiagramComponent {
 		 * * Does multiple identical points matters?
 		 */
 		List<String> thisPoints = new ArrayList<String>();
-		for (ShapePoint point : points){
-			thisPoints.add(""+((int) point.x)+","+((int) point.y));
+		for (int i = 0; i < getPointCount(); i++){
+			thisPoints.add(""+((int) getPointX(i))+","+((int) getPointY(i)));
 		}
 
 		List<String> thatPoints = new ArrayList<String>();
-		for (ShapePoint point : shape.points) {
-			thatPoints.add( ""+((int) point.x)+","+((int) point.y));
+		for (int i = 0; i < shape.getPointCount(); i++) {
+			thatPoints.add( ""+((int) shape.getPointX(i))+","+((int) shape.getPointY(i)));
 		}
 
 		if (!thatPoints.containsAll(thisPoints)) {
@@ -340,24 +432,22 @@ public class DiagramShape extends DiagramComponent {
 	@Override
 	public int hashCode() {
 		int result = 0;
-		for (ShapePoint point : points) {
+		for (int i = 0; i < getPointCount(); i++) {
 			result *= 23;
-			result += (int) point.x + (int) point.y;
+			result += (int) getPointX(i) + (int) getPointY(i);
 		}
 		return result;
 	}
 
 	public GeneralPath makeIntoPath() {
-		int size = getPoints().size();
+		int size = getPointCount();
 		
 		if(size < 2) return null;
 		
 		GeneralPath path = new GeneralPath();
-		ShapePoint point = (ShapePoint) getPoints().get(0);
-		path.moveTo((int) point.x, (int) point.y);
+		path.moveTo((int) getPointX(0), (int) getPointY(0));
 		for(int i = 1; i < size; i++){
-			point = (ShapePoint) getPoints().get(i);
-			path.lineTo((int) point.x, (int) point.y);
+			path.lineTo((int) getPointX(i), (int) getPointY(i));
 		}
 		if(isClosed() && size > 2){
 			path.closePath();
@@ -366,13 +456,12 @@ public class DiagramShape extends DiagramComponent {
 	}
 
 	public GeneralPath makeMarkerPath(Diagram diagram){
-		if(points.size() != 1) return null;
-		ShapePoint center = (ShapePoint) this.getPoint(0);
+		if(getPointCount() != 1) return null;
 		float diameter =
 			(float) 0.7 * Math.min(diagram.getCellWidth(), diagram.getCellHeight());
 		return new GeneralPath(new Ellipse2D.Float(
-			center.x - diameter/2,
-			center.y - diameter/2,
+			getPointX(0) - diameter/2,
+			getPointY(0) - diameter/2,
 			diameter,
 			diameter));
 	}
@@ -383,95 +472,74 @@ public class DiagramShape extends DiagramComponent {
 	}
 	
 	public GeneralPath makeIntoRenderPath(Diagram diagram, RenderingOptions options) {
-		int size = getPoints().size();
+		int size = getPointCount();
 		
 		if(getType() == TYPE_POINT_MARKER){
 			return makeMarkerPath(diagram);
 		}
 		
-		if(getType() == TYPE_DOCUMENT && points.size() == 4){
+		if(getType() == TYPE_DOCUMENT && size == 4){
 			return makeDocumentPath(diagram);
 		}
 
-		if(getType() == TYPE_STORAGE && points.size() == 4){
+		if(getType() == TYPE_STORAGE && size == 4){
 			return makeStoragePath(diagram);
 		}
 
-		if(getType() == TYPE_IO && points.size() == 4){
+		if(getType() == TYPE_IO && size == 4){
 			return makeIOPath(diagram, options);
 		}
 
-		if(getType() == TYPE_DECISION && points.size() == 4){
+		if(getType() == TYPE_DECISION && size == 4){
 			return makeDecisionPath(diagram);
 		}
 
-		if(getType() == TYPE_MANUAL_OPERATION && points.size() == 4){
+		if(getType() == TYPE_MANUAL_OPERATION && size == 4){
 			return makeTrapezoidPath(diagram, options, true);
 		}
 
-		if(getType() == TYPE_TRAPEZOID && points.size() == 4){
+		if(getType() == TYPE_TRAPEZOID && size == 4){
 			return makeTrapezoidPath(diagram, options, false);
 		}
 
-		if(getType() == TYPE_ELLIPSE && points.size() == 4){
+		if(getType() == TYPE_ELLIPSE && size == 4){
 			return makeEllipsePath(diagram);
 		}
 
 		if(size < 2) return null;
 
 		GeneralPath path = new GeneralPath();
-		ShapePoint point = (ShapePoint) getPoints().get(0);
-		//path.moveTo((int) point.x, (int) point.y);
-		ShapePoint previous = (ShapePoint) getPoints().get(size - 1);
-		ShapePoint next = (ShapePoint) getPoints().get(1);
 		ShapePoint entryPoint;
 		ShapePoint exitPoint;
 		
-		if(point.getType() == ShapePoint.TYPE_NORMAL){
-			//if(isClosed()){
-				path.moveTo((int) point.x, (int) point.y);
-			/*} else {
-				ShapePoint projectionPoint = getCellEdgeProjectionPointBetween(point, next, diagram);
-				path.moveTo((int) projectionPoint.x, (int) projectionPoint.y);
-			}*/
-		} else if(point.getType() == ShapePoint.TYPE_ROUND){
-			entryPoint = getCellEdgePointBetween(point, previous, diagram);
-			exitPoint = getCellEdgePointBetween(point, next, diagram);
+		if(getPointType(0) == ShapePoint.TYPE_NORMAL){
+			path.moveTo((int) getPointX(0), (int) getPointY(0));
+		} else if(getPointType(0) == ShapePoint.TYPE_ROUND){
+			ShapePoint point = pointAt(0);
+			entryPoint = getCellEdgePointBetween(point, pointAt(size - 1), diagram);
+			exitPoint = getCellEdgePointBetween(point, pointAt(1), diagram);
 			path.moveTo(entryPoint.x, entryPoint.y);
 			path.quadTo(point.x, point.y, exitPoint.x, exitPoint.y);			
 		}
 
+		//only round corners need their points as objects
 		for(int i = 1; i < size; i++){
-			previous = point;
-			point = (ShapePoint) getPoints().get(i);
-			if(i < size - 1)
-				next = (ShapePoint) getPoints().get(i + 1);
-			else next = (ShapePoint) getPoints().get(0);
-
-			if(point.getType() == ShapePoint.TYPE_NORMAL)
-				//if(!isPointLinesEnd(point))
-					path.lineTo((int) point.x, (int) point.y);
-				/*else { //it is line's end, so we plot it at the projected intersection of the line with the cell's edge
-					ShapePoint projectionPoint = getCellEdgeProjectionPointBetween(point, previous, diagram);
-					path.lineTo((int) projectionPoint.x, (int) projectionPoint.y);
-				}*/
-			else if(point.getType() == ShapePoint.TYPE_ROUND){
-				entryPoint = getCellEdgePointBetween(point, previous, diagram);
+			if(getPointType(i) == ShapePoint.TYPE_NORMAL)
+				path.lineTo((int) getPointX(i), (int) getPointY(i));
+			else if(getPointType(i) == ShapePoint.TYPE_ROUND){
+				ShapePoint point = pointAt(i);
+				ShapePoint next = pointAt(i < size - 1 ? i + 1 : 0);
+				entryPoint = getCellEdgePointBetween(point, pointAt(i - 1), diagram);
 				exitPoint = getCellEdgePointBetween(point, next, diagram);
 
 				path.lineTo(entryPoint.x, entryPoint.y);
 				path.quadTo(point.x, point.y, exitPoint.x, exitPoint.y);
-				//if(!isPointLinesEnd(next)){
-					if(next.getType() == ShapePoint.TYPE_NORMAL)
-						path.lineTo(next.x, next.y);
-					else if(next.getType() == ShapePoint.TYPE_ROUND){
-						entryPoint = getCellEdgePointBetween(next, point, diagram);
-						path.lineTo(entryPoint.x, entryPoint.y);					
-					}
-				/*} else {
-					entryPoint = getCellEdgeProjectionPointBetween(next, point, diagram);
-					path.lineTo(entryPoint.x, entryPoint.y);										
-				}*/
+				if(next.getType() == ShapePoint.TYPE_NORMAL)
+					path.lineTo(next.x, next.y);
+				else if(next.getType() == ShapePoint.TYPE_ROUND){
+					entryPoint = getCellEdgePointBetween(next, point, diagram);
+					path.lineTo(entryPoint.x, entryPoint.y);					
+				}
 			} 
 		}
 		//TODO: this shouldn't be needed, but it is!
@@ -483,7 +551,9 @@ public class DiagramShape extends DiagramComponent {
 	
 	public List<ShapeEdge> getEdges(){
 		List<ShapeEdge> edges = new ArrayList<ShapeEdge>();
-		if(this.points.size() == 1) return edges;
+		if(getPointCount() == 1) return edges;
+		//the edges are used to move the points
+		detach();
 		int noOfPoints = points.size();
 		for(int i = 0; i < noOfPoints - 1; i++){
 			ShapePoint startPoint = (ShapePoint) points.get(i);
@@ -576,6 +646,7 @@ public class DiagramShape extends DiagramComponent {
 	 * @return
 	 */
 	public int getType() {
+		if(geometry != null) return geometry.getType(index);
 		return type;
 	}
 
@@ -583,11 +654,13 @@ public class DiagramShape extends DiagramComponent {
 	 * @param i
 	 */
 	public void setType(int i) {
+		detach();
 		type = i;
 	}
 
 	public void connectEndsToAnchors(TextGrid grid, Diagram diagram){
 		if(isClosed()) return;
+		detach();
 
 		ShapePoint linesEnd;
 		ShapePoint nextPoint;
@@ -660,11 +733,11 @@ public class DiagramShape extends DiagramComponent {
 	
 	public String toString(){
 		StringBuilder sb = new StringBuilder();
-		sb.append("DiagramShape, ").append(points.size()).append(" points ");
-		for (ShapePoint point : points) {
-			sb.append(point).append(" ");
+		sb.append("DiagramShape, ").append(getPointCount()).append(" points ");
+		for (int i = 0; i < getPointCount(); i++) {
+			sb.append(pointAt(i)).append(" ");
 		}
-		if (!points.isEmpty()) {
+		if (!isEmpty()) {
 			sb.deleteCharAt(sb.lastIndexOf(" "));
 		}
 		return sb.toString();
@@ -674,6 +747,7 @@ public class DiagramShape extends DiagramComponent {
 	 * @return
 	 */
 	public boolean isStrokeDashed() {
+		if(geometry != null) return geometry.isStrokeDashed(index);
 		return isStrokeDashed;
 	}
 
@@ -681,11 +755,12 @@ public class DiagramShape extends DiagramComponent {
 	 * @param b
 	 */
 	public void setStrokeDashed(boolean b) {
+		detach();
 		isStrokeDashed = b;
 	}
 
 	private GeneralPath makeStoragePath(Diagram diagram) {
-		if(points.size() != 4) return null;
+		if(getPointCount() != 4) return null;
 		Rectangle bounds = makeIntoPath().getBounds();
 		ShapePoint point1 = new ShapePoint((float)bounds.getMinX(), (float)bounds.getMinY());
 		ShapePoint point2 = new ShapePoint((float)bounds.getMaxX(), (float)bounds.getMinY());
@@ -729,7 +804,7 @@ public class DiagramShape extends DiagramComponent {
 	}
 
 	private GeneralPath makeDocumentPath(Diagram diagram) {
-		if(points.size() != 4) return null;
+		if(getPointCount() != 4) return null;
 		Rectangle bounds = makeIntoPath().getBounds();
 		ShapePoint point1 = new ShapePoint((float)bounds.getMinX(), (float)bounds.getMinY());
 		ShapePoint point2 = new ShapePoint((float)bounds.getMaxX(), (float)bounds.getMinY());
@@ -762,7 +837,7 @@ public class DiagramShape extends DiagramComponent {
 	private static final float KAPPA = 4f * ((float) Math.sqrt(2) - 1) / 3f;
 
 	private GeneralPath makeEllipsePath(Diagram diagram) {
-		if(points.size() != 4) return null;
+		if(getPointCount() != 4) return null;
 		Rectangle bounds = makeIntoPath().getBounds();
 		float xOff = (float) bounds.getWidth() * 0.5f * KAPPA;
 		float yOff = (float) bounds.getHeight() * 0.5f * KAPPA;
@@ -785,7 +860,7 @@ public class DiagramShape extends DiagramComponent {
 	}
 
 	private GeneralPath makeTrapezoidPath(Diagram diagram, RenderingOptions options, boolean inverted) {
-		if(points.size() != 4) return null;
+		if(getPointCount() != 4) return null;
 		Rectangle bounds = makeIntoPath().getBounds();
 		float offset = options.isFixedSlope() ? bounds.height / SHAPE_SLOPE : diagram.getCellWidth() * 0.5f;
 		if (inverted) offset = -offset;
@@ -805,7 +880,7 @@ public class DiagramShape extends DiagramComponent {
 	}
 
 	private GeneralPath makeDecisionPath(Diagram diagram) {
-		if(points.size() != 4) return null;
+		if(getPointCount() != 4) return null;
 		Rectangle bounds = makeIntoPath().getBounds();
 		ShapePoint pointMid = new ShapePoint((float)bounds.getCenterX(), (float)bounds.getCenterY());
 		ShapePoint left = new ShapePoint((float)bounds.getMinX(), (float)pointMid.getY());
@@ -825,7 +900,7 @@ public class DiagramShape extends DiagramComponent {
 	}
 
 	private GeneralPath makeIOPath(Diagram diagram, RenderingOptions options) {
-		if(points.size() != 4) return null;
+		if(getPointCount() != 4) return null;
 		Rectangle bounds = makeIntoPath().getBounds();
 		ShapePoint point1 = new ShapePoint((float)bounds.getMinX(), (float)bounds.getMinY());
 		ShapePoint point2 = new ShapePoint((float)bounds.getMaxX(), (float)bounds.getMinY());
@@ -858,20 +933,17 @@ public class DiagramShape extends DiagramComponent {
 	 * @return the overall area of the shape
 	 */
 	public double calculateArea() {
-		if(points.size() == 0) return 0;
+		int size = getPointCount();
+		if(size == 0) return 0;
 		
 		double area = 0;
 		
-		for(int i = 0; i < points.size() - 1; i++){
-			ShapePoint point1 = points.get(i);
-			ShapePoint point2 = points.get(i + 1);
-			area += point1.x * point2.y;
-			area -= point2.x * point1.y;
+		for(int i = 0; i < size - 1; i++){
+			area += getPointX(i) * getPointY(i + 1);
+			area -= getPointX(i + 1) * getPointY(i);
 		}
-		ShapePoint point1 = points.get(points.size() - 1);
-		ShapePoint point2 = points.get(0);
-		area += point1.x * point2.y;
-		area -= point2.x * point1.y;
+		area += getPointX(size - 1) * getPointY(0);
+		area -= getPointX(0) * getPointY(size - 1);
 		
 		return Math.abs(area / 2);
 	}
@@ -25,7 +25,11 @@ import java.awt.Graphics2D;
 import java.awt.font.FontRenderContext;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import yskkin.ascii2image.util.Loggers;
@@ -42,63 +46,122 @@ public class FontMeasurer {
 	private static final Logger LOG = Loggers.getLogger(FontMeasurer.class);
 	
 	private static final FontMeasurer instance = new FontMeasurer();
-	FontRenderContext fakeRenderContext;
-	Graphics2D fakeGraphics;
-	
-	{   
-		BufferedImage image = new BufferedImage(1,1, BufferedImage.TYPE_INT_RGB);
-		fakeGraphics = image.createGraphics();
-		
-		LOG.info("Locale: "+Locale.getDefault());
-		
-		fakeRenderContext = fakeGraphics.getFontRenderContext();
-	}		 
+
+	/** Upper bound of the cache of fonts fitted to strings. */
+	private static final int MAX_FITTED_FONTS = 1024;
+
+	//created with the first measurement, see getFakeGraphics()
+	private volatile Graphics2D fakeGraphics;
+	private FontRenderContext fakeRenderContext;
+
+	private Graphics2D getFakeGraphics(){
+		Graphics2D graphics = fakeGraphics;
+		if(graphics == null){
+			synchronized(this){
+				graphics = fakeGraphics;
+				if(graphics == null){
+					BufferedImage image = new BufferedImage(1,1, BufferedImage.TYPE_INT_RGB);
+					graphics = image.createGraphics();
+					
+					LOG.info("Locale: "+Locale.getDefault());
+					
+					fakeRenderContext = graphics.getFontRenderContext();
+					fakeGraphics = graphics;
+				}
+			}
+		}
+		return graphics;
+	}
+
+	private FontRenderContext getFakeRenderContext(){
+		//the context is set before the graphics are published
+		getFakeGraphics();
+		return fakeRenderContext;
+	}
+
+	/**
+	 * Fonts fitted to a cell height, one per scale in use.
+	 */
+	private final Map<Integer, Font> fontsForHeight =
+		Collections.synchronizedMap(new HashMap<Integer, Font>());
+
+	/**
+	 * Fonts fitted to the width available to a string, keyed by width and
+	 * string. Least recently used entries are evicted.
+	 */
+	@SuppressWarnings("serial")
+	private final Map<String, Font> fontsForWidth =
+		Collections.synchronizedMap(new LinkedHashMap<String, Font>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Font> eldest) {
+				return size() > MAX_FITTED_FONTS;
+			}
+		});
 	
 
 	public int getWidthFor(String str, int pixelHeight){
 		Font font = getFontFor(pixelHeight);
-		Rectangle2D rectangle = font.getStringBounds(str, fakeRenderContext);
+		Rectangle2D rectangle = font.getStringBounds(str, getFakeRenderContext());
 		return (int) rectangle.getWidth();
 	}
 
 	public int getHeightFor(String str, int pixelHeight){
 		Font font = getFontFor(pixelHeight);
-		Rectangle2D rectangle = font.getStringBounds(str, fakeRenderContext);
+		Rectangle2D rectangle = font.getStringBounds(str, getFakeRenderContext());
 		return (int) rectangle.getHeight();
 	}
 
 	public int getWidthFor(String str, Font font){
-		Rectangle2D rectangle = font.getStringBounds(str, fakeRenderContext);
+		Rectangle2D rectangle = font.getStringBounds(str, getFakeRenderContext());
 		return (int) rectangle.getWidth();
 	}
 
 	public int getHeightFor(String str, Font font){
-		Rectangle2D rectangle = font.getStringBounds(str, fakeRenderContext);
+		Rectangle2D rectangle = font.getStringBounds(str, getFakeRenderContext());
 		return (int) rectangle.getHeight();
 	}
 	
 	public Rectangle2D getBoundsFor(String str, Font font){
-		return font.getStringBounds(str, fakeRenderContext);
+		return font.getStringBounds(str, getFakeRenderContext());
 	}
 	
 	public Font getFontFor(int pixelHeight){
-		return getFontFor(pixelHeight, fakeRenderContext);
+		Font font = fontsForHeight.get(pixelHeight);
+		if(font == null){
+			font = getFontFor(pixelHeight, getFakeRenderContext());
+			if(font != null) fontsForHeight.put(pixelHeight, font);
+		}
+		return font;
 	}
 
 	public int getAscent(Font font){
-		fakeGraphics.setFont(font);
-		FontMetrics metrics = fakeGraphics.getFontMetrics();
-		LOG.info("Ascent: "+metrics.getAscent());
-		return metrics.getAscent();
+		//the fake graphics are shared by all threads rendering text
+		Graphics2D graphics = getFakeGraphics();
+		synchronized(graphics){
+			graphics.setFont(font);
+			FontMetrics metrics = graphics.getFontMetrics();
+			LOG.info("Ascent: "+metrics.getAscent());
+			return metrics.getAscent();
+		}
 	}
 
 	public int getZHeight(Font font){
-		int height = (int) font.createGlyphVector(fakeRenderContext, "Z").getOutline().getBounds().getHeight();
+		int height = (int) font.createGlyphVector(getFakeRenderContext(), "Z").getOutline().getBounds().getHeight();
 		LOG.info("Z height: "+height);
 		return height;
 	}
 
 	public Font getFontFor(int maxWidth, String string){
+		String key = maxWidth + ":" + string;
+		Font font = fontsForWidth.get(key);
+		if(font == null){
+			font = fitFontTo(maxWidth, string);
+			if(font != null) fontsForWidth.put(key, font);
+		}
+		return font;
+	}
+
+	private Font fitFontTo(int maxWidth, String string){
 		float size = 12;
 		Font currentFont = new Font(fontFamilyName, Font.BOLD, (int) size);
 		//ascent is the distance between the baseline and the tallest character
@@ -20,9 +20,6 @@
 package org.stathissideris.ascii2image.graphics;
 
 import java.awt.Color;
-import java.awt.Image;
-import java.awt.MediaTracker;
-import java.awt.Toolkit;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
@@ -30,59 +27,65 @@ import java.net.URI;
 import java.net.URL;
 
 import javax.imageio.ImageIO;
-import javax.swing.JLabel;
 
 import org.stathissideris.ascii2image.core.FileUtils;
 
+/**
+ * Loads the images of custom shapes.
+ * 
+ * <p>Nothing is set up until a custom shape needs it: most diagrams have
+ * none, and loading Batik costs a noticeable part of the start-up time
+ * of a single conversion.</p>
+ * 
+ * <p>The handler keeps no state of its own, so concurrent conversions
+ * can share it.</p>
+ */
 public class ImageHandler {
 	
-	private static OffScreenSVGRenderer svgRenderer = 
-		new OffScreenSVGRenderer();
+	/** Holds the SVG renderer, so that Batik is only loaded with the first SVG shape. */
+	private static class SVG {
+		static final OffScreenSVGRenderer renderer = new OffScreenSVGRenderer();
+	}
 	
-	private static ImageHandler instance = new ImageHandler();
+	private static final ImageHandler instance = new ImageHandler();
 	
 	public static ImageHandler instance(){
 		return instance;
 	}
 	
-	private static final MediaTracker tracker = new MediaTracker(new JLabel());
-	
 	public BufferedImage loadBufferedImage(File file) throws IOException {
 		return ImageIO.read(file);
 	}
 	
-	public Image loadImage(String filename){
+	/**
+	 * Loads an image from the classpath, or from the file system if it is
+	 * not on the classpath.
+	 * 
+	 * @param filename
+	 * @return the image, or null if it cannot be read
+	 */
+	public BufferedImage loadImage(String filename){
 		URL url = ClassLoader.getSystemResource(filename);
-		Image result = null;
-		if(url != null)
-			result = Toolkit.getDefaultToolkit().getImage(url);
-		else
-			result = Toolkit.getDefaultToolkit().getImage(filename);
-//			result = null;
-
-		//wait for the image to load before returning
-		tracker.addImage(result, 0);
 		try {
-			tracker.waitForID(0);
-		} catch (InterruptedException e) {
-			System.err.println("Failed to load image "+filename);
-			e.printStackTrace();
+			if(url != null)
+				return ImageIO.read(url);
+			return ImageIO.read(new File(filename));
+		} catch (IOException e) {
+			System.err.println("Failed to load image "+filename+": "+e.getMessage());
+			return null;
 		}
-		tracker.removeImage(result, 0);
-		
-		return result;
 	}
 	
 	public BufferedImage renderSVG(String filename, int width, int height, boolean stretch) throws IOException {
 		File file = new File(filename);
 		URI uri = file.toURI();
-		return svgRenderer.renderToImage(uri.toString(), width, height, stretch, null, null);
+		return SVG.renderer.renderToImage(uri.toString(), width, height, stretch, null, null);
 	}
 
 	public BufferedImage renderSVG(String filename, int width, int height, boolean stretch, String idRegex, Color color) throws IOException {
 		File file = new File(filename);
 		URI uri = file.toURI();
-		return svgRenderer.renderToImage(uri.toString(), width, height, stretch, idRegex, color);
+		return SVG.renderer.renderToImage(uri.toString(), width, height, stretch, idRegex, color);
 	}
 
 	
@@ -0,0 +1,188 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.graphics;
+
+import java.awt.Color;
+import java.util.List;
+
+/**
+ * The shapes of a finished {@link Diagram}, packed into flat arrays.
+ * 
+ * <p>The points of all the shapes are kept one after the other, their
+ * coordinates in an array of floats and their types in an array of bytes.
+ * Shape <code>i</code> owns the points from <code>getFirstPoint(i)</code>
+ * to <code>getFirstPoint(i) + getPointCount(i)</code>. The types, colours
+ * and flags of the shapes are kept in arrays indexed by shape. A large
+ * diagram is then held in a handful of arrays rather than in an object per
+ * point, and rendering reads the points of a shape from consecutive
+ * memory.</p>
+ * 
+ * <p>The geometry never changes. The {@link DiagramShape}s of the diagram
+ * are views over it until one of them is changed, when that shape goes
+ * back to keeping its points itself.</p>
+ * 
+ * @author Efstathios Sideris
+ */
+public class ShapeGeometry {
+
+	private static final byte CLOSED = 1;
+	private static final byte STROKE_DASHED = 2;
+	private static final byte FILLED = 4;
+	private static final byte STROKED = 8;
+
+	/** Marks a locked point in {@link #pointTypes} */
+	private static final byte LOCKED = (byte) 0x80;
+
+	private final float[] coordinates;
+	private final byte[] pointTypes;
+	private final int[] firstPoints;
+	private final int[] types;
+	private final int[] fillColors;
+	private final int[] strokeColors;
+	private final byte[] flags;
+
+	private ShapeGeometry(List<DiagramShape> shapes) {
+		int shapeCount = shapes.size();
+		int pointCount = 0;
+		for (DiagramShape shape : shapes) {
+			pointCount += shape.getPointCount();
+		}
+
+		coordinates = new float[pointCount * 2];
+		pointTypes = new byte[pointCount];
+		firstPoints = new int[shapeCount + 1];
+		types = new int[shapeCount];
+		fillColors = new int[shapeCount];
+		strokeColors = new int[shapeCount];
+		flags = new byte[shapeCount];
+
+		int point = 0;
+		for (int i = 0; i < shapeCount; i++) {
+			DiagramShape shape = shapes.get(i);
+			firstPoints[i] = point;
+			for (int j = 0; j < shape.getPointCount(); j++) {
+				coordinates[point * 2] = shape.getPointX(j);
+				coordinates[point * 2 + 1] = shape.getPointY(j);
+				pointTypes[point] = (byte) shape.getPointType(j);
+				if (shape.isPointLocked(j)) pointTypes[point] |= LOCKED;
+				point++;
+			}
+			types[i] = shape.getType();
+			byte shapeFlags = 0;
+			if (shape.isClosed()) shapeFlags |= CLOSED;
+			if (shape.isStrokeDashed()) shapeFlags |= STROKE_DASHED;
+			if (shape.getFillColor() != null) {
+				shapeFlags |= FILLED;
+				fillColors[i] = shape.getFillColor().getRGB();
+			}
+			if (shape.getStrokeColor() != null) {
+				shapeFlags |= STROKED;
+				strokeColors[i] = shape.getStrokeColor().getRGB();
+			}
+			flags[i] = shapeFlags;
+		}
+		firstPoints[shapeCount] = point;
+	}
+
+	/**
+	 * Packs <code>shapes</code> and makes each of them a view over the
+	 * result.
+	 */
+	static ShapeGeometry pack(List<DiagramShape> shapes) {
+		ShapeGeometry result = new ShapeGeometry(shapes);
+		for (int i = 0; i < shapes.size(); i++) {
+			shapes.get(i).viewOf(result, i);
+		}
+		return result;
+	}
+
+	public int getShapeCount() {
+		return types.length;
+	}
+
+	/**
+	 * @return the number of points of all the shapes
+	 */
+	public int getTotalPointCount() {
+		return pointTypes.length;
+	}
+
+	/**
+	 * @return the index of the first point of <code>shape</code>
+	 */
+	public int getFirstPoint(int shape) {
+		return firstPoints[shape];
+	}
+
+	public int getPointCount(int shape) {
+		return firstPoints[shape + 1] - firstPoints[shape];
+	}
+
+	public float getX(int point) {
+		return coordinates[point * 2];
+	}
+
+	public float getY(int point) {
+		return coordinates[point * 2 + 1];
+	}
+
+	/**
+	 * @return {@link ShapePoint#TYPE_NORMAL} or {@link ShapePoint#TYPE_ROUND}
+	 */
+	public int getPointType(int point) {
+		return pointTypes[point] & ~LOCKED;
+	}
+
+	public boolean isPointLocked(int point) {
+		return (pointTypes[point] & LOCKED) != 0;
+	}
+
+	/**
+	 * @return one of the <code>TYPE_</code> constants of {@link DiagramShape}
+	 */
+	public int getType(int shape) {
+		return types[shape];
+	}
+
+	public boolean isClosed(int shape) {
+		return (flags[shape] & CLOSED) != 0;
+	}
+
+	public boolean isStrokeDashed(int shape) {
+		return (flags[shape] & STROKE_DASHED) != 0;
+	}
+
+	/**
+	 * @return the fill colour of <code>shape</code>, or null if it is not
+	 *   filled
+	 */
+	public Color getFillColor(int shape) {
+		if ((flags[shape] & FILLED) == 0) return null;
+		return new Color(fillColors[shape], true);
+	}
+
+	/**
+	 * @return the stroke colour of <code>shape</code>, or null if it has none
+	 */
+	public Color getStrokeColor(int shape) {
+		if ((flags[shape] & STROKED) == 0) return null;
+		return new Color(strokeColors[shape], true);
+	}
+}
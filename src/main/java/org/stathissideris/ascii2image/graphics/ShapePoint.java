@@ -123,6 +123,13 @@ public class ShapePoint extends Float {
 		this.y = point.y;
 	}
 
+	/**
+	 * @return whether {@link #moveTo(ShapePoint)} leaves this point where it is
+	 */
+	public boolean isLocked() {
+		return locked;
+	}
+
 	/**
 	 * @param b
 	 */
@@ -57,40 +57,52 @@ public class AbstractionGrid {
 		
 		
 		for (TextGrid.Cell cell : cellSet){
-			if(textGrid.isBlank(cell)) continue;
-			if(textGrid.isCross(cell)){
-				set(cell.x, cell.y, AbstractCell.makeCross());
-			} else if(textGrid.isT(cell)){
-				set(cell.x, cell.y, AbstractCell.makeT());
-			} else if(textGrid.isK(cell)){
-				set(cell.x, cell.y, AbstractCell.makeK());
-			} else if(textGrid.isInverseT(cell)){
-				set(cell.x, cell.y, AbstractCell.makeInverseT());
-			} else if(textGrid.isInverseK(cell)){
-				set(cell.x, cell.y, AbstractCell.makeInverseK());
-			} else if(textGrid.isCorner1(cell)){
-				set(cell.x, cell.y, AbstractCell.makeCorner1());
-			} else if(textGrid.isCorner2(cell)){
-				set(cell.x, cell.y, AbstractCell.makeCorner2());
-			} else if(textGrid.isCorner3(cell)){
-				set(cell.x, cell.y, AbstractCell.makeCorner3());
-			} else if(textGrid.isCorner4(cell)){
-				set(cell.x, cell.y, AbstractCell.makeCorner4());
-			} else if(textGrid.isHorizontalLine(cell)){
-				set(cell.x, cell.y, AbstractCell.makeHorizontalLine());
-			} else if(textGrid.isVerticalLine(cell)){
-				set(cell.x, cell.y, AbstractCell.makeVerticalLine());
-			} else if(textGrid.isCrossOnLine(cell)){
-				set(cell.x, cell.y, AbstractCell.makeCross());
-			} else if(textGrid.isStarOnLine(cell)){
-				set(cell.x, cell.y, AbstractCell.makeStar());
-			}
+			AbstractCell abstractCell = abstractCellOf(textGrid, cell);
+			if(abstractCell != null) set(cell.x, cell.y, abstractCell);
 		}
 
 		LOG.finer("...the resulting AbstractionGrid is:");
 		grid.printDebug();
 	}
 	
+	/**
+	 * @return the lines that pass through <code>cell</code>, or null if
+	 *   <code>cell</code> is not part of a line
+	 */
+	static AbstractCell abstractCellOf(TextGrid textGrid, TextGrid.Cell cell){
+		int x = cell.x;
+		int y = cell.y;
+		if(textGrid.get(x, y) == ' ') return null;
+		if(textGrid.isCross(x, y)){
+			return AbstractCell.makeCross();
+		} else if(textGrid.isT(x, y)){
+			return AbstractCell.makeT();
+		} else if(textGrid.isK(x, y)){
+			return AbstractCell.makeK();
+		} else if(textGrid.isInverseT(x, y)){
+			return AbstractCell.makeInverseT();
+		} else if(textGrid.isInverseK(x, y)){
+			return AbstractCell.makeInverseK();
+		} else if(textGrid.isCorner1(x, y)){
+			return AbstractCell.makeCorner1();
+		} else if(textGrid.isCorner2(x, y)){
+			return AbstractCell.makeCorner2();
+		} else if(textGrid.isCorner3(x, y)){
+			return AbstractCell.makeCorner3();
+		} else if(textGrid.isCorner4(x, y)){
+			return AbstractCell.makeCorner4();
+		} else if(textGrid.isHorizontalLine(x, y)){
+			return AbstractCell.makeHorizontalLine();
+		} else if(textGrid.isVerticalLine(x, y)){
+			return AbstractCell.makeVerticalLine();
+		} else if(textGrid.isCrossOnLine(x, y)){
+			return AbstractCell.makeCross();
+		} else if(textGrid.isStarOnLine(x, y)){
+			return AbstractCell.makeStar();
+		}
+		return null;
+	}
+	
 	private AbstractionGrid(int width, int height){
 		grid = new TextGrid(width*3, height*3);
 	}
@@ -107,23 +119,83 @@ public class AbstractionGrid {
 		return grid.getHeight() / 3;
 	}
 
+	/**
+	 * Finds the groups of connected cells, by labelling the cells in two
+	 * passes and joining the labels of neighbours with union-find.
+	 * 
+	 * <p>This is the same as filling the internal buffer once per group:
+	 * the lines of every cell go through its centre, and two neighbouring
+	 * cells touch exactly when both have the line that points towards the
+	 * other, so only the centre and the sides of each cell are read.</p>
+	 * 
+	 * @return the groups, ordered by their first cell row by row, each with
+	 *   its cells added row by row
+	 */
 	public List<CellSet> getDistinctShapes(){
-		List<CellSet> result = new ArrayList<CellSet>();
+		int width = getWidth();
+		int height = getHeight();
 		
-		CellSet nonBlank = grid.getAllNonBlank();
-		List<CellSet> distinct = nonBlank.breakIntoDistinctBoundaries();
+		//first pass: join every cell to its west and north neighbour
+		int[] parent = new int[width * height];
+		for(int y = 0; y < height; y++){
+			for(int x = 0; x < width; x++){
+				int i = y * width + x;
+				if(grid.isBlank(x * 3 + 1, y * 3 + 1)){
+					parent[i] = -1;
+					continue;
+				}
+				parent[i] = i;
+				if(x > 0 && !grid.isBlank(x * 3, y * 3 + 1) && !grid.isBlank(x * 3 - 1, y * 3 + 1)){
+					union(parent, i, i - 1);
+				}
+				if(y > 0 && !grid.isBlank(x * 3 + 1, y * 3) && !grid.isBlank(x * 3 + 1, y * 3 - 1)){
+					union(parent, i, i - width);
+				}
+			}
+		}
 		
-		for (CellSet set : distinct) {
-			CellSet smallCellSet = new CellSet();
-			for (TextGrid.Cell cell : set) {
-				smallCellSet.add(new TextGrid.Cell(cell.x / 3, cell.y / 3));
+		//second pass: the root of a group is its first cell, so the group
+		//is made when the root is reached
+		List<CellSet> result = new ArrayList<CellSet>();
+		int[] group = new int[width * height];
+		for(int y = 0; y < height; y++){
+			for(int x = 0; x < width; x++){
+				int i = y * width + x;
+				if(parent[i] < 0) continue;
+				int root = find(parent, i);
+				if(root == i){
+					group[i] = result.size();
+					result.add(new CellSet());
+				}
+				result.get(group[root]).add(new TextGrid.Cell(x, y));
 			}
-			result.add(smallCellSet);
 		}
 		
 		return result; 
 	}
 	
+	/**
+	 * Joins the groups of <code>a</code> and <code>b</code>, keeping the
+	 * smaller root so that the root of a group is always its first cell.
+	 */
+	private static void union(int[] parent, int a, int b){
+		int rootA = find(parent, a);
+		int rootB = find(parent, b);
+		if(rootA < rootB){
+			parent[rootB] = rootA;
+		} else if(rootB < rootA){
+			parent[rootA] = rootB;
+		}
+	}
+	
+	private static int find(int[] parent, int i){
+		while(parent[i] != i){
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+	
 	protected void fillCells(CellSet cells){
 		grid.fillCellsWith(cells, '*');
 	}
@@ -0,0 +1,244 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.text;
+
+import java.util.Arrays;
+
+/**
+ * A set of cells as a bitmap of the rectangle they lie in, one bit per
+ * cell and one 64-bit word per 64 columns of a row. The words are aligned
+ * to the columns of the grid rather than to the left of the rectangle, so
+ * that two bitmaps are combined word by word, without shifting, over the
+ * part of the grid they share.
+ * 
+ * <p>Bitmaps do not grow: cells out of the rectangle of a bitmap are left
+ * out when added to it, as they are when a set is drawn on a
+ * {@link TextGrid} too small for it.</p>
+ * 
+ * @author Efstathios Sideris
+ */
+public class CellBitmap {
+
+	private final int minX;
+	private final int maxX;
+	private final int minY;
+	private final int height;
+	private final int firstWord;
+	private final int wordsPerRow;
+	private final long[] words;
+
+	/**
+	 * An empty bitmap of the cells from <code>minX, minY</code> to
+	 * <code>maxX, maxY</code>, inclusive.
+	 */
+	public CellBitmap(int minX, int minY, int maxX, int maxY){
+		if(maxX < minX || maxY < minY){
+			this.minX = 0;
+			this.maxX = -1;
+			this.minY = 0;
+			this.height = 0;
+			this.firstWord = 0;
+			this.wordsPerRow = 0;
+		} else {
+			this.minX = minX;
+			this.maxX = maxX;
+			this.minY = minY;
+			this.height = maxY - minY + 1;
+			this.firstWord = minX >> 6;
+			this.wordsPerRow = (maxX >> 6) - firstWord + 1;
+		}
+		words = new long[height * wordsPerRow];
+	}
+
+	/**
+	 * @return a bitmap of the cells of <code>set</code>, as large as the
+	 *   rectangle they lie in
+	 */
+	public static CellBitmap of(CellSet set){
+		int minX = Integer.MAX_VALUE;
+		int minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE;
+		int maxY = Integer.MIN_VALUE;
+		for (TextGrid.Cell cell : set) {
+			if(cell.x < minX) minX = cell.x;
+			if(cell.x > maxX) maxX = cell.x;
+			if(cell.y < minY) minY = cell.y;
+			if(cell.y > maxY) maxY = cell.y;
+		}
+		CellBitmap bitmap = new CellBitmap(minX, minY, maxX, maxY);
+		for (TextGrid.Cell cell : set) {
+			bitmap.add(cell.x, cell.y);
+		}
+		return bitmap;
+	}
+
+	private int index(int x, int y){
+		if(x < minX || x > maxX || y < minY || y >= minY + height) return -1;
+		return (y - minY) * wordsPerRow + (x >> 6) - firstWord;
+	}
+
+	/**
+	 * @return false if the cell is out of the bitmap and was left out
+	 */
+	public boolean add(int x, int y){
+		int i = index(x, y);
+		if(i < 0) return false;
+		words[i] |= 1L << x;
+		return true;
+	}
+
+	public boolean contains(int x, int y){
+		int i = index(x, y);
+		return i >= 0 && (words[i] & (1L << x)) != 0;
+	}
+
+	public boolean contains(TextGrid.Cell cell){
+		return contains(cell.x, cell.y);
+	}
+
+	/**
+	 * @return how many cells are in the bitmap
+	 */
+	public int cardinality(){
+		int result = 0;
+		for (long word : words) {
+			result += Long.bitCount(word);
+		}
+		return result;
+	}
+
+	public boolean isEmpty(){
+		for (long word : words) {
+			if(word != 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Keeps only the cells that are also in <code>other</code>.
+	 */
+	public void and(CellBitmap other){
+		int fromY = Math.max(minY, other.minY);
+		int toY = Math.min(minY + height, other.minY + other.height);
+		int fromWord = Math.max(firstWord, other.firstWord);
+		int toWord = Math.min(firstWord + wordsPerRow, other.firstWord + other.wordsPerRow);
+		for(int y = minY; y < minY + height; y++){
+			int rowStart = (y - minY) * wordsPerRow;
+			if(y < fromY || y >= toY || fromWord >= toWord){
+				Arrays.fill(words, rowStart, rowStart + wordsPerRow, 0L);
+				continue;
+			}
+			Arrays.fill(words, rowStart, rowStart + fromWord - firstWord, 0L);
+			Arrays.fill(words, rowStart + toWord - firstWord, rowStart + wordsPerRow, 0L);
+			int i = rowStart + fromWord - firstWord;
+			int j = (y - other.minY) * other.wordsPerRow + fromWord - other.firstWord;
+			for(int w = fromWord; w < toWord; w++){
+				words[i++] &= other.words[j++];
+			}
+		}
+	}
+
+	/**
+	 * Removes the cells that are in <code>other</code>.
+	 */
+	public void andNot(CellBitmap other){
+		int fromY = Math.max(minY, other.minY);
+		int toY = Math.min(minY + height, other.minY + other.height);
+		int fromWord = Math.max(firstWord, other.firstWord);
+		int toWord = Math.min(firstWord + wordsPerRow, other.firstWord + other.wordsPerRow);
+		for(int y = fromY; y < toY; y++){
+			int i = (y - minY) * wordsPerRow + fromWord - firstWord;
+			int j = (y - other.minY) * other.wordsPerRow + fromWord - other.firstWord;
+			for(int w = fromWord; w < toWord; w++){
+				words[i++] &= ~other.words[j++];
+			}
+		}
+	}
+
+	/**
+	 * Adds the cells of <code>other</code> that are within this bitmap.
+	 */
+	public void or(CellBitmap other){
+		int fromY = Math.max(minY, other.minY);
+		int toY = Math.min(minY + height, other.minY + other.height);
+		int fromWord = Math.max(firstWord, other.firstWord);
+		int toWord = Math.min(firstWord + wordsPerRow, other.firstWord + other.wordsPerRow);
+		for(int y = fromY; y < toY; y++){
+			int i = (y - minY) * wordsPerRow + fromWord - firstWord;
+			int j = (y - other.minY) * other.wordsPerRow + fromWord - other.firstWord;
+			for(int w = fromWord; w < toWord; w++){
+				words[i++] |= other.words[j++];
+			}
+			//the first and last words may have columns beyond the bitmap
+			int rowStart = (y - minY) * wordsPerRow;
+			words[rowStart] &= -1L << minX;
+			words[rowStart + wordsPerRow - 1] &= -1L >>> (63 - (maxX & 63));
+		}
+	}
+
+	/**
+	 * @return whether any cell is in both bitmaps
+	 */
+	public boolean intersects(CellBitmap other){
+		return countCommon(other) > 0;
+	}
+
+	/**
+	 * @return whether both bitmaps have the same cells, however large they are
+	 */
+	public boolean hasSameCellsAs(CellBitmap other){
+		int cardinality = cardinality();
+		return cardinality == other.cardinality() && countCommon(other) == cardinality;
+	}
+
+	private int countCommon(CellBitmap other){
+		int fromY = Math.max(minY, other.minY);
+		int toY = Math.min(minY + height, other.minY + other.height);
+		int fromWord = Math.max(firstWord, other.firstWord);
+		int toWord = Math.min(firstWord + wordsPerRow, other.firstWord + other.wordsPerRow);
+		int result = 0;
+		for(int y = fromY; y < toY; y++){
+			int i = (y - minY) * wordsPerRow + fromWord - firstWord;
+			int j = (y - other.minY) * other.wordsPerRow + fromWord - other.firstWord;
+			for(int w = fromWord; w < toWord; w++){
+				result += Long.bitCount(words[i++] & other.words[j++]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the cells of the bitmap, as new cells, row by row
+	 */
+	public CellSet toCellSet(){
+		CellSet result = new CellSet();
+		for(int row = 0; row < height; row++){
+			for(int w = 0; w < wordsPerRow; w++){
+				long word = words[row * wordsPerRow + w];
+				while(word != 0){
+					int bit = Long.numberOfTrailingZeros(word);
+					result.add(new TextGrid.Cell(((firstWord + w) << 6) + bit, minY + row));
+					word &= word - 1;
+				}
+			}
+		}
+		return result;
+	}
+}
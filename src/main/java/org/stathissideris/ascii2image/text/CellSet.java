@@ -27,6 +27,7 @@ import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import yskkin.ascii2image.util.Cancellation;
 import yskkin.ascii2image.util.Loggers;
 
 /**
@@ -138,6 +139,7 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 
 	public int getType(TextGrid grid) {
 		if(typeIsValid) return type;
+		Cancellation.checkpoint();
 		typeIsValid = true;
 		if(size() == 1) {
 			type = TYPE_OPEN;
@@ -181,20 +183,22 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 		//start with a line end if it exists or with a "random" cell if not
 		TextGrid.Cell start = null;
 		for(TextGrid.Cell cell : this)
-			if(workGrid.isLinesEnd(cell))
+			if(workGrid.isLinesEnd(cell.x, cell.y))
 				start = cell;
 		if(start == null) start = (TextGrid.Cell) getFirst();
 		
-		LOG.fine("Tracing:\nStarting at "+start+" ("+grid.getCellTypeAsString(start)+")");
+		boolean tracing = LOG.isLoggable(Level.FINE);
+		if(tracing) LOG.fine("Tracing:\nStarting at "+start+" ("+grid.getCellTypeAsString(start)+")");
 		TextGrid.Cell previous = start;
 		TextGrid.Cell cell = null;
 		CellSet nextCells = workGrid.followCell(previous);
 		if(nextCells.size() == 0) return TYPE_OPEN;
 		cell = (TextGrid.Cell) nextCells.getFirst();
-		LOG.fine("\tat cell "+cell+" ("+grid.getCellTypeAsString(cell)+")");
+		if(tracing) LOG.fine("\tat cell "+cell+" ("+grid.getCellTypeAsString(cell)+")");
 
 		
 		while(!cell.equals(start)){
+			Cancellation.checkpoint();
 			nextCells = workGrid.followCell(cell, previous);
 			if(nextCells.size() == 0) {
 				LOG.fine("-> Found dead-end, shape is open");
@@ -202,7 +206,7 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 			} if(nextCells.size() == 1) {
 				previous = cell;
 				cell = (TextGrid.Cell) nextCells.getFirst();
-				LOG.fine("\tat cell "+cell+" ("+grid.getCellTypeAsString(cell)+")");
+				if(tracing) LOG.fine("\tat cell "+cell+" ("+grid.getCellTypeAsString(cell)+")");
 			} else if(nextCells.size() > 1) {
 				LOG.fine("-> Found intersection at cell "+cell);
 				return TYPE_UNDETERMINED;
@@ -255,9 +259,8 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 		TextGrid.Cell fillCell = null;
 		for(int y = 0; y < height; y++){
 			for(int x = 0; x < width; x++){
-				TextGrid.Cell cCell = new TextGrid.Cell(x, y);
-				if(temp.isBlank(cCell)){
-					fillCell = cCell;
+				if(temp.isBlank(x, y)){
+					fillCell = new TextGrid.Cell(x, y);
 					break;
 				}
 			}
@@ -268,6 +271,7 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 			return TYPE_UNDETERMINED;
 		}
 		
+		Cancellation.checkpoint();
 		temp.fillContinuousArea(fillCell, '*');
 		LOG.finer("Buffer after filling:");
 		temp.printDebug();
@@ -402,12 +406,29 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 	}
 	
 	public void subtractSet(CellSet set){
+		if(set.size() == 0) return;
+		removeAll(CellBitmap.of(set));
+	}
+
+	/**
+	 * Removes the cells that are in <code>bitmap</code>.
+	 */
+	public void removeAll(CellBitmap bitmap){
 		typeIsValid = false;
-		Iterator<TextGrid.Cell> it = set.iterator();
+		Iterator<TextGrid.Cell> it = iterator();
 		while(it.hasNext()){
-			TextGrid.Cell cell = it.next();
-			TextGrid.Cell thisCell = find(cell);
-			if(thisCell != null) remove(thisCell);
+			if(bitmap.contains(it.next())) it.remove();
+		}
+	}
+
+	/**
+	 * Removes the cells that are not in <code>bitmap</code>.
+	 */
+	public void retainAll(CellBitmap bitmap){
+		typeIsValid = false;
+		Iterator<TextGrid.Cell> it = iterator();
+		while(it.hasNext()){
+			if(!bitmap.contains(it.next())) it.remove();
 		}
 	}
 
@@ -546,7 +567,7 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 		Iterator<TextGrid.Cell> it = iterator();
 		while (it.hasNext()) {
 			TextGrid.Cell start = it.next();
-			if(workGrid.isLinesEnd(start) && !visitedEnds.contains(start)){
+			if(workGrid.isLinesEnd(start.x, start.y) && !visitedEnds.contains(start)){
 				
 				LOG.fine("Starting new subshape:");
 				
@@ -564,7 +585,7 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 				LOG.fine("Added boundary "+cell);
 				
 				boolean finished = false;
-				if(workGrid.isLinesEnd(cell)){
+				if(workGrid.isLinesEnd(cell.x, cell.y)){
 					visitedEnds.add(cell);
 					finished = true;					
 				}
@@ -578,7 +599,7 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 						cell = (TextGrid.Cell) nextCells.getFirst();
 						//if(!cell.equals(start) && grid.isPointCell(cell))
 						//	s.addToPoints(makePointForCell(cell, workGrid, cellWidth, cellHeight, allRound));
-						if(workGrid.isLinesEnd(cell)){
+						if(workGrid.isLinesEnd(cell.x, cell.y)){
 							visitedEnds.add(cell);
 							finished = true;
 						}
@@ -591,11 +612,13 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 		}
 
 		//substract all boundary sets from this CellSet
-		CellSet whatsLeft = new CellSet(this);
+		CellBitmap left = CellBitmap.of(this);
 		for(CellSet set : result) {
-			whatsLeft.subtractSet(set);
+			left.andNot(CellBitmap.of(set));
 			set.printAsGrid();
 		}
+		CellSet whatsLeft = new CellSet(this);
+		whatsLeft.retainAll(left);
 		result.add(whatsLeft);
 		whatsLeft.printAsGrid();
 		
@@ -621,8 +644,7 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 		
 		for(int y = 0; y < gridBig.getHeight(); y++){
 			for(int x = 0; x < gridBig.getWidth(); x++){
-				TextGrid.Cell cell = new TextGrid.Cell(x, y);
-				if(!gridBig.isBlank(cell)) gridSmall.set(x/3, y/3, '*');
+				if(!gridBig.isBlank(x, y)) gridSmall.set(x/3, y/3, '*');
 			}
 		}
 		
@@ -76,8 +76,21 @@ import java.util.regex.Pattern;
  */
 public class GridPattern extends TextGrid {
 	
-	private List<Pattern> regExps = new ArrayList<Pattern>(); //TODO optimise: store as PatternS
-	private boolean regExpsAreValid = false;
+	/**
+	 * The compiled rows, or null when they have to be (re)compiled. The
+	 * patterns in {@link GridPatternGroup} are shared by all threads, so the
+	 * list is built aside and only published when complete.
+	 */
+	private volatile List<Pattern> regExps = null;
+
+	/**
+	 * What each of the 3x3 cells matches, row by row, or null when it has
+	 * to be (re)compiled. Only used for the custom syntax.
+	 */
+	private volatile CellClass[] cellClasses = null;
+
+	/** The order the cells are tested in: the middle one rules out most. */
+	private static final int[] CELL_ORDER = { 4, 1, 3, 5, 7, 0, 2, 6, 8 };
 
 	private boolean usesStandardSyntax = false;
 
@@ -88,7 +101,7 @@ public class GridPattern extends TextGrid {
 	public GridPattern(String row1, String row2, String row3){
 		super(Math.max(Math.max(row1.length(), row2.length()), row3.length()), 3);
 		setTo(row1, row2, row3);
-		regExpsAreValid = false;
+		regExps = null;
 	}
 
 	public boolean usesStandardSyntax() {
@@ -97,13 +110,15 @@ public class GridPattern extends TextGrid {
 
 	public void setUsesStandardSyntax(boolean b) {
 		usesStandardSyntax = b;
-		regExpsAreValid = false;
+		regExps = null;
+		cellClasses = null;
 	}
 
 	public boolean isMatchedBy(TextGrid grid){
 		/*if(grid.getHeight() != this.getHeight()
 			|| grid.getWidth() != this.getWidth()) return false;*/
-		if(!regExpsAreValid) prepareRegExps(); 
+		List<Pattern> regExps = this.regExps;
+		if(regExps == null) regExps = prepareRegExps();
 
 		for(int i = 0; i < grid.getHeight(); i++) {
 			StringBuilder row = grid.getRow(i);
@@ -115,9 +130,40 @@ public class GridPattern extends TextGrid {
 		return true;
 	}
 	
-	private void prepareRegExps(){
-		regExpsAreValid = true;
-		regExps.clear();
+	/**
+	 * Tests the 3x3 cells of <code>grid</code> around <code>x, y</code>
+	 * where they are, without copying them into a grid of their own as
+	 * {@link #isMatchedBy(TextGrid)} needs. Cells out of the grid are
+	 * taken to be the character 0.
+	 */
+	public boolean isMatchedBy(TextGrid grid, int x, int y){
+		if(usesStandardSyntax) return isMatchedBy(grid.getSubGrid(x - 1, y - 1, 3, 3));
+		CellClass[] cellClasses = this.cellClasses;
+		if(cellClasses == null) cellClasses = prepareCellClasses();
+
+		for(int i : CELL_ORDER) {
+			if(!cellClasses[i].matches(grid.get(x - 1 + i % 3, y - 1 + i / 3))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private CellClass[] prepareCellClasses(){
+		CellClass[] cellClasses = new CellClass[9];
+		List<StringBuilder> rows = getRows();
+		for(int y = 0; y < 3; y++){
+			List<String> tokens = makeRegExps(rows.get(y).toString());
+			for(int x = 0; x < 3; x++){
+				cellClasses[y * 3 + x] = x < tokens.size() ? new CellClass(tokens.get(x)) : CellClass.NONE;
+			}
+		}
+		this.cellClasses = cellClasses;
+		return cellClasses;
+	}
+
+	private List<Pattern> prepareRegExps(){
+		List<Pattern> regExps = new ArrayList<Pattern>();
 		if (!usesStandardSyntax) {
 			for (StringBuilder sb : getRows()) {
 				String row = sb.toString();
@@ -129,12 +175,25 @@ public class GridPattern extends TextGrid {
 				regExps.add(Pattern.compile(row));
 			}
 		}
+		this.regExps = regExps;
+		return regExps;
 	}
 	
 	private String makeRegExp(String pattern){
 		StringBuilder result = new StringBuilder();
-		int tokensHandled = 0;
-		for(int i = 0; i < pattern.length() && tokensHandled < 3; i++){
+		for (String token : makeRegExps(pattern)) {
+			result.append(token);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * @return the regexps of the (up to 3) cells of a row of custom syntax
+	 */
+	private List<String> makeRegExps(String pattern){
+		List<String> tokens = new ArrayList<String>();
+		for(int i = 0; i < pattern.length() && tokens.size() < 3; i++){
+			StringBuilder result = new StringBuilder();
 			char c = pattern.charAt(i);
 			if(c == '[') {
 				result.append("[^|:]");
@@ -220,18 +279,52 @@ public class GridPattern extends TextGrid {
 					result.append("[^-=+\\/\\\\]");
 				}
 			} else result.append(String.valueOf(c));
-			tokensHandled++;
+			tokens.add(result.toString());
 		}
-		return result.toString();
+		return tokens;
 	}
 
 
 	public void setTo(String row1, String row2, String row3){
 		if(getHeight() != 3) throw new RuntimeException("This method can only be called for GridPatternS with height 3");
-		regExpsAreValid = false;
+		regExps = null;
+		cellClasses = null;
 		writeStringTo(0, 0, row1);
 		writeStringTo(0, 1, row2);
 		writeStringTo(0, 2, row3);
 		//don't use setRow() here!
 	}
+
+	/**
+	 * The characters a cell of a pattern matches: the ASCII ones are looked
+	 * up in a bit set worked out from the regexp of the cell, and only the
+	 * others are matched against the regexp itself.
+	 */
+	private static final class CellClass {
+
+		static final CellClass NONE = new CellClass(null);
+
+		private final Pattern regExp;
+		private final long lowBits;
+		private final long highBits;
+
+		CellClass(String regExp){
+			this.regExp = regExp == null ? null : Pattern.compile(regExp);
+			long lowBits = 0;
+			long highBits = 0;
+			for(char c = 0; c < 128 && regExp != null; c++){
+				if(!this.regExp.matcher(String.valueOf(c)).matches()) continue;
+				if(c < 64) lowBits |= 1L << c;
+				else highBits |= 1L << (c - 64);
+			}
+			this.lowBits = lowBits;
+			this.highBits = highBits;
+		}
+
+		boolean matches(char c){
+			if(c < 64) return (lowBits & (1L << c)) != 0;
+			if(c < 128) return (highBits & (1L << (c - 64))) != 0;
+			return regExp != null && regExp.matcher(String.valueOf(c)).matches();
+		}
+	}
 }
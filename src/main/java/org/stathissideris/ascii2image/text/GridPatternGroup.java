@@ -35,6 +35,16 @@ public class GridPatternGroup extends ArrayList<GridPattern> {
 		return false;
 	}
 
+	/**
+	 * @see GridPattern#isMatchedBy(TextGrid, int, int)
+	 */
+	public boolean isAnyMatchedBy(TextGrid grid, int x, int y){
+		for (int i = 0; i < size(); i++) {
+			if(get(i).isMatchedBy(grid, x, y)) return true;
+		}
+		return false;
+	}
+
 	public static final GridPatternGroup normalCorner1Criteria = new GridPatternGroup() {
 		{
 			add(new GridPattern(
@@ -0,0 +1,393 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.text;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import yskkin.ascii2image.util.Cancellation;
+
+/**
+ * The lines of a grid as a planar graph, from which the boundaries of
+ * shapes are read directly instead of being found by filling the grid.
+ * 
+ * <p>The nodes are the corners, intersections and ends of lines, and any
+ * point markers given. The edges are the straight, possibly dashed,
+ * segments between them. Cells connect the same way they do in an
+ * {@link AbstractionGrid}: two neighbouring cells are joined when the
+ * lines of both reach their common side.</p>
+ * 
+ * <p>The faces of the graph are found by walking along the edges and
+ * always taking the rightmost turn. Every face that is not the outside of
+ * its lines bounds a closed shape, made of the edges that have the face
+ * on one side only; edges with the same face on both sides are the lines
+ * that stick into or out of a shape. The cells that are not on a closed shape form the
+ * open shapes. Shapes that are partly open and partly closed are
+ * therefore split without further work.</p>
+ * 
+ * @author Efstathios Sideris
+ */
+public class LineGraph {
+
+	//directions, in clockwise order
+	private static final int NORTH = 0;
+	private static final int EAST = 1;
+	private static final int SOUTH = 2;
+	private static final int WEST = 3;
+	private static final int[] DX = {0, 1, 0, -1};
+	private static final int[] DY = {-1, 0, 1, 0};
+
+	private final int width;
+	private final int height;
+	/** the directions the lines of each cell go in, a bit per direction */
+	private final int[] lines;
+	private final Node[] nodeAt;
+	private final List<Node> nodes = new ArrayList<Node>();
+	private final List<Edge> edges = new ArrayList<Edge>();
+	private final List<CellSet> closed = new ArrayList<CellSet>();
+	private final List<CellSet> open = new ArrayList<CellSet>();
+
+	/**
+	 * A corner, intersection, end of line or point marker.
+	 */
+	public static class Node {
+		private final TextGrid.Cell cell;
+		private final int index;
+		private final Edge[] edges = new Edge[4];
+
+		private Node(TextGrid.Cell cell, int index) {
+			this.cell = cell;
+			this.index = index;
+		}
+
+		public TextGrid.Cell getCell() {
+			return cell;
+		}
+
+		/**
+		 * @return the number of edges that meet at this node
+		 */
+		public int getDegree() {
+			int result = 0;
+			for (Edge edge : edges) {
+				if (edge != null) result++;
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * A straight segment between two nodes.
+	 */
+	public static class Edge {
+		private final Node from;
+		private final int fromDirection;
+		private final Node to;
+		private final int toDirection;
+		private final CellSet cells;
+		private final boolean dashed;
+
+		private Edge(Node from, int fromDirection, Node to, int toDirection, CellSet cells, boolean dashed) {
+			this.from = from;
+			this.fromDirection = fromDirection;
+			this.to = to;
+			this.toDirection = toDirection;
+			this.cells = cells;
+			this.dashed = dashed;
+		}
+
+		public Node getFrom() {
+			return from;
+		}
+
+		public Node getTo() {
+			return to;
+		}
+
+		/**
+		 * @return the cells of the segment, its two nodes included
+		 */
+		public CellSet getCells() {
+			return cells;
+		}
+
+		public boolean isDashed() {
+			return dashed;
+		}
+	}
+
+	/**
+	 * Builds the graph of the lines of <code>grid</code>.
+	 * 
+	 * @param grid a grid with no text on its lines, see
+	 *   {@link TextGrid#replaceTypeOnLine()}
+	 * @param markers cells to make nodes of even where a line goes straight
+	 *   through them, usually the point markers; may be null
+	 */
+	public LineGraph(TextGrid grid, CellSet markers) {
+		width = grid.getWidth();
+		height = grid.getHeight();
+		lines = new int[width * height];
+		nodeAt = new Node[width * height];
+
+		for (TextGrid.Cell cell : grid.getAllBoundaries()) {
+			AbstractCell abstractCell = AbstractionGrid.abstractCellOf(grid, cell);
+			if (abstractCell == null) continue;
+			int cellLines = 0;
+			if (abstractCell.rows[1][0] == 1) cellLines |= 1 << NORTH;
+			if (abstractCell.rows[2][1] == 1) cellLines |= 1 << EAST;
+			if (abstractCell.rows[1][2] == 1) cellLines |= 1 << SOUTH;
+			if (abstractCell.rows[0][1] == 1) cellLines |= 1 << WEST;
+			lines[cell.y * width + cell.x] = cellLines;
+		}
+
+		findNodes(markers);
+		for (Node node : nodes) {
+			for (int direction = NORTH; direction <= WEST; direction++) {
+				if (node.edges[direction] == null && isJoined(node.cell.x, node.cell.y, direction)) {
+					followEdge(grid, node, direction);
+				}
+			}
+		}
+		findClosed();
+		findOpen();
+	}
+
+	/**
+	 * @return the boundaries of the closed shapes, one per cycle around a face
+	 */
+	public List<CellSet> getClosedBoundaries() {
+		return closed;
+	}
+
+	/**
+	 * @return the boundaries of the open shapes, one per group of connected
+	 *   cells that are not on a closed shape
+	 */
+	public List<CellSet> getOpenBoundaries() {
+		return open;
+	}
+
+	public List<Node> getNodes() {
+		return Collections.unmodifiableList(nodes);
+	}
+
+	public List<Edge> getEdges() {
+		return Collections.unmodifiableList(edges);
+	}
+
+	private boolean isJoined(int x, int y, int direction) {
+		if ((lines[y * width + x] & (1 << direction)) == 0) return false;
+		int nx = x + DX[direction];
+		int ny = y + DY[direction];
+		if (nx < 0 || ny < 0 || nx >= width || ny >= height) return false;
+		return (lines[ny * width + nx] & (1 << opposite(direction))) != 0;
+	}
+
+	private static int opposite(int direction) {
+		return (direction + 2) % 4;
+	}
+
+	private void findNodes(CellSet markers) {
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if (lines[y * width + x] == 0) continue;
+				boolean north = isJoined(x, y, NORTH);
+				boolean east = isJoined(x, y, EAST);
+				boolean south = isJoined(x, y, SOUTH);
+				boolean west = isJoined(x, y, WEST);
+				boolean straight = (north && south && !east && !west)
+					|| (east && west && !north && !south);
+				TextGrid.Cell cell = new TextGrid.Cell(x, y);
+				if (!straight || (markers != null && markers.contains(cell))) {
+					Node node = new Node(cell, nodes.size());
+					nodes.add(node);
+					nodeAt[y * width + x] = node;
+				}
+			}
+		}
+	}
+
+	private void followEdge(TextGrid grid, Node from, int direction) {
+		CellSet cells = new CellSet();
+		cells.add(from.cell);
+		int x = from.cell.x + DX[direction];
+		int y = from.cell.y + DY[direction];
+		while (nodeAt[y * width + x] == null) {
+			cells.add(new TextGrid.Cell(x, y));
+			x += DX[direction];
+			y += DY[direction];
+		}
+		Node to = nodeAt[y * width + x];
+		cells.add(to.cell);
+		Edge edge = new Edge(from, direction, to, opposite(direction), cells,
+				grid.containsAtLeastOneDashedLine(cells));
+		from.edges[direction] = edge;
+		to.edges[opposite(direction)] = edge;
+		edges.add(edge);
+	}
+
+	/**
+	 * Walks around every face, keeping the faces that are inside their
+	 * lines. Taking the rightmost turn at each node keeps the face on the
+	 * right, so inner faces are walked clockwise and have a positive area
+	 * (the y axis points down) while the outside of a group of lines has a
+	 * negative one, or none at all if the lines do not enclose anything.
+	 */
+	private void findClosed() {
+		Set<CellSet> result = new LinkedHashSet<CellSet>();
+		boolean[] walked = new boolean[nodes.size() * 4];
+		for (Node start : nodes) {
+			for (int startDirection = NORTH; startDirection <= WEST; startDirection++) {
+				if (start.edges[startDirection] == null || walked[start.index * 4 + startDirection]) continue;
+				Cancellation.checkpoint();
+				List<Edge> face = new ArrayList<Edge>();
+				long doubleArea = 0;
+				Node node = start;
+				int direction = startDirection;
+				do {
+					walked[node.index * 4 + direction] = true;
+					Edge edge = node.edges[direction];
+					Node next;
+					int arrival;
+					if (edge.from == node && edge.fromDirection == direction) {
+						next = edge.to;
+						arrival = edge.toDirection;
+					} else {
+						next = edge.from;
+						arrival = edge.fromDirection;
+					}
+					face.add(edge);
+					doubleArea += (long) node.cell.x * next.cell.y - (long) next.cell.x * node.cell.y;
+					node = next;
+					direction = rightmostTurn(node, arrival);
+				} while (node != start || direction != startDirection);
+
+				if (doubleArea > 0) result.addAll(splitIntoCycles(face));
+			}
+		}
+		for (CellSet set : result) {
+			closed.add(inRowOrder(set));
+		}
+	}
+
+	/**
+	 * @return a copy of <code>set</code> with its cells added row by row, so
+	 *   that it iterates like the sets found by filling
+	 */
+	private CellSet inRowOrder(CellSet set) {
+		boolean[] member = new boolean[width * height];
+		int minIndex = Integer.MAX_VALUE;
+		int maxIndex = 0;
+		for (TextGrid.Cell cell : set) {
+			int index = cell.y * width + cell.x;
+			member[index] = true;
+			minIndex = Math.min(minIndex, index);
+			maxIndex = Math.max(maxIndex, index);
+		}
+		CellSet result = new CellSet();
+		for (int index = minIndex; index <= maxIndex; index++) {
+			if (member[index]) result.add(new TextGrid.Cell(index % width, index / width));
+		}
+		return result;
+	}
+
+	/**
+	 * @return the edge furthest to the right for a walk that arrives at
+	 *   <code>node</code> through <code>arrival</code>, which is
+	 *   <code>arrival</code> itself at the end of a line
+	 */
+	private static int rightmostTurn(Node node, int arrival) {
+		for (int turn = 3; turn >= 0; turn--) {
+			int direction = (arrival + turn) % 4;
+			if (node.edges[direction] != null) return direction;
+		}
+		throw new IllegalStateException("Arrived at a node without edges");
+	}
+
+	/**
+	 * @return the cells of the edges that are walked once in
+	 *   <code>face</code>, a set per group of connected edges
+	 */
+	private static List<CellSet> splitIntoCycles(List<Edge> face) {
+		List<Edge> once = new ArrayList<Edge>();
+		for (Edge edge : face) {
+			if (face.indexOf(edge) == face.lastIndexOf(edge)) once.add(edge);
+		}
+		List<CellSet> result = new ArrayList<CellSet>();
+		while (!once.isEmpty()) {
+			List<Edge> cycle = new ArrayList<Edge>();
+			cycle.add(once.remove(0));
+			for (int i = 0; i < cycle.size(); i++) {
+				Edge edge = cycle.get(i);
+				for (int j = once.size() - 1; j >= 0; j--) {
+					Edge other = once.get(j);
+					if (other.from == edge.from || other.from == edge.to
+							|| other.to == edge.from || other.to == edge.to) {
+						cycle.add(once.remove(j));
+					}
+				}
+			}
+			CellSet cells = new CellSet();
+			for (Edge edge : cycle) {
+				cells.addAll(edge.cells);
+			}
+			result.add(cells);
+		}
+		return result;
+	}
+
+	private void findOpen() {
+		boolean[] onClosed = new boolean[width * height];
+		for (CellSet set : closed) {
+			for (TextGrid.Cell cell : set) {
+				onClosed[cell.y * width + cell.x] = true;
+			}
+		}
+		boolean[] seen = new boolean[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int index = y * width + x;
+				if (lines[index] == 0 || onClosed[index] || seen[index]) continue;
+				CellSet set = new CellSet();
+				List<TextGrid.Cell> queue = new ArrayList<TextGrid.Cell>();
+				queue.add(new TextGrid.Cell(x, y));
+				seen[index] = true;
+				for (int i = 0; i < queue.size(); i++) {
+					TextGrid.Cell cell = queue.get(i);
+					set.add(cell);
+					for (int direction = NORTH; direction <= WEST; direction++) {
+						if (!isJoined(cell.x, cell.y, direction)) continue;
+						int nx = cell.x + DX[direction];
+						int ny = cell.y + DY[direction];
+						int next = ny * width + nx;
+						if (onClosed[next] || seen[next]) continue;
+						seen[next] = true;
+						queue.add(new TextGrid.Cell(nx, ny));
+					}
+				}
+				open.add(inRowOrder(set));
+			}
+		}
+	}
+}
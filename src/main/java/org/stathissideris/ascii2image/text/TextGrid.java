@@ -66,9 +66,19 @@ public class TextGrid {
 		put(8, new Character[]{'-', '=', '+', '\\', '/'});
 	}};
 
-	private static PresetTag tag = new PresetTag();
+	/** The tags of every grid that has no custom shapes. It is never extended. */
+	private static final PresetTag DEFAULT_TAGS = new PresetTag();
 
+	private PresetTag tag = DEFAULT_TAGS;
+
+	/**
+	 * Adds the tags of custom shapes to the tags recognized in this grid.
+	 * Other grids are not affected.
+	 * 
+	 * @param tags
+	 */
 	public void addToMarkupTags(Collection<String> tags){
+		if(tag == DEFAULT_TAGS) tag = new PresetTag();
 		tag.addAllTag(tags);
 	}
 
@@ -93,10 +103,11 @@ public class TextGrid {
 		for(StringBuilder row : otherGrid.getRows()) {
 			rows.add(new StringBuilder(row));
 		}		
+		if(otherGrid.tag != DEFAULT_TAGS) tag = new PresetTag(otherGrid.tag);
 	}
 
 //	duplicated code due to lots of hits to this function
-	private char get(int x, int y){
+	char get(int x, int y){
 		if(x > getWidth() - 1
 			|| y > getHeight() - 1
 			|| x < 0
@@ -229,20 +240,19 @@ public class TextGrid {
 		for(int yi = 0; yi < height; yi++){
 			for(int xi = 0; xi < width; xi++){
 				char c = get(xi, yi);
-				Cell cell = new Cell(xi, yi);
 				if(StringUtils.isOneOf(c, pointMarkers)
-						&& isStarOnLine(cell)){
+						&& isStarOnLine(xi, yi)){
 					
 					boolean isOnHorizontalLine = false;
-					if(StringUtils.isOneOf(get(cell.getEast()), horizontalLines))
+					if(StringUtils.isOneOf(get(xi + 1, yi), horizontalLines))
 						isOnHorizontalLine = true;
-					if(StringUtils.isOneOf(get(cell.getWest()), horizontalLines))
+					if(StringUtils.isOneOf(get(xi - 1, yi), horizontalLines))
 						isOnHorizontalLine = true;
 
 					boolean isOnVerticalLine = false;
-					if(StringUtils.isOneOf(get(cell.getNorth()), verticalLines))
+					if(StringUtils.isOneOf(get(xi, yi - 1), verticalLines))
 						isOnVerticalLine = true;
-					if(StringUtils.isOneOf(get(cell.getSouth()), verticalLines))
+					if(StringUtils.isOneOf(get(xi, yi + 1), verticalLines))
 						isOnVerticalLine = true;
  
 					if(isOnHorizontalLine && isOnVerticalLine){
@@ -268,7 +278,7 @@ public class TextGrid {
 			for(int xi = 0; xi < width; xi++){
 				char c = get(xi, yi);
 				if(StringUtils.isOneOf(c, pointMarkers)
-						&& isStarOnLine(new Cell(xi, yi))){
+						&& isStarOnLine(xi, yi)){
 					result.add(new Cell(xi, yi));
 				}
 			}
@@ -305,8 +315,7 @@ public class TextGrid {
 		int height = getHeight();
 		for(int y = 0; y < height; y++){
 			for(int x = 0; x < width; x++){
-				Cell cell = new Cell(x, y);
-				if(isBoundary(cell)) set.add(cell);
+				if(isBoundary(x, y)) set.add(new Cell(x, y));
 			}
 		}
 		return set;
@@ -342,9 +351,9 @@ public class TextGrid {
 	 * @param entryPointId
 	 * @return
 	 */
-	private boolean hasEntryPoint(Cell cell, int entryPointId){
+	private boolean hasEntryPoint(int x, int y, int entryPointId){
 		if (0 < entryPointId && entryPointId < 9) {
-			char c = get(cell);
+			char c = get(x, y);
 			return StringUtils.isOneOf(c, entryPoints.get(entryPointId));
 		}
 		return false;
@@ -368,8 +377,7 @@ public class TextGrid {
 		int height = getHeight();
 		for(int yi = 0; yi < height; yi++){
 			for(int xi = 0; xi < width; xi++){
-				Cell cell = new Cell(xi, yi);
-				if(isArrowhead(cell)) set(cell, ' ');
+				if(isArrowhead(xi, yi)) set(xi, yi, ' ');
 			}
 		}		
 	}
@@ -381,8 +389,7 @@ public class TextGrid {
 		int height = getHeight();
 		for(int yi = 0; yi < height; yi++){
 			for(int xi = 0; xi < width; xi++){
-				Cell cell = new Cell(xi, yi);
-				if(isBoundary(cell)) toBeRemoved.add(cell);
+				if(isBoundary(xi, yi)) toBeRemoved.add(new Cell(xi, yi));
 			}
 		}
 		
@@ -400,8 +407,7 @@ public class TextGrid {
 		int height = getHeight();
 		for(int yi = 0; yi < height; yi++){
 			for(int xi = 0; xi < width; xi++){
-				Cell cell = new Cell(xi, yi);
-				if(isArrowhead(cell)) result.add(cell);
+				if(isArrowhead(xi, yi)) result.add(new Cell(xi, yi));
 			}
 		}
 		LOG.fine(result.size()+" arrowheads found");
@@ -470,15 +476,15 @@ public class TextGrid {
 		return false;
 	}
 
-	private boolean isBoundary(Cell cell){
-		char c = get(cell.x, cell.y);
+	private boolean isBoundary(int x, int y){
+		char c = get(x, y);
 		if(0 == c) return false;
 		if('+' == c || '\\' == c || '/' == c){
 			if(
-			       isIntersection(cell) 
-				|| isCorner(cell)
-				|| isStub(cell) 
-				|| isCrossOnLine(cell)){
+			       isIntersection(x, y) 
+				|| isCorner(x, y)
+				|| isStub(x, y) 
+				|| isCrossOnLine(x, y)){
 				return true;
 			} else return false;
 		}
@@ -488,15 +494,16 @@ public class TextGrid {
 		return false;
 	}
 
-	public boolean isLine(Cell cell){
-		return isHorizontalLine(cell) || isVerticalLine(cell);
+	public boolean isLine(Cell cell){ return isLine(cell.x, cell.y); }
+	public boolean isLine(int x, int y){
+		return isHorizontalLine(x, y) || isVerticalLine(x, y);
 	}
 
 	private static boolean isHorizontalLine(char c){
 		return StringUtils.isOneOf(c, horizontalLines);
 	}
 	public boolean isHorizontalLine(Cell cell){ return isHorizontalLine(cell.x, cell.y); }
-	private boolean isHorizontalLine(int x, int y){
+	public boolean isHorizontalLine(int x, int y){
 		char c = get(x, y);
 		if(0 == c) return false;
 		return StringUtils.isOneOf(c, horizontalLines);
@@ -506,7 +513,7 @@ public class TextGrid {
 		return StringUtils.isOneOf(c, verticalLines);
 	}
 	public boolean isVerticalLine(Cell cell){ return isVerticalLine(cell.x, cell.y); }
-	private boolean isVerticalLine(int x, int y){
+	public boolean isVerticalLine(int x, int y){
 		char c = get(x, y);
 		if(0 == c) return false;
 		return StringUtils.isOneOf(c, verticalLines);
@@ -518,16 +525,18 @@ public class TextGrid {
 	 * @param cell
 	 * @return
 	 */
-	public boolean isLinesEnd(Cell cell){
-		return matchesAny(cell, GridPatternGroup.linesEndCriteria);
+	public boolean isLinesEnd(Cell cell){ return isLinesEnd(cell.x, cell.y); }
+	public boolean isLinesEnd(int x, int y){
+		return matchesAny(x, y, GridPatternGroup.linesEndCriteria);
 	}
 
-	public boolean isPointCell(Cell cell){
+	public boolean isPointCell(Cell cell){ return isPointCell(cell.x, cell.y); }
+	public boolean isPointCell(int x, int y){
 		return (
-			isCorner(cell)
-			|| isIntersection(cell)
-			|| isStub(cell)
-			|| isLinesEnd(cell));
+			isCorner(x, y)
+			|| isIntersection(x, y)
+			|| isStub(x, y)
+			|| isLinesEnd(x, y));
 	}
 
 
@@ -553,48 +562,56 @@ public class TextGrid {
 	 * @return
 	 */
 
-	private boolean isStub(Cell cell){
-		return matchesAny(cell, GridPatternGroup.stubCriteria);
+	private boolean isStub(Cell cell){ return isStub(cell.x, cell.y); }
+	private boolean isStub(int x, int y){
+		return matchesAny(x, y, GridPatternGroup.stubCriteria);
 	}
 
-	public boolean isCrossOnLine(Cell cell){
-		return matchesAny(cell, GridPatternGroup.crossOnLineCriteria);
+	public boolean isCrossOnLine(Cell cell){ return isCrossOnLine(cell.x, cell.y); }
+	public boolean isCrossOnLine(int x, int y){
+		return matchesAny(x, y, GridPatternGroup.crossOnLineCriteria);
 	}
 
-	private boolean isHorizontalCrossOnLine(Cell cell){
-		return matchesAny(cell, GridPatternGroup.horizontalCrossOnLineCriteria);
+	private boolean isHorizontalCrossOnLine(int x, int y){
+		return matchesAny(x, y, GridPatternGroup.horizontalCrossOnLineCriteria);
 	}
 
-	private boolean isVerticalCrossOnLine(Cell cell){
-		return matchesAny(cell, GridPatternGroup.verticalCrossOnLineCriteria);
+	private boolean isVerticalCrossOnLine(int x, int y){
+		return matchesAny(x, y, GridPatternGroup.verticalCrossOnLineCriteria);
 	}
 
-	public boolean isStarOnLine(Cell cell){
-		return matchesAny(cell, GridPatternGroup.starOnLineCriteria);
+	public boolean isStarOnLine(Cell cell){ return isStarOnLine(cell.x, cell.y); }
+	public boolean isStarOnLine(int x, int y){
+		return matchesAny(x, y, GridPatternGroup.starOnLineCriteria);
 	}
 
-	public boolean isArrowhead(Cell cell){
-		return (isNorthArrowhead(cell)
-				|| isSouthArrowhead(cell)
-				|| isWestArrowhead(cell)
-				|| isEastArrowhead(cell));
+	public boolean isArrowhead(Cell cell){ return isArrowhead(cell.x, cell.y); }
+	public boolean isArrowhead(int x, int y){
+		return (isNorthArrowhead(x, y)
+				|| isSouthArrowhead(x, y)
+				|| isWestArrowhead(x, y)
+				|| isEastArrowhead(x, y));
 	}
 	
-	public boolean isNorthArrowhead(Cell cell){
-		return get(cell) == '^';
+	public boolean isNorthArrowhead(Cell cell){ return isNorthArrowhead(cell.x, cell.y); }
+	public boolean isNorthArrowhead(int x, int y){
+		return get(x, y) == '^';
 	}
 
-	public boolean isEastArrowhead(Cell cell){
-		return get(cell) == '>';
+	public boolean isEastArrowhead(Cell cell){ return isEastArrowhead(cell.x, cell.y); }
+	public boolean isEastArrowhead(int x, int y){
+		return get(x, y) == '>';
 	}
 
-	public boolean isWestArrowhead(Cell cell){
-		return get(cell) == '<';
+	public boolean isWestArrowhead(Cell cell){ return isWestArrowhead(cell.x, cell.y); }
+	public boolean isWestArrowhead(int x, int y){
+		return get(x, y) == '<';
 	}
 
-	public boolean isSouthArrowhead(Cell cell){
-		return (get(cell) == 'v' || get(cell) == 'V')
-				&& isVerticalLine(cell.getNorth());
+	public boolean isSouthArrowhead(Cell cell){ return isSouthArrowhead(cell.x, cell.y); }
+	public boolean isSouthArrowhead(int x, int y){
+		return (get(x, y) == 'v' || get(x, y) == 'V')
+				&& isVerticalLine(x, y - 1);
 	}
 	
 	
@@ -627,8 +644,9 @@ public class TextGrid {
 	 * @param cell
 	 * @return
 	 */
-	private boolean isStringsStart(Cell cell){
-		return (!isBlank(cell) && isBlank(cell.getWest()));
+	private boolean isStringsStart(Cell cell){ return isStringsStart(cell.x, cell.y); }
+	private boolean isStringsStart(int x, int y){
+		return (get(x, y) != ' ' && get(x - 1, y) == ' ');
 	}
 
 	/**
@@ -638,10 +656,11 @@ public class TextGrid {
 	 * @param cell
 	 * @return
 	 */
-	private boolean isStringsEnd(Cell cell){
-		return (!isBlank(cell)
+	private boolean isStringsEnd(Cell cell){ return isStringsEnd(cell.x, cell.y); }
+	private boolean isStringsEnd(int x, int y){
+		return (get(x, y) != ' '
 			//&& (isBlank(cell.getEast()) || get(cell.getEast()) == 0));
-			&& isBlank(cell.getEast()));
+			&& get(x + 1, y) == ' ');
 	}
 
 	public int otherStringsStartInTheSameColumn(Cell cell){
@@ -649,8 +668,7 @@ public class TextGrid {
 		int result = 0;
 		int height = getHeight();
 		for(int y = 0; y < height; y++){
-			Cell cCell = new Cell(cell.x, y);
-			if(!cCell.equals(cell) && isStringsStart(cCell)){
+			if(y != cell.y && isStringsStart(cell.x, y)){
 				result++;
 			}
 		}
@@ -662,25 +680,29 @@ public class TextGrid {
 		int result = 0;
 		int height = getHeight();
 		for(int y = 0; y < height; y++){
-			Cell cCell = new Cell(cell.x, y);
-			if(!cCell.equals(cell) && isStringsEnd(cCell)){
+			if(y != cell.y && isStringsEnd(cell.x, y)){
 				result++;
 			}
 		}
 		return result;
 	}
 
+	/**
+	 * @return whether <code>cell</code> is the cell at <code>x, y</code>
+	 */
+	private static boolean isAt(Cell cell, int x, int y){
+		return cell != null && cell.x == x && cell.y == y;
+	}
+
 	private CellSet followIntersection(Cell cell, Cell blocked){
-		if(!isIntersection(cell)) return null;
+		int x = cell.x;
+		int y = cell.y;
+		if(!isIntersection(x, y)) return null;
 		CellSet result = new CellSet();
-		Cell cN = cell.getNorth();
-		Cell cS = cell.getSouth();
-		Cell cE = cell.getEast();
-		Cell cW = cell.getWest();
-		if(hasEntryPoint(cN, 6)) result.add(cN);
-		if(hasEntryPoint(cS, 2)) result.add(cS);
-		if(hasEntryPoint(cE, 8)) result.add(cE);
-		if(hasEntryPoint(cW, 4)) result.add(cW);
+		if(hasEntryPoint(x, y - 1, 6)) result.add(cell.getNorth());
+		if(hasEntryPoint(x, y + 1, 2)) result.add(cell.getSouth());
+		if(hasEntryPoint(x + 1, y, 8)) result.add(cell.getEast());
+		if(hasEntryPoint(x - 1, y, 4)) result.add(cell.getWest());
 		if(result.contains(blocked)) result.remove(blocked);
 		return result;
 	}
@@ -693,15 +715,17 @@ public class TextGrid {
 	 * @return null if the cell is not a line
 	 */
 	private CellSet followLine(Cell cell){
-		if(isHorizontalLine(cell)){
+		int x = cell.x;
+		int y = cell.y;
+		if(isHorizontalLine(x, y)){
 			CellSet result = new CellSet();
-			if(isBoundary(cell.getEast())) result.add(cell.getEast());
-			if(isBoundary(cell.getWest())) result.add(cell.getWest());
+			if(isBoundary(x + 1, y)) result.add(cell.getEast());
+			if(isBoundary(x - 1, y)) result.add(cell.getWest());
 			return result;
-		} else if (isVerticalLine(cell)){
+		} else if (isVerticalLine(x, y)){
 			CellSet result = new CellSet();
-			if(isBoundary(cell.getNorth())) result.add(cell.getNorth());
-			if(isBoundary(cell.getSouth())) result.add(cell.getSouth());
+			if(isBoundary(x, y - 1)) result.add(cell.getNorth());
+			if(isBoundary(x, y + 1)) result.add(cell.getSouth());
 			return result;			
 		}
 		return null;
@@ -714,53 +738,53 @@ public class TextGrid {
 	}
 
 	private CellSet followCorner(Cell cell, Cell blocked){
-		if(!isCorner(cell)) return null;
-		if(isCorner1(cell)) return followCorner1(cell, blocked);
-		if(isCorner2(cell)) return followCorner2(cell, blocked);
-		if(isCorner3(cell)) return followCorner3(cell, blocked);
-		if(isCorner4(cell)) return followCorner4(cell, blocked);
+		if(!isCorner(cell.x, cell.y)) return null;
+		if(isCorner1(cell.x, cell.y)) return followCorner1(cell, blocked);
+		if(isCorner2(cell.x, cell.y)) return followCorner2(cell, blocked);
+		if(isCorner3(cell.x, cell.y)) return followCorner3(cell, blocked);
+		if(isCorner4(cell.x, cell.y)) return followCorner4(cell, blocked);
 		return null;
 	}
 
 	private CellSet followCorner1(Cell cell, Cell blocked){
-		if(!isCorner1(cell)) return null;
+		if(!isCorner1(cell.x, cell.y)) return null;
 		CellSet result = new CellSet();
-		if(!cell.getSouth().equals(blocked)) result.add(cell.getSouth());
-		if(!cell.getEast().equals(blocked)) result.add(cell.getEast());
+		if(!isAt(blocked, cell.x, cell.y + 1)) result.add(cell.getSouth());
+		if(!isAt(blocked, cell.x + 1, cell.y)) result.add(cell.getEast());
 		return result;
 	}
 
 	private CellSet followCorner2(Cell cell, Cell blocked){
-		if(!isCorner2(cell)) return null;
+		if(!isCorner2(cell.x, cell.y)) return null;
 		CellSet result = new CellSet();
-		if(!cell.getSouth().equals(blocked)) result.add(cell.getSouth());
-		if(!cell.getWest().equals(blocked)) result.add(cell.getWest());
+		if(!isAt(blocked, cell.x, cell.y + 1)) result.add(cell.getSouth());
+		if(!isAt(blocked, cell.x - 1, cell.y)) result.add(cell.getWest());
 		return result;
 	}
 
 	private CellSet followCorner3(Cell cell, Cell blocked){
-		if(!isCorner3(cell)) return null;
+		if(!isCorner3(cell.x, cell.y)) return null;
 		CellSet result = new CellSet();
-		if(!cell.getNorth().equals(blocked)) result.add(cell.getNorth());
-		if(!cell.getWest().equals(blocked)) result.add(cell.getWest());
+		if(!isAt(blocked, cell.x, cell.y - 1)) result.add(cell.getNorth());
+		if(!isAt(blocked, cell.x - 1, cell.y)) result.add(cell.getWest());
 		return result;
 	}
 
 	private CellSet followCorner4(Cell cell, Cell blocked){
-		if(!isCorner4(cell)) return null;
+		if(!isCorner4(cell.x, cell.y)) return null;
 		CellSet result = new CellSet();
-		if(!cell.getNorth().equals(blocked)) result.add(cell.getNorth());
-		if(!cell.getEast().equals(blocked)) result.add(cell.getEast());
+		if(!isAt(blocked, cell.x, cell.y - 1)) result.add(cell.getNorth());
+		if(!isAt(blocked, cell.x + 1, cell.y)) result.add(cell.getEast());
 		return result;
 	}
 
 	private CellSet followStub(Cell cell, Cell blocked){
-		if(!isStub(cell)) return null;
+		if(!isStub(cell.x, cell.y)) return null;
 		CellSet result = new CellSet();
-		if(isBoundary(cell.getEast())) result.add(cell.getEast());
-		else if(isBoundary(cell.getWest())) result.add(cell.getWest());
-		else if(isBoundary(cell.getNorth())) result.add(cell.getNorth());
-		else if(isBoundary(cell.getSouth())) result.add(cell.getSouth());
+		if(isBoundary(cell.x + 1, cell.y)) result.add(cell.getEast());
+		else if(isBoundary(cell.x - 1, cell.y)) result.add(cell.getWest());
+		else if(isBoundary(cell.x, cell.y - 1)) result.add(cell.getNorth());
+		else if(isBoundary(cell.x, cell.y + 1)) result.add(cell.getSouth());
 		if(result.contains(blocked)) result.remove(blocked);
 		return result;
 	}
@@ -770,11 +794,13 @@ public class TextGrid {
 	}
 	
 	public CellSet followCell(Cell cell, Cell blocked){
-		if(isIntersection(cell)) return followIntersection(cell, blocked);
-		if(isCorner(cell)) return followCorner(cell, blocked);
-		if(isLine(cell)) return followLine(cell, blocked);
-		if(isStub(cell)) return followStub(cell, blocked);
-		if(isCrossOnLine(cell)) return followCrossOnLine(cell, blocked);
+		int x = cell.x;
+		int y = cell.y;
+		if(isIntersection(x, y)) return followIntersection(cell, blocked);
+		if(isCorner(x, y)) return followCorner(cell, blocked);
+		if(isLine(x, y)) return followLine(cell, blocked);
+		if(isStub(x, y)) return followStub(cell, blocked);
+		if(isCrossOnLine(x, y)) return followCrossOnLine(cell, blocked);
 		LOG.severe("Umbiguous input at position "+cell+":");
 		TextGrid subGrid = getTestingSubGrid(cell);
 		subGrid.printDebug();
@@ -799,10 +825,10 @@ public class TextGrid {
 	
 	private CellSet followCrossOnLine(Cell cell, Cell blocked){
 		CellSet result = new CellSet();
-		if(isHorizontalCrossOnLine(cell)){
+		if(isHorizontalCrossOnLine(cell.x, cell.y)){
 			result.add(cell.getEast());
 			result.add(cell.getWest());
-		} else if(isVerticalCrossOnLine(cell)){
+		} else if(isVerticalCrossOnLine(cell.x, cell.y)){
 			result.add(cell.getNorth());
 			result.add(cell.getSouth());
 		}
@@ -810,11 +836,12 @@ public class TextGrid {
 		return result;
 	}
 
-	public boolean isOutOfBounds(Cell cell){
-		if(cell.x > getWidth() - 1
-			|| cell.y > getHeight() - 1
-			|| cell.x < 0
-			|| cell.y < 0) return true;
+	public boolean isOutOfBounds(Cell cell){ return isOutOfBounds(cell.x, cell.y); }
+	public boolean isOutOfBounds(int x, int y){
+		if(x > getWidth() - 1
+			|| y > getHeight() - 1
+			|| x < 0
+			|| y < 0) return true;
 		return false;
 	}
 
@@ -824,6 +851,9 @@ public class TextGrid {
 		return c == ' ';
 	}
 
+	/**
+	 * Unlike {@link #isBlank(Cell)}, cells out of the grid are blank.
+	 */
 	public boolean isBlank(int x, int y){
 		char c = get(x, y);
 		if(0 == c) return true;
@@ -833,69 +863,73 @@ public class TextGrid {
 	public boolean isCorner(Cell cell){
 		return isCorner(cell.x, cell.y);
 	}
-	private boolean isCorner(int x, int y){
+	public boolean isCorner(int x, int y){
 		return (isNormalCorner(x,y) || isRoundCorner(x,y));
 	}
 
 
-	private boolean matchesAny(Cell cell, GridPatternGroup criteria){
-		TextGrid subGrid = getTestingSubGrid(cell);
-		return subGrid.matchesAny(criteria);
+	private boolean matchesAny(int x, int y, GridPatternGroup criteria){
+		return criteria.isAnyMatchedBy(this, x, y);
 	}
 	
-	public boolean isCorner1(Cell cell){
-		return matchesAny(cell, GridPatternGroup.corner1Criteria);
-	}
-
-	public boolean isCorner2(Cell cell){
-		return matchesAny(cell, GridPatternGroup.corner2Criteria);
+	public boolean isCorner1(Cell cell){ return isCorner1(cell.x, cell.y); }
+	public boolean isCorner1(int x, int y){
+		return matchesAny(x, y, GridPatternGroup.corner1Criteria);
 	}
 
-	public boolean isCorner3(Cell cell){
-		return matchesAny(cell, GridPatternGroup.corner3Criteria);
+	public boolean isCorner2(Cell cell){ return isCorner2(cell.x, cell.y); }
+	public boolean isCorner2(int x, int y){
+		return matchesAny(x, y, GridPatternGroup.corner2Criteria);
 	}
 
-	public boolean isCorner4(Cell cell){
-		return matchesAny(cell, GridPatternGroup.corner4Criteria);
+	public boolean isCorner3(Cell cell){ return isCorner3(cell.x, cell.y); }
+	public boolean isCorner3(int x, int y){
+		return matchesAny(x, y, GridPatternGroup.corner3Criteria);
 	}
 
-	public boolean isCross(Cell cell){
-		return matchesAny(cell, GridPatternGroup.crossCriteria);
+	public boolean isCorner4(Cell cell){ return isCorner4(cell.x, cell.y); }
+	public boolean isCorner4(int x, int y){
+		return matchesAny(x, y, GridPatternGroup.corner4Criteria);
 	}
 
-	public boolean isK(Cell cell){
-		return matchesAny(cell, GridPatternGroup.KCriteria);
+	public boolean isCross(Cell cell){ return isCross(cell.x, cell.y); }
+	public boolean isCross(int x, int y){
+		return matchesAny(x, y, GridPatternGroup.crossCriteria);
 	}
 
-	public boolean isInverseK(Cell cell){
-		return matchesAny(cell, GridPatternGroup.inverseKCriteria);
+	public boolean isK(Cell cell){ return isK(cell.x, cell.y); }
+	public boolean isK(int x, int y){
+		return matchesAny(x, y, GridPatternGroup.KCriteria);
 	}
 
-	public boolean isT(Cell cell){
-		return matchesAny(cell, GridPatternGroup.TCriteria);
+	public boolean isInverseK(Cell cell){ return isInverseK(cell.x, cell.y); }
+	public boolean isInverseK(int x, int y){
+		return matchesAny(x, y, GridPatternGroup.inverseKCriteria);
 	}
 
-	public boolean isInverseT(Cell cell){
-		return matchesAny(cell, GridPatternGroup.inverseTCriteria);
+	public boolean isT(Cell cell){ return isT(cell.x, cell.y); }
+	public boolean isT(int x, int y){
+		return matchesAny(x, y, GridPatternGroup.TCriteria);
 	}
 
-	public boolean isNormalCorner(Cell cell){
-		return matchesAny(cell, GridPatternGroup.normalCornerCriteria);
-	}
-	private boolean isNormalCorner(int x, int y){
-		return isNormalCorner(new Cell(x, y));
+	public boolean isInverseT(Cell cell){ return isInverseT(cell.x, cell.y); }
+	public boolean isInverseT(int x, int y){
+		return matchesAny(x, y, GridPatternGroup.inverseTCriteria);
 	}
 
-	public boolean isRoundCorner(Cell cell){
-		return matchesAny(cell, GridPatternGroup.roundCornerCriteria);
+	public boolean isNormalCorner(Cell cell){ return isNormalCorner(cell.x, cell.y); }
+	public boolean isNormalCorner(int x, int y){
+		return matchesAny(x, y, GridPatternGroup.normalCornerCriteria);
 	}
 
-	private boolean isRoundCorner(int x, int y){
-		return isRoundCorner(new Cell(x, y));
+	public boolean isRoundCorner(Cell cell){ return isRoundCorner(cell.x, cell.y); }
+	public boolean isRoundCorner(int x, int y){
+		return matchesAny(x, y, GridPatternGroup.roundCornerCriteria);
 	}
 
-	public boolean isIntersection(Cell cell){
-		return matchesAny(cell, GridPatternGroup.intersectionCriteria);
+	public boolean isIntersection(Cell cell){ return isIntersection(cell.x, cell.y); }
+	public boolean isIntersection(int x, int y){
+		return matchesAny(x, y, GridPatternGroup.intersectionCriteria);
 	}
 
 	public void copyCellsTo(CellSet cells, TextGrid grid){
@@ -990,15 +1024,10 @@ public class TextGrid {
 			set(cell, newChar);
 			cellsFilled.add(cell);
 
-			Cell nCell = cell.getNorth();
-			Cell sCell = cell.getSouth();
-			Cell eCell = cell.getEast();
-			Cell wCell = cell.getWest();
-			
-			if(get(nCell) == oldChar) stack.push(nCell);
-			if(get(sCell) == oldChar) stack.push(sCell);
-			if(get(eCell) == oldChar) stack.push(eCell);
-			if(get(wCell) == oldChar) stack.push(wCell);
+			if(get(cell.x, cell.y - 1) == oldChar) stack.push(cell.getNorth());
+			if(get(cell.x, cell.y + 1) == oldChar) stack.push(cell.getSouth());
+			if(get(cell.x + 1, cell.y) == oldChar) stack.push(cell.getEast());
+			if(get(cell.x - 1, cell.y) == oldChar) stack.push(cell.getWest());
 		}
 		
 		return cellsFilled;
@@ -1032,39 +1061,38 @@ public class TextGrid {
 			
 			set(cell, newChar);
 
-			Cell nCell = cell.getNorth();
-			Cell sCell = cell.getSouth();
-			Cell eCell = cell.getEast();
-			Cell wCell = cell.getWest();
-                        
-			char nChar = get(nCell);
-			char sChar = get(sCell);
-			char eChar = get(eCell);
-			char wChar = get(wCell);
+			char nChar = get(cell.x, cell.y - 1);
+			char sChar = get(cell.x, cell.y + 1);
+			char eChar = get(cell.x + 1, cell.y);
+			char wChar = get(cell.x - 1, cell.y);
 			
 			if(nChar == oldChar) {
+				Cell nCell = cell.getNorth();
 				stack.push(nCell);
 				fill.add(nCell);
 			}
-			else if(nChar == '*') boundaries.add(nCell);
+			else if(nChar == '*') boundaries.add(cell.getNorth());
 			
 			if(sChar == oldChar) {
+				Cell sCell = cell.getSouth();
 				stack.push(sCell);
 				fill.add(sCell);
 			}
-			else if(sChar == '*') boundaries.add(sCell);
+			else if(sChar == '*') boundaries.add(cell.getSouth());
 			
 			if(eChar == oldChar) {
+				Cell eCell = cell.getEast();
 				stack.push(eCell);
 				fill.add(eCell);
 			}
-			else if(eChar == '*') boundaries.add(eCell);
+			else if(eChar == '*') boundaries.add(cell.getEast());
 			
 			if(wChar == oldChar) {
+				Cell wCell = cell.getWest();
 				stack.push(wCell);
 				fill.add(wCell);
 			}
-			else if(wChar == '*') boundaries.add(wCell);
+			else if(wChar == '*') boundaries.add(cell.getWest());
 		}
 		return new CellSet[] {boundaries, fill};
 	}
@@ -1084,14 +1112,30 @@ public class TextGrid {
 		throws IOException
 	{
 				
+		if ("-".equals(filename))
+		    return loadFrom(System.in, filename, options);
+		InputStream is = new FileInputStream(filename);
+		try {
+			return loadFrom(is, filename, options);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Reads the grid from a stream that the caller has already opened.
+	 * The stream is read to its end but not closed.
+	 * 
+	 * @param is the stream to read from
+	 * @param name a name for the stream, used in error messages
+	 * @param options the processing options, may be null
+	 */
+	public boolean loadFrom(InputStream is, String name, ProcessingOptions options)
+		throws IOException
+	{
 		String encoding = (options == null) ? null : options.getCharacterEncoding();
 		List<StringBuilder> lines = new ArrayList<StringBuilder>();
-		InputStream is;
-		if ("-".equals(filename))
-		    is = System.in;
-		else
-		    is = new FileInputStream(filename);
-		String[] linesArray = FileUtils.readFile(is, filename, encoding).split("(\r)?\n");
+		String[] linesArray = FileUtils.readFile(is, name, encoding).split("(\r)?\n");
 		for(int i = 0; i  < linesArray.length; i++)
 			lines.add(new StringBuilder(linesArray[i]));
 		
@@ -1260,6 +1304,10 @@ public class TextGrid {
 			this.y = y;
 		}
 		
+		/*
+		 * The neighbours are new cells; the predicates of TextGrid that take
+		 * x, y do not need them.
+		 */
 		public Cell getNorth(){ return new Cell(x, y - 1); }
 		public Cell getSouth(){ return new Cell(x, y + 1); }
 		public Cell getEast(){ return new Cell(x + 1, y); }
@@ -14,8 +14,26 @@ public class BoundarySearcher {
 	private static final Logger LOG = Loggers.getLogger(BoundarySearcher.class);
 
 	public static final List<CellSet> findBoundariesFromGrid(TextGrid workGrid) {
-		int width = workGrid.getWidth();
-		int height = workGrid.getHeight();
+		return findBoundariesFromGrid(workGrid, null, null, new ComponentBoundaries());
+	}
+
+	/**
+	 * Finds the boundaries of <code>workGrid</code>. The boundaries of a
+	 * component that was searched before are taken from <code>result</code>
+	 * itself, from <code>previous</code> or from <code>cache</code> instead
+	 * of searching it again.
+	 * 
+	 * @param workGrid the grid to search
+	 * @param previous the result of an earlier search, or null
+	 * @param cache the cache to look components up in and add new ones to,
+	 *   or null
+	 * @param result receives the boundaries of every component of
+	 *   <code>workGrid</code>
+	 * @return the boundaries, in the same order as a search that reuses
+	 *   nothing would return them
+	 */
+	public static final List<CellSet> findBoundariesFromGrid(TextGrid workGrid,
+			ComponentBoundaries previous, ComponentCache cache, ComponentBoundaries result) {
 		//split distinct shapes using AbstractionGrid 
 		AbstractionGrid temp = new AbstractionGrid(workGrid, workGrid.getAllBoundaries());
 		List<CellSet> boundarySetsStep1 = temp.getDistinctShapes();
@@ -26,43 +44,72 @@ public class BoundarySearcher {
 		}
 		LOG.finer("******* Same set of shapes after processing them by filling *******");
 		
-		
-		//Find all the boundaries by using the special version of the filling method
-		//(fills in a different buffer than the buffer it reads from)
 		List<CellSet> boundarySetsStep2 = new ArrayList<CellSet>();
-		for(CellSet set : boundarySetsStep1) {			
-			//the fill buffer keeps track of which cells have been
-			//filled already
-			TextGrid fillBuffer = new TextGrid(width * 3, height * 3);
+		for(CellSet set : boundarySetsStep1) {
+			int x = set.getMinX();
+			int y = set.getMinY();
+			String key = ComponentBoundaries.keyOf(workGrid, set, x, y);
+			List<CellSet> componentBoundaries = result.get(key);
+			if(componentBoundaries == null && previous != null) componentBoundaries = previous.get(key);
+			if(componentBoundaries == null && cache != null) componentBoundaries = cache.get(key);
+			boolean reused = componentBoundaries != null;
+			if(!reused) {
+				componentBoundaries = ComponentBoundaries.translate(findComponentBoundaries(workGrid, set), -x, -y);
+				if(cache != null) cache.put(key, componentBoundaries);
+			}
+			result.put(key, componentBoundaries, reused);
 			
-			for(int yi = 0; yi < height * 3; yi++){
-				for(int xi = 0; xi < width * 3; xi++){
-					if(fillBuffer.isBlank(xi, yi)){
-						
-						TextGrid copyGrid = new AbstractionGrid(workGrid, set).getCopyOfInternalBuffer();
-						
-						CellSet[] op = copyGrid.findBoundariesAndFillInternal(new Cell(xi, yi));
+			//the kept boundaries are never handed out, as callers change their sets
+			for(CellSet boundaries : componentBoundaries) {
+				CellSet placed = ComponentBoundaries.translate(boundaries, x, y);
+				if (boundarySetsStep2.isEmpty() || !boundarySetsStep2.get(boundarySetsStep2.size() - 1).equals(placed)) {
+					boundarySetsStep2.add(placed);
+				}
+			}
+		}
+		return boundarySetsStep2;
+	}
 
-						CellSet boundaries = op[0];
-						if(boundaries.size() == 0) continue; //i'm not sure why these occur
-						CellSet resultCandidate = boundaries.makeScaledOneThirdEquivalent();
-						if (boundarySetsStep2.isEmpty() || !boundarySetsStep2.get(boundarySetsStep2.size() - 1).equals(resultCandidate)) {
-							boundarySetsStep2.add(resultCandidate);
-						}
+	private static List<CellSet> findComponentBoundaries(TextGrid workGrid, CellSet set) {
+		int width = workGrid.getWidth();
+		int height = workGrid.getHeight();
+		
+		//Find all the boundaries by using the special version of the filling method
+		//(fills in a different buffer than the buffer it reads from)
+		List<CellSet> result = new ArrayList<CellSet>();
+		Cancellation.checkpoint();
+		//the fill buffer keeps track of which cells have been
+		//filled already
+		TextGrid fillBuffer = new TextGrid(width * 3, height * 3);
+		
+		for(int yi = 0; yi < height * 3; yi++){
+			Cancellation.checkpoint();
+			for(int xi = 0; xi < width * 3; xi++){
+				if(fillBuffer.isBlank(xi, yi)){
+					
+					TextGrid copyGrid = new AbstractionGrid(workGrid, set).getCopyOfInternalBuffer();
 					
-						CellSet filled = op[1];
-						fillBuffer.fillCellsWith(filled, '*');
-						fillBuffer.fillCellsWith(boundaries, '-');
-						
-						LOG.finer("Fill buffer:");
-						resultCandidate.printAsGrid();
-						LOG.finer("-----------------------------------");
-						
+					CellSet[] op = copyGrid.findBoundariesAndFillInternal(new Cell(xi, yi));
+
+					CellSet boundaries = op[0];
+					if(boundaries.size() == 0) continue; //i'm not sure why these occur
+					CellSet resultCandidate = boundaries.makeScaledOneThirdEquivalent();
+					if (result.isEmpty() || !result.get(result.size() - 1).equals(resultCandidate)) {
+						result.add(resultCandidate);
 					}
+				
+					CellSet filled = op[1];
+					fillBuffer.fillCellsWith(filled, '*');
+					fillBuffer.fillCellsWith(boundaries, '-');
+					
+					LOG.finer("Fill buffer:");
+					resultCandidate.printAsGrid();
+					LOG.finer("-----------------------------------");
+					
 				}
 			}
 		}
-		return boundarySetsStep2;
+		return result;
 	}
 
 }
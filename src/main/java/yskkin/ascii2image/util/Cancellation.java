@@ -0,0 +1,22 @@
+package yskkin.ascii2image.util;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cooperative cancellation of a conversion. The long-running loops of the
+ * conversion call {@link #checkpoint()}, so that a conversion whose thread
+ * has been interrupted (for example by <code>Future.cancel(true)</code>)
+ * stops promptly instead of running to completion.
+ */
+public class Cancellation {
+
+	/**
+	 * @throws CancellationException if the current thread has been interrupted.
+	 *   The interrupted status is left set.
+	 */
+	public static void checkpoint() {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new CancellationException("Conversion cancelled");
+		}
+	}
+}
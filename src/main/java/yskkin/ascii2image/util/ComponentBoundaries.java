@@ -0,0 +1,146 @@
+package yskkin.ascii2image.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.stathissideris.ascii2image.text.CellSet;
+import org.stathissideris.ascii2image.text.TextGrid;
+import org.stathissideris.ascii2image.text.TextGrid.Cell;
+
+/**
+ * The boundaries {@link BoundarySearcher} found for each connected component
+ * of a grid.
+ *
+ * <p>A component is identified by its cells together with the characters of
+ * their 3x3 neighbourhoods, which is everything the boundary search of a
+ * component reads, and keyed by a digest of them so that large components
+ * do not make large keys. The cells are taken relative to the top left corner of
+ * the component, and the boundaries are kept relative to it too, so a
+ * component can be reused wherever it appears again: in an edited version
+ * of the grid, elsewhere in the same grid or, through a
+ * {@link ComponentCache}, in another diagram.</p>
+ */
+public class ComponentBoundaries {
+
+	private static final Comparator<Cell> ROW_MAJOR = new Comparator<Cell>() {
+		public int compare(Cell a, Cell b) {
+			if (a.y != b.y) return a.y < b.y ? -1 : 1;
+			if (a.x != b.x) return a.x < b.x ? -1 : 1;
+			return 0;
+		}
+	};
+
+	private final Map<String, List<CellSet>> boundaries = new HashMap<String, List<CellSet>>();
+	private int searched;
+	private int reused;
+
+	List<CellSet> get(String key) {
+		return boundaries.get(key);
+	}
+
+	void put(String key, List<CellSet> componentBoundaries, boolean wasReused) {
+		boundaries.put(key, componentBoundaries);
+		if (wasReused) {
+			reused++;
+		} else {
+			searched++;
+		}
+	}
+
+	/**
+	 * @return the number of components whose boundaries had to be searched
+	 */
+	public int getSearchedCount() {
+		return searched;
+	}
+
+	/**
+	 * @return the number of components whose boundaries were taken from an
+	 *   earlier search
+	 */
+	public int getReusedCount() {
+		return reused;
+	}
+
+	/**
+	 * @param x0 the left of the component
+	 * @param y0 the top of the component
+	 */
+	static String keyOf(TextGrid grid, CellSet component, int x0, int y0) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		//a record of the same length for every cell, so that no two components read the same
+		byte[] record = new byte[4 + 4 + 9 * 2];
+		for (Cell cell : sorted(component)) {
+			int i = putInt(record, 0, cell.x - x0);
+			i = putInt(record, i, cell.y - y0);
+			for (int y = cell.y - 1; y <= cell.y + 1; y++) {
+				for (int x = cell.x - 1; x <= cell.x + 1; x++) {
+					char c = charAt(grid, x, y);
+					record[i++] = (byte) (c >> 8);
+					record[i++] = (byte) c;
+				}
+			}
+			digest.update(record);
+		}
+		byte[] hash = digest.digest();
+		StringBuilder key = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return key.toString();
+	}
+
+	private static int putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >> 24);
+		bytes[offset + 1] = (byte) (value >> 16);
+		bytes[offset + 2] = (byte) (value >> 8);
+		bytes[offset + 3] = (byte) value;
+		return offset + 4;
+	}
+
+	/**
+	 * Copies <code>set</code> moved by <code>dx</code>, <code>dy</code>.
+	 * The cells are added in the same order whatever order <code>set</code>
+	 * holds them in, so that copies of equal sets iterate in the same order.
+	 */
+	static CellSet translate(CellSet set, int dx, int dy) {
+		CellSet result = new CellSet();
+		for (Cell cell : sorted(set)) {
+			result.add(new Cell(cell.x + dx, cell.y + dy));
+		}
+		return result;
+	}
+
+	static List<CellSet> translate(List<CellSet> sets, int dx, int dy) {
+		List<CellSet> result = new ArrayList<CellSet>(sets.size());
+		for (CellSet set : sets) {
+			result.add(translate(set, dx, dy));
+		}
+		return result;
+	}
+
+	private static List<Cell> sorted(CellSet set) {
+		List<Cell> cells = new ArrayList<Cell>(set.size());
+		for (Cell cell : set) {
+			cells.add(cell);
+		}
+		Collections.sort(cells, ROW_MAJOR);
+		return cells;
+	}
+
+	private static char charAt(TextGrid grid, int x, int y) {
+		if (x < 0 || y < 0 || x >= grid.getWidth() || y >= grid.getHeight()) return 0;
+		return grid.getRow(y).charAt(x);
+	}
+}
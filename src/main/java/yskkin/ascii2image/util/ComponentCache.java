@@ -0,0 +1,147 @@
+package yskkin.ascii2image.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.stathissideris.ascii2image.text.CellSet;
+
+/**
+ * The boundaries of recently seen components, shared by the conversions of
+ * a JVM so that a component that appears in many diagrams (the same box,
+ * the same legend) is searched once. Components are keyed independently of
+ * their position, see {@link ComponentBoundaries}. The least recently used
+ * components are evicted when the boundaries kept take more cells than the
+ * capacity; every component counts for one cell more than its boundaries
+ * have, so that empty ones are bounded too.
+ */
+public class ComponentCache {
+
+	/** About 15 MB of boundaries. */
+	public static final int DEFAULT_CAPACITY = 200000;
+
+	private static final ComponentCache SHARED = new ComponentCache(DEFAULT_CAPACITY);
+
+	private final LinkedHashMap<String, List<CellSet>> boundaries =
+		new LinkedHashMap<String, List<CellSet>>(16, 0.75f, true);
+	private int capacity;
+	private long cells;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * @param capacity how many cells of boundaries to keep
+	 */
+	public ComponentCache(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return the cache used by conversions unless their options say otherwise
+	 */
+	public static ComponentCache getShared() {
+		return SHARED;
+	}
+
+	synchronized List<CellSet> get(String key) {
+		List<CellSet> result = boundaries.get(key);
+		if (result == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return result;
+	}
+
+	synchronized void put(String key, List<CellSet> componentBoundaries) {
+		long weight = weight(componentBoundaries);
+		if (weight > capacity) return;
+		List<CellSet> replaced = boundaries.put(key, componentBoundaries);
+		if (replaced != null) cells -= weight(replaced);
+		cells += weight;
+		evict();
+	}
+
+	private static long weight(List<CellSet> componentBoundaries) {
+		long result = 1;
+		for (CellSet boundary : componentBoundaries) {
+			result += boundary.size();
+		}
+		return result;
+	}
+
+	private void evict() {
+		Iterator<List<CellSet>> eldest = boundaries.values().iterator();
+		while (cells > capacity && eldest.hasNext()) {
+			cells -= weight(eldest.next());
+			eldest.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Changes how many cells of boundaries are kept, evicting the least
+	 * recently used components if there are more.
+	 *
+	 * @param capacity the new capacity, 0 to keep none
+	 */
+	public synchronized void setCapacity(int capacity) {
+		this.capacity = capacity;
+		evict();
+	}
+
+	public synchronized int size() {
+		return boundaries.size();
+	}
+
+	/**
+	 * @return how many cells the components kept take, see {@link #getCapacity()}
+	 */
+	public synchronized long getCellCount() {
+		return cells;
+	}
+
+	/**
+	 * @return how many components were found in the cache
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return how many components were not found in the cache and had to
+	 *   be searched
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return how many components were evicted to make room for others
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Removes all components and resets the counters.
+	 */
+	public synchronized void clear() {
+		boundaries.clear();
+		cells = 0;
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return hits + " hits, " + misses + " misses, " + evictions + " evictions, "
+			+ boundaries.size() + " components of " + cells + " cells cached, capacity " + capacity;
+	}
+}
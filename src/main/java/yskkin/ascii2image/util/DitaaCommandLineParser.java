@@ -1,5 +1,7 @@
 package yskkin.ascii2image.util;
 
+import java.io.PrintStream;
+import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 
 import org.apache.commons.cli.CommandLine;
@@ -11,11 +13,11 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
 import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.core.ConverterDaemon;
 
 public class DitaaCommandLineParser {
 
 	private static final String NOTICE = "ditaa version 0.9, Copyright (C) 2004--2009  Efstathios (Stathis) Sideris";
-	private static final CommandLineParser parser = new PosixParser();
 	@SuppressWarnings({ "static-access", "serial" })
 	public static final Options DITAA_CLI_SPEC = new Options() {
 		{
@@ -30,6 +32,12 @@ public class DitaaCommandLineParser {
 					"overwrite",
 					false,
 					"If the filename of the destination image already exists, an alternative name is chosen. If the overwrite option is selected, the image file is instead overwriten.");
+			addOption(
+					OptionBuilder
+					.withLongOpt("incremental")
+					.withDescription(
+							"Only converts the diagrams whose text or options changed since the last incremental run, as recorded in a .ditaa-manifest file next to the images. Images written by earlier incremental runs are replaced without --overwrite, as long as they were not modified.")
+					.create());
 			addOption("S", "no-shadows", false,
 					"Turns off the drop-shadow effect.");
 			addOption("A", "no-antialias", false, "Turns anti-aliasing off.");
@@ -44,6 +52,12 @@ public class DitaaCommandLineParser {
 					"Causes all corners to be rendered as round corners.");
 			addOption("E", "no-separation", false,
 					"Prevents the separation of common edges of shapes.");
+			addOption(
+					OptionBuilder
+					.withLongOpt("line-graph")
+					.withDescription(
+							"Finds the shapes with a graph of the lines, built once for the whole diagram, instead of by filling each group of lines. Faster on large diagrams, but some unusual drawings come out differently.")
+					.create());
 			addOption(
 					"h",
 					"html",
@@ -72,6 +86,24 @@ public class DitaaCommandLineParser {
 					.withArgName("SCALE")
 					.create('s'));
 
+			addOption(
+					OptionBuilder
+					.withLongOpt("band-height")
+					.withDescription(
+							"Draws and writes PNG images ROWS rows of pixels at a time instead of as a whole, so that very large diagrams need much less memory. The images are nearly identical; a few antialiased edge pixels may differ.")
+					.hasArg()
+					.withArgName("ROWS")
+					.create());
+
+			addOption(
+					OptionBuilder
+					.withLongOpt("off-heap")
+					.withDescription(
+							"Keeps images of at least MEGABYTES megabytes of pixels outside the Java heap, in direct memory or, if there is not enough, in a temporary file, so that poster-size images do not need a large heap.")
+					.hasArg()
+					.withArgName("MEGABYTES")
+					.create());
+
 			addOption(
 					OptionBuilder
 					.withLongOpt("tabs")
@@ -90,6 +122,77 @@ public class DitaaCommandLineParser {
 					.withArgName("BACKGROUND")
 					.create('b'));
 
+			addOption(
+					OptionBuilder
+					.withLongOpt("output")
+					.withDescription(
+							"An additional image to render from the same diagram. Can be given several times. The format is the output filename followed by comma-separated modifiers that override the other options for this image only: format=FORMAT, scale=SCALE, background=BACKGROUND, transparent, shadows, no-shadows (for example diagram@2x.png,scale=2,transparent). The images are rendered in parallel.")
+					.hasArg()
+					.withArgName("SPEC")
+					.create());
+
+			addOption(
+					OptionBuilder
+					.withLongOpt("batch")
+					.withDescription(
+							"Converts many files in one run. The inputs can be files, directories (searched for .txt files), glob patterns such as 'docs/**/*.txt', or @FILE to read inputs from FILE, one per line. Each image is written next to its input, or under --target-dir. Ends with the time taken by each file, and fails if any file fails.")
+					.create());
+
+			addOption(
+					OptionBuilder
+					.withLongOpt("target-dir")
+					.withDescription(
+							"The directory --batch writes the images to. The directory structure below the directories and patterns given is kept.")
+					.hasArg()
+					.withArgName("DIR")
+					.create());
+
+			addOption(
+					OptionBuilder
+					.withLongOpt("threads")
+					.withDescription(
+							"The number of files --batch converts at the same time. The default is the number of processors.")
+					.hasArg()
+					.withArgName("THREADS")
+					.create());
+
+			addOption(
+					OptionBuilder
+					.withLongOpt("watch")
+					.withDescription(
+							"Keeps running after the conversion and converts the input again whenever it is saved. With --batch, only the files that changed are converted, and new files in the directories and patterns given are picked up. Stop it with Ctrl-C.")
+					.create());
+
+			addOption(
+					OptionBuilder
+					.withLongOpt("stream")
+					.withDescription(
+							"Converts many diagrams in one run: reads length-prefixed documents, each with its own options, from the standard input and writes a length-prefixed image per document to the standard output, in the same order. The other options are the defaults of every document. See StreamConverter for the format.")
+					.create());
+
+			addOption(
+					OptionBuilder
+					.withLongOpt("daemon")
+					.withDescription(
+							"Starts a conversion server on the loopback interface instead of converting a file. It keeps the JVM warm and serves several --client conversions in parallel. Only clients of the same user are served: they send a secret that the daemon writes to ~/.ditaa. Stop it with Ctrl-C.")
+					.create());
+
+			addOption(
+					OptionBuilder
+					.withLongOpt("client")
+					.withDescription(
+							"Passes this conversion to a running --daemon, which saves the JVM startup time. The conversion runs in this process if no daemon is listening.")
+					.create());
+
+			addOption(
+					OptionBuilder
+					.withLongOpt("port")
+					.withDescription(
+							"The port of the --daemon, on the loopback interface. The default is " + ConverterDaemon.DEFAULT_PORT + ".")
+					.hasArg()
+					.withArgName("PORT")
+					.create());
+
 			addOption(
 					OptionBuilder
 					.withLongOpt("logfile")
@@ -108,23 +211,43 @@ public class DitaaCommandLineParser {
 		}
 	};
 
+	private final PrintStream out;
+	private final PrintStream err;
+	private boolean configureLogging = true;
 	private boolean exitImmediately = false;
 	private int exitStatus = 0;
 	private ConversionOptions conversionOptions;
 
+	public DitaaCommandLineParser() {
+		this(System.out, System.err);
+	}
+
+	/**
+	 * @param out where the usage help and run information are printed
+	 * @param err where errors are printed
+	 */
+	public DitaaCommandLineParser(PrintStream out, PrintStream err) {
+		this.out = out;
+		this.err = err;
+	}
+
 	public CommandLine parse(String[] arguments) {
 		CommandLine result;
 		try {
+			//parsers keep state, so each parse gets its own
+			CommandLineParser parser = new PosixParser();
 			result = parser.parse(DITAA_CLI_SPEC, arguments, false);
 		} catch (ParseException e) {
 			exit(2);
-			System.err.println(e.getMessage());
+			err.println(e.getMessage());
 			printDitaaHelp();
 			return null;
 		}
 
-		String logFileName = result.getOptionValue("logfile");
-		Loggers.addFileOutputToAllLoggers(logFileName);
+		if (configureLogging) {
+			String logFileName = result.getOptionValue("logfile");
+			Loggers.addFileOutputToAllLoggers(logFileName);
+		}
 		if (result.hasOption("help") || arguments.length == 0) {
 			exit(0);
 			printDitaaHelp();
@@ -134,19 +257,23 @@ public class DitaaCommandLineParser {
 		try {
 			conversionOptions = new ConversionOptions(result);
 		} catch (UnsupportedEncodingException e2) {
-			System.err.println("Error: " + e2.getMessage());
+			err.println("Error: " + e2.getMessage());
 			exit(2);
 			return null;
 		} catch (IllegalArgumentException e2) {
-			System.err.println("Error: " + e2.getMessage());
+			err.println("Error: " + e2.getMessage());
 			printDitaaHelp();
 			exit(2);
 			return null;
 		}
 
+		if (result.hasOption("daemon") || result.hasOption("stream")) {
+			return result;
+		}
+
 		String[] args = result.getArgs();
 		if (args.length == 0) {
-			System.err.println("Error: Please provide the input file filename");
+			err.println("Error: Please provide the input file filename");
 			printDitaaHelp();
 			exit(2);
 			return null;
@@ -160,25 +287,34 @@ public class DitaaCommandLineParser {
 		if (cmdLine.hasOption("html")
 				|| (args.length == 1 && !args[0].equals("-")
 				|| (args.length < 1 && !args[1].equals("-")))) {
-			System.out.println("\n" + NOTICE + "\n");
+			out.println("\n" + NOTICE + "\n");
 
-			System.out.println("Running with options:");
+			out.println("Running with options:");
 			Option[] opts = cmdLine.getOptions();
 			for (Option option : opts) {
 				if (option.hasArgs()) {
 					for (String value : option.getValues()) {
-						System.out.println(option.getLongOpt() + " = " + value);
+						out.println(option.getLongOpt() + " = " + value);
 					}
 				} else if (option.hasArg()) {
-					System.out.println(option.getLongOpt() + " = "
+					out.println(option.getLongOpt() + " = "
 							+ option.getValue());
 				} else {
-					System.out.println(option.getLongOpt());
+					out.println(option.getLongOpt());
 				}
 			}
 		}
 	}
 
+	/**
+	 * Whether {@link #parse(String[])} sets up logging according to the
+	 * <tt>--logfile</tt> option. Conversions served by a daemon leave
+	 * logging to the daemon itself.
+	 */
+	public void setConfigureLogging(boolean configureLogging) {
+		this.configureLogging = configureLogging;
+	}
+
 	public boolean shouldExitImmediately() {
 		return exitImmediately;
 	}
@@ -196,7 +332,11 @@ public class DitaaCommandLineParser {
 		this.exitStatus = exitStatus;
 	}
 
-	private static void printDitaaHelp() {
-		new HelpFormatter().printHelp("java -jar ditaa.jar <inpfile> [outfile]", DITAA_CLI_SPEC, true);
+	private void printDitaaHelp() {
+		HelpFormatter formatter = new HelpFormatter();
+		PrintWriter writer = new PrintWriter(out);
+		formatter.printHelp(writer, formatter.getWidth(), "java -jar ditaa.jar <inpfile> [outfile]", null,
+				DITAA_CLI_SPEC, formatter.getLeftPadding(), formatter.getDescPadding(), null, true);
+		writer.flush();
 	}
 }
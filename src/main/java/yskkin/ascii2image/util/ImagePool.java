@@ -0,0 +1,231 @@
+package yskkin.ascii2image.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Images to draw into, kept after use so that a server rendering one
+ * diagram after another does not allocate (and collect) several megabytes
+ * for every diagram. Images are pooled by type and by size class: their
+ * width and height are rounded up to a few sizes per power of two, and an
+ * image asked for is a view of the top left corner of a pooled image of
+ * its class. The least recently returned images are dropped when the
+ * idle images take more than the capacity.
+ *
+ * <p>Only the images of {@link BufferedImage#TYPE_INT_RGB} and
+ * {@link BufferedImage#TYPE_INT_ARGB} are pooled; images of other types,
+ * or larger than the capacity, are made anew every time.</p>
+ */
+public class ImagePool {
+
+	public static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+
+	private static final int MIN_SIZE_CLASS = 64;
+
+	/** Idle images by size class, least recently returned first. */
+	private final LinkedHashMap<String, ArrayDeque<BufferedImage>> idle =
+		new LinkedHashMap<String, ArrayDeque<BufferedImage>>(16, 0.75f, true);
+	/** The pooled image each image that is in use is a view of. */
+	private final IdentityHashMap<BufferedImage, BufferedImage> lent =
+		new IdentityHashMap<BufferedImage, BufferedImage>();
+	private long capacity;
+	private long idleBytes;
+	private int idleCount;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * @param capacity how many bytes of images to keep when they are not in use
+	 */
+	public ImagePool(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return an image that is cleared to transparent black. It has to be
+	 *   given back with {@link #release(BufferedImage)} once it is no longer
+	 *   used, and must not be used after that.
+	 */
+	public BufferedImage acquire(int width, int height, int type) {
+		int classWidth = sizeClass(width);
+		int classHeight = sizeClass(height);
+		BufferedImage pooled = null;
+		synchronized (this) {
+			if (!isPooled(type) || bytes(classWidth, classHeight) > capacity) {
+				misses++;
+				return new BufferedImage(width, height, type);
+			}
+			ArrayDeque<BufferedImage> images = idle.get(key(classWidth, classHeight, type));
+			if (images != null && !images.isEmpty()) {
+				pooled = images.pop();
+				idleBytes -= bytes(pooled);
+				idleCount--;
+				hits++;
+			} else {
+				misses++;
+			}
+		}
+		if (pooled == null) {
+			pooled = new BufferedImage(classWidth, classHeight, type);
+		} else {
+			clear(pooled, height);
+		}
+		BufferedImage result = width == classWidth && height == classHeight
+			? pooled : pooled.getSubimage(0, 0, width, height);
+		synchronized (this) {
+			lent.put(result, pooled);
+		}
+		return result;
+	}
+
+	/**
+	 * Gives back an image got from {@link #acquire(int, int, int)}, for it
+	 * to be used again. Images that were not pooled are left to the garbage
+	 * collector.
+	 */
+	public synchronized void release(BufferedImage image) {
+		BufferedImage pooled = lent.remove(image);
+		if (pooled == null) return;
+		String key = key(pooled.getWidth(), pooled.getHeight(), pooled.getType());
+		ArrayDeque<BufferedImage> images = idle.get(key);
+		if (images == null) {
+			images = new ArrayDeque<BufferedImage>();
+			idle.put(key, images);
+		}
+		images.push(pooled);
+		idleBytes += bytes(pooled);
+		idleCount++;
+		evict();
+	}
+
+	private static boolean isPooled(int type) {
+		return type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB;
+	}
+
+	/**
+	 * @return <code>size</code> rounded up to a quarter of the power of two
+	 *   below it, so that an image is at most a quarter larger than asked for
+	 */
+	static int sizeClass(int size) {
+		if (size <= MIN_SIZE_CLASS) return MIN_SIZE_CLASS;
+		int step = Integer.highestOneBit(size - 1) / 4;
+		return (size + step - 1) / step * step;
+	}
+
+	private static String key(int width, int height, int type) {
+		return type + ":" + width + "x" + height;
+	}
+
+	private static long bytes(int width, int height) {
+		return 4L * width * height;
+	}
+
+	private static long bytes(BufferedImage image) {
+		return bytes(image.getWidth(), image.getHeight());
+	}
+
+	/**
+	 * Clears the rows of <code>image</code> a view of <code>height</code>
+	 * rows can see.
+	 */
+	private static void clear(BufferedImage image, int height) {
+		DataBuffer buffer = image.getRaster().getDataBuffer();
+		int[] data = ((DataBufferInt) buffer).getData();
+		Arrays.fill(data, 0, Math.min(data.length, height * image.getWidth()), 0);
+	}
+
+	private void evict() {
+		Iterator<ArrayDeque<BufferedImage>> classes = idle.values().iterator();
+		while (idleBytes > capacity && classes.hasNext()) {
+			ArrayDeque<BufferedImage> images = classes.next();
+			while (idleBytes > capacity && !images.isEmpty()) {
+				idleBytes -= bytes(images.removeLast());
+				idleCount--;
+				evictions++;
+			}
+			if (images.isEmpty()) classes.remove();
+		}
+	}
+
+	public synchronized long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Changes how many bytes of images are kept, dropping the least
+	 * recently returned ones if there are more.
+	 *
+	 * @param capacity the new capacity, 0 to keep none
+	 */
+	public synchronized void setCapacity(long capacity) {
+		this.capacity = capacity;
+		evict();
+	}
+
+	/**
+	 * @return how many images are kept for reuse
+	 */
+	public synchronized int getIdleCount() {
+		return idleCount;
+	}
+
+	/**
+	 * @return how many bytes the images kept for reuse take
+	 */
+	public synchronized long getIdleBytes() {
+		return idleBytes;
+	}
+
+	/**
+	 * @return how many pooled images are in use
+	 */
+	public synchronized int getLentCount() {
+		return lent.size();
+	}
+
+	/**
+	 * @return how many images were reused
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return how many images had to be made
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return how many images were dropped to stay within the capacity
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Drops all idle images and resets the counters.
+	 */
+	public synchronized void clear() {
+		idle.clear();
+		idleBytes = 0;
+		idleCount = 0;
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return hits + " hits, " + misses + " misses, " + evictions + " evictions, "
+			+ idleCount + " images of " + idleBytes + " bytes idle, " + lent.size() + " in use";
+	}
+}
@@ -54,7 +54,10 @@ public class Loggers {
 		} else {
 			Enumeration<String> loggerNames = logManager.getLoggerNames();
 			while (loggerNames.hasMoreElements()) {
-				logManager.getLogger(loggerNames.nextElement()).setLevel(level);
+				Logger logger = logManager.getLogger(loggerNames.nextElement());
+				if (logger != null) { // collected since it was listed
+					logger.setLevel(level);
+				}
 			}
 		}
 	}
@@ -63,7 +66,10 @@ public class Loggers {
 		Loggers.handler = handler;
 		Enumeration<String> loggerNames = logManager.getLoggerNames();
 		while (loggerNames.hasMoreElements()) {
-			logManager.getLogger(loggerNames.nextElement()).addHandler(handler);
+			Logger logger = logManager.getLogger(loggerNames.nextElement());
+			if (logger != null) { // collected since it was listed
+				logger.addHandler(handler);
+			}
 		}
 	}
 }
@@ -0,0 +1,159 @@
+package yskkin.ascii2image.util;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+/**
+ * Pixels kept outside the Java heap, so that a poster-size image does not
+ * need a heap large enough to hold it. The pixels are in a direct buffer
+ * or, if there is not enough direct memory, in a temporary file mapped
+ * into memory, which the operating system can page out.
+ *
+ * <p>{@link #createImage(int, int, boolean)} wraps the pixels in an
+ * image with the same packed RGB or ARGB pixels as
+ * {@link BufferedImage#TYPE_INT_RGB} and {@link BufferedImage#TYPE_INT_ARGB},
+ * which Java2D can read and draw into, although more slowly than into an
+ * image on the heap. Whole rows are best copied in and out with
+ * {@link #getRow(int, int[], int)} and {@link #setRow(int, int[], int, int)}.</p>
+ *
+ * <p>The memory is freed when the buffer is garbage collected. A mapped
+ * file is deleted as soon as it is mapped where the file system allows it,
+ * and when the JVM exits otherwise.</p>
+ */
+public class OffHeapDataBuffer extends DataBuffer {
+
+	private static final Logger LOG = Loggers.getLogger(OffHeapDataBuffer.class);
+
+	private final IntBuffer data;
+	private final boolean mapped;
+
+	private OffHeapDataBuffer(ByteBuffer bytes, int size, boolean mapped) {
+		super(TYPE_INT, size);
+		this.data = bytes.order(ByteOrder.nativeOrder()).asIntBuffer();
+		this.mapped = mapped;
+	}
+
+	/**
+	 * @param size the number of pixels
+	 * @return a buffer of direct memory, or of a temporary file if there is
+	 *   not enough direct memory
+	 * @throws IOException if the temporary file cannot be made
+	 */
+	public static OffHeapDataBuffer allocate(int size) throws IOException {
+		checkSize(size);
+		try {
+			return new OffHeapDataBuffer(ByteBuffer.allocateDirect(4 * size), size, false);
+		} catch (OutOfMemoryError e) {
+			LOG.info("Not enough direct memory for " + size + " pixels, mapping a temporary file instead");
+			return map(size, null);
+		}
+	}
+
+	/**
+	 * @param size the number of pixels
+	 * @param directory where the temporary file is made, or null for the
+	 *   default temporary directory
+	 * @return a buffer of a temporary file mapped into memory
+	 * @throws IOException if the temporary file cannot be made
+	 */
+	public static OffHeapDataBuffer map(int size, File directory) throws IOException {
+		checkSize(size);
+		File file = File.createTempFile("ditaa", ".raster", directory);
+		RandomAccessFile access = new RandomAccessFile(file, "rw");
+		try {
+			access.setLength(4L * size);
+			ByteBuffer bytes = access.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 4L * size);
+			return new OffHeapDataBuffer(bytes, size, true);
+		} finally {
+			access.close();
+			if (!file.delete()) file.deleteOnExit();
+		}
+	}
+
+	private static void checkSize(int size) {
+		if (size < 0 || size > Integer.MAX_VALUE / 4) {
+			throw new IllegalArgumentException("Cannot keep " + size + " pixels in one buffer");
+		}
+	}
+
+	/**
+	 * @param alpha whether the pixels are ARGB rather than RGB
+	 * @return an image of <code>width</code> by <code>height</code> pixels
+	 *   kept in a buffer from {@link #allocate(int)}
+	 * @throws IOException if the pixels had to be kept in a temporary file
+	 *   and it cannot be made
+	 */
+	public static BufferedImage createImage(int width, int height, boolean alpha) throws IOException {
+		if ((long) width * height > Integer.MAX_VALUE / 4) {
+			throw new IllegalArgumentException("Cannot keep an image of " + width + "x" + height + " pixels in one buffer");
+		}
+		DirectColorModel model = alpha
+			? new DirectColorModel(32, 0xff0000, 0xff00, 0xff, 0xff000000)
+			: new DirectColorModel(24, 0xff0000, 0xff00, 0xff, 0);
+		SinglePixelPackedSampleModel sampleModel =
+			new SinglePixelPackedSampleModel(TYPE_INT, width, height, model.getMasks());
+		// Raster.createWritableRaster insists on a DataBufferInt for this
+		// sample model before Java 9; a raster of our own takes any buffer.
+		WritableRaster raster = new WritableRaster(sampleModel, allocate(width * height), new Point()) {};
+		return new BufferedImage(model, raster, false, null);
+	}
+
+	/**
+	 * @return the buffer of the pixels of <code>image</code>, or null if
+	 *   they are not off the heap
+	 */
+	public static OffHeapDataBuffer of(BufferedImage image) {
+		DataBuffer buffer = image.getRaster().getDataBuffer();
+		return buffer instanceof OffHeapDataBuffer ? (OffHeapDataBuffer) buffer : null;
+	}
+
+	/**
+	 * @return whether the pixels are in a temporary file rather than in
+	 *   direct memory
+	 */
+	public boolean isMapped() {
+		return mapped;
+	}
+
+	@Override
+	public int getElem(int bank, int i) {
+		return data.get(i + offsets[bank]);
+	}
+
+	@Override
+	public void setElem(int bank, int i, int val) {
+		data.put(i + offsets[bank], val);
+	}
+
+	/**
+	 * Copies <code>length</code> pixels from <code>offset</code> on into
+	 * <code>row</code>.
+	 */
+	public void getRow(int offset, int[] row, int length) {
+		IntBuffer view = data.duplicate();
+		view.position(offset + offsets[0]);
+		view.get(row, 0, length);
+	}
+
+	/**
+	 * Copies <code>length</code> pixels of <code>row</code>, from
+	 * <code>rowOffset</code> on, to <code>offset</code> on.
+	 */
+	public void setRow(int offset, int[] row, int rowOffset, int length) {
+		IntBuffer view = data.duplicate();
+		view.position(offset + offsets[0]);
+		view.put(row, rowOffset, length);
+	}
+}
@@ -0,0 +1,266 @@
+package yskkin.ascii2image.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a PNG image a few rows at a time, so that an image can be encoded
+ * while it is being drawn and never has to be in memory as a whole. Only
+ * the row being encoded and the one before it are kept.
+ *
+ * <p>Images are written with 8 bits per channel, as RGB or, with alpha, as
+ * RGBA. Each row is filtered with the filter that gives the smallest sum
+ * of absolute differences, as recommended by the PNG specification.</p>
+ */
+public class PngEncoder {
+
+	private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	private static final int FILTER_NONE = 0;
+	private static final int FILTER_SUB = 1;
+	private static final int FILTER_UP = 2;
+	private static final int FILTER_AVERAGE = 3;
+	private static final int FILTER_PAETH = 4;
+
+	private final OutputStream out;
+	private final int width;
+	private final int height;
+	private final boolean alpha;
+	private final int bytesPerPixel;
+
+	private final Deflater deflater = new Deflater();
+	private final DeflaterOutputStream data;
+
+	private final int[] pixels;
+	private byte[] row;
+	private byte[] previousRow;
+	private final byte[][] filtered = new byte[5][];
+	private int rowsWritten = 0;
+
+	/**
+	 * Writes the header of the image.
+	 *
+	 * @param out where the image is written. It is not closed.
+	 * @param alpha whether the alpha channel of the pixels is kept
+	 */
+	public PngEncoder(OutputStream out, int width, int height, boolean alpha) throws IOException {
+		if (width <= 0 || height <= 0) throw new IllegalArgumentException("Cannot encode an image of "+width+"x"+height+" pixels");
+		this.out = out;
+		this.width = width;
+		this.height = height;
+		this.alpha = alpha;
+		bytesPerPixel = alpha ? 4 : 3;
+
+		pixels = new int[width];
+		row = new byte[width * bytesPerPixel];
+		previousRow = new byte[width * bytesPerPixel];
+		for (int i = 0; i < filtered.length; i++) {
+			filtered[i] = new byte[1 + width * bytesPerPixel];
+			filtered[i][0] = (byte) i;
+		}
+
+		out.write(SIGNATURE);
+		byte[] header = new byte[13];
+		putInt(header, 0, width);
+		putInt(header, 4, height);
+		header[8] = 8;
+		header[9] = (byte) (alpha ? 6 : 2);
+		writeChunk("IHDR", header, header.length);
+		data = new DeflaterOutputStream(new ChunkOutputStream(), deflater, CHUNK_SIZE);
+	}
+
+	/**
+	 * Encodes <code>rows</code> rows of <code>image</code>, starting at
+	 * row <code>y</code> of <code>image</code>, as the next rows of the PNG
+	 * image. The rows of images kept off the heap are copied from their
+	 * {@link OffHeapDataBuffer} directly.
+	 */
+	public void writeRows(BufferedImage image, int y, int rows) throws IOException {
+		if (image.getWidth() != width) throw new IllegalArgumentException("The image is "+image.getWidth()+" pixels wide instead of "+width);
+		if (rowsWritten + rows > height) throw new IllegalStateException("The image only has "+height+" rows");
+		boolean packed = isPackedRgb(image);
+		Raster raster = image.getRaster();
+		OffHeapDataBuffer offHeap = packed && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+			? OffHeapDataBuffer.of(image) : null;
+		for (int i = y; i < y + rows; i++) {
+			if (offHeap != null) {
+				int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+				int offset = (i - raster.getSampleModelTranslateY()) * stride - raster.getSampleModelTranslateX();
+				offHeap.getRow(offset, pixels, width);
+			} else if (packed) {
+				raster.getDataElements(0, i, width, 1, pixels);
+			} else {
+				image.getRGB(0, i, width, 1, pixels, 0, width);
+			}
+			writeRow();
+		}
+	}
+
+	/**
+	 * Ends the image. All of its rows must have been written.
+	 */
+	public void finish() throws IOException {
+		if (rowsWritten != height) throw new IllegalStateException("Only "+rowsWritten+" of "+height+" rows were written");
+		data.finish();
+		data.flush();
+		deflater.end();
+		writeChunk("IEND", new byte[0], 0);
+		out.flush();
+	}
+
+	/**
+	 * @return whether the pixels of the raster of <code>image</code> are
+	 *   the ARGB values {@link BufferedImage#getRGB} would return, so that
+	 *   they can be read without converting them
+	 */
+	private static boolean isPackedRgb(BufferedImage image) {
+		if (!(image.getColorModel() instanceof DirectColorModel)) return false;
+		DirectColorModel model = (DirectColorModel) image.getColorModel();
+		Raster raster = image.getRaster();
+		return raster.getTransferType() == DataBuffer.TYPE_INT
+			&& raster.getNumDataElements() == 1
+			&& !model.isAlphaPremultiplied()
+			&& model.getRedMask() == 0xff0000
+			&& model.getGreenMask() == 0xff00
+			&& model.getBlueMask() == 0xff
+			&& (model.getAlphaMask() == 0xff000000 || model.getAlphaMask() == 0);
+	}
+
+	private void writeRow() throws IOException {
+		byte[] swap = previousRow;
+		previousRow = row;
+		row = swap;
+
+		int i = 0;
+		for (int x = 0; x < width; x++) {
+			int pixel = pixels[x];
+			row[i++] = (byte) (pixel >> 16);
+			row[i++] = (byte) (pixel >> 8);
+			row[i++] = (byte) pixel;
+			if (alpha) row[i++] = (byte) (pixel >>> 24);
+		}
+
+		byte[] best = null;
+		long bestSum = Long.MAX_VALUE;
+		for (int filter = FILTER_NONE; filter <= FILTER_PAETH; filter++) {
+			long sum = filter(filter, filtered[filter]);
+			if (sum < bestSum) {
+				bestSum = sum;
+				best = filtered[filter];
+			}
+		}
+		data.write(best);
+		rowsWritten++;
+	}
+
+	/**
+	 * Filters the current row into <code>result</code>, after its filter
+	 * type byte.
+	 *
+	 * @return the sum of the absolute values of the filtered bytes
+	 */
+	private long filter(int filter, byte[] result) {
+		long sum = 0;
+		for (int i = 0; i < row.length; i++) {
+			int a = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xff : 0;
+			int b = previousRow[i] & 0xff;
+			int c = i >= bytesPerPixel ? previousRow[i - bytesPerPixel] & 0xff : 0;
+			int value = row[i] & 0xff;
+			switch (filter) {
+			case FILTER_SUB:
+				value -= a;
+				break;
+			case FILTER_UP:
+				value -= b;
+				break;
+			case FILTER_AVERAGE:
+				value -= (a + b) >> 1;
+				break;
+			case FILTER_PAETH:
+				value -= paeth(a, b, c);
+				break;
+			}
+			byte filteredValue = (byte) value;
+			result[i + 1] = filteredValue;
+			sum += Math.abs(filteredValue);
+		}
+		return sum;
+	}
+
+	private static int paeth(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc) return a;
+		if (pb <= pc) return b;
+		return c;
+	}
+
+	private void writeChunk(String type, byte[] content, int length) throws IOException {
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		byte[] lengthBytes = new byte[4];
+		putInt(lengthBytes, 0, length);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(content, 0, length);
+		byte[] crcBytes = new byte[4];
+		putInt(crcBytes, 0, (int) crc.getValue());
+		out.write(lengthBytes);
+		out.write(typeBytes);
+		out.write(content, 0, length);
+		out.write(crcBytes);
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+
+	/**
+	 * Collects the compressed data into IDAT chunks of up to
+	 * {@link PngEncoder#CHUNK_SIZE} bytes.
+	 */
+	private class ChunkOutputStream extends OutputStream {
+
+		private final byte[] buffer = new byte[CHUNK_SIZE];
+		private int size = 0;
+
+		@Override
+		public void write(int b) throws IOException {
+			if (size == buffer.length) flush();
+			buffer[size++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (size == buffer.length) flush();
+				int count = Math.min(len, buffer.length - size);
+				System.arraycopy(b, off, buffer, size, count);
+				size += count;
+				off += count;
+				len -= count;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (size == 0) return;
+			writeChunk("IDAT", buffer, size);
+			size = 0;
+		}
+	}
+}
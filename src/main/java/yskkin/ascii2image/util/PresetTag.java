@@ -5,9 +5,14 @@ import java.util.HashSet;
 import java.util.Set;
 import java.util.regex.Pattern;
 
+/**
+ * The markup tags recognized in a grid, such as <code>{d}</code>. Instances
+ * are thread-safe.
+ */
 public class PresetTag {
 
-	private Set<String> presetTag = new HashSet<String>();
+	private final Set<String> presetTag = new HashSet<String>();
+	private Pattern pattern;
 
 	public PresetTag() {
 		presetTag.add("d");
@@ -19,17 +24,33 @@ public class PresetTag {
 		presetTag.add("o");
 	}
 
-	public void addAllTag(Collection<? extends String> tag) {
-		presetTag.addAll(presetTag);
+	/**
+	 * Creates a copy of <code>other</code>, which can be extended without
+	 * affecting the original.
+	 */
+	public PresetTag(PresetTag other) {
+		synchronized (other) {
+			presetTag.addAll(other.presetTag);
+		}
+	}
+
+	public synchronized void addAllTag(Collection<? extends String> tag) {
+		if (presetTag.addAll(tag)) {
+			pattern = null;
+		}
 	}
 
-	public Pattern getTagPatern() {
-		StringBuilder sb = new StringBuilder("\\{(");
-		for (String tag : presetTag) {
-			sb.append(tag).append("|");
+	public synchronized Pattern getTagPatern() {
+		if (pattern == null) {
+			StringBuilder sb = new StringBuilder("\\{(");
+			for (String tag : presetTag) {
+				// custom shape tags are taken literally
+				sb.append(Pattern.quote(tag)).append("|");
+			}
+			sb.deleteCharAt(sb.lastIndexOf("|")).append(")\\}");
+			pattern = Pattern.compile(sb.toString());
 		}
-		sb.deleteCharAt(sb.lastIndexOf("|")).append(")\\}");
-		return Pattern.compile(sb.toString());
+		return pattern;
 	}
 
 }
@@ -0,0 +1,127 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.core;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchConverterTest {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private File root;
+
+	@Before
+	public void createFiles() throws Exception {
+		root = folder.getRoot();
+		write("a.txt");
+		write("b.TXT");
+		write("notes.md");
+		write("sub/c.txt");
+		write("sub/deeper/d.txt");
+	}
+
+	@Test
+	public void testDirectoryFindsTextFilesRecursively() throws Exception {
+		// When
+		List<String> found = relativePaths(root.getPath());
+
+		// Then
+		assertThat(found.toString(), is("[a.txt, b.TXT, sub/c.txt, sub/deeper/d.txt]"));
+	}
+
+	@Test
+	public void testStarDoesNotCrossDirectories() throws Exception {
+		// When
+		List<String> found = relativePaths(root.getPath() + "/*.txt");
+
+		// Then
+		assertThat(found.toString(), is("[a.txt]"));
+	}
+
+	@Test
+	public void testDoubleStarCrossesDirectories() throws Exception {
+		// When
+		List<String> found = relativePaths(root.getPath() + "/**/*.txt");
+
+		// Then
+		assertThat(found.toString(), is("[a.txt, sub/c.txt, sub/deeper/d.txt]"));
+	}
+
+	@Test
+	public void testListFileAndDuplicates() throws Exception {
+		// Given
+		File list = new File(root, "inputs.lst");
+		FileWriter writer = new FileWriter(list);
+		writer.write("# the diagrams\n\n" + new File(root, "sub/c.txt").getPath() + "\n" + root.getPath() + "/sub/**\n");
+		writer.close();
+
+		// When
+		List<String> found = relativePaths("@" + list.getPath(), new File(root, "a.txt").getPath());
+
+		// Then
+		assertThat(found.toString(), is("[c.txt, deeper/d.txt, a.txt]"));
+	}
+
+	@Test
+	public void testFailuresAreReportedPerFile() throws Exception {
+		// Given
+		File target = folder.newFolder("images");
+		List<BatchConverter.Input> inputs = BatchConverter.findInputs(
+				new String[] { new File(root, "a.txt").getPath(), new File(root, "missing.txt").getPath() });
+
+		// When
+		List<BatchConverter.Result> results = new BatchConverter(new ConversionOptions(), target, 2).convert(inputs);
+
+		// Then
+		assertThat(results.get(0).isSuccessful(), is(true));
+		assertThat(results.get(0).getOutput(), is(new File(target, "a.png")));
+		assertThat(results.get(0).getOutput().exists(), is(true));
+		assertThat(results.get(1).isSuccessful(), is(false));
+	}
+
+	private List<String> relativePaths(String... specs) throws IOException {
+		List<String> result = new ArrayList<String>();
+		for(BatchConverter.Input input : BatchConverter.findInputs(specs)){
+			result.add(input.getRelativePath());
+		}
+		return result;
+	}
+
+	private void write(String path) throws IOException {
+		File file = new File(root, path);
+		file.getParentFile().mkdirs();
+		FileWriter writer = new FileWriter(file);
+		writer.write("+--+\n|  |\n+--+\n");
+		writer.close();
+	}
+}
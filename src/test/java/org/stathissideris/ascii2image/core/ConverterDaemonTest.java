@@ -0,0 +1,168 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.core;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ConverterDaemonTest {
+
+	private static final String GRID = "+---+\n|   |\n+---+\n";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File secretDirectory;
+	private ConverterDaemon daemon;
+
+	@Before
+	public void startDaemon() throws Exception {
+		secretDirectory = new File(folder.getRoot(), "secrets");
+		daemon = new ConverterDaemon(0, 2, secretDirectory);
+		daemon.bind();
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					daemon.serve();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}).start();
+	}
+
+	@After
+	public void stopDaemon() throws Exception {
+		daemon.close();
+	}
+
+	@Test
+	public void testStandardInputAndOutputAreForwarded() throws Exception {
+		// Given
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ByteArrayOutputStream err = new ByteArrayOutputStream();
+		ConverterClient client = new ConverterClient(new ByteArrayInputStream(GRID.getBytes("UTF-8")),
+				new PrintStream(out), new PrintStream(err), secretDirectory);
+
+		// When
+		Integer status = client.forward(new String[] { "--client", "--port", String.valueOf(daemon.getLocalPort()), "-" });
+
+		// Then
+		assertThat(status, is(0));
+		assertThat(new String(out.toByteArray(), 1, 3, "ISO-8859-1"), is("PNG"));
+		assertThat(err.toString(), is(""));
+	}
+
+	@Test
+	public void testErrorsAreReported() throws Exception {
+		// Given
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ByteArrayOutputStream err = new ByteArrayOutputStream();
+		ConverterClient client = new ConverterClient(new ByteArrayInputStream(new byte[0]),
+				new PrintStream(out), new PrintStream(err), secretDirectory);
+
+		// When
+		Integer status = client.forward(new String[] { "--port", String.valueOf(daemon.getLocalPort()), "no_such_file.txt" });
+
+		// Then
+		assertThat(status, is(1));
+		assertThat(err.toString(), containsString("does not exist"));
+	}
+
+	@Test
+	public void testNoDaemonMeansLocalConversion() throws Exception {
+		// Given
+		int port = daemon.getLocalPort();
+		daemon.close();
+		ConverterClient client = new ConverterClient(System.in, System.out, System.err, secretDirectory);
+
+		// When
+		Integer status = client.forward(new String[] { "--port", String.valueOf(port), "input.txt" });
+
+		// Then
+		assertThat(status, is(nullValue()));
+		assertThat(ConverterDaemon.getSecretFile(secretDirectory, port).exists(), is(false));
+	}
+
+	@Test
+	public void testWatchingRunsLocally() throws Exception {
+		// Given
+		ConverterClient client = new ConverterClient(System.in, System.out, System.err, secretDirectory);
+
+		// When
+		Integer status = client.forward(new String[] { "--client", "--watch", "--port", String.valueOf(daemon.getLocalPort()), "input.txt" });
+
+		// Then
+		assertThat(status, is(nullValue()));
+	}
+
+	@Test
+	public void testSecretIsReadableByTheUserOnly() throws Exception {
+		// Given
+		File file = ConverterDaemon.getSecretFile(secretDirectory, daemon.getLocalPort());
+
+		// Then
+		assertThat(file.isFile(), is(true));
+		assertThat(ConverterDaemon.readSecret(secretDirectory, daemon.getLocalPort()), is(notNullValue()));
+		if(!System.getProperty("os.name").startsWith("Windows")){
+			Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(file.toPath());
+			assertThat(permissions, is((Set<PosixFilePermission>) EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+		}
+	}
+
+	@Test
+	public void testConnectionWithoutTheSecretIsRefused() throws Exception {
+		// Given
+		Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), daemon.getLocalPort());
+		DataOutputStream request = new DataOutputStream(socket.getOutputStream());
+
+		// When
+		RenderWorker.writeBytes(request, new byte[32]);
+		request.flush();
+		DataInputStream response = new DataInputStream(socket.getInputStream());
+		int status = response.readInt();
+		RenderWorker.readBytes(response);
+		String err = new String(RenderWorker.readBytes(response), "UTF-8");
+		socket.close();
+
+		// Then
+		assertThat(status, is(1));
+		assertThat(err, containsString("refused"));
+	}
+}
@@ -0,0 +1,225 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.core;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.VisualTester;
+import org.stathissideris.ascii2image.graphics.BitmapRenderer;
+import org.stathissideris.ascii2image.graphics.Diagram;
+
+import yskkin.ascii2image.util.ComponentCache;
+
+public class DitaaEngineTest {
+
+	private static final int THREADS = 4;
+	private static final int ROUNDS = 2;
+	private static final String[] EDITED_DIAGRAMS = {
+		"art2.txt", "art10.txt", "bug9.txt", "color_codes.txt"
+	};
+	private static final int EDITS = 20;
+	private static final String EDIT_CHARS = "-|+/\\*=:<>^v ab#o";
+
+	@Test
+	public void testConcurrentRendersMatchSerialRenders() throws Exception {
+		// Given
+		final DitaaEngine engine = new DitaaEngine();
+		List<File> files = VisualTester.getFilesToRender();
+		List<String> diagrams = new ArrayList<String>();
+		List<byte[]> expected = new ArrayList<byte[]>();
+		for(File file : files){
+			String text = new String(IncrementalManifest.readFile(file));
+			diagrams.add(text);
+			expected.add(engine.renderToBytes(text, "png"));
+		}
+
+		// When
+		List<Integer> order = new ArrayList<Integer>();
+		for(int round = 0; round < ROUNDS; round++){
+			for(int i = 0; i < diagrams.size(); i++) order.add(i);
+		}
+		Collections.shuffle(order, new Random(42));
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		List<Future<byte[]>> actual = new ArrayList<Future<byte[]>>();
+		try {
+			for(final int i : order){
+				final String text = diagrams.get(i);
+				actual.add(executor.submit(new Callable<byte[]>() {
+					public byte[] call() throws Exception {
+						return engine.renderToBytes(text, "png");
+					}
+				}));
+			}
+
+			// Then
+			for(int j = 0; j < order.size(); j++){
+				int i = order.get(j);
+				assertThat(files.get(i).getName(), Arrays.equals(actual.get(j).get(), expected.get(i)), is(true));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testEngineKeepsItsOwnOptions() throws Exception {
+		// Given
+		String box = "+--+\n|  |\n+--+\n";
+		ConversionOptions options = new ConversionOptions();
+		DitaaEngine engine = new DitaaEngine(options);
+		byte[] before = engine.renderToBytes(box, "png");
+
+		// When
+		options.renderingOptions.setScale(2);
+		byte[] after = engine.renderToBytes(box, "png");
+
+		// Then
+		assertThat(Arrays.equals(after, before), is(true));
+		assertThat(Arrays.equals(new DitaaEngine(options).renderToBytes(box, "png"), before), is(false));
+	}
+
+	@Test
+	public void testIncrementalLayoutMatchesFullLayout() throws Exception {
+		// Given
+		DitaaEngine engine = uncachedEngine();
+		Random random = new Random(7);
+		int reused = 0;
+		for(String name : EDITED_DIAGRAMS){
+			File file = new File(getClass().getResource("/tests/text/" + name).toURI());
+			StringBuilder text = new StringBuilder(new String(IncrementalManifest.readFile(file)));
+			Diagram previous = engine.layout(text.toString());
+			for(int edit = 0; edit < EDITS; edit++){
+				// When
+				edit(text, random);
+				String expected = render(layout(engine, text.toString(), null));
+				Diagram incremental = layout(engine, text.toString(), previous);
+
+				// Then
+				assertThat(name + " after edit " + edit + ":\n" + text, render(incremental), is(expected));
+				if(incremental != null){
+					reused += incremental.getComponentBoundaries().getReusedCount();
+					previous = incremental;
+				}
+			}
+		}
+		assertThat(reused, is(not(0)));
+	}
+
+	@Test
+	public void testIncrementalLayoutNoticesChangedLines() throws Exception {
+		// Given
+		DitaaEngine engine = uncachedEngine();
+		File file = new File(getClass().getResource("/tests/text/bug9.txt").toURI());
+		String text = new String(IncrementalManifest.readFile(file));
+		Diagram previous = engine.layout(text);
+		for(int i = 0; i < text.length(); i++){
+			if(Character.isWhitespace(text.charAt(i))) continue;
+			for(char c : "+-|".toCharArray()){
+				if(c == text.charAt(i)) continue;
+				// When
+				StringBuilder edited = new StringBuilder(text);
+				edited.setCharAt(i, c);
+				String expected = render(layout(engine, edited.toString(), null));
+
+				// Then
+				assertThat(edited.toString(), render(layout(engine, edited.toString(), previous)), is(expected));
+			}
+		}
+	}
+
+	@Test
+	public void testComponentCacheMatchesUncachedLayout() throws Exception {
+		// Given
+		ComponentCache cache = new ComponentCache(ComponentCache.DEFAULT_CAPACITY);
+		ConversionOptions options = new ConversionOptions();
+		options.processingOptions.setComponentCache(cache);
+		DitaaEngine engine = new DitaaEngine(options);
+		DitaaEngine uncached = uncachedEngine();
+
+		for(File file : VisualTester.getFilesToRender()){
+			// When
+			String text = new String(IncrementalManifest.readFile(file));
+			String expected = render(layout(uncached, text, null));
+
+			// Then
+			assertThat(file.getName(), render(layout(engine, text, null)), is(expected));
+		}
+		assertThat(cache.getHits(), is(not(0L)));
+	}
+
+	private static DitaaEngine uncachedEngine() {
+		ConversionOptions options = new ConversionOptions();
+		options.processingOptions.setComponentCache(null);
+		return new DitaaEngine(options);
+	}
+
+	private static void edit(StringBuilder text, Random random) {
+		//edit the drawing rather than the space around it
+		int at;
+		do {
+			at = random.nextInt(text.length());
+		} while(Character.isWhitespace(text.charAt(at)));
+		char c = EDIT_CHARS.charAt(random.nextInt(EDIT_CHARS.length()));
+		switch(random.nextInt(4)){
+		case 0:
+			text.insert(at, c);
+			break;
+		case 1:
+			text.deleteCharAt(at);
+			break;
+		default:
+			text.setCharAt(at, c);
+		}
+	}
+
+	private static Diagram layout(DitaaEngine engine, String text, Diagram previous) {
+		try {
+			return engine.layout(text, previous);
+		} catch(RuntimeException e) {
+			//some edits make diagrams that cannot be laid out at all
+			return null;
+		}
+	}
+
+	private static String render(Diagram diagram) throws Exception {
+		if(diagram == null) return "no diagram";
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		ImageIO.write(new BitmapRenderer().renderToImage(diagram, new RenderingOptions()), "png", png);
+		return new BigInteger(1, MessageDigest.getInstance("SHA-1").digest(png.toByteArray())).toString(16);
+	}
+}
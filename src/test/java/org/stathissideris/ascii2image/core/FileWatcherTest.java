@@ -0,0 +1,90 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.core;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileWatcherTest {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test(timeout = 5000)
+	public void testChangedFileIsReported() throws Exception {
+		// Given
+		File a = write("a.txt", "a");
+		File b = write("b.txt", "b");
+		FileWatcher watcher = new FileWatcher(lister(a, b), 10, 50, 1000);
+
+		// When
+		write("b.txt", "bb");
+		write("b.txt", "bbb");
+
+		// Then
+		assertThat(watcher.awaitChanges(), is(Arrays.asList(b)));
+	}
+
+	@Test(timeout = 5000)
+	public void testNewFileIsReported() throws Exception {
+		// Given
+		final List<File> files = new ArrayList<File>();
+		files.add(write("a.txt", "a"));
+		FileWatcher watcher = new FileWatcher(new FileWatcher.FileLister() {
+			public List<File> listFiles() {
+				return new ArrayList<File>(files);
+			}
+		}, 10, 50, 0);
+
+		// When
+		File c = write("c.txt", "c");
+		files.add(c);
+
+		// Then
+		assertThat(watcher.awaitChanges(), is(Arrays.asList(c)));
+	}
+
+	private FileWatcher.FileLister lister(final File... files) {
+		return new FileWatcher.FileLister() {
+			public List<File> listFiles() {
+				return Arrays.asList(files);
+			}
+		};
+	}
+
+	private File write(String name, String content) throws IOException {
+		File file = new File(folder.getRoot(), name);
+		FileWriter writer = new FileWriter(file);
+		writer.write(content);
+		writer.close();
+		return file;
+	}
+}
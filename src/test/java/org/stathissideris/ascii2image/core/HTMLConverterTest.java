@@ -0,0 +1,136 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.core;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HTMLConverterTest {
+
+	private static final String BOX = "+--+\n|  |\n+--+\n";
+	private static final String OTHER_BOX = "+----+\n|    |\n+----+\n";
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testImagesAreNamedByContentOrId() throws Exception {
+		// Given
+		File html = write("in.html", page(diagram(null, BOX), diagram("a box", OTHER_BOX), diagram(null, BOX)));
+		File target = new File(folder.getRoot(), "out.html");
+
+		// When
+		HTMLConverter.Result result = new HTMLConverter(2).convertHTMLFile(
+				html.getPath(), target.getPath(), "diagram", "images", null);
+
+		// Then
+		assertThat(result.isSuccessful(), is(true));
+		List<HTMLConverter.ImageResult> images = result.getImages();
+		assertThat(images.size(), is(2));
+		assertThat(images.get(0).getUrl(), containsString("images/diagram_"));
+		assertThat(images.get(1).getUrl(), is("images/a_box.png"));
+		for(HTMLConverter.ImageResult image : images){
+			assertThat(image.getStatus(), is(HTMLConverter.ImageResult.RENDERED));
+			assertThat(image.getFile().isFile(), is(true));
+		}
+		String output = new String(IncrementalManifest.readFile(target));
+		assertThat(output, containsString("<img src=\"" + images.get(0).getUrl() + "\" />"));
+		assertThat(output, not(containsString("textdiagram")));
+	}
+
+	@Test
+	public void testUnchangedDiagramsAreReused() throws Exception {
+		// Given
+		File html = write("in.html", page(diagram(null, BOX)));
+		File target = new File(folder.getRoot(), "out.html");
+		HTMLConverter converter = new HTMLConverter(1);
+		String firstUrl = converter.convertHTMLFile(html.getPath(), target.getPath(), "diagram", "images", null)
+				.getImages().get(0).getUrl();
+
+		// When
+		HTMLConverter.Result unchanged = converter.convertHTMLFile(html.getPath(), target.getPath(), "diagram", "images", null);
+		write("in.html", page(diagram(null, OTHER_BOX)));
+		HTMLConverter.Result changed = converter.convertHTMLFile(html.getPath(), target.getPath(), "diagram", "images", null);
+
+		// Then
+		assertThat(unchanged.getImages().get(0).getStatus(), is(HTMLConverter.ImageResult.REUSED));
+		assertThat(unchanged.getImages().get(0).getUrl(), is(firstUrl));
+		assertThat(changed.getImages().get(0).getStatus(), is(HTMLConverter.ImageResult.RENDERED));
+		assertThat(changed.getImages().get(0).getUrl(), is(not(firstUrl)));
+	}
+
+	@Test
+	public void testDocumentWithoutDiagrams() throws Exception {
+		// Given
+		File html = write("in.html", page());
+
+		// When
+		HTMLConverter.Result result = new HTMLConverter().convertHTMLFile(
+				html.getPath(), new File(folder.getRoot(), "out.html").getPath(), "diagram", "images", null);
+
+		// Then
+		assertThat(result.isSuccessful(), is(true));
+		assertThat(result.hasDiagrams(), is(false));
+	}
+
+	@Test
+	public void testMissingDocumentIsReported() {
+		// When
+		HTMLConverter.Result result = new HTMLConverter().convertHTMLFile(
+				new File(folder.getRoot(), "missing.html").getPath(),
+				new File(folder.getRoot(), "out.html").getPath(), "diagram", "images", null);
+
+		// Then
+		assertThat(result.isSuccessful(), is(false));
+		assertThat(result.getError(), containsString("missing.html"));
+	}
+
+	private static String page(String... diagrams){
+		StringBuilder page = new StringBuilder("<html><body>\n");
+		for(String diagram : diagrams){
+			page.append(diagram).append("\n<p>text</p>\n");
+		}
+		return page.append("</body></html>\n").toString();
+	}
+
+	private static String diagram(String id, String text){
+		return "<pre class=\"textdiagram\"" + (id == null ? "" : " id=\"" + id + "\"") + ">\n" + text + "</pre>";
+	}
+
+	private File write(String name, String content) throws IOException {
+		File file = new File(folder.getRoot(), name);
+		FileWriter writer = new FileWriter(file);
+		try {
+			writer.write(content);
+		} finally {
+			writer.close();
+		}
+		return file;
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.core;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IncrementalManifestTest {
+
+	private static final byte[] INPUT = "+--+\n|  |\n+--+\n".getBytes();
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testKeyDependsOnInputAndOptions() {
+		// Given
+		ConversionOptions options = new ConversionOptions();
+		ConversionOptions scaled = new ConversionOptions();
+		scaled.renderingOptions.setScale(2);
+		ConversionOptions lineGraph = new ConversionOptions();
+		lineGraph.processingOptions.setShapeFinding(ProcessingOptions.FIND_SHAPES_WITH_LINE_GRAPH);
+		ConversionOptions banded = new ConversionOptions();
+		banded.renderingOptions.setBandHeight(64);
+
+		// When
+		String key = IncrementalManifest.keyFor(INPUT, options, options.renderingOptions, "png");
+
+		// Then
+		assertThat(IncrementalManifest.keyFor(INPUT, new ConversionOptions(), options.renderingOptions, "png"), is(key));
+		assertThat(IncrementalManifest.keyFor("+-+".getBytes(), options, options.renderingOptions, "png"), is(not(key)));
+		assertThat(IncrementalManifest.keyFor(INPUT, scaled, scaled.renderingOptions, "png"), is(not(key)));
+		assertThat(IncrementalManifest.keyFor(INPUT, options, options.renderingOptions, "gif"), is(not(key)));
+		assertThat(IncrementalManifest.keyFor(INPUT, lineGraph, lineGraph.renderingOptions, "png"), is(not(key)));
+		assertThat(IncrementalManifest.keyFor(INPUT, banded, banded.renderingOptions, "png"), is(not(key)));
+	}
+
+	@Test
+	public void testRecordedImageIsUpToDateAfterReload() throws Exception {
+		// Given
+		File image = write("a.png", "image");
+		IncrementalManifest manifest = IncrementalManifest.load(folder.getRoot());
+		manifest.record(image, "key");
+		manifest.save();
+
+		// When
+		IncrementalManifest reloaded = IncrementalManifest.load(folder.getRoot());
+
+		// Then
+		assertThat(reloaded.isUpToDate(image, "key"), is(true));
+		assertThat(reloaded.isUpToDate(image, "other key"), is(false));
+		assertThat(reloaded.isOwned(image), is(true));
+	}
+
+	@Test
+	public void testModifiedImageIsNeitherUpToDateNorOwned() throws Exception {
+		// Given
+		File image = write("a.png", "image");
+		IncrementalManifest manifest = IncrementalManifest.load(folder.getRoot());
+		manifest.record(image, "key");
+
+		// When
+		write("a.png", "edited by hand");
+
+		// Then
+		assertThat(manifest.isUpToDate(image, "key"), is(false));
+		assertThat(manifest.isOwned(image), is(false));
+	}
+
+	@Test
+	public void testOwnedImagesKeepTheirNames() throws Exception {
+		// Given
+		File source = write("a.txt", "text");
+		File image = write("a.png", "image");
+		IncrementalManifest.Group manifests = new IncrementalManifest.Group();
+
+		// When
+		String beforeRecording = manifests.makeTargetPathname(source.getPath(), "png", false);
+		manifests.forImage(image).record(image, "key");
+		String afterRecording = manifests.makeTargetPathname(source.getPath(), "png", false);
+
+		// Then
+		assertThat(new File(beforeRecording).getName(), is("a_2.png"));
+		assertThat(new File(afterRecording).getName(), is("a.png"));
+	}
+
+	private File write(String name, String content) throws IOException {
+		File file = new File(folder.getRoot(), name);
+		FileWriter writer = new FileWriter(file);
+		writer.write(content);
+		writer.close();
+		return file;
+	}
+}
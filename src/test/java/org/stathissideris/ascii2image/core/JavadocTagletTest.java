@@ -0,0 +1,105 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.core;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JavadocTagletTest {
+
+	private static final String BOX = "+--+\n|  |\n+--+\n";
+	private static final long LONG_AGO = 1000000000000L;
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testImagesAreRenderedInTheBackground() throws Exception {
+		// Given
+		File first = new File(folder.getRoot(), "Foo-first.png");
+		File second = new File(folder.getRoot(), "Foo-second.png");
+
+		// When
+		JavadocTaglet.submitImage(BOX, first);
+		JavadocTaglet.submitImage(BOX, second);
+		boolean succeeded = JavadocTaglet.awaitImages();
+
+		// Then
+		assertThat(succeeded, is(true));
+		assertThat(first.length() > 0, is(true));
+		assertThat(second.length() > 0, is(true));
+		assertThat(new File(folder.getRoot(), IncrementalManifest.FILENAME).isFile(), is(true));
+	}
+
+	@Test
+	public void testUpToDateImageIsNotRenderedAgain() throws Exception {
+		// Given
+		File image = new File(folder.getRoot(), "Foo-box.png");
+		JavadocTaglet.submitImage(BOX, image);
+		JavadocTaglet.awaitImages();
+		image.setLastModified(LONG_AGO);
+
+		// When
+		JavadocTaglet.submitImage(BOX, image);
+		boolean succeeded = JavadocTaglet.awaitImages();
+
+		// Then
+		assertThat(succeeded, is(true));
+		assertThat(image.lastModified(), is(LONG_AGO));
+	}
+
+	@Test
+	public void testChangedDiagramIsRenderedAgain() throws Exception {
+		// Given
+		File image = new File(folder.getRoot(), "Foo-box.png");
+		JavadocTaglet.submitImage(BOX, image);
+		JavadocTaglet.awaitImages();
+		image.setLastModified(LONG_AGO);
+
+		// When
+		JavadocTaglet.submitImage("+----+\n|    |\n+----+\n", image);
+		JavadocTaglet.awaitImages();
+
+		// Then
+		assertThat(image.lastModified(), is(not(LONG_AGO)));
+	}
+
+	@Test
+	public void testFailureIsReportedOnce() throws Exception {
+		// Given
+		File unwritable = new File(new File(folder.getRoot(), "missing"), "Foo-box.png");
+		JavadocTaglet.submitImage(BOX, unwritable);
+
+		// When
+		boolean first = JavadocTaglet.awaitImages();
+		JavadocTaglet.submitImage(BOX, new File(folder.getRoot(), "Foo-box.png"));
+		boolean second = JavadocTaglet.awaitImages();
+
+		// Then
+		assertThat(first, is(false));
+		assertThat(second, is(true));
+	}
+}
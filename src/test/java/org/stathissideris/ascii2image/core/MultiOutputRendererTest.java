@@ -0,0 +1,76 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.core;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MultiOutputRendererTest {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testImageIsWrittenWhole() throws Exception {
+		// Given
+		File file = new File(folder.getRoot(), "out.png");
+
+		// When
+		MultiOutputRenderer.write(new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB), new OutputSpec(file.getPath()));
+
+		// Then
+		assertThat(file.length() > 0, is(true));
+		assertThat(folder.getRoot().list().length, is(1));
+	}
+
+	@Test
+	public void testFailedWriteLeavesExistingImage() throws Exception {
+		// Given
+		File file = new File(folder.getRoot(), "out.nosuchformat");
+		FileOutputStream earlier = new FileOutputStream(file);
+		try {
+			earlier.write("earlier image".getBytes("UTF-8"));
+		} finally {
+			earlier.close();
+		}
+		IOException failure = null;
+
+		// When
+		try {
+			MultiOutputRenderer.write(new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB), new OutputSpec(file.getPath()));
+		} catch (IOException e) {
+			failure = e;
+		}
+
+		// Then
+		assertThat(failure, is(notNullValue()));
+		assertThat(new String(IncrementalManifest.readFile(file), "UTF-8"), is("earlier image"));
+		assertThat(folder.getRoot().list().length, is(1));
+	}
+}
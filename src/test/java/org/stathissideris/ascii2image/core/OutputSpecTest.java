@@ -0,0 +1,78 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.core;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.awt.Color;
+
+import org.junit.Test;
+
+public class OutputSpecTest {
+
+	@Test
+	public void parseDestinationOnly() {
+		// When
+		OutputSpec spec = OutputSpec.parse("out/diagram.PNG");
+
+		// Then
+		assertThat(spec.getDestination(), is("out/diagram.PNG"));
+		assertThat(spec.getFormat(), is("png"));
+		assertThat(spec.getScale(), is(nullValue()));
+		assertThat(spec.getDropShadows(), is(nullValue()));
+	}
+
+	@Test
+	public void parseModifiers() {
+		// When
+		OutputSpec spec = OutputSpec.parse("thumb.img,format=jpg,scale=0.5,no-shadows,background=FF0000");
+
+		// Then
+		assertThat(spec.getFormat(), is("jpg"));
+		assertThat(spec.getScale(), is(0.5f));
+		assertThat(spec.getDropShadows(), is(false));
+		assertThat(spec.getBackgroundColor(), is(Color.red));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void parseUnknownModifier() {
+		OutputSpec.parse("diagram.png,sepia");
+	}
+
+	@Test
+	public void applyToOverridesOnlyWhatIsSet() {
+		// Given
+		RenderingOptions base = new RenderingOptions();
+		base.setScale(1.5f);
+		base.setAntialias(false);
+		OutputSpec spec = OutputSpec.parse("diagram.png,transparent");
+
+		// When
+		RenderingOptions options = spec.applyTo(base);
+
+		// Then
+		assertThat(options.getScale(), is(1.5f));
+		assertThat(options.getCellWidth(), is(15));
+		assertThat(options.performAntialias(), is(false));
+		assertThat(options.needsTransparency(), is(true));
+		assertThat(base.needsTransparency(), is(false));
+	}
+}
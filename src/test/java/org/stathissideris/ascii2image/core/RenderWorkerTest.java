@@ -0,0 +1,123 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.core;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class RenderWorkerTest {
+
+	private static final String GRID = "+---+\n| \u00e9 |\n+---+\n";
+
+	@Test
+	public void testRequestRoundTrip() throws Exception {
+		// Given
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		String[] options = { "-s", "2", "--background", "\u00e9\u00e9" };
+
+		// When
+		RenderWorker.writeRequest(new DataOutputStream(bytes), options, GRID);
+		DataInputStream in = in(bytes);
+
+		// Then
+		assertThat(RenderWorker.readOptions(in), is(options));
+		assertThat(new String(RenderWorker.readBytes(in), "UTF-8"), is(GRID));
+		assertThat(in.read(), is(-1));
+	}
+
+	@Test
+	public void testEmptyFrames() throws Exception {
+		// Given
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		// When
+		RenderWorker.writeRequest(new DataOutputStream(bytes), new String[0], "");
+		DataInputStream in = in(bytes);
+
+		// Then
+		assertThat(RenderWorker.readOptions(in).length, is(0));
+		assertThat(RenderWorker.readBytes(in).length, is(0));
+	}
+
+	@Test(expected = EOFException.class)
+	public void testEndOfStreamBeforeRequest() throws Exception {
+		RenderWorker.readOptions(new DataInputStream(new ByteArrayInputStream(new byte[0])));
+	}
+
+	@Test
+	public void testBadLengthsAreRefused() throws Exception {
+		// Given
+		ByteArrayOutputStream count = new ByteArrayOutputStream();
+		new DataOutputStream(count).writeInt(-1);
+		ByteArrayOutputStream length = new ByteArrayOutputStream();
+		new DataOutputStream(length).writeInt(Integer.MAX_VALUE);
+
+		// Then
+		assertRefused(count, true);
+		assertRefused(length, false);
+	}
+
+	@Test
+	public void testRenderAndErrorResponses() throws Exception {
+		// Given
+		ByteArrayOutputStream requests = new ByteArrayOutputStream();
+		DataOutputStream request = new DataOutputStream(requests);
+		RenderWorker.writeRequest(request, new String[0], GRID);
+		RenderWorker.writeRequest(request, new String[] { "--no-such-option" }, GRID);
+		ByteArrayOutputStream responses = new ByteArrayOutputStream();
+
+		// When
+		boolean finished = RenderWorker.serve(in(requests), new DataOutputStream(responses));
+
+		// Then
+		assertThat(finished, is(true));
+		DataInputStream response = in(responses);
+		assertThat(response.readInt(), is(RenderWorker.STATUS_OK));
+		assertThat(response.readLong() > 0, is(true));
+		assertThat(new String(RenderWorker.readBytes(response), 1, 3, "ISO-8859-1"), is("PNG"));
+		assertThat(response.readInt(), is(RenderWorker.STATUS_ERROR));
+		response.readLong();
+		assertThat(new String(RenderWorker.readBytes(response), "UTF-8"), containsString("no-such-option"));
+		assertThat(response.read(), is(-1));
+	}
+
+	private static void assertRefused(ByteArrayOutputStream bytes, boolean options) {
+		try {
+			if(options) RenderWorker.readOptions(in(bytes));
+			else RenderWorker.readBytes(in(bytes));
+			fail("Expected the frame to be refused");
+		} catch (IOException e) {
+			assertThat(e, is(not(instanceOf(EOFException.class))));
+		}
+	}
+
+	private static DataInputStream in(ByteArrayOutputStream bytes) {
+		return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+	}
+}
@@ -0,0 +1,134 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.core;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class StreamConverterTest {
+
+	private static final String BOX = "+--+\n|  |\n+--+\n";
+	private static final String WIDE_BOX = "+------+\n|      |\n+------+\n";
+
+	@Test
+	public void testFramesFollowTheOrderOfTheDocuments() throws Exception {
+		// Given
+		ByteArrayOutputStream input = new ByteArrayOutputStream();
+		DataOutputStream documents = new DataOutputStream(input);
+		for(int i = 0; i < 6; i++){
+			RenderWorker.writeRequest(documents, new String[0], i % 2 == 0 ? BOX : WIDE_BOX);
+		}
+
+		// When
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		StreamConverter.Result result = new StreamConverter(new String[0], 3)
+				.convert(new ByteArrayInputStream(input.toByteArray()), output);
+
+		// Then
+		assertThat(result.isSuccessful(), is(true));
+		assertThat(result.getDocuments(), is(6));
+		DataInputStream frames = new DataInputStream(new ByteArrayInputStream(output.toByteArray()));
+		int narrow = 0;
+		for(int i = 0; i < 6; i++){
+			assertThat(frames.readInt(), is(RenderWorker.STATUS_OK));
+			BufferedImage image = ImageIO.read(new ByteArrayInputStream(RenderWorker.readBytes(frames)));
+			if(i == 0) narrow = image.getWidth();
+			assertThat(image.getWidth() == narrow, is(i % 2 == 0));
+		}
+		assertThat(frames.read(), is(-1));
+	}
+
+	@Test
+	public void testDocumentOptionsOverrideTheBaseOptions() throws Exception {
+		// Given
+		ByteArrayOutputStream input = new ByteArrayOutputStream();
+		DataOutputStream documents = new DataOutputStream(input);
+		RenderWorker.writeRequest(documents, new String[0], BOX);
+		RenderWorker.writeRequest(documents, new String[] {"--scale", "2"}, BOX);
+		RenderWorker.writeRequest(documents, new String[] {"--output", "-,format=gif"}, BOX);
+
+		// When
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		new StreamConverter(new String[] {"--scale", "0.5"}, 2)
+				.convert(new ByteArrayInputStream(input.toByteArray()), output);
+
+		// Then
+		DataInputStream frames = new DataInputStream(new ByteArrayInputStream(output.toByteArray()));
+		assertThat(frames.readInt(), is(RenderWorker.STATUS_OK));
+		int baseWidth = ImageIO.read(new ByteArrayInputStream(RenderWorker.readBytes(frames))).getWidth();
+		assertThat(frames.readInt(), is(RenderWorker.STATUS_OK));
+		int scaledWidth = ImageIO.read(new ByteArrayInputStream(RenderWorker.readBytes(frames))).getWidth();
+		assertThat(frames.readInt(), is(RenderWorker.STATUS_OK));
+		byte[] gif = RenderWorker.readBytes(frames);
+		assertThat(new String(gif, 0, 3, "US-ASCII"), is("GIF"));
+		assertThat(scaledWidth, is(4 * baseWidth));
+	}
+
+	@Test
+	public void testBadDocumentGetsAnErrorFrame() throws Exception {
+		// Given
+		ByteArrayOutputStream input = new ByteArrayOutputStream();
+		DataOutputStream documents = new DataOutputStream(input);
+		RenderWorker.writeRequest(documents, new String[] {"--scale", "not_a_number"}, BOX);
+		RenderWorker.writeRequest(documents, new String[0], BOX);
+
+		// When
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		StreamConverter.Result result = new StreamConverter(new String[0], 2)
+				.convert(new ByteArrayInputStream(input.toByteArray()), output);
+
+		// Then
+		assertThat(result.getFailed(), is(1));
+		DataInputStream frames = new DataInputStream(new ByteArrayInputStream(output.toByteArray()));
+		assertThat(frames.readInt(), is(RenderWorker.STATUS_ERROR));
+		assertThat(new String(RenderWorker.readBytes(frames), "UTF-8"), containsString("not_a_number"));
+		assertThat(frames.readInt(), is(RenderWorker.STATUS_OK));
+	}
+
+	@Test
+	public void testTruncatedStreamIsReported() throws Exception {
+		// Given
+		ByteArrayOutputStream input = new ByteArrayOutputStream();
+		DataOutputStream documents = new DataOutputStream(input);
+		RenderWorker.writeRequest(documents, new String[0], BOX);
+		documents.writeInt(1);
+
+		// When
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		StreamConverter.Result result = new StreamConverter(new String[0], 1)
+				.convert(new ByteArrayInputStream(input.toByteArray()), output);
+
+		// Then
+		assertThat(result.isSuccessful(), is(false));
+		assertThat(result.getError(), containsString("document 2"));
+		DataInputStream frames = new DataInputStream(new ByteArrayInputStream(output.toByteArray()));
+		assertThat(frames.readInt(), is(RenderWorker.STATUS_OK));
+	}
+}
@@ -0,0 +1,274 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.graphics;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.core.RenderingOptions;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+import yskkin.ascii2image.util.ImagePool;
+import yskkin.ascii2image.util.OffHeapDataBuffer;
+
+public class BitmapRendererTest {
+
+	/**
+	 * How much a channel of an antialiased edge may differ, since bands are
+	 * rasterized at other coordinates than the whole image
+	 */
+	private static final int EDGE_TOLERANCE = 32;
+
+	private static final String DIAGRAM =
+			"/--------\\      +-----+\n" +
+			"| cBLU   +----->| {s} |\n" +
+			"| text   |      +-----+\n" +
+			"\\----+---/         ^   \n" +
+			"     |             |   \n" +
+			"     v             |   \n" +
+			"  +------+  -------+   \n" +
+			"  | cRED |             \n" +
+			"  | more |  *  {o}     \n" +
+			"  +------+             \n";
+
+	@Test
+	public void testBandedImageMatchesWholeImage() throws Exception {
+		// Given
+		Diagram diagram = diagram(DIAGRAM);
+		RenderingOptions options = new RenderingOptions();
+		options.setBandHeight(7);
+
+		// When
+		BufferedImage testee = renderToPng(diagram, options);
+
+		// Then
+		assertSamePixels(testee, new BitmapRenderer().renderToImage(diagram, options));
+	}
+
+	@Test
+	public void testTransparentBandedImageMatchesWholeImage() throws Exception {
+		// Given
+		Diagram diagram = diagram(DIAGRAM);
+		RenderingOptions options = new RenderingOptions();
+		options.setBackgroundColor(new Color(0, 0, 0, 0));
+		options.setDropShadows(false);
+		options.setScale(1.5f);
+		options.setBandHeight(1);
+
+		// When
+		BufferedImage testee = renderToPng(diagram, options);
+
+		// Then
+		assertThat(testee.getColorModel().hasAlpha(), is(true));
+		assertSamePixels(testee, new BitmapRenderer().renderToImage(diagram, options));
+	}
+
+	@Test
+	public void testPooledImagesAreGivenBack() throws Exception {
+		// Given
+		Diagram diagram = diagram(DIAGRAM);
+		ImagePool pool = new ImagePool(ImagePool.DEFAULT_CAPACITY);
+		RenderingOptions options = new RenderingOptions();
+		options.setImagePool(pool);
+		BufferedImage expected = (BufferedImage) new BitmapRenderer().renderToImage(diagram, new RenderingOptions());
+
+		// When
+		renderToPng(diagram, options);
+		BufferedImage testee = renderToPng(diagram, options);
+
+		// Then
+		assertSamePixels(testee, expected);
+		assertSamePixels((BufferedImage) new BitmapRenderer().renderToImage(diagram, options), expected);
+		assertThat(pool.getLentCount(), is(0));
+		assertThat(pool.getIdleCount(), is(2));
+		assertThat(pool.getHits(), is(3L));
+	}
+
+	@Test
+	public void testLargeImageIsKeptOffHeap() throws Exception {
+		// Given
+		Diagram diagram = diagram(DIAGRAM);
+		RenderingOptions options = new RenderingOptions();
+		options.setOffHeapThreshold(1);
+		options.setBandHeight(50);
+
+		// When
+		BufferedImage testee = (BufferedImage) new BitmapRenderer().renderToImage(diagram, options);
+
+		// Then
+		assertThat(OffHeapDataBuffer.of(testee), is(notNullValue()));
+		assertSamePixels(testee, new BitmapRenderer().renderToImage(diagram, new RenderingOptions()));
+	}
+
+	@Test
+	public void testOneLayoutRendersLikeFreshLayoutsAtEachScale() throws Exception {
+		// Given
+		Diagram diagram = diagram(DIAGRAM);
+		RenderingOptions single = new RenderingOptions();
+		RenderingOptions twice = new RenderingOptions();
+		twice.setScale(2);
+
+		// When
+		BufferedImage first = (BufferedImage) new BitmapRenderer().renderToImage(diagram, single);
+		BufferedImage second = (BufferedImage) new BitmapRenderer().renderToImage(diagram, twice);
+		BufferedImage firstAgain = (BufferedImage) new BitmapRenderer().renderToImage(diagram, single);
+		BufferedImage secondAgain = (BufferedImage) new BitmapRenderer().renderToImage(diagram, twice);
+
+		// Then
+		assertThat(second.getWidth(), is(2 * first.getWidth()));
+		assertThat(second.getHeight(), is(2 * first.getHeight()));
+		assertIdenticalPixels(first, new BitmapRenderer().renderToImage(diagram(DIAGRAM), single));
+		assertIdenticalPixels(second, new BitmapRenderer().renderToImage(diagram(DIAGRAM), twice));
+		assertIdenticalPixels(firstAgain, first);
+		assertIdenticalPixels(secondAgain, second);
+	}
+
+	@Test
+	public void testTextIsLaidOutOncePerScale() throws Exception {
+		// Given
+		Diagram diagram = diagram(DIAGRAM);
+		RenderingOptions twice = new RenderingOptions();
+		twice.setScale(2);
+		RenderingOptions thrice = new RenderingOptions();
+		thrice.setScale(3);
+
+		// When
+		List<DiagramText> testee = diagram.getTextObjects(twice);
+
+		// Then
+		assertThat(diagram.getTextObjects(twice), is(sameInstance(testee)));
+		assertThat(diagram.getTextObjects(new RenderingOptions()), is(sameInstance(diagram.getTextObjects())));
+		assertSamePlacement(testee, diagram(DIAGRAM).getTextObjects(twice));
+		assertSamePlacement(diagram.getTextObjects(thrice), diagram(DIAGRAM).getTextObjects(thrice));
+		assertSamePlacement(diagram.getTextObjects(), diagram(DIAGRAM).getTextObjects(new RenderingOptions()));
+		assertThat(testee.get(0).getYPos(), is(not(diagram.getTextObjects().get(0).getYPos())));
+	}
+
+	@Test
+	public void testScaledLayoutHasThePointsOfALayoutAtThatScale() throws Exception {
+		// Given
+		Diagram diagram = diagram("+--+ -\n|  |  \n+--+  \n");
+		RenderingOptions options = new RenderingOptions();
+		options.setScale(1.5f);
+
+		// When
+		Diagram testee = diagram.scaledTo(options);
+
+		// Then
+		assertThat(testee.getCellWidth(), is(15));
+		assertThat(testee.getCellHeight(), is(21));
+		// middles of 15x21 cells are 7 and 10 in, and a one cell line ends a pixel short of the next cell
+		assertThat(points(testee), hasItems("37.0,52.0", "82.0,94.0", "105.0,52.0", "119.0,52.0"));
+		assertThat(diagram.scaledTo(options), is(sameInstance(testee)));
+		assertThat(diagram.scaledTo(new RenderingOptions()), is(sameInstance(diagram)));
+	}
+
+	@Test
+	public void testCachedFontsAreTheFittedOnes() {
+		// Given
+		FontMeasurer cached = FontMeasurer.instance();
+		int height = 2 * RenderingOptions.DEFAULT_CELL_HEIGHT;
+
+		// When
+		Font font = cached.getFontFor(height);
+		Font narrow = cached.getFontFor(25, "text");
+
+		// Then
+		assertThat(cached.getFontFor(height), is(sameInstance(font)));
+		assertThat(font, is(new FontMeasurer().getFontFor(height)));
+		assertThat(cached.getFontFor(25, "text"), is(sameInstance(narrow)));
+		assertThat(narrow, is(new FontMeasurer().getFontFor(25, "text")));
+		assertThat(cached.getFontFor(50, "text"), is(not(narrow)));
+	}
+
+	private Diagram diagram(String text) throws Exception {
+		TextGrid grid = new TextGrid();
+		grid.initialiseWithText(text, null);
+		return new Diagram(grid, new ConversionOptions());
+	}
+
+	private List<String> points(Diagram diagram) {
+		List<String> result = new ArrayList<String>();
+		for (DiagramShape shape : diagram.getAllDiagramShapes()) {
+			for (ShapePoint point : shape.getPoints()) {
+				result.add(point.x + "," + point.y);
+			}
+		}
+		return result;
+	}
+
+	private BufferedImage renderToPng(Diagram diagram, RenderingOptions options) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new BitmapRenderer().renderToPng(diagram, options, out);
+		return ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+	}
+
+	private void assertSamePlacement(List<DiagramText> actual, List<DiagramText> expected) {
+		assertThat(actual.size(), is(expected.size()));
+		for (int i = 0; i < actual.size(); i++) {
+			DiagramText actualText = actual.get(i);
+			DiagramText expectedText = expected.get(i);
+			assertThat(actualText.getText(), is(expectedText.getText()));
+			assertThat(actualText.getXPos(), is(expectedText.getXPos()));
+			assertThat(actualText.getYPos(), is(expectedText.getYPos()));
+			assertThat(actualText.getFont(), is(expectedText.getFont()));
+			assertThat(actualText.getColor(), is(expectedText.getColor()));
+		}
+	}
+
+	private void assertIdenticalPixels(BufferedImage actual, RenderedImage expected) {
+		BufferedImage expectedImage = (BufferedImage) expected;
+		assertThat(actual.getWidth(), is(expectedImage.getWidth()));
+		assertThat(actual.getHeight(), is(expectedImage.getHeight()));
+		int width = actual.getWidth();
+		int height = actual.getHeight();
+		assertArrayEquals(expectedImage.getRGB(0, 0, width, height, null, 0, width),
+				actual.getRGB(0, 0, width, height, null, 0, width));
+	}
+
+	private void assertSamePixels(BufferedImage actual, RenderedImage expected) {
+		BufferedImage expectedImage = (BufferedImage) expected;
+		assertThat(actual.getWidth(), is(expectedImage.getWidth()));
+		assertThat(actual.getHeight(), is(expectedImage.getHeight()));
+		for (int y = 0; y < actual.getHeight(); y++) {
+			for (int x = 0; x < actual.getWidth(); x++) {
+				int actualPixel = actual.getRGB(x, y);
+				int expectedPixel = expectedImage.getRGB(x, y);
+				for (int shift = 0; shift < 32; shift += 8) {
+					int difference = Math.abs(((actualPixel >>> shift) & 0xff) - ((expectedPixel >>> shift) & 0xff));
+					assertThat("pixel at " + x + ", " + y, difference, is(lessThanOrEqualTo(EDGE_TOLERANCE)));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.graphics;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+public class ShapeGeometryTest {
+
+	@Test
+	public void testShapesAreViewsOverPackedGeometry() {
+		// Given
+		DiagramShape box = box();
+		DiagramShape line = line();
+
+		// When
+		ShapeGeometry testee = ShapeGeometry.pack(Arrays.asList(box, line));
+
+		// Then
+		assertThat(testee.getShapeCount(), is(2));
+		assertThat(testee.getTotalPointCount(), is(6));
+		assertThat(testee.getFirstPoint(1), is(4));
+		assertThat(testee.getX(2), is(30f));
+		assertThat(testee.getPointType(1), is(ShapePoint.TYPE_ROUND));
+		assertThat(testee.getFillColor(0), is(new Color(0x80, 0x20, 0x10, 0x40)));
+		assertThat(testee.getFillColor(1), is(nullValue()));
+		assertThat(testee.isStrokeDashed(1), is(true));
+		assertThat(box.getPointCount(), is(4));
+		assertThat(box.isClosed(), is(true));
+		assertThat(box.getFillColor(), is(new Color(0x80, 0x20, 0x10, 0x40)));
+		assertThat(box.calculateArea(), is(400.0));
+		assertThat(line.getType(), is(DiagramShape.TYPE_SIMPLE));
+	}
+
+	@Test
+	public void testChangedShapeKeepsItsPoints() {
+		// Given
+		DiagramShape line = line();
+		ShapeGeometry geometry = ShapeGeometry.pack(Arrays.asList(box(), line));
+
+		// When
+		line.setStrokeColor(Color.red);
+
+		// Then
+		List<ShapePoint> points = line.getPoints();
+		assertThat(points, contains(new ShapePoint(0, 50), new ShapePoint(40, 50)));
+		assertThat(points.get(1).isLocked(), is(true));
+		assertThat(line.isStrokeDashed(), is(true));
+		assertThat(line.getStrokeColor(), is(Color.red));
+		assertThat(geometry.getStrokeColor(1), is(Color.black));
+	}
+
+	@Test
+	public void testDiagramPacksAllItsShapes() throws Exception {
+		// Given
+		TextGrid grid = new TextGrid();
+		grid.initialiseWithText(
+				"/----\\    \n" +
+				"| cRED+--->\n" +
+				"\\----/    \n", null);
+
+		// When
+		Diagram testee = new Diagram(grid, new ConversionOptions());
+
+		// Then
+		List<DiagramShape> shapes = testee.getAllDiagramShapes();
+		ShapeGeometry geometry = testee.getGeometry();
+		assertThat(geometry.getShapeCount(), is(shapes.size()));
+		for (int i = 0; i < shapes.size(); i++) {
+			assertThat(geometry.getPointCount(i), is(shapes.get(i).getPointCount()));
+			assertThat(geometry.getType(i), is(shapes.get(i).getType()));
+		}
+	}
+
+	private DiagramShape box() {
+		DiagramShape result = new DiagramShape();
+		result.addToPoints(new ShapePoint(10, 10));
+		result.addToPoints(new ShapePoint(30, 10, ShapePoint.TYPE_ROUND));
+		result.addToPoints(new ShapePoint(30, 30));
+		result.addToPoints(new ShapePoint(10, 30));
+		result.setClosed(true);
+		result.setFillColor(new Color(0x80, 0x20, 0x10, 0x40));
+		return result;
+	}
+
+	private DiagramShape line() {
+		DiagramShape result = new DiagramShape();
+		ShapePoint end = new ShapePoint(40, 50);
+		end.setLocked(true);
+		result.addToPoints(new ShapePoint(0, 50));
+		result.addToPoints(end);
+		result.setStrokeDashed(true);
+		return result;
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.text;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.text.TextGrid.Cell;
+
+public class AbstractionGridTest {
+
+	/** The blank border {@link TextGrid#initialiseWithText} adds around the text */
+	private static final int BORDER = 2;
+
+	@Test
+	public void testDistinctShapesAreInRowOrder() throws Exception {
+		// Given
+		AbstractionGrid testee = abstractionGrid(
+				"    +-+\n" +
+				"+-+ +-+\n" +
+				"+-+    \n");
+
+		// When
+		List<CellSet> shapes = testee.getDistinctShapes();
+
+		// Then
+		assertThat(shapes, contains(
+				cells(4, 0, 5, 0, 6, 0, 4, 1, 5, 1, 6, 1),
+				cells(0, 1, 1, 1, 2, 1, 0, 2, 1, 2, 2, 2)));
+	}
+
+	@Test
+	public void testCellsJoinOnlyThroughLines() throws Exception {
+		// Given
+		AbstractionGrid testee = abstractionGrid(
+				"--|\n" +
+				"  |\n" +
+				"---\n");
+
+		// When
+		List<CellSet> shapes = testee.getDistinctShapes();
+
+		// Then
+		assertThat(shapes, contains(
+				cells(0, 0, 1, 0),
+				cells(2, 0, 2, 1),
+				cells(0, 2, 1, 2, 2, 2)));
+	}
+
+	private AbstractionGrid abstractionGrid(String text) throws Exception {
+		TextGrid grid = new TextGrid();
+		grid.initialiseWithText(text, null);
+		return new AbstractionGrid(grid, grid.getAllBoundaries());
+	}
+
+	private CellSet cells(int... coordinates) {
+		CellSet result = new CellSet();
+		for (int i = 0; i < coordinates.length; i += 2) {
+			result.add(new Cell(coordinates[i] + BORDER, coordinates[i + 1] + BORDER));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.text;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.text.TextGrid.Cell;
+
+public class CellBitmapTest {
+
+	private static CellSet cells(int... coordinates) {
+		CellSet set = new CellSet();
+		for (int i = 0; i < coordinates.length; i += 2) {
+			set.add(new Cell(coordinates[i], coordinates[i + 1]));
+		}
+		return set;
+	}
+
+	@Test
+	public void testOperationsOnBitmapsOfDifferentRectangles() {
+		// Given
+		CellBitmap wide = CellBitmap.of(cells(3, 1, 63, 1, 64, 1, 130, 2, 64, 5));
+		CellBitmap narrow = CellBitmap.of(cells(64, 1, 65, 1, 130, 2));
+
+		// When
+		CellBitmap and = CellBitmap.of(cells(3, 1, 63, 1, 64, 1, 130, 2, 64, 5));
+		and.and(narrow);
+		CellBitmap andNot = CellBitmap.of(cells(3, 1, 63, 1, 64, 1, 130, 2, 64, 5));
+		andNot.andNot(narrow);
+		CellBitmap or = CellBitmap.of(cells(3, 1, 63, 1, 64, 1, 130, 2, 64, 5));
+		or.or(narrow);
+
+		// Then
+		assertThat(and.toCellSet(), is(cells(64, 1, 130, 2)));
+		assertThat(andNot.toCellSet(), is(cells(3, 1, 63, 1, 64, 5)));
+		assertThat(or.toCellSet(), is(cells(3, 1, 63, 1, 64, 1, 65, 1, 130, 2, 64, 5)));
+		assertThat(wide.cardinality(), is(5));
+		assertTrue(wide.intersects(narrow));
+		assertFalse(andNot.intersects(narrow));
+	}
+
+	@Test
+	public void testCellsOutOfTheBitmapAreLeftOut() {
+		// Given
+		CellBitmap bitmap = new CellBitmap(0, 0, 9, 9);
+
+		// When
+		boolean inside = bitmap.add(9, 9);
+		boolean outside = bitmap.add(10, 9);
+		bitmap.or(CellBitmap.of(cells(5, 5, 20, 20)));
+
+		// Then
+		assertTrue(inside);
+		assertFalse(outside);
+		assertThat(bitmap.toCellSet(), is(cells(9, 9, 5, 5)));
+		assertFalse(bitmap.contains(20, 20));
+	}
+
+	@Test
+	public void testSameCellsInDifferentRectangles() {
+		// Given
+		CellBitmap small = CellBitmap.of(cells(70, 3, 71, 4));
+		CellBitmap large = new CellBitmap(0, 0, 200, 10);
+		large.add(71, 4);
+		large.add(70, 3);
+
+		// Then
+		assertTrue(small.hasSameCellsAs(large));
+		assertTrue(large.hasSameCellsAs(small));
+		large.add(0, 0);
+		assertFalse(small.hasSameCellsAs(large));
+	}
+
+	@Test
+	public void testEmptySet() {
+		// Given
+		CellBitmap empty = CellBitmap.of(new CellSet());
+		CellBitmap other = CellBitmap.of(cells(1, 1));
+
+		// When
+		other.and(empty);
+
+		// Then
+		assertThat(empty.cardinality(), is(0));
+		assertTrue(other.isEmpty());
+		assertTrue(empty.hasSameCellsAs(other));
+	}
+}
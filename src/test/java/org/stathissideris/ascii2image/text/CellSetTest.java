@@ -93,4 +93,21 @@ public class CellSetTest {
 		// Then
 		assertThat(result, hasItems(expected));
 	}
+
+	@Test
+	public void testSubtractSetKeepsTheOrderOfTheOtherCells() {
+		// Given
+		CellSet other = new CellSet();
+		other.add(new Cell(10, 30));
+		other.add(new Cell(99, 99));
+		CellSet expected = new CellSet(set);
+		expected.remove(new Cell(10, 30));
+
+		// When
+		set.subtractSet(other);
+
+		// Then
+		assertThat(set, is(expected));
+		assertThat(set.getCellsAsString(), is(expected.getCellsAsString()));
+	}
 }
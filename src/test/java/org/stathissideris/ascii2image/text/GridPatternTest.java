@@ -21,6 +21,9 @@ package org.stathissideris.ascii2image.text;
 
 import static org.junit.Assert.*;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.stathissideris.ascii2image.text.CellSet;
@@ -46,4 +49,43 @@ public class GridPatternTest {
 		pattern.isMatchedBy(g);
 	}
 
+	@Test public void testMatchingInPlaceAgreesWithSubGrid() throws Exception {
+		// Given
+		TextGrid grid = new TextGrid();
+		grid.initialiseWithText(
+				"  +--+   /-=-\\  *  \u2022x\n" +
+				"  |  +-->|   |--*--|\n" +
+				"  +--/   \\-+-/  :  v\n" +
+				"    ^      |     +-<\n", null);
+
+		for (Field field : GridPatternGroup.class.getFields()) {
+			if (!Modifier.isStatic(field.getModifiers()) || field.getType() != GridPatternGroup.class) continue;
+			GridPatternGroup group = (GridPatternGroup) field.get(null);
+			for (int y = 1; y < grid.getHeight() - 1; y++) {
+				for (int x = 1; x < grid.getWidth() - 1; x++) {
+					// When
+					boolean inPlace = group.isAnyMatchedBy(grid, x, y);
+					boolean copied = group.isAnyMatchedBy(grid.getSubGrid(x - 1, y - 1, 3, 3));
+
+					// Then
+					assertEquals(field.getName() + " at " + x + ", " + y, copied, inPlace);
+				}
+			}
+		}
+	}
+
+	@Test public void testMatchingInPlaceAtTheEdge() {
+		// Given
+		GridPattern corner = new GridPattern(
+				"...",
+				".+-",
+				".|.");
+
+		// When
+		boolean matched = corner.isMatchedBy(g, 0, 0);
+
+		// Then
+		assertTrue(matched);
+	}
+
 }
@@ -0,0 +1,138 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * 
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ *
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ *   
+ */
+package org.stathissideris.ascii2image.text;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.text.TextGrid.Cell;
+
+public class LineGraphTest {
+
+	/** The blank border {@link TextGrid#initialiseWithText} adds around the text */
+	private static final int BORDER = 2;
+
+	@Test
+	public void testBoxesSharingAnEdgeAreClosedSeparately() throws Exception {
+		// Given
+		TextGrid grid = grid(
+				"+--+--+\n" +
+				"|  |  |\n" +
+				"+--+--+\n");
+
+		// When
+		LineGraph testee = new LineGraph(grid, null);
+
+		// Then
+		assertThat(testee.getClosedBoundaries(), containsInAnyOrder(box(0, 0, 4, 3), box(3, 0, 4, 3)));
+		assertThat(testee.getOpenBoundaries(), is(empty()));
+	}
+
+	@Test
+	public void testLineOutOfBoxIsOpen() throws Exception {
+		// Given
+		TextGrid grid = grid(
+				"+--+   \n" +
+				"|  +---\n" +
+				"+--+   \n");
+
+		// When
+		LineGraph testee = new LineGraph(grid, null);
+
+		// Then
+		assertThat(testee.getClosedBoundaries(), contains(box(0, 0, 4, 3)));
+		assertThat(testee.getOpenBoundaries(), contains(cells(4, 1, 5, 1, 6, 1)));
+	}
+
+	@Test
+	public void testLoneLineIsOpen() throws Exception {
+		// Given
+		TextGrid grid = grid(
+				"       \n" +
+				" ----> \n" +
+				"       \n");
+
+		// When
+		LineGraph testee = new LineGraph(grid, null);
+
+		// Then
+		List<CellSet> open = testee.getOpenBoundaries();
+		assertThat(testee.getClosedBoundaries(), is(empty()));
+		assertThat(open, hasSize(1));
+		assertThat(open.get(0).contains(cell(1, 1)), is(true));
+		assertThat(open.get(0).contains(cell(4, 1)), is(true));
+	}
+
+	@Test
+	public void testMarkerSplitsEdge() throws Exception {
+		// Given
+		TextGrid grid = grid(
+				"+----+\n" +
+				"|    |\n" +
+				"+----+\n");
+		CellSet markers = cells(2, 0);
+
+		// When
+		LineGraph testee = new LineGraph(grid, markers);
+
+		// Then
+		assertThat(testee.getNodes(), hasSize(5));
+		assertThat(testee.getEdges(), hasSize(5));
+		assertThat(testee.getClosedBoundaries(), contains(box(0, 0, 6, 3)));
+	}
+
+	private TextGrid grid(String text) throws Exception {
+		TextGrid result = new TextGrid();
+		result.initialiseWithText(text, null);
+		return result;
+	}
+
+	/**
+	 * @return the outline of a box of the given size with its top left
+	 *   corner at x, y of the text
+	 */
+	private CellSet box(int x, int y, int width, int height) {
+		CellSet result = new CellSet();
+		for (int i = 0; i < width; i++) {
+			result.add(cell(x + i, y));
+			result.add(cell(x + i, y + height - 1));
+		}
+		for (int j = 1; j < height - 1; j++) {
+			result.add(cell(x, y + j));
+			result.add(cell(x + width - 1, y + j));
+		}
+		return result;
+	}
+
+	private CellSet cells(int... coordinates) {
+		CellSet result = new CellSet();
+		for (int i = 0; i < coordinates.length; i += 2) {
+			result.add(cell(coordinates[i], coordinates[i + 1]));
+		}
+		return result;
+	}
+
+	private Cell cell(int x, int y) {
+		return new Cell(x + BORDER, y + BORDER);
+	}
+}
@@ -23,6 +23,7 @@ import static org.junit.Assert.*;
 import static org.hamcrest.Matchers.*;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Before;
@@ -66,6 +67,25 @@ public class TextGridTest {
 		assertThat(testee.getRow(3).toString(), is("  表示      "));
 	}
 
+	@Test public void testMarkupTagsBelongToTheirGrid() throws Exception {
+		// Given
+		TextGrid custom = new TextGrid();
+		custom.initialiseWithText("{d} {cloud}", null);
+		TextGrid plain = new TextGrid();
+		plain.initialiseWithText("{d} {cloud}", null);
+
+		// When
+		custom.addToMarkupTags(Arrays.asList("cloud"));
+		List<TextGrid.CellTagPair> customTags = custom.resolveTag();
+		List<TextGrid.CellTagPair> plainTags = plain.resolveTag();
+
+		// Then
+		assertThat(customTags.size(), is(2));
+		assertThat(customTags.get(1).tag, is("cloud"));
+		assertThat(plainTags.size(), is(1));
+		assertThat(plainTags.get(0).tag, is("d"));
+	}
+
 	@Test public void testFindStrings() throws Exception {
 		// Given
 		TextGrid testee = new TextGrid();
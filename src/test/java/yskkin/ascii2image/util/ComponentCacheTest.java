@@ -0,0 +1,158 @@
+package yskkin.ascii2image.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.stathissideris.ascii2image.text.CellSet;
+import org.stathissideris.ascii2image.text.TextGrid;
+import org.stathissideris.ascii2image.text.TextGrid.Cell;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+public class ComponentCacheTest {
+
+	private static final String TWO_BOXES =
+			"+--+      \n" +
+			"|  |  +--+\n" +
+			"+--+  |  |\n" +
+			"      +--+\n";
+
+	@Test
+	public void testRepeatedComponentIsSearchedOnce() throws Exception {
+		// Given
+		TextGrid grid = grid(TWO_BOXES);
+		ComponentBoundaries result = new ComponentBoundaries();
+
+		// When
+		List<CellSet> testee = BoundarySearcher.findBoundariesFromGrid(grid, null, null, result);
+
+		// Then
+		assertThat(result.getSearchedCount(), is(1));
+		assertThat(result.getReusedCount(), is(1));
+		assertThat(testee, contains(box(2, 2), box(8, 3)));
+	}
+
+	@Test
+	public void testComponentsAreReusedAcrossGrids() throws Exception {
+		// Given
+		ComponentCache cache = new ComponentCache(1000);
+		BoundarySearcher.findBoundariesFromGrid(grid("+--+\n|  |\n+--+\n"), null, cache, new ComponentBoundaries());
+		ComponentBoundaries result = new ComponentBoundaries();
+
+		// When
+		List<CellSet> testee = BoundarySearcher.findBoundariesFromGrid(grid("\n\n   +--+\n   |  |\n   +--+\n"), null, cache, result);
+
+		// Then
+		assertThat(result.getReusedCount(), is(1));
+		assertThat(cache.getHits(), is(1L));
+		assertThat(cache.getMisses(), is(1L));
+		assertThat(testee, contains(box(5, 4)));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedComponentIsEvicted() {
+		// Given
+		ComponentCache testee = new ComponentCache(2);
+		testee.put("a", new ArrayList<CellSet>());
+		testee.put("b", new ArrayList<CellSet>());
+		testee.get("a");
+
+		// When
+		testee.put("c", new ArrayList<CellSet>());
+
+		// Then
+		assertThat(testee.get("b"), is(nullValue()));
+		assertThat(testee.get("a"), is(notNullValue()));
+		assertThat(testee.get("c"), is(notNullValue()));
+		assertThat(testee.size(), is(2));
+		assertThat(testee.getEvictions(), is(1L));
+		assertThat(testee.getHits(), is(3L));
+		assertThat(testee.getMisses(), is(1L));
+	}
+
+	@Test
+	public void testShrinkingEvictsLeastRecentlyUsed() {
+		// Given
+		ComponentCache testee = new ComponentCache(3);
+		testee.put("a", new ArrayList<CellSet>());
+		testee.put("b", new ArrayList<CellSet>());
+		testee.put("c", new ArrayList<CellSet>());
+		testee.get("a");
+
+		// When
+		testee.setCapacity(1);
+
+		// Then
+		assertThat(testee.size(), is(1));
+		assertThat(testee.getEvictions(), is(2L));
+		assertThat(testee.get("a"), is(notNullValue()));
+	}
+
+	@Test
+	public void testCacheIsBoundedByCells() {
+		// Given
+		ComponentCache testee = new ComponentCache(25);
+		testee.put("a", boundaries(box(0, 0)));
+		testee.put("b", boundaries(box(5, 0)));
+
+		// When
+		testee.put("c", boundaries(box(0, 5)));
+		testee.put("too large", boundaries(box(0, 0), box(5, 0), box(0, 5)));
+
+		// Then
+		assertThat(testee.size(), is(2));
+		assertThat(testee.getCellCount(), is(22L));
+		assertThat(testee.getEvictions(), is(1L));
+		assertThat(testee.get("a"), is(nullValue()));
+		assertThat(testee.get("too large"), is(nullValue()));
+	}
+
+	@Test
+	public void testKeysDoNotGrowWithComponents() throws Exception {
+		// Given
+		StringBuilder text = new StringBuilder("+");
+		for (int i = 0; i < 500; i++) text.append('-');
+		text.append("+\n");
+		TextGrid grid = grid(text.toString());
+		CellSet line = new CellSet();
+		for (int x = 0; x < 502; x++) line.add(new Cell(x, 0));
+		CellSet shorter = new CellSet();
+		for (int x = 0; x < 501; x++) shorter.add(new Cell(x, 0));
+
+		// When
+		String key = ComponentBoundaries.keyOf(grid, line, 0, 0);
+
+		// Then
+		assertThat(key.length(), is(64));
+		assertThat(ComponentBoundaries.keyOf(grid, line, 0, 0), is(key));
+		assertThat(ComponentBoundaries.keyOf(grid, shorter, 0, 0), is(not(key)));
+	}
+
+	private static List<CellSet> boundaries(CellSet... sets) {
+		List<CellSet> result = new ArrayList<CellSet>();
+		for (CellSet set : sets) result.add(set);
+		return result;
+	}
+
+	private TextGrid grid(String text) throws Exception {
+		TextGrid result = new TextGrid();
+		result.initialiseWithText(text, null);
+		return result;
+	}
+
+	/**
+	 * @return the outline of a 4x3 box with its top left corner at x, y
+	 */
+	private static CellSet box(int x, int y) {
+		CellSet result = new CellSet();
+		for (int i = 0; i < 4; i++) {
+			result.add(new Cell(x + i, y));
+			result.add(new Cell(x + i, y + 2));
+		}
+		result.add(new Cell(x, y + 1));
+		result.add(new Cell(x + 3, y + 1));
+		return result;
+	}
+}
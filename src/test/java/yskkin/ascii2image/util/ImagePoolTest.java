@@ -0,0 +1,79 @@
+package yskkin.ascii2image.util;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+public class ImagePoolTest {
+
+	@Test
+	public void testReleasedImageIsReusedCleared() {
+		// Given
+		ImagePool testee = new ImagePool(1024 * 1024);
+		BufferedImage first = testee.acquire(100, 50, BufferedImage.TYPE_INT_ARGB);
+		first.setRGB(99, 49, 0xff123456);
+		testee.release(first);
+
+		// When
+		BufferedImage second = testee.acquire(110, 50, BufferedImage.TYPE_INT_ARGB);
+
+		// Then
+		assertThat(second.getWidth(), is(110));
+		assertThat(second.getHeight(), is(50));
+		assertThat(second.getRaster().getDataBuffer(), is(sameInstance(first.getRaster().getDataBuffer())));
+		assertThat(second.getRGB(109, 49), is(0));
+		assertThat(first.getRGB(99, 49), is(0));
+		assertThat(testee.getHits(), is(1L));
+		assertThat(testee.getMisses(), is(1L));
+		assertThat(testee.getLentCount(), is(1));
+		assertThat(testee.getIdleCount(), is(0));
+	}
+
+	@Test
+	public void testImagesOfOtherTypesAreNotShared() {
+		// Given
+		ImagePool testee = new ImagePool(1024 * 1024);
+		testee.release(testee.acquire(100, 50, BufferedImage.TYPE_INT_ARGB));
+
+		// When
+		BufferedImage result = testee.acquire(100, 50, BufferedImage.TYPE_INT_RGB);
+
+		// Then
+		assertThat(result.getType(), is(BufferedImage.TYPE_INT_RGB));
+		assertThat(testee.getHits(), is(0L));
+		assertThat(testee.getIdleCount(), is(1));
+	}
+
+	@Test
+	public void testIdleImagesStayWithinCapacity() {
+		// Given
+		ImagePool testee = new ImagePool(3 * 4 * 64 * 64);
+		BufferedImage[] images = new BufferedImage[4];
+		for (int i = 0; i < images.length; i++) {
+			images[i] = testee.acquire(64, 64, BufferedImage.TYPE_INT_RGB);
+		}
+
+		// When
+		for (BufferedImage image : images) {
+			testee.release(image);
+		}
+
+		// Then
+		assertThat(testee.getIdleCount(), is(3));
+		assertThat(testee.getIdleBytes(), is(3L * 4 * 64 * 64));
+		assertThat(testee.getEvictions(), is(1L));
+		assertThat(testee.getLentCount(), is(0));
+	}
+
+	@Test
+	public void testSizesAreRoundedUpToAQuarterOfAPowerOfTwo() {
+		assertThat(ImagePool.sizeClass(1), is(64));
+		assertThat(ImagePool.sizeClass(65), is(80));
+		assertThat(ImagePool.sizeClass(1000), is(1024));
+		assertThat(ImagePool.sizeClass(1025), is(1280));
+		assertThat(ImagePool.sizeClass(1280), is(1280));
+	}
+}
@@ -0,0 +1,85 @@
+package yskkin.ascii2image.util;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+public class OffHeapDataBufferTest {
+
+	@Test
+	public void testJava2DDrawsIntoOffHeapImage() throws Exception {
+		// Given
+		BufferedImage expected = new BufferedImage(40, 30, BufferedImage.TYPE_INT_ARGB);
+		BufferedImage testee = OffHeapDataBuffer.createImage(40, 30, true);
+
+		// When
+		draw(expected);
+		draw(testee);
+
+		// Then
+		assertThat(OffHeapDataBuffer.of(testee), is(notNullValue()));
+		assertThat(OffHeapDataBuffer.of(expected), is(nullValue()));
+		assertSamePixels(testee, expected);
+	}
+
+	@Test
+	public void testMappedRowsAreWrittenAndEncoded() throws Exception {
+		// Given
+		OffHeapDataBuffer testee = OffHeapDataBuffer.map(6, null);
+		int[] row = { 0xff0000, 0x00ff00, 0x0000ff };
+
+		// When
+		testee.setRow(3, row, 0, 3);
+
+		// Then
+		int[] result = new int[3];
+		testee.getRow(3, result, 3);
+		assertThat(testee.isMapped(), is(true));
+		assertThat(result[1], is(0x00ff00));
+		assertThat(testee.getElem(5), is(0x0000ff));
+		assertThat(testee.getElem(0), is(0));
+	}
+
+	@Test
+	public void testEncoderReadsOffHeapImage() throws Exception {
+		// Given
+		BufferedImage image = OffHeapDataBuffer.createImage(40, 30, false);
+		draw(image);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		// When
+		PngEncoder testee = new PngEncoder(out, 40, 30, false);
+		testee.writeRows(image.getSubimage(0, 0, 40, 10), 0, 10);
+		testee.writeRows(image.getSubimage(0, 10, 40, 20), 0, 20);
+		testee.finish();
+
+		// Then
+		assertSamePixels(ImageIO.read(new ByteArrayInputStream(out.toByteArray())), image);
+	}
+
+	private void draw(BufferedImage image) {
+		Graphics2D g2 = image.createGraphics();
+		g2.setColor(new Color(0x20, 0x80, 0xc0));
+		g2.fillOval(3, 2, 30, 25);
+		g2.setColor(Color.black);
+		g2.drawLine(0, 29, 39, 0);
+		g2.dispose();
+	}
+
+	private void assertSamePixels(BufferedImage actual, BufferedImage expected) {
+		for (int y = 0; y < expected.getHeight(); y++) {
+			for (int x = 0; x < expected.getWidth(); x++) {
+				assertThat("pixel at " + x + ", " + y, actual.getRGB(x, y), is(expected.getRGB(x, y)));
+			}
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package yskkin.ascii2image.util;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.Matchers.*;
+
+public class PngEncoderTest {
+
+	@Test
+	public void testRowsWrittenInPiecesMakeOneImage() throws Exception {
+		// Given
+		BufferedImage image = new BufferedImage(50, 30, BufferedImage.TYPE_3BYTE_BGR);
+		Graphics2D g2 = image.createGraphics();
+		g2.setColor(Color.white);
+		g2.fillRect(0, 0, 50, 30);
+		g2.setColor(new Color(0x20, 0x80, 0xc0));
+		g2.fillOval(5, 3, 40, 25);
+		g2.dispose();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		// When
+		PngEncoder testee = new PngEncoder(out, 50, 30, false);
+		testee.writeRows(image, 0, 13);
+		testee.writeRows(image.getSubimage(0, 13, 50, 17), 0, 17);
+		testee.finish();
+
+		// Then
+		BufferedImage result = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+		for (int y = 0; y < 30; y++) {
+			for (int x = 0; x < 50; x++) {
+				assertThat(result.getRGB(x, y), is(image.getRGB(x, y)));
+			}
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testUnfinishedImageCannotBeEnded() throws Exception {
+		// Given
+		PngEncoder testee = new PngEncoder(new ByteArrayOutputStream(), 10, 10, true);
+		testee.writeRows(new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB), 0, 5);
+
+		// When
+		testee.finish();
+	}
+}
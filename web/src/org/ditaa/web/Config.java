@@ -14,6 +14,24 @@ public class Config {
     public static final String KEY_RENDER_EXTERNAL_PROCESS = "render_external";
     public static final String KEY_EXTERNAL_RENDER_CP = "external_render_classpath";
     public static final String KEY_JAVA_EXECUTABLE = "java_executable";
+    public static final String KEY_CACHE_MEMORY_BYTES = "cache_memory_bytes";
+    public static final String KEY_CACHE_DIR = "cache_dir";
+    public static final String KEY_CACHE_MAX_AGE = "cache_max_age";
+    public static final String KEY_RENDER_THREADS = "render_threads";
+    public static final String KEY_RENDER_QUEUE = "render_queue";
+    public static final String KEY_RENDER_TIMEOUT = "render_timeout";
+    public static final String KEY_EXTERNAL_WORKERS = "external_workers";
+    public static final String KEY_EXTERNAL_WORKER_RENDERS = "external_worker_renders";
+    public static final String KEY_EXTERNAL_WORKER_HEAP_MB = "external_worker_heap_mb";
+    public static final String KEY_EXTERNAL_WORKER_JVM_OPTIONS = "external_worker_jvm_options";
+
+    public static final long DEFAULT_CACHE_MEMORY_BYTES = 32L * 1024 * 1024;
+    public static final int DEFAULT_CACHE_MAX_AGE = 24 * 60 * 60;
+    public static final int DEFAULT_RENDER_THREADS = 12;
+    public static final int DEFAULT_RENDER_QUEUE = 32;
+    public static final int DEFAULT_EXTERNAL_WORKERS = 3;
+    public static final int DEFAULT_EXTERNAL_WORKER_RENDERS = 200;
+    public static final int DEFAULT_EXTERNAL_WORKER_HEAP_MB = 256;
 
     /** Load all values from .properties files in WEB-INF into a single hash map. */
     public static HashMap<String,String> getAllProperties(ServletContext context) throws IOException {
@@ -83,6 +101,71 @@ public class Config {
         return getAllProperties(context).get(KEY_RESTART_TIME);
     }
 
+    /** Upper bound, in bytes, of the rendered images kept in memory. */
+    public static long getCacheMemoryBytes(ServletContext context) throws IOException {
+        return getLong(context, KEY_CACHE_MEMORY_BYTES, DEFAULT_CACHE_MEMORY_BYTES);
+    }
+
+    /** The directory of the on-disk render cache. Null if rendered images are only cached in memory. */
+    public static File getCacheDir(ServletContext context) throws IOException {
+        String dirName = getAllProperties(context).get(KEY_CACHE_DIR);
+        return Compare.isBlank(dirName) ? null : new File(dirName.trim());
+    }
+
+    /** How long, in seconds, clients may cache a rendered image. */
+    public static int getCacheMaxAge(ServletContext context) throws IOException {
+        return (int) getLong(context, KEY_CACHE_MAX_AGE, DEFAULT_CACHE_MAX_AGE);
+    }
+
+    /** Number of threads rendering in process. */
+    public static int getRenderThreads(ServletContext context) throws IOException {
+        return (int) Math.max(1, getLong(context, KEY_RENDER_THREADS, DEFAULT_RENDER_THREADS));
+    }
+
+    /** Number of renders that may wait for a thread; further requests are turned away. */
+    public static int getRenderQueueSize(ServletContext context) throws IOException {
+        return (int) Math.max(1, getLong(context, KEY_RENDER_QUEUE, DEFAULT_RENDER_QUEUE));
+    }
+
+    /** Render time limit, in seconds, for requests that do not ask for one. */
+    public static int getRenderTimeout(ServletContext context, int defaultVal) throws IOException {
+        return (int) getLong(context, KEY_RENDER_TIMEOUT, defaultVal);
+    }
+
+    /** Number of external worker processes that may render at the same time. */
+    public static int getExternalWorkers(ServletContext context) throws IOException {
+        return (int) Math.max(1, getLong(context, KEY_EXTERNAL_WORKERS, DEFAULT_EXTERNAL_WORKERS));
+    }
+
+    /** Renders after which an external worker is replaced by a fresh one. */
+    public static int getExternalWorkerRenders(ServletContext context) throws IOException {
+        return (int) Math.max(1, getLong(context, KEY_EXTERNAL_WORKER_RENDERS, DEFAULT_EXTERNAL_WORKER_RENDERS));
+    }
+
+    /** Heap use, in bytes, after which an external worker is replaced by a fresh one. */
+    public static long getExternalWorkerHeapBytes(ServletContext context) throws IOException {
+        return getLong(context, KEY_EXTERNAL_WORKER_HEAP_MB, DEFAULT_EXTERNAL_WORKER_HEAP_MB) * 1024 * 1024;
+    }
+
+    /** Extra JVM options of the external workers, e.g. -Xmx. */
+    public static List<String> getExternalWorkerJvmOptions(ServletContext context) throws IOException {
+        String options = getAllProperties(context).get(KEY_EXTERNAL_WORKER_JVM_OPTIONS);
+        List<String> result = new ArrayList<String>();
+        if (!Compare.isBlank(options))
+            result.addAll(Arrays.asList(options.trim().split("\\s+")));
+        return result;
+    }
+
+    private static long getLong(ServletContext context, String key, long defaultVal) throws IOException {
+        String s = getAllProperties(context).get(key);
+        if (Compare.isBlank(s)) return defaultVal;
+        try { return Long.parseLong(s.trim()); }
+        catch(NumberFormatException e) {
+            System.out.println("Can't parse " + key + " = \"" + s + "\" as a number.  Defaulting to " + defaultVal + ".");
+            return defaultVal;
+        }
+    }
+
     public static File getWebInfDir(ServletContext context) throws IOException {
         String path = context.getRealPath("WEB-INF");
         File result = new File(path);
@@ -6,6 +6,7 @@ import org.stathissideris.ascii2image.graphics.Diagram;
 import org.stathissideris.ascii2image.text.TextGrid;
 
 import javax.imageio.ImageIO;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
@@ -13,10 +14,13 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.awt.*;
 import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ImageServlet extends HttpServlet {
     public static final int MAX_TIMEOUT = 300; // seconds -- anything more than 5 minutes is unlikely to be feasible
@@ -32,19 +36,40 @@ public class ImageServlet extends HttpServlet {
     // start the countdown to when we allow a restart
     static { RestartServlet.lastReset[0] = System.currentTimeMillis(); }
 
-    /** Internal renderer */
+    /** Renders (in process, or waiting on an external worker): a fixed number of threads behind
+     *  a bounded queue -- setup on first use. When the queue is full, requests are turned away
+     *  with 503 instead of piling up. */
     private static final Object INTERNAL_SETUP_SYNC = new Object();
-    private static ExecutorService RENDER_EXECUTOR;
-    static {
-        // 12 workers -- setup on first use
-        // RENDER_EXECUTOR = Executors.newFixedThreadPool(12);
-        // BlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(32);
-        // RENDER_EXECUTOR = new ThreadPoolExecutor(1, 3, 60, TimeUnit.SECONDS, queue);
+    private static ThreadPoolExecutor RENDER_EXECUTOR;
+
+    /** Requests turned away because the render queue was full. */
+    private static final AtomicLong REJECTED = new AtomicLong();
+
+    /** Timeout for requests that do not specify one; see {@link Config#getRenderTimeout}. */
+    private static volatile int defaultTimeout = DEFAULT_TIMEOUT;
+
+    /** Rendered images, shared by all requests -- setup on first use. */
+    private static RenderCache RENDER_CACHE;
+
+    /** Renders in progress, so that identical concurrent requests share a single render. */
+    private static final SingleFlight<byte[]> RENDERS_IN_FLIGHT = new SingleFlight<byte[]>();
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        try {
+            defaultTimeout = Math.max(0, Math.min(MAX_TIMEOUT,
+                    Config.getRenderTimeout(getServletContext(), DEFAULT_TIMEOUT)));
+        } catch(IOException e) {
+            System.err.println("Cannot read render timeout, using " + DEFAULT_TIMEOUT + " seconds: " + e.getMessage());
+        }
     }
 
-    /** External renderer: use a semaphore -- max 3 simultaneous. */
-    // TODO: make this configurable
-    private static final Semaphore EXTERNAL_RENDERER_LOCK = new Semaphore(3);
+    @Override
+    public void destroy() {
+        ExternalRenderer.shutdown();
+        super.destroy();
+    }
 
     public void transmitImage(final HttpServletRequest request, final HttpServletResponse response)
             throws IOException, ServletException
@@ -98,79 +123,146 @@ public class ImageServlet extends HttpServlet {
 
         System.out.println("Request for " + request.getRequestURI() + " referred from "
                 + request.getHeader("referer") + "  from " + request.getRemoteHost() + " - " + new Date() + ":");
+
+        // the image depends only on the grid and the options, so its key doubles as a strong ETag
+        RenderCache cache = getCache(getServletContext());
+        String cacheKey = RenderCache.keyFor(gridText, options);
+        String etag = "\"" + cacheKey + "\"";
+        if (matchesETag(request.getHeader("If-None-Match"), etag)) {
+            cache.countNotModified();
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            setCacheHeaders(response, etag);
+            System.out.println("Not modified, completed in " + (System.currentTimeMillis() - start) + " ms");
+            return;
+        }
+        byte[] cached = cache.get(cacheKey);
+        if (cached != null) {
+            transmitPng(cached, etag, response);
+            System.out.println("Served from cache in " + (System.currentTimeMillis() - start) + " ms");
+            return;
+        }
+
         try {
             int timeoutSeconds = getTimeout(request);
-            if (Config.isRenderExternal(getServletContext()))
-                renderExternal(options, backgroundString, gridText, timeoutSeconds, response);
-            else
-                renderInternal(options, gridText, timeoutSeconds, response);
+            render(options, backgroundString, gridText, cacheKey, etag, timeoutSeconds, response);
             System.out.println("Completed in " + (System.currentTimeMillis() - start) + " ms");
         } catch(TimeoutException e) {
             String url = "timeout.jsp?" + HttpKit.adjustParameters(request, "timeout", "" + getTimeout(request));
             System.out.println("Timed out after " + (System.currentTimeMillis() - start) + " ms");
             debug("  --> Redirecting to " + url);
             response.sendRedirect(url);
+        } catch(RejectedExecutionException e) {
+            REJECTED.incrementAndGet();
+            System.out.println("Rejected, render queue full, after " + (System.currentTimeMillis() - start) + " ms");
+            transmitBusy(response);
+        } catch(CancellationException e) {
+            // the render this request joined was given up by everybody else just before
+            System.out.println("Render cancelled after " + (System.currentTimeMillis() - start) + " ms");
+            transmitBusy(response);
         }
     }
 
-    private void debug(String msg) {
-        if (DEBUG)
-            System.out.println("ImageServlet: " + msg);
+    private void transmitBusy(HttpServletResponse response) throws IOException {
+        response.setHeader("Retry-After", "" + Math.max(1, defaultTimeout));
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                "Too many diagrams are being rendered right now. Please try again shortly.");
     }
 
-    private void renderExternal(final ConversionOptions options, String backgroundString,
-                                final String gridText, int timeoutSeconds, HttpServletResponse response)
-            throws IOException, TimeoutException
-    {
-        long timeoutMillis = timeoutSeconds * 1000;
-        long start = System.currentTimeMillis();
-        boolean acquired = false;
-        try {
-            acquired = EXTERNAL_RENDERER_LOCK.tryAcquire(timeoutMillis, TimeUnit.SECONDS);
-            long elapsed = System.currentTimeMillis() - start;
-            if (acquired)
-                new ExternalRenderer(options, backgroundString, gridText, timeoutMillis - elapsed, getServletContext(), response).render();
-            else {
-                throw new TimeoutException("External still busy after "
-                        + elapsed + " millis (" + timeoutSeconds + " allowed).");
+    /** The executor of the internal renderer, created from {@link Config} on first use. */
+    private static ThreadPoolExecutor getExecutor(ServletContext context) throws IOException {
+        synchronized (INTERNAL_SETUP_SYNC) {
+            if (RENDER_EXECUTOR == null) {
+                int threads = Config.getRenderThreads(context);
+                RENDER_EXECUTOR = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<Runnable>(Config.getRenderQueueSize(context)));
             }
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            if (acquired)
-                EXTERNAL_RENDERER_LOCK.release();
+            return RENDER_EXECUTOR;
         }
     }
 
-    private void renderInternal(final ConversionOptions options, final String gridText,
-                                int timeoutSeconds, HttpServletResponse response)
-            throws IOException, TimeoutException
-    {
-        final TextGrid grid = new TextGrid();
+    /** The render cache of this web application, created from {@link Config} on first use. */
+    static RenderCache getCache(ServletContext context) throws IOException {
+        synchronized (INTERNAL_SETUP_SYNC) {
+            if (RENDER_CACHE == null)
+                RENDER_CACHE = new RenderCache(Config.getCacheMemoryBytes(context), Config.getCacheDir(context));
+            return RENDER_CACHE;
+        }
+    }
 
-        // initialize thread pool on first use, to avoid unnecessary allocation
+    /** Counters of the render service, for {@link StatsServlet}. */
+    static Map<String, Object> getStats(ServletContext context) throws IOException {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.putAll(getCache(context).getStats());
+        result.putAll(RENDERS_IN_FLIGHT.getStats("render"));
+        ExternalRenderer.getStats(result);
+        result.put("render.rejected", REJECTED.get());
         synchronized (INTERNAL_SETUP_SYNC) {
-            if (RENDER_EXECUTOR == null)
-                RENDER_EXECUTOR = Executors.newFixedThreadPool(12);
+            if (RENDER_EXECUTOR != null) {
+                result.put("render.active", RENDER_EXECUTOR.getActiveCount());
+                result.put("render.queued", RENDER_EXECUTOR.getQueue().size());
+            }
+        }
+        return result;
+    }
+
+    /** True if <tt>ifNoneMatch</tt> (the value of an If-None-Match header) matches <tt>etag</tt>. */
+    static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) return false;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || candidate.equals(etag)) return true;
         }
+        return false;
+    }
+
+    private void setCacheHeaders(HttpServletResponse response, String etag) throws IOException {
+        int maxAge = Config.getCacheMaxAge(getServletContext());
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", "public, max-age=" + maxAge);
+        response.setDateHeader("Expires", System.currentTimeMillis() + maxAge * 1000L);
+    }
 
-        Future<RenderedImage> future = RENDER_EXECUTOR.submit(new Callable<RenderedImage>() {
-            public RenderedImage call() throws Exception {
-                grid.initialiseWithText(gridText, options.processingOptions);
-                grid.printDebug();
+    private void transmitPng(byte[] png, String etag, HttpServletResponse response) throws IOException {
+        response.setContentType("image/png");
+        setCacheHeaders(response, etag);
+        response.setContentLength(png.length);
+        ServletOutputStream os = response.getOutputStream();
+        os.write(png);
+    }
 
-                Diagram diagram = new Diagram(grid, options);
-                return new BitmapRenderer().renderToImage(diagram, options.renderingOptions);
+    private void debug(String msg) {
+        if (DEBUG)
+            System.out.println("ImageServlet: " + msg);
+    }
+
+    private void render(final ConversionOptions options, final String backgroundString, final String gridText,
+                        final String cacheKey, String etag, int timeoutSeconds, HttpServletResponse response)
+            throws IOException, TimeoutException
+    {
+        final ServletContext context = getServletContext();
+        // initialize thread pool on first use, to avoid unnecessary allocation
+        ThreadPoolExecutor executor = getExecutor(context);
+
+        final boolean external = Config.isRenderExternal(context);
+        final RenderCache cache = getCache(context);
+        // identical requests arriving while this one renders wait for its result
+        // rather than rendering again; each waits no longer than its own timeout.
+        // The render itself may take as long as the most patient of them allows,
+        // and is cancelled when the last one gives up.
+        Future<byte[]> future = RENDERS_IN_FLIGHT.submit(cacheKey, new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+                byte[] bytes = external
+                        ? ExternalRenderer.render(options, backgroundString, gridText, MAX_TIMEOUT * 1000L, context)
+                        : renderInternal(options, gridText);
+                cache.put(cacheKey, bytes);
+                return bytes;
             }
-        });
+        }, executor);
+        boolean waiting = true;
         try {
-            RenderedImage image = future.get(timeoutSeconds, TimeUnit.SECONDS);
-            response.setContentType("image/png");
-            response.setDateHeader("Expires", System.currentTimeMillis() + 2*60*60*1000L);
-            ServletOutputStream os = response.getOutputStream();
-
-            // the simple way -- no metadata
-            ImageIO.write(image, "png", os);
+            byte[] bytes = future.get(timeoutSeconds, TimeUnit.SECONDS);
+            waiting = false;
+            transmitPng(bytes, etag, response);
 
             // the fun way -- metadata!
             // cribbed from http://stackoverflow.com/questions/721918
@@ -191,10 +283,40 @@ public class ImageServlet extends HttpServlet {
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         } catch (ExecutionException e) {
+            waiting = false;
+            Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException) // the worker pool gave up
+                throw (TimeoutException) cause;
+            if (cause instanceof IOException && external) {
+                // the worker explains what went wrong
+                response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                response.setContentType("text/plain");
+                response.getWriter().println(cause.getMessage());
+                return;
+            }
             throw new RuntimeException(e);
+        } finally {
+            // stop the render if nobody else is waiting for it, and free its place in the queue
+            if (waiting && RENDERS_IN_FLIGHT.abandon(future))
+                executor.purge();
         }
     }
 
+    /** Renders in this process. */
+    private static byte[] renderInternal(ConversionOptions options, String gridText) throws IOException {
+        TextGrid grid = new TextGrid();
+        grid.initialiseWithText(gridText, options.processingOptions);
+        grid.printDebug();
+
+        Diagram diagram = new Diagram(grid, options);
+        RenderedImage image = new BitmapRenderer().renderToImage(diagram, options.renderingOptions);
+
+        // the simple way -- no metadata
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        return png.toByteArray();
+    }
+
     private static float getScale(HttpServletRequest request) {
         float scale = HttpKit.getFloat(request, 1f, "scale");
         if (scale < MIN_SCALE) scale = MIN_SCALE;
@@ -204,12 +326,12 @@ public class ImageServlet extends HttpServlet {
 
     /** Timeout in seconds. */
     public static int getTimeout(HttpServletRequest request) {
-        int result = DEFAULT_TIMEOUT;
+        int result = defaultTimeout;
         if (request.getParameter("timeout") != null)
             try {
                 result = Integer.parseInt(request.getParameter("timeout"));
             } catch(NumberFormatException ignored) { }
-        if (result < 0) result = DEFAULT_TIMEOUT;
+        if (result < 0) result = defaultTimeout;
         if (result > MAX_TIMEOUT) result = MAX_TIMEOUT;
         return result;
     }
@@ -0,0 +1,209 @@
+package org.ditaa.web;
+
+import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.core.ProcessingOptions;
+import org.stathissideris.ascii2image.core.RenderingOptions;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Cache of rendered PNGs, addressed by the content they were rendered from.
+ *  The key is a hash of the normalized grid text and the canonicalized options that affect the
+ *  image, so equal requests share an entry regardless of how their parameters were spelled.
+ *  Entries live in a size-bounded in-memory LRU tier and, optionally, in a directory on disk. */
+public class RenderCache {
+    /** Bump when a change to the renderer changes the output for the same input. */
+    private static final String KEY_VERSION = "ditaa-render-1";
+
+    private final long maxMemoryBytes;
+    private final File dir; // null if there is no disk tier
+
+    // access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(64, 0.75f, true);
+    private long memoryBytes = 0;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+
+    /** @param maxMemoryBytes upper bound of the total size of the images held in memory
+     *  @param dir directory of the disk tier; null to keep entries in memory only */
+    public RenderCache(long maxMemoryBytes, File dir) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.dir = dir;
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+            System.err.println("RenderCache: cannot create cache directory " + dir + "; disk tier may fail.");
+    }
+
+    /** The cache key of rendering <tt>gridText</tt> with <tt>options</tt>: a hex SHA-256. */
+    public static String keyFor(String gridText, ConversionOptions options) {
+        StringBuilder content = new StringBuilder(KEY_VERSION).append('\n');
+        appendOptions(content, options);
+        content.append('\n').append(normalizeGrid(gridText));
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(content.toString().getBytes("UTF-8"));
+            StringBuilder result = new StringBuilder(hash.length * 2);
+            for (byte b : hash)
+                result.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Only the options the servlet exposes, taken from their parsed values, so that
+     *  "A" and "no-antialias" or "scale=2" and "scale=2.0" give the same key. */
+    private static void appendOptions(StringBuilder buf, ConversionOptions options) {
+        RenderingOptions rendering = options.renderingOptions;
+        ProcessingOptions processing = options.processingOptions;
+        buf.append("A=").append(!rendering.performAntialias())
+                .append(";S=").append(!rendering.dropShadows())
+                .append(";r=").append(processing.areAllCornersRound())
+                .append(";E=").append(!processing.performSeparationOfCommonEdges())
+                .append(";W=").append(rendering.isFixedSlope())
+                .append(";T=").append(rendering.needsTransparency())
+                .append(";scale=").append(rendering.getScale())
+                .append(";background=").append(Integer.toHexString(rendering.getBackgroundColor().getRGB()));
+    }
+
+    /** Line endings and trailing blank lines do not change the rendered image. */
+    static String normalizeGrid(String gridText) {
+        String result = gridText.replace("\r\n", "\n");
+        int end = result.length();
+        while (end > 0) {
+            int lineStart = result.lastIndexOf('\n', end - 1) + 1;
+            if (!Compare.isBlank(result.substring(lineStart, end))) break;
+            end = lineStart == 0 ? 0 : lineStart - 1;
+        }
+        return result.substring(0, end);
+    }
+
+    /** The cached PNG for <tt>key</tt>, or null. A disk hit is promoted to the memory tier. */
+    public byte[] get(String key) {
+        byte[] result;
+        synchronized (memory) {
+            result = memory.get(key);
+        }
+        if (result != null) {
+            memoryHits.incrementAndGet();
+            return result;
+        }
+        result = readFromDisk(key);
+        if (result != null) {
+            diskHits.incrementAndGet();
+            putInMemory(key, result);
+            return result;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String key, byte[] png) {
+        putInMemory(key, png);
+        writeToDisk(key, png);
+    }
+
+    /** Count a request answered with 304 Not Modified. */
+    public void countNotModified() { notModified.incrementAndGet(); }
+
+    private void putInMemory(String key, byte[] png) {
+        if (png.length > maxMemoryBytes) return;
+        synchronized (memory) {
+            byte[] old = memory.put(key, png);
+            if (old != null) memoryBytes -= old.length;
+            memoryBytes += png.length;
+            for (Iterator<byte[]> i = memory.values().iterator(); memoryBytes > maxMemoryBytes && i.hasNext(); ) {
+                memoryBytes -= i.next().length;
+                i.remove();
+            }
+        }
+    }
+
+    private File fileFor(String key) {
+        // spread entries over subdirectories to keep directory listings short
+        return new File(new File(dir, key.substring(0, 2)), key + ".png");
+    }
+
+    private byte[] readFromDisk(String key) {
+        if (dir == null) return null;
+        File file = fileFor(key);
+        if (!file.isFile()) return null;
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) > 0; )
+                out.write(buffer, 0, n);
+            return out.toByteArray();
+        } catch (IOException e) {
+            System.err.println("RenderCache: cannot read " + file + ": " + e.getMessage());
+            return null;
+        } finally {
+            if (in != null) IOKit.close(in);
+        }
+    }
+
+    /** Write to a temporary file next to the target and rename it into place, so that readers
+     *  (including other processes sharing the directory) never see a partial image. */
+    private void writeToDisk(String key, byte[] png) {
+        if (dir == null) return;
+        File file = fileFor(key);
+        if (file.isFile()) return;
+        File parent = file.getParentFile();
+        parent.mkdirs();
+        File temp = null;
+        try {
+            temp = File.createTempFile(key, ".tmp", parent);
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(png);
+            } finally {
+                out.close();
+            }
+            // if another writer got there first its file is identical, so losing the race is fine
+            if (temp.renameTo(file)) temp = null;
+        } catch (IOException e) {
+            System.err.println("RenderCache: cannot write " + file + ": " + e.getMessage());
+        } finally {
+            if (temp != null) temp.delete();
+        }
+    }
+
+    public long getMemoryHits() { return memoryHits.get(); }
+    public long getDiskHits() { return diskHits.get(); }
+    public long getMisses() { return misses.get(); }
+    public long getNotModified() { return notModified.get(); }
+
+    /** Fraction of lookups answered from the cache, 0 if there were none. */
+    public double getHitRate() {
+        long hits = getMemoryHits() + getDiskHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public int getMemoryEntries() { synchronized (memory) { return memory.size(); } }
+    public long getMemoryBytes() { synchronized (memory) { return memoryBytes; } }
+
+    /** Counters as name/value pairs, for {@link StatsServlet}. */
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("cache.memory.hits", getMemoryHits());
+        result.put("cache.disk.hits", getDiskHits());
+        result.put("cache.misses", getMisses());
+        result.put("cache.not_modified", getNotModified());
+        result.put("cache.hit_rate", getHitRate());
+        result.put("cache.memory.entries", getMemoryEntries());
+        result.put("cache.memory.bytes", getMemoryBytes());
+        return result;
+    }
+}
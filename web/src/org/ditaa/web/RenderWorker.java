@@ -0,0 +1,154 @@
+package org.ditaa.web;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.stathissideris.ascii2image.core.ConversionOptions;
+import org.stathissideris.ascii2image.graphics.BitmapRenderer;
+import org.stathissideris.ascii2image.graphics.Diagram;
+import org.stathissideris.ascii2image.text.TextGrid;
+
+import javax.imageio.ImageIO;
+import java.awt.image.RenderedImage;
+import java.io.*;
+
+/** A long-lived rendering process, run by {@link WorkerPool}. It reads render requests from
+ *  its standard input and writes the resulting PNGs to its standard output, one request at a
+ *  time, until its input is closed.
+ *  <p>The protocol is that of <tt>org.stathissideris.ascii2image.core.RenderWorker</tt>, but
+ *  this worker lives in the web module and only uses the API of the ditaa jar in
+ *  <tt>web/lib</tt>, which is the one the workers find in <tt>WEB-INF/lib</tt>.
+ *  All numbers are big-endian, as written by {@link DataOutputStream}. A request is:</p>
+ *  <pre>
+ *    int     number of options
+ *    string  option (repeated), as made by ExternalRenderer, e.g. "-s", "2"
+ *    bytes   grid text, UTF-8
+ *  </pre>
+ *  <p>and the response is:</p>
+ *  <pre>
+ *    int     status, {@link #STATUS_OK} or {@link #STATUS_ERROR}
+ *    long    heap in use after the render, in bytes
+ *    bytes   the PNG image, or the error message in UTF-8
+ *  </pre>
+ *  <p>where <tt>string</tt> and <tt>bytes</tt> are an int length followed by that many bytes.</p> */
+public class RenderWorker {
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_ERROR = 1;
+
+    /** Refuse frames larger than this, they can only be the result of a corrupt stream. */
+    private static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    /** The options ExternalRenderer passes on, under the names ConversionOptions reads. */
+    private static final Options OPTIONS = new Options();
+    static {
+        OPTIONS.addOption("A", "no-antialias", false, "");
+        OPTIONS.addOption("S", "no-shadows", false, "");
+        OPTIONS.addOption("s", "scale", true, "");
+        OPTIONS.addOption("r", "round-corners", false, "");
+        OPTIONS.addOption("E", "no-separation", false, "");
+        OPTIONS.addOption("W", "fixed-slope", false, "");
+        OPTIONS.addOption("T", "transparent", false, "");
+        OPTIONS.addOption("b", "background", true, "");
+    }
+
+    public static void main(String[] args) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        // anything printed by the conversion must not end up in the responses
+        System.setOut(new PrintStream(new FileOutputStream(FileDescriptor.err), true));
+
+        if (!serve(in, out)) System.exit(1);
+    }
+
+    /** Answers requests until <tt>in</tt> ends.
+     *  @return false if it stopped early because the heap ran out, after reporting it; the
+     *  process should make way for a fresh worker */
+    static boolean serve(DataInputStream in, DataOutputStream out) throws IOException {
+        while (true) {
+            String[] options;
+            try {
+                options = readOptions(in);
+            } catch (EOFException e) {
+                return true; // the server closed our input: time to go
+            }
+            byte[] grid = readBytes(in);
+
+            int status = STATUS_OK;
+            byte[] result;
+            boolean exhausted = false;
+            try {
+                result = render(options, new String(grid, "UTF-8"));
+            } catch (Exception e) {
+                status = STATUS_ERROR;
+                result = describe(e).getBytes("UTF-8");
+            } catch (OutOfMemoryError e) {
+                // the heap may be in any state now, so report and stop
+                status = STATUS_ERROR;
+                result = describe(e).getBytes("UTF-8");
+                exhausted = true;
+            }
+            Runtime runtime = Runtime.getRuntime();
+            writeResponse(out, status, runtime.totalMemory() - runtime.freeMemory(), result);
+            out.flush();
+            if (exhausted) return false;
+        }
+    }
+
+    /** Renders <tt>gridText</tt> to a PNG with the given command line options. */
+    static byte[] render(String[] options, String gridText) throws ParseException, IOException {
+        CommandLine cmdLine = new PosixParser().parse(OPTIONS, options);
+        ConversionOptions conversionOptions = new ConversionOptions(cmdLine);
+        TextGrid grid = new TextGrid();
+        if (!grid.initialiseWithText(gridText, conversionOptions.processingOptions))
+            throw new IOException("Cannot read the grid.");
+        Diagram diagram = new Diagram(grid, conversionOptions);
+        RenderedImage image = new BitmapRenderer().renderToImage(diagram, conversionOptions.renderingOptions);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        return png.toByteArray();
+    }
+
+    private static String describe(Throwable t) {
+        StringWriter writer = new StringWriter();
+        t.printStackTrace(new PrintWriter(writer));
+        return writer.toString();
+    }
+
+    public static void writeRequest(DataOutputStream out, String[] options, String gridText) throws IOException {
+        out.writeInt(options.length);
+        for (String option : options)
+            writeBytes(out, option.getBytes("UTF-8"));
+        writeBytes(out, gridText.getBytes("UTF-8"));
+    }
+
+    public static void writeResponse(DataOutputStream out, int status, long heapUsed, byte[] payload) throws IOException {
+        out.writeInt(status);
+        out.writeLong(heapUsed);
+        writeBytes(out, payload);
+    }
+
+    /** @throws EOFException if the stream ends before the first byte of the request */
+    public static String[] readOptions(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > 1024) throw new IOException("Bad option count " + count);
+        String[] options = new String[count];
+        for (int i = 0; i < count; i++)
+            options[i] = new String(readBytes(in), "UTF-8");
+        return options;
+    }
+
+    public static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_LENGTH) throw new IOException("Bad frame length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,108 @@
+package org.ditaa.web;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Coalesces identical concurrent computations: while a computation for a key is in flight,
+ *  further requests for the same key wait on the same future instead of starting another one.
+ *  Each caller applies its own timeout to the returned future; a caller giving up does not
+ *  affect the others, but once all of them have given up the computation is cancelled. */
+public class SingleFlight<V> {
+    private final ConcurrentMap<String, Flight> inFlight = new ConcurrentHashMap<String, Flight>();
+
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+
+    /** A computation and the number of callers still waiting for it. */
+    private class Flight extends FutureTask<V> {
+        private final String key;
+        private final AtomicInteger waiters = new AtomicInteger(1);
+
+        Flight(String key, Callable<V> task) {
+            super(task);
+            this.key = key;
+        }
+
+        /** Adds a waiter, unless the last one has already left. */
+        boolean join() {
+            while (true) {
+                int n = waiters.get();
+                if (n == 0) return false;
+                if (waiters.compareAndSet(n, n + 1)) return true;
+            }
+        }
+
+        /** True if this was the last waiter. */
+        boolean leave() { return waiters.decrementAndGet() == 0; }
+
+        @Override protected void done() {
+            inFlight.remove(key, this);
+        }
+    }
+
+    /** The future of the computation for <tt>key</tt>. If none is in flight, <tt>task</tt> is
+     *  submitted to <tt>executor</tt>; otherwise the in-flight one is returned and <tt>task</tt>
+     *  is ignored. Callers that stop waiting before the future completes should call
+     *  {@link #abandon}.
+     *  @throws RejectedExecutionException if <tt>executor</tt> does not accept the task */
+    public Future<V> submit(String key, Callable<V> task, Executor executor) {
+        while (true) {
+            Flight flight = inFlight.get(key);
+            if (flight != null) {
+                if (flight.join()) {
+                    coalesced.incrementAndGet();
+                    return flight;
+                }
+                // everybody gave up on it; it is being cancelled
+                inFlight.remove(key, flight);
+                continue;
+            }
+            Flight created = new Flight(key, task);
+            if (inFlight.putIfAbsent(key, created) != null)
+                continue; // lost the race to another caller; join theirs
+            started.incrementAndGet();
+            try {
+                executor.execute(created);
+            } catch(RejectedExecutionException e) {
+                // fail the waiters that joined in the meantime too
+                created.cancel(false);
+                throw e;
+            }
+            return created;
+        }
+    }
+
+    /** Called by a caller that stops waiting for <tt>future</tt>, e.g. after its timeout.
+     *  When the last waiter leaves, the computation is cancelled and its thread interrupted.
+     *  @return true if the computation was cancelled */
+    public boolean abandon(Future<V> future) {
+        Flight flight = (Flight) future;
+        if (!flight.leave()) return false;
+        inFlight.remove(flight.key, flight);
+        if (!flight.cancel(true)) return false;
+        cancelled.incrementAndGet();
+        return true;
+    }
+
+    /** Computations started, that is requests that were not coalesced. */
+    public long getStarted() { return started.get(); }
+    /** Requests that waited on a computation started by an earlier request. */
+    public long getCoalesced() { return coalesced.get(); }
+    /** Computations cancelled because all their waiters gave up. */
+    public long getCancelled() { return cancelled.get(); }
+    public int getInFlight() { return inFlight.size(); }
+
+    /** Counters as name/value pairs, for {@link StatsServlet}; names start with <tt>prefix</tt>. */
+    public Map<String, Object> getStats(String prefix) {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put(prefix + ".started", getStarted());
+        result.put(prefix + ".coalesced", getCoalesced());
+        result.put(prefix + ".cancelled", getCancelled());
+        result.put(prefix + ".in_flight", getInFlight());
+        return result;
+    }
+}
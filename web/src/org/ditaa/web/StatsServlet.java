@@ -0,0 +1,24 @@
+package org.ditaa.web;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+/** Reports the counters of the render service as plain text, one "name value" pair per line. */
+public class StatsServlet extends HttpServlet {
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException { doit(resp); }
+
+    private void doit(HttpServletResponse resp) throws IOException {
+        resp.setContentType("text/plain");
+        resp.setHeader("Cache-Control", "no-cache");
+        PrintWriter writer = resp.getWriter();
+        for (Map.Entry<String, Object> entry : ImageServlet.getStats(getServletContext()).entrySet())
+            writer.println(entry.getKey() + " " + entry.getValue());
+    }
+
+    private static final long serialVersionUID = 1;
+}
@@ -0,0 +1,190 @@
+package org.ditaa.web;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A pool of long-lived {@link RenderWorker} processes. Each render borrows an idle worker
+ *  (starting one if fewer than the maximum are running), so rendering keeps the isolation
+ *  of a separate process without paying JVM startup for every request. A worker is retired
+ *  after a number of renders, when its heap grows past a threshold, or when a render
+ *  overruns its deadline or the thread waiting for it is interrupted (in which case it
+ *  is killed). */
+public class WorkerPool {
+    private static final boolean DEBUG = false;
+    // how often the watchdog looks for renders whose caller was interrupted
+    private static final long CHECK_MILLIS = 500;
+
+    private final List<String> command;
+    private final int maxRenders;
+    private final long maxHeapBytes;
+
+    // one permit per worker that may run
+    private final Semaphore permits;
+    private final ConcurrentLinkedQueue<Worker> idle = new ConcurrentLinkedQueue<Worker>();
+    private volatile boolean shutdown = false;
+
+    // kills workers that overrun their deadline, or whose caller gave up on them
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ditaa-worker-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong renders = new AtomicLong();
+    private final AtomicLong recycled = new AtomicLong();
+    private final AtomicLong killed = new AtomicLong();
+
+    /** @param command the command line that starts a worker
+     *  @param maxWorkers the number of workers that may run at the same time
+     *  @param maxRenders renders after which a worker is retired
+     *  @param maxHeapBytes heap use reported by a worker after which it is retired */
+    public WorkerPool(List<String> command, int maxWorkers, int maxRenders, long maxHeapBytes) {
+        this.command = new ArrayList<String>(command);
+        this.permits = new Semaphore(maxWorkers, true);
+        this.maxRenders = maxRenders;
+        this.maxHeapBytes = maxHeapBytes;
+    }
+
+    /** Renders <tt>gridText</tt> with the command line <tt>options</tt> on a worker.
+     *  @return the PNG image
+     *  @throws TimeoutException if no worker became available, or the render did not complete,
+     *  within <tt>timeoutMillis</tt>
+     *  @throws IOException if the worker failed to render, with the worker's explanation */
+    public byte[] render(List<String> options, String gridText, long timeoutMillis)
+            throws IOException, TimeoutException, InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS))
+            throw new TimeoutException("All workers still busy after " + timeoutMillis + " ms.");
+        Worker worker = null;
+        boolean reusable = false;
+        try {
+            if (shutdown) throw new IOException("The worker pool has been shut down.");
+            worker = idle.poll();
+            if (worker == null)
+                worker = new Worker();
+            Response response = worker.render(options, gridText, deadline - System.currentTimeMillis());
+            renders.incrementAndGet();
+            reusable = worker.renders < maxRenders && response.heapUsed < maxHeapBytes;
+            if (!reusable) {
+                recycled.incrementAndGet();
+                debug("Retiring worker after " + worker.renders + " renders, heap " + response.heapUsed);
+            }
+            if (response.status != RenderWorker.STATUS_OK)
+                throw new IOException(new String(response.payload, "UTF-8"));
+            return response.payload;
+        } finally {
+            if (worker != null) {
+                if (reusable && !shutdown) idle.add(worker);
+                else worker.destroy();
+            }
+            permits.release();
+        }
+    }
+
+    /** Stops all idle workers; busy ones are stopped as soon as they finish. */
+    public void shutdown() {
+        shutdown = true;
+        for (Worker worker; (worker = idle.poll()) != null; )
+            worker.destroy();
+        watchdog.shutdownNow();
+    }
+
+    /** Counters as name/value pairs, for {@link StatsServlet}. */
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("workers.started", started.get());
+        result.put("workers.idle", idle.size());
+        result.put("workers.renders", renders.get());
+        result.put("workers.recycled", recycled.get());
+        result.put("workers.killed", killed.get());
+        return result;
+    }
+
+    private static class Response {
+        int status;
+        long heapUsed;
+        byte[] payload;
+    }
+
+    private class Worker {
+        private final Process process;
+        private final DataOutputStream in;
+        private final DataInputStream out;
+        private int renders = 0;
+        private volatile boolean killedByWatchdog = false;
+
+        Worker() throws IOException {
+            process = new ProcessBuilder(command).start();
+            started.incrementAndGet();
+            in = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            out = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+            // workers log nothing by default; pass on whatever they do print, and keep the pipe from filling up
+            Thread errorReader = new Thread("ditaa-worker-stderr") {
+                @Override
+                public void run() {
+                    try {
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+                        for (String line; (line = reader.readLine()) != null; )
+                            System.out.println("RenderWorker: " + line);
+                    } catch(IOException ignored) { } // the worker went away
+                }
+            };
+            errorReader.setDaemon(true);
+            errorReader.start();
+        }
+
+        Response render(List<String> options, String gridText, long timeoutMillis) throws IOException, TimeoutException {
+            if (timeoutMillis <= 0) throw new TimeoutException("No time left to render.");
+            final long deadline = System.currentTimeMillis() + timeoutMillis;
+            final Thread caller = Thread.currentThread();
+            // reading from the worker does not respond to interrupts, so the watchdog checks
+            ScheduledFuture<?> kill = watchdog.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    if (killedByWatchdog) return;
+                    if (System.currentTimeMillis() < deadline && !caller.isInterrupted()) return;
+                    killedByWatchdog = true;
+                    killed.incrementAndGet();
+                    process.destroy();
+                }
+            }, Math.min(timeoutMillis, CHECK_MILLIS), CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            try {
+                renders++;
+                RenderWorker.writeRequest(in, options.toArray(new String[options.size()]), gridText);
+                in.flush();
+                Response response = new Response();
+                response.status = out.readInt();
+                response.heapUsed = out.readLong();
+                response.payload = RenderWorker.readBytes(out);
+                return response;
+            } catch(IOException e) {
+                if (killedByWatchdog && caller.isInterrupted())
+                    throw new InterruptedIOException("Render abandoned.");
+                if (killedByWatchdog)
+                    throw new TimeoutException("Render did not complete in " + timeoutMillis + " ms.");
+                throw e;
+            } finally {
+                kill.cancel(false);
+                if (killedByWatchdog) renders = maxRenders; // never reuse
+            }
+        }
+
+        void destroy() {
+            try { in.close(); } catch(IOException ignored) { } // lets the worker exit on its own
+            process.destroy();
+        }
+    }
+
+    private static void debug(String msg) {
+        if (DEBUG)
+            System.out.println("WorkerPool: " + msg);
+    }
+}